@@ -9,8 +9,9 @@ package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoHelper;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 
@@ -33,6 +34,13 @@ import java.util.*;
  * Each directory just contains a list of bucket indices. Each directory and bucket tile is twice as long as the
  * previous directory and bucket tile, respectively.
  *
+ * Header structure:
+ * -----------------
+ * hash size (short)
+ * bucket capacity (short)
+ * number of entries (int), -1 while a batch of modifications is written
+ * -----------------
+ *
  * Directory structure:
  * --------------
  * bucket index 0
@@ -59,12 +67,16 @@ import java.util.*;
  * hash n  |  data n
  * -----------------
  *
+ * The bucket of a hash is selected by the lowest depth bits of the hash prefix (bytes 0-1 give bit 0-15, bytes 2-3
+ * bit 16-31). The directory is kept in memory, i.e. a lookup reads a single bucket. Reads are positional and don't
+ * move the file pointer; concurrent readers are safe as long as nobody writes.
  */
 public class AbstractExtensibleHashMap<IndexType extends Number, DataType extends Number> {
     public interface IDataType<Type> {
         short size();
-        void write(RandomAccessFile file, Type value) throws IOException;
-        Type read(RandomAccessFile file) throws IOException;
+        Type fromLong(long value);
+        void write(DataOutput file, Type value) throws IOException;
+        Type read(DataInput file) throws IOException;
     }
 
     static public class IntegerType implements IDataType<Integer> {
@@ -74,12 +86,17 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
 
         @Override
-        public void write(RandomAccessFile file, Integer value) throws IOException {
+        public Integer fromLong(long value) {
+            return (int)value;
+        }
+
+        @Override
+        public void write(DataOutput file, Integer value) throws IOException {
             file.writeInt(value);
         }
 
         @Override
-        public Integer read(RandomAccessFile file) throws IOException {
+        public Integer read(DataInput file) throws IOException {
             return file.readInt();
         }
     }
@@ -91,38 +108,44 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
 
         @Override
-        public void write(RandomAccessFile file, Long value) throws IOException {
+        public Long fromLong(long value) {
+            return value;
+        }
+
+        @Override
+        public void write(DataOutput file, Long value) throws IOException {
             file.writeLong(value);
         }
 
         @Override
-        public Long read(RandomAccessFile file) throws IOException {
+        public Long read(DataInput file) throws IOException {
             return file.readLong();
         }
     }
 
+    static public class Entry<DataType> {
+        final public byte[] key;
+        final public DataType data;
+
+        public Entry(byte[] key, DataType data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
     private class Bucket {
         final int index;
         final long bucketPosition;
-        final int depth;
         final List<byte[]> hashs;
         final List<DataType> elements;
 
         public Bucket(int index) {
             this.index = index;
-            this.depth = getDepthForIndex(this.index);
-            this.bucketPosition = getBucketPosition(this.index, depth);
+            this.bucketPosition = getBucketPosition(this.index);
             this.hashs = new ArrayList<>(bucketCapacity);
             this.elements = new ArrayList<>(bucketCapacity);
         }
 
-        public boolean add(byte[] hash, DataType element) {
-            if (size() >= bucketCapacity)
-                return false;
-            addForce(hash, element);
-            return true;
-        }
-
         public void addForce(byte[] hash, DataType element) {
             hashs.add(hash);
             elements.add(element);
@@ -132,30 +155,36 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
             return hashs.size();
         }
 
-        private void seekTo() throws IOException {
-            long position = dataStartOffset() + bucketPosition;
-            file.seek(position);
+        public int find(byte[] hash) {
+            for (int i = 0; i < size(); i++) {
+                if (Arrays.equals(hashs.get(i), hash))
+                    return i;
+            }
+            return -1;
         }
 
         public void writeBucket() throws IOException {
-            seekTo();
-            assert size() <= bucketCapacity;
-            file.writeShort(size());
+            if (size() > bucketCapacity)
+                throw new IOException("Bucket overflow");
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(bucketSize());
+            DataOutputStream outputStream = new DataOutputStream(byteStream);
+            outputStream.writeShort(size());
             for (int i = 0; i < size(); i++) {
-                file.write(hashs.get(i));
-                dataType.write(file, elements.get(i));
+                outputStream.write(hashs.get(i));
+                dataType.write(outputStream, elements.get(i));
             }
+            write(dataStartOffset() + bucketPosition, byteStream.toByteArray());
         }
 
         public void readBucket() throws IOException {
-            seekTo();
-
-            short entries = file.readShort();
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(
+                    read(dataStartOffset() + bucketPosition, bucketSize())));
+            short entries = inputStream.readShort();
             for (int i = 0; i < entries; i++) {
                 byte[] hash = new byte[hashSize];
-                file.readFully(hash);
+                inputStream.readFully(hash);
                 hashs.add(hash);
-                elements.add(dataType.read(file));
+                elements.add(dataType.read(inputStream));
             }
         }
 
@@ -165,6 +194,9 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
     }
 
+    // the bucket index is taken from the first 32 bits of the hash
+    final static private int MAX_DEPTH = 31;
+
     final private IDataType<IndexType> indexType;
     final private IDataType<DataType> dataType;
 
@@ -173,6 +205,11 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
 
     private short hashSize = 4;
     private short bucketCapacity = 1;
+    private int numberOfEntries = 0;
+    private boolean consistent = true;
+    private boolean inBatch = false;
+    // bucket index for each directory entry
+    private int[] directory = new int[0];
 
     public AbstractExtensibleHashMap(IDataType<IndexType> indexType, IDataType<DataType> dataType) {
         this.indexType = indexType;
@@ -182,8 +219,10 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
     public void open(RandomAccessFile file, int offset) throws IOException {
         this.file = file;
         this.offset = offset;
+        this.inBatch = false;
 
         readHeader();
+        readDirectory();
     }
 
     public void create(RandomAccessFile file, int offset, short hashSize, short bucketCapacity) throws IOException {
@@ -191,15 +230,24 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         this.offset = offset;
         this.hashSize = hashSize;
         this.bucketCapacity = bucketCapacity;
+        this.numberOfEntries = 0;
+        this.consistent = true;
+        this.inBatch = false;
 
         init();
     }
 
+    public void close() throws IOException {
+        if (inBatch)
+            commitBatch();
+        file.close();
+    }
+
     public void print() throws IOException {
         int size = directorySize();
         System.out.println("Directory size: " + size);
         for (int i = 0; i < size; i++)
-            System.out.println("" + i + " Address: " + readDirectoryEntry(i));
+            System.out.println("" + i + " Address: " + directory[i]);
 
         for (int i = 0; i < size; i++) {
             Bucket bucket = new Bucket(i);
@@ -211,58 +259,91 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         }
     }
 
-    private short bucketsInDirectorySlice(int depth) {
-        short nBuckets = 2;
-        if (depth > 1)
-            nBuckets = (short)Math.pow(2, depth - 1);
-        return nBuckets;
+    private int bucketsInDirectorySlice(int depth) {
+        if (depth == 1)
+            return 2;
+        return 1 << (depth - 1);
     }
 
     public int directorySize() throws IOException {
-        long fileLength = file.length();
-        int dataLength = (int)(fileLength - dataStartOffset() - directorySliceOffset(1));
-        int entrySize = entrySize();
-        assert dataLength % entrySize == 0;
-        return dataLength / entrySize;
+        return directory.length;
     }
 
-    private void writeHeader() throws IOException {
-        file.seek(offset);
-        file.writeShort(hashSize);
-        file.writeShort(bucketCapacity);
+    public long size() {
+        return numberOfEntries;
+    }
+
+    /**
+     * @return false if the map has been modified without committing the batch, e.g. because of a crash, and might be
+     * corrupted
+     */
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    /**
+     * Starts a batch of modifications. The header is only written when the batch is committed; till then the map on
+     * disk is marked as not consistent.
+     */
+    public void beginBatch() throws IOException {
+        if (inBatch)
+            return;
+        inBatch = true;
+        writeHeader(-1);
+    }
+
+    public void commitBatch() throws IOException {
+        inBatch = false;
+        writeHeader(numberOfEntries);
+    }
+
+    private void writeHeader(int entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize());
+        buffer.putShort(hashSize);
+        buffer.putShort(bucketCapacity);
+        buffer.putInt(entries);
+        write(offset, buffer.array());
     }
 
     private void readHeader() throws IOException {
-        file.seek(offset);
-        hashSize = file.readShort();
-        bucketCapacity = file.readShort();
+        ByteBuffer buffer = ByteBuffer.wrap(read(offset, headerSize()));
+        hashSize = buffer.getShort();
+        bucketCapacity = buffer.getShort();
+        int entries = buffer.getInt();
+        consistent = entries >= 0;
+        numberOfEntries = Math.max(0, entries);
     }
 
-    private short headerSize() {
+    private int headerSize() {
         return 2 * 4;
     }
 
+    private void readDirectory() throws IOException {
+        long dataLength = file.length() - dataStartOffset();
+        long size = dataLength / entrySize();
+        if (size < 2 || Long.bitCount(size) != 1 || size * entrySize() != dataLength)
+            throw new IOException("Invalid hash map size");
+        directory = new int[(int)size];
+        int depth = Integer.numberOfTrailingZeros(directory.length);
+        for (int d = 1; d <= depth; d++) {
+            int nEntries = bucketsInDirectorySlice(d);
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(
+                    read(dataStartOffset() + directorySliceOffset(d), nEntries * indexType.size())));
+            for (int i = 0; i < nEntries; i++)
+                directory[indexForDepth(d) + i] = indexType.read(inputStream).intValue();
+        }
+    }
+
     private void init() throws IOException {
-        writeHeader();
+        writeHeader(numberOfEntries);
 
         // write initial tile
         final int depth = 1;
-        List<Bucket> buckets = new ArrayList<>();
-        buckets.add(new Bucket(0));
-        buckets.add(new Bucket(1));
-
-        int tileOffset = dataStartOffset() + directorySliceOffset(depth);
-        int tileSize = buckets.size() * entrySize();
-        if (file.length() - tileOffset < tileSize)
-            file.setLength(tileOffset + tileSize);
-        file.seek(tileOffset);
-
-        for (Integer i = 0; i < buckets.size(); i++)
-            writeDirectoryEntry(i, (IndexType)i);
-        for (int i = 0; i < buckets.size(); i++) {
-            Bucket bucket = buckets.get(i);
-            bucket.writeBucket();
-        }
+        file.setLength(dataStartOffset() + directorySliceOffset(depth) + 2 * entrySize());
+        directory = new int[0];
+        writeDirectorySlice(depth, new int[]{0, 1});
+        new Bucket(0).writeBucket();
+        new Bucket(1).writeBucket();
     }
 
     private int bucketSize() {
@@ -273,87 +354,95 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
     private int indexForDepth(int depth) {
         if (depth == 1)
             return 0;
-        return (int)Math.pow(2, depth - 1);
+        return 1 << (depth - 1);
     }
 
     private int entrySize() {
         return indexType.size() + bucketSize();
     }
 
-    private int dataStartOffset() {
+    private long dataStartOffset() {
         return offset + headerSize();
     }
 
-    private int directorySliceOffset(int depth) {
-        int sliceOffset = indexForDepth(depth) * entrySize();
-        return sliceOffset;
+    private long directorySliceOffset(int depth) {
+        return (long)indexForDepth(depth) * entrySize();
     }
 
     private int getDepthForIndex(int i) {
-        int current = 2;
-        int depth = 1;
-        while (current <= i) {
-            current *= 2;
-            depth++;
-        }
-        return depth;
+        if (i < 2)
+            return 1;
+        return 32 - Integer.numberOfLeadingZeros(i);
     }
 
     private long getDirectoryEntryAddress(int i) {
         int depth = getDepthForIndex(i);
-        if (depth > 1)
-            i -= Math.pow(2, depth - 1);
-
-        long offset = directorySliceOffset(depth);
-        offset += i * indexType.size();
-        return offset;
+        i -= indexForDepth(depth);
+        return directorySliceOffset(depth) + (long)i * indexType.size();
     }
 
-    private IndexType readDirectoryEntry(int i) throws IOException {
-        long position = dataStartOffset() + getDirectoryEntryAddress(i);
-        file.seek(position);
-        return indexType.read(file);
+    private void writeDirectoryEntry(int i, int bucketIndex) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(indexType.size());
+        indexType.write(new DataOutputStream(byteStream), indexType.fromLong(bucketIndex));
+        write(dataStartOffset() + getDirectoryEntryAddress(i), byteStream.toByteArray());
+        directory[i] = bucketIndex;
     }
 
-    private void writeDirectoryEntry(int i, IndexType entry) throws IOException {
-        long position = dataStartOffset() + getDirectoryEntryAddress(i);
-        file.seek(position);
-        indexType.write(file, entry);
+    /**
+     * Writes the directory entries of a depth slice and appends them to the in-memory directory.
+     */
+    private void writeDirectorySlice(int depth, int[] entries) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(entries.length * indexType.size());
+        DataOutputStream outputStream = new DataOutputStream(byteStream);
+        for (int entry : entries)
+            indexType.write(outputStream, indexType.fromLong(entry));
+        write(dataStartOffset() + directorySliceOffset(depth), byteStream.toByteArray());
+
+        int[] newDirectory = Arrays.copyOf(directory, directory.length + entries.length);
+        System.arraycopy(entries, 0, newDirectory, directory.length, entries.length);
+        directory = newDirectory;
     }
 
-    private long getBucketPosition(int i, int depth) {
-        if (depth > 1)
-            i -= Math.pow(2, depth - 1);
+    private long getBucketPosition(int i) {
+        int depth = getDepthForIndex(i);
+        i -= indexForDepth(depth);
         long offset = directorySliceOffset(depth);
         // skip bucket addresses
-        offset += bucketsInDirectorySlice(depth) * indexType.size();
+        offset += (long)bucketsInDirectorySlice(depth) * indexType.size();
         // select i th bucket
-        offset += i * bucketSize();
+        offset += (long)i * bucketSize();
         return offset;
     }
 
-    private int getDepth() throws IOException {
-        int entries = directorySize();
-        int depth = 0;
-        while (entries >= 2) {
-            entries /= 2;
-            depth++;
-        }
-        return depth;
+    private int getDepth() {
+        return Integer.numberOfTrailingZeros(directory.length);
     }
 
     public void duplicateDirectory() throws IOException {
+        int depth = getDepth();
+        if (depth >= MAX_DEPTH)
+            throw new IOException("Maximal hash map depth reached");
         long fileLength = file.length();
         long dataSize = fileLength - dataStartOffset();
-        int currentSize = directorySize();
-        List<IndexType> directory = new ArrayList<>(currentSize);
-        for (int i = 0; i < currentSize; i++)
-            directory.add(readDirectoryEntry(i));
-
         file.setLength(fileLength + dataSize);
-        file.seek(fileLength);
-        for (int i = 0; i < directory.size(); i++)
-            indexType.write(file, directory.get(i));
+        writeDirectorySlice(depth + 1, Arrays.copyOf(directory, directory.length));
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        return buffer.array();
+    }
+
+    private void write(long position, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
     }
 
     public boolean put(String hash, DataType address) throws IOException {
@@ -368,116 +457,188 @@ public class AbstractExtensibleHashMap<IndexType extends Number, DataType extend
         return remove(CryptoHelper.fromHex(hash));
     }
 
-    private IndexType shortHash(byte[] hash, int depth) {
-        Integer shortHash = ((hash[0] << 8) | (hash[1]));
-        shortHash = (shortHash & ~(0xFFFFFFFF << depth));
-        return (IndexType)shortHash;
+    private int shortHash(byte[] hash, int depth) {
+        int shortHash = (hash[0] & 0xFF) << 8 | (hash[1] & 0xFF);
+        if (hash.length >= 4)
+            shortHash |= ((hash[2] & 0xFF) << 8 | (hash[3] & 0xFF)) << 16;
+        return shortHash & ~(0xFFFFFFFF << depth);
     }
 
-    private void distributeBucket(boolean duplicate, Bucket bucket, int depth) throws IOException {
-        if (duplicate) {
-            duplicateDirectory();
-            depth++;
+    private void checkHash(byte[] hash) throws IOException {
+        if (hash.length != hashSize)
+            throw new IOException("Hash size mismatch");
+    }
+
+    private boolean canSplit(Bucket bucket, int depth) {
+        for (byte[] hash : bucket.hashs) {
+            if (shortHash(hash, depth) != bucket.index)
+                return true;
         }
+        return false;
+    }
 
-        Map<IndexType, Bucket> modifiedBuckets = new HashMap<>();
-        for (int i = 0; i < bucket.hashs.size(); i++) {
-            byte[] hash = bucket.hashs.get(i);
-            DataType address = bucket.elements.get(i);
-            IndexType index = shortHash(hash, depth);
-            if ((Integer)index == bucket.index)
-                continue;
-            else {
-                Bucket newBucket = modifiedBuckets.get(index);
+    /**
+     * Moves the entries of an overfull bucket into new buckets. If all entries would stay in the bucket the directory
+     * is doubled first.
+     */
+    private void split(Bucket bucket) throws IOException {
+        while (bucket != null) {
+            int depth = getDepth();
+            if (!canSplit(bucket, depth)) {
+                duplicateDirectory();
+                depth++;
+            }
+
+            Map<Integer, Bucket> newBuckets = new HashMap<>();
+            for (int i = 0; i < bucket.size(); i++) {
+                byte[] hash = bucket.hashs.get(i);
+                int index = shortHash(hash, depth);
+                if (index == bucket.index)
+                    continue;
+                // the directory entry still points to the split bucket, i.e. the bucket slot is unused
+                Bucket newBucket = newBuckets.get(index);
                 if (newBucket == null) {
-                    newBucket = new Bucket((Integer) index);
-                    assert newBucket.depth == depth;
-                    modifiedBuckets.put(index, newBucket);
+                    newBucket = new Bucket(index);
+                    newBuckets.put(index, newBucket);
                 }
-                newBucket.addForce(hash, address);
+                newBucket.addForce(hash, bucket.elements.get(i));
                 bucket.remove(i);
                 i--;
-                continue;
             }
-        }
-        for (Map.Entry<IndexType, Bucket> entry : modifiedBuckets.entrySet()) {
-            Bucket modifiedBucket = entry.getValue();
-            IndexType index = entry.getKey();
-            writeDirectoryEntry((Integer) index, index);
-            if (modifiedBucket.size() > bucketCapacity)
-                distributeBucket(true, modifiedBucket, depth);
+
+            // at most one bucket can still be overfull
+            Bucket overfull = null;
+            if (bucket.size() > bucketCapacity)
+                overfull = bucket;
             else
-                modifiedBucket.writeBucket();
+                bucket.writeBucket();
+            for (Bucket newBucket : newBuckets.values()) {
+                writeDirectoryEntry(newBucket.index, newBucket.index);
+                if (newBucket.size() > bucketCapacity)
+                    overfull = newBucket;
+                else
+                    newBucket.writeBucket();
+            }
+            bucket = overfull;
         }
-        bucket.writeBucket();
     }
 
+    /**
+     * @return false if the hash is already in the map; the existing value is not replaced
+     */
     public boolean put(byte[] hash, DataType address) throws IOException {
-        assert hash.length == hashSize;
-
-        int depth = getDepth();
-        int index = (Integer)shortHash(hash, depth);
+        checkHash(hash);
 
-        int bucketIndex = (Integer)readDirectoryEntry(index);
-        Bucket bucket = new Bucket(bucketIndex);
+        int index = shortHash(hash, getDepth());
+        Bucket bucket = new Bucket(directory[index]);
         bucket.readBucket();
-        if (bucket.add(hash, address)) {
-            bucket.writeBucket();
-        } else {
-            // force add and then split
-            bucket.addForce(hash, address);
-            boolean duplicate = index == bucketIndex;
-            distributeBucket(duplicate, bucket, depth);
-        }
+        if (bucket.find(hash) >= 0)
+            return false;
 
+        boolean batch = inBatch;
+        beginBatch();
+        bucket.addForce(hash, address);
+        if (bucket.size() <= bucketCapacity)
+            bucket.writeBucket();
+        else
+            split(bucket);
+        numberOfEntries++;
+        if (!batch)
+            commitBatch();
         return true;
     }
 
     public DataType get(byte[] hash) throws IOException {
-        assert hash.length == hashSize;
-
-        int depth = getDepth();
-        int index = (Integer)shortHash(hash, depth);
-
-        int bucketIndex = (Integer)readDirectoryEntry(index);
-        Bucket bucket = new Bucket(bucketIndex);
-        bucket.readBucket();
-
-        for (int i = 0; i < bucket.size(); i++) {
-            byte[] current = bucket.hashs.get(i);
-            if (Arrays.equals(current, hash))
-                return bucket.elements.get(i);
+        checkHash(hash);
+
+        int bucketIndex = directory[shortHash(hash, getDepth())];
+        byte[] data = read(dataStartOffset() + getBucketPosition(bucketIndex), bucketSize());
+        int entries = ByteBuffer.wrap(data).getShort();
+        int entrySize = hashSize + dataType.size();
+        for (int i = 0, position = 2; i < entries; i++, position += entrySize) {
+            if (!equals(data, position, hash))
+                continue;
+            return dataType.read(new DataInputStream(new ByteArrayInputStream(data, position + hashSize,
+                    dataType.size())));
         }
         return null;
     }
 
-    public boolean remove(byte[] hash) throws IOException {
-        assert hash.length == hashSize;
+    static private boolean equals(byte[] data, int offset, byte[] hash) {
+        for (int i = 0; i < hash.length; i++) {
+            if (data[offset + i] != hash[i])
+                return false;
+        }
+        return true;
+    }
 
-        int depth = getDepth();
-        int index = (Integer)shortHash(hash, depth);
+    public boolean remove(byte[] hash) throws IOException {
+        checkHash(hash);
 
-        int bucketIndex = (Integer)readDirectoryEntry(index);
-        Bucket bucket = new Bucket(bucketIndex);
+        int index = shortHash(hash, getDepth());
+        Bucket bucket = new Bucket(directory[index]);
         bucket.readBucket();
+        int i = bucket.find(hash);
+        if (i < 0)
+            return false;
+
+        boolean batch = inBatch;
+        beginBatch();
+        bucket.remove(i);
+        // empty buckets are kept, other directory entries may still point to them
+        // todo shrink idx file if possible
+        bucket.writeBucket();
+        numberOfEntries--;
+        if (!batch)
+            commitBatch();
+        return true;
+    }
 
-        for (int i = 0; i < bucket.size(); i++) {
-            byte[] current = bucket.hashs.get(i);
-            if (Arrays.equals(current, hash)) {
-                bucket.remove(i);
-                // We only need to write the bucket if there are still elements or we at depth 1 otherwise we point to
-                // the bucket at depth - 1.
-                if (bucket.size() == 0 && bucket.depth > 1) {
-                    // point to the bucket in depth - 1
-                    IndexType prevBucket = readDirectoryEntry((Integer)shortHash(hash, depth - 1));
-                    writeDirectoryEntry(index, prevBucket);
-                    // todo shrink idx file if possible
-                } else {
-                    bucket.writeBucket();
+    /**
+     * Iterates over all entries in bucket order. The map must not be modified while iterating.
+     */
+    public Iterator<Entry<DataType>> iterator() {
+        final int[] directory = this.directory;
+        return new Iterator<Entry<DataType>>() {
+            private int nextBucket = 0;
+            private Bucket bucket;
+            private int position = 0;
+
+            private void findNext() throws IOException {
+                while ((bucket == null || position >= bucket.size()) && nextBucket < directory.length) {
+                    int index = nextBucket++;
+                    // only buckets that are in use are referenced by their own directory entry
+                    if (directory[index] != index)
+                        continue;
+                    bucket = new Bucket(index);
+                    bucket.readBucket();
+                    position = 0;
                 }
-                return true;
             }
-        }
-        return false;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    findNext();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return bucket != null && position < bucket.size();
+            }
+
+            @Override
+            public Entry<DataType> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Entry<DataType> entry = new Entry<>(bucket.hashs.get(position), bucket.elements.get(position));
+                position++;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 }
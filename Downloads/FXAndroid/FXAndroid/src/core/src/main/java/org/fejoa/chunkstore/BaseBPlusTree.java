@@ -10,7 +10,8 @@ package org.fejoa.chunkstore;
 import org.fejoa.library.crypto.CryptoHelper;
 
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 
@@ -99,13 +100,19 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
                 throw new IOException("Data tile size mismatch");
             seekTo();
             file.write(data);
+            nodeCache.remove(index);
         }
 
+        // positional read that doesn't move the file pointer, i.e. concurrent readers don't interfere
         public byte[] read() throws IOException {
-            seekTo();
-            byte[] data = new byte[tileSize];
-            file.readFully(data);
-            return data;
+            ByteBuffer buffer = ByteBuffer.allocate(tileSize);
+            FileChannel channel = file.getChannel();
+            long position = dataStart() + tileSize * (index - 1);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException();
+            }
+            return buffer.array();
         }
     }
 
@@ -116,15 +123,26 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             if (freeTileList != 0) {
                 DeletedNode deletedNode = new DeletedNode(freeTileList);
                 freeTileList = deletedNode.readDeletedPointer();
+                if (inBatch)
+                    batchTiles.add(deletedNode.tile.index);
                 return deletedNode.tile;
             }
             // TODO: check if max number of tiles has been reached
             Long dataSize = file.length() - dataStart();
             file.setLength(file.length() + tileSize);
-            return new Tile(dataSize / tileSize + 1);
+            Tile tile = new Tile(dataSize / tileSize + 1);
+            if (inBatch)
+                batchTiles.add(tile.index);
+            return tile;
         }
 
         void free(Tile tile) throws IOException {
+            batchTiles.remove(tile.index);
+            if (headerOnSync) {
+                // the tile may still be referenced by the header on disk
+                unsyncedFreedTiles.add(tile.index);
+                return;
+            }
             new DeletedNode(tile).writeDeletedPointer(currentFreedHead);
             currentFreedHead = tile.index;
             if (currentFreedTail == 0L)
@@ -132,6 +150,8 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         void commit() throws IOException {
+            if (headerOnSync)
+                return;
             if (currentFreedTail != 0L)
                 new DeletedNode(currentFreedTail).writeDeletedPointer(freeTileList);
 
@@ -141,6 +161,18 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             currentFreedTail = 0L;
         }
 
+        /**
+         * Makes the tiles that have been freed since the last sync reusable. Must be called after the header has been
+         * synced.
+         */
+        void releaseUnsyncedTiles() throws IOException {
+            for (Long index : unsyncedFreedTiles) {
+                new DeletedNode(index).writeDeletedPointer(freeTileList);
+                freeTileList = index;
+            }
+            unsyncedFreedTiles.clear();
+        }
+
         int countDeletedTiles() throws IOException {
             int i = 0;
             long current = freeTileList;
@@ -168,8 +200,9 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         public void onNodeRead() {
-            // When we read the node from disk we can modify it anymore
-            writeable = false;
+            // When we read the node from disk we can modify it anymore. Only tiles that have been allocated in the
+            // current batch are not referenced by the committed tree and can be updated in place.
+            writeable = inBatch && batchTiles.contains(tile.index);
         }
 
         public void checkWriteable() throws IOException {
@@ -316,6 +349,13 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         public void read() throws IOException {
+            DecodedTile decoded = nodeCache.get(tile.index);
+            if (decoded != null) {
+                decoded.restore(this);
+                onNodeRead();
+                return;
+            }
+
             byte[] data = tile.read();
             ByteArrayInputStream in = new ByteArrayInputStream(data);
             DataInputStream reader = new DataInputStream(in);
@@ -324,6 +364,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             deletedPointer = indexType.toLong(indexType.read(reader));
 
             readKeys(reader);
+            nodeCache.put(tile.index, new DecodedTile(this));
 
             onNodeRead();
         }
@@ -352,25 +393,46 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             }
         }
 
-        public void findPosition(BigInteger key, SearchResult result) {
-            result.foundKey = null;
-            for (int i = 0; i < keys.size(); i++) {
-                BigInteger current = new BigInteger(keys.get(i));
-                result.keyComparison = current.compareTo(key);
-                if (result.keyComparison > 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i;
-                    break;
-                } else if (result.keyComparison == 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i + 1;
-                    result.leftAnchor = this;
-                    result.leftAnchorPointer = i;
-                    break;
+        /**
+         * Binary search for the first key that is greater or equal to the given key.
+         *
+         * @return the index of the key or keys.size() if all keys are smaller
+         */
+        protected int lowerBound(byte[] key, SearchResult result) {
+            int low = 0;
+            int high = keys.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int comparison = compareKeys(keys.get(mid), key);
+                if (comparison < 0)
+                    low = mid + 1;
+                else {
+                    result.keyComparison = comparison;
+                    if (comparison == 0)
+                        return mid;
+                    high = mid - 1;
                 }
             }
-            if (result.foundKey == null)
+            if (low < keys.size())
+                result.keyComparison = compareKeys(keys.get(low), key);
+            return low;
+        }
+
+        public void findPosition(byte[] key, SearchResult result) {
+            result.foundKey = null;
+            int i = lowerBound(key, result);
+            if (i == keys.size()) {
                 result.keyPosition = keys.size();
+                return;
+            }
+            result.foundKey = keys.get(i);
+            if (result.keyComparison > 0) {
+                result.keyPosition = i;
+            } else {
+                result.keyPosition = i + 1;
+                result.leftAnchor = this;
+                result.leftAnchorPointer = i;
+            }
         }
 
         public Node readChildNode(int pointerIndex) throws IOException {
@@ -422,6 +484,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         public void writeDeletedPointer(long pointer) throws IOException {
             tile.seekTo();
             indexType.write(file, indexType.fromLong(pointer));
+            nodeCache.remove(tile.index);
         }
 
         public long readDeletedPointer() throws IOException {
@@ -482,19 +545,11 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         @Override
-        public void findPosition(BigInteger key, SearchResult result) {
+        public void findPosition(byte[] key, SearchResult result) {
             result.foundKey = null;
-            for (int i = 0; i < keys.size(); i++) {
-                BigInteger current = new BigInteger(keys.get(i));
-                result.keyComparison = current.compareTo(key);
-                if (result.keyComparison >= 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i;
-                    break;
-                }
-            }
-            if (result.foundKey == null)
-                result.keyPosition = keys.size();
+            result.keyPosition = lowerBound(key, result);
+            if (result.keyPosition < keys.size())
+                result.foundKey = keys.get(result.keyPosition);
         }
 
         @Override
@@ -529,6 +584,102 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
+    /**
+     * Decoded content of a tile. Tiles are copy-on-write so a cached entry only becomes invalid when the tile is
+     * written again, i.e. after it has been freed and reallocated.
+     */
+    class DecodedTile {
+        final long deletedPointer;
+        final List<byte[]> keys;
+        final List<IndexType> pointers;
+
+        DecodedTile(Node node) {
+            this.deletedPointer = node.deletedPointer;
+            this.keys = new ArrayList<>(node.keys);
+            this.pointers = new ArrayList<>(node.pointers);
+        }
+
+        void restore(Node node) {
+            node.deletedPointer = deletedPointer;
+            node.keys.addAll(keys);
+            node.pointers.addAll(pointers);
+        }
+    }
+
+    /**
+     * LRU cache of decoded tiles. Since a lookup changes the access order all accesses are synchronized to allow
+     * concurrent readers of the tree.
+     */
+    class NodeCache extends LinkedHashMap<Long, DecodedTile> {
+        static final private long serialVersionUID = 1L;
+
+        private int capacity;
+
+        NodeCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        synchronized public DecodedTile get(Object index) {
+            return super.get(index);
+        }
+
+        @Override
+        synchronized public DecodedTile remove(Object index) {
+            return super.remove(index);
+        }
+
+        @Override
+        synchronized public void clear() {
+            super.clear();
+        }
+
+        synchronized void setCapacity(int capacity) {
+            this.capacity = capacity;
+            if (capacity <= 0) {
+                clear();
+                return;
+            }
+            Iterator<Long> iterator = keySet().iterator();
+            while (size() > capacity) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        @Override
+        synchronized public DecodedTile put(Long index, DecodedTile tile) {
+            if (capacity <= 0)
+                return null;
+            return super.put(index, tile);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, DecodedTile> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Compares two keys in the same order as the signed big-endian integer interpretation, i.e. the first byte is
+     * compared signed and all following bytes unsigned. This is the order of existing index files.
+     */
+    static public int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        if (length == 0)
+            return a.length - b.length;
+        if (a[0] != b[0])
+            return a[0] < b[0] ? -1 : 1;
+        for (int i = 1; i < length; i++) {
+            if (a[i] != b[i])
+                return (a[i] & 0xFF) < (b[i] & 0xFF) ? -1 : 1;
+        }
+        return a.length - b.length;
+    }
+
+    final static public int DEFAULT_NODE_CACHE_SIZE = 1024;
+
     private boolean isOpen = false;
     private int tileSize;
     private short version;
@@ -543,6 +694,16 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     final private IDataType<IndexType> indexType;
     final private IDataType<DataType> dataType;
     final private TileAllocator tileAllocator;
+    final private NodeCache nodeCache = new NodeCache(DEFAULT_NODE_CACHE_SIZE);
+    private boolean inBatch = false;
+    // only write the header in sync()
+    private boolean headerOnSync = false;
+    // the committed state differs from the header on disk
+    private boolean headerModified = false;
+    // tiles that have been freed since the last sync
+    final private List<Long> unsyncedFreedTiles = new ArrayList<>();
+    // tiles that have been allocated in the current batch
+    final private Set<Long> batchTiles = new HashSet<>();
 
     public BaseBPlusTree(RandomAccessFile file, IDataType<IndexType> indexType, IDataType<DataType> dataType) {
         this.file = file;
@@ -553,7 +714,28 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         reset();
     }
 
+    /**
+     * Sets the maximal number of decoded nodes that are kept in memory. 0 disables the cache.
+     */
+    public void setNodeCacheSize(int size) {
+        nodeCache.setCapacity(size);
+    }
+
+    /**
+     * If set, a commit only updates the tree in memory and the header is written by sync(). Tiles that are freed
+     * meanwhile are not reused, i.e. the tree on disk stays valid at the state of the last sync, no matter which of the
+     * tile writes made it to disk.
+     */
+    public void setHeaderOnSync(boolean headerOnSync) {
+        this.headerOnSync = headerOnSync;
+    }
+
     private void reset() {
+        nodeCache.clear();
+        inBatch = false;
+        batchTiles.clear();
+        headerModified = false;
+        unsyncedFreedTiles.clear();
         isOpen = false;
         tileSize = 1024;
         version = 1;
@@ -598,6 +780,55 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         isOpen = true;
     }
 
+    public void close() throws IOException {
+        if (isOpen && headerModified)
+            sync();
+        isOpen = false;
+        nodeCache.clear();
+        file.close();
+    }
+
+    /**
+     * Forces the tree to disk. If the header is only written on sync, the tiles are forced before the header.
+     */
+    public void sync() throws IOException {
+        file.getChannel().force(false);
+        if (!headerModified)
+            return;
+        writeHeader();
+        file.getChannel().force(false);
+        headerModified = false;
+        tileAllocator.releaseUnsyncedTiles();
+    }
+
+    /**
+     * Checks that the header is in line with the file, e.g. after a crash.
+     *
+     * The header is only written after the tiles it points to, thus a header that points to missing tiles or a root
+     * tile that can't be read indicates a damaged tree.
+     */
+    public boolean isConsistent() {
+        try {
+            readHeader();
+            long dataSize = file.length() - dataStart();
+            if (hashSize <= 0 || tileSize <= 0 || dataSize < 0 || dataSize % tileSize != 0)
+                return false;
+            long nTiles = dataSize / tileSize;
+            if (numberOfEntries < 0 || depth < 1 || rootTileIndex < 0 || rootTileIndex > nTiles
+                    || freeTileList < 0 || freeTileList > nTiles)
+                return false;
+            if (rootTileIndex == 0)
+                return numberOfEntries == 0;
+            nodeCache.clear();
+            Node rootNode = readRootNode();
+            return numberOfEntries == 0 || rootNode.keys.size() > 0 || rootNode.pointers.size() > 0;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
     private void readHeader() throws IOException {
         file.seek(0);
         version = file.readShort();
@@ -686,19 +917,43 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     private void commit(long rootNodeIndex) throws IOException {
+        if (inBatch) {
+            this.rootTileIndex = rootNodeIndex;
+            return;
+        }
         this.tileAllocator.commit();
         this.rootTileIndex = rootNodeIndex;
 
+        if (headerOnSync) {
+            headerModified = true;
+            return;
+        }
         writeHeader();
     }
 
+    /**
+     * Starts a batch of modifications.
+     *
+     * Within a batch the header is not written and freed tiles are not reused, i.e. the tree on disk stays valid till
+     * commitBatch() is called. Tiles that are allocated within the batch are updated in place.
+     */
+    public void beginBatch() {
+        inBatch = true;
+    }
+
+    public void commitBatch() throws IOException {
+        inBatch = false;
+        batchTiles.clear();
+        commit(rootTileIndex);
+    }
+
     public int countDeletedTiles() throws IOException {
         return tileAllocator.countDeletedTiles();
     }
 
-    private void insert(Node insertNode, int insertPosition, BigInteger key, IndexType p1, byte[] rawKey, IndexType p2)
+    private void insert(Node insertNode, int insertPosition, byte[] key, IndexType p1, IndexType p2)
             throws IOException {
-        insertNode.add(insertPosition, p1, rawKey, p2);
+        insertNode.add(insertPosition, p1, key, p2);
 
         if (insertNode.keys.size() > insertNode.maxNumberOfKeys) {
             // split
@@ -718,8 +973,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             SearchResult inNodePosition = new SearchResult();
             inNodePosition.node = parent;
             parent.findPosition(key, inNodePosition);
-            insert(parent, inNodePosition.keyPosition, new BigInteger(result.key),
-                    indexType.fromLong(insertNode.tile.index), result.key,
+            insert(parent, inNodePosition.keyPosition, result.key, indexType.fromLong(insertNode.tile.index),
                     indexType.fromLong(result.newNode.tile.index));
         } else {
             insertNode.write();
@@ -762,14 +1016,14 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     public boolean put(HashValue hash, DataType address) throws IOException {
         assert hash.size() == hashSize;
 
-        BigInteger key = new BigInteger(hash.getBytes());
+        byte[] key = hash.getBytes();
         SearchResult result = find(key);
         if (result.foundKey != null && result.keyComparison == 0) {
             // TODO replace
             //throw new IOException("replacing not supported yet");
             return false;
         }
-        insert(result.node, result.keyPosition, key, indexType.fromLong(dataType.toLong(address)), hash.getBytes(),
+        insert(result.node, result.keyPosition, key, indexType.fromLong(dataType.toLong(address)),
                 indexType.fromLong(0l));
 
         numberOfEntries++;
@@ -784,7 +1038,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     class SearchResult {
         public Node node;
         public int keyPosition;
-        public BigInteger foundKey;
+        public byte[] foundKey;
         public int keyComparison;
         // Fields if key occurs in a non-leaf node:
         public Node leftAnchor;
@@ -795,7 +1049,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
-    private SearchResult find(BigInteger key) throws IOException {
+    private SearchResult find(byte[] key) throws IOException {
         SearchResult result = new SearchResult();
         result.node = readRootNode();
         // find node to insert
@@ -820,11 +1074,16 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         return result;
     }
 
+    /**
+     * Lookups don't modify the tree and can be done concurrently (as long as there is no concurrent writer).
+     */
     public DataType get(byte[] hash) throws IOException {
         assert hash.length == hashSize;
 
-        BigInteger key = new BigInteger(hash);
-        SearchResult result = find(key);
+        // reading the root of an empty tree would allocate a tile
+        if (rootTileIndex == 0)
+            return null;
+        SearchResult result = find(hash);
         if (result.foundKey == null)
             return null;
         if (result.keyComparison != 0)
@@ -848,9 +1107,11 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             private int inLeafNodePos;
 
             {
-                currentLeafNode = findLeftLeafNode(readRootNode());
-                if (currentLeafNode.keys.size() == 0)
-                    currentLeafNode = null;
+                if (rootTileIndex != 0) {
+                    currentLeafNode = findLeftLeafNode(readRootNode());
+                    if (currentLeafNode.keys.size() == 0)
+                        currentLeafNode = null;
+                }
                 inLeafNodePos = 0;
             }
 
@@ -1008,7 +1269,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             node.pointers.add(keyIndex, nodeChild);
         }
 
-        if (node.hasMinNumberOfKeys() || (node.getParent() == null && node.keys.size() > 1)) {
+        if (node.hasMinNumberOfKeys() || (node.getParent() == null && node.keys.size() > 0)) {
             node.write();
             updateParentNodes(node);
             commit(node.rootNode());
@@ -1036,8 +1297,8 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             LeafNode left;
             LeafNode right;
             FindNeighbourResult neighbour;
-            if ((rightNeighbour == null && leftNeighbour != null)
-                    || leftNeighbour.node.keys.size() >= rightNeighbour.node.keys.size()) {
+            if (leftNeighbour != null && (rightNeighbour == null
+                    || leftNeighbour.node.keys.size() >= rightNeighbour.node.keys.size())) {
                 // get keys from the the left
                 left = leftNeighbour.node;
                 right = findRightLeafNode(node);
@@ -1141,8 +1402,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     public boolean remove(byte[] key) throws IOException {
-        BigInteger keyNumber = new BigInteger(key);
-        SearchResult result = find(keyNumber);
+        SearchResult result = find(key);
         if (!result.isExactMatch())
             return false;
 
@@ -1154,4 +1414,295 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     public long size() {
         return numberOfEntries;
     }
+
+    /**
+     * Builds the tree bottom-up from a stream of entries.
+     *
+     * Leaves are written in one sequential pass while entries come in; the inner levels are written after the last
+     * leaf. Unsorted input is sorted in memory and, when it exceeds the memory budget, externally in sorted runs that
+     * are merged at the end. Duplicated keys are dropped (the first entry wins).
+     *
+     * The tree has to be empty.
+     */
+    public class BulkLoader {
+        final private float fillFactor;
+        final private int maxBufferedEntries;
+        final private boolean sortedInput;
+        private File tempDir = null;
+
+        // unsorted input
+        final private List<Entry<DataType>> buffer = new ArrayList<>();
+        final private List<File> runs = new ArrayList<>();
+
+        // leaf level
+        final private int leafTarget;
+        private byte[] lastKey;
+        private LeafNode pendingLeaf;
+        private LeafNode currentLeaf;
+        final private List<byte[]> levelKeys = new ArrayList<>();
+        final private List<Long> levelTiles = new ArrayList<>();
+        private long nEntries = 0;
+
+        /**
+         * @param fillFactor fraction of the tile capacity that is used, in (0, 1]
+         * @param memoryBudget max number of bytes for buffering unsorted entries
+         * @param sortedInput if the input is sorted, entries are directly written to the leaves
+         */
+        private BulkLoader(float fillFactor, long memoryBudget, boolean sortedInput) throws IOException {
+            if (fillFactor <= 0f || fillFactor > 1f)
+                throw new IllegalArgumentException("Invalid fill factor: " + fillFactor);
+            if (numberOfEntries != 0)
+                throw new IOException("Bulk loading requires an empty tree");
+            this.fillFactor = fillFactor;
+            // key + data + object overhead
+            this.maxBufferedEntries = (int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / (hashSize + 64)));
+            this.sortedInput = sortedInput;
+            this.leafTarget = Math.max(1, Math.min(nKeysPerTile(), Math.round(nKeysPerTile() * fillFactor)));
+
+            // drop all (unused) tiles so that the tiles are allocated sequentially
+            file.setLength(dataStart());
+            freeTileList = 0l;
+            tileAllocator.currentFreedHead = 0l;
+            tileAllocator.currentFreedTail = 0l;
+            batchTiles.clear();
+            nodeCache.clear();
+        }
+
+        /**
+         * Directory for the sorted runs of the external sort; defaults to the system temp dir.
+         */
+        public void setTempDir(File tempDir) {
+            this.tempDir = tempDir;
+        }
+
+        public void add(byte[] key, DataType data) throws IOException {
+            if (key.length != hashSize)
+                throw new IOException("Unexpected key size");
+            if (sortedInput) {
+                addSorted(key, data);
+                return;
+            }
+            buffer.add(new Entry<>(key, data));
+            if (buffer.size() >= maxBufferedEntries)
+                writeRun();
+        }
+
+        private void sortBuffer() {
+            Collections.sort(buffer, new Comparator<Entry<DataType>>() {
+                @Override
+                public int compare(Entry<DataType> a, Entry<DataType> b) {
+                    return compareKeys(a.key, b.key);
+                }
+            });
+        }
+
+        private void writeRun() throws IOException {
+            sortBuffer();
+            File run = File.createTempFile("bplustree", ".run", tempDir);
+            runs.add(run);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+            try {
+                out.writeInt(buffer.size());
+                for (Entry<DataType> entry : buffer) {
+                    out.write(entry.key);
+                    out.writeLong(dataType.toLong(entry.data));
+                }
+            } finally {
+                out.close();
+            }
+            buffer.clear();
+        }
+
+        class RunReader {
+            final DataInputStream in;
+            int remaining;
+            byte[] key;
+            DataType data;
+
+            RunReader(File run) throws IOException {
+                this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+                this.remaining = in.readInt();
+            }
+
+            boolean next() throws IOException {
+                if (remaining == 0) {
+                    in.close();
+                    return false;
+                }
+                remaining--;
+                key = new byte[hashSize];
+                in.readFully(key);
+                data = dataType.fromLong(in.readLong());
+                return true;
+            }
+        }
+
+        private void mergeRuns() throws IOException {
+            if (buffer.size() > 0)
+                writeRun();
+            PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                    new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader a, RunReader b) {
+                    return compareKeys(a.key, b.key);
+                }
+            });
+            List<RunReader> readers = new ArrayList<>();
+            try {
+                for (File run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.next())
+                        queue.add(reader);
+                }
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    addSorted(reader.key, reader.data);
+                    if (reader.next())
+                        queue.add(reader);
+                }
+            } finally {
+                for (RunReader reader : readers)
+                    reader.in.close();
+                for (File run : runs)
+                    run.delete();
+                runs.clear();
+            }
+        }
+
+        private void addSorted(byte[] key, DataType data) throws IOException {
+            if (lastKey != null) {
+                int comparison = compareKeys(key, lastKey);
+                if (comparison == 0)
+                    return;
+                if (comparison < 0)
+                    throw new IOException("Bulk load input is not sorted");
+            }
+            lastKey = key;
+
+            if (currentLeaf == null)
+                currentLeaf = new LeafNode(null, 0, null);
+            currentLeaf.addRaw(indexType.fromLong(dataType.toLong(data)), key);
+            nEntries++;
+            if (currentLeaf.keys.size() == leafTarget) {
+                if (pendingLeaf != null)
+                    writeLeaf(pendingLeaf, true);
+                pendingLeaf = currentLeaf;
+                currentLeaf = null;
+            }
+        }
+
+        private void writeLeaf(LeafNode leaf, boolean hasNext) throws IOException {
+            leaf.tile = tileAllocator.alloc();
+            // tiles are allocated sequentially so the next leaf gets the next tile
+            leaf.pointers.add(indexType.fromLong(hasNext ? leaf.tile.index + 1 : 0l));
+            leaf.write();
+            levelKeys.add(leaf.keys.get(0));
+            levelTiles.add(leaf.tile.index);
+        }
+
+        private void finishLeaves() throws IOException {
+            if (currentLeaf == null || currentLeaf.keys.size() == 0) {
+                if (pendingLeaf != null)
+                    writeLeaf(pendingLeaf, false);
+                return;
+            }
+            if (pendingLeaf == null) {
+                writeLeaf(currentLeaf, false);
+                return;
+            }
+            int maxKeys = nKeysPerTile();
+            if (currentLeaf.hasMinNumberOfKeys()) {
+                writeLeaf(pendingLeaf, true);
+                writeLeaf(currentLeaf, false);
+            } else if (pendingLeaf.keys.size() + currentLeaf.keys.size() <= maxKeys) {
+                // merge the underfull last leaf into its left neighbour
+                for (int i = 0; i < currentLeaf.keys.size(); i++)
+                    pendingLeaf.addRaw(currentLeaf.pointers.get(i), currentLeaf.keys.get(i));
+                writeLeaf(pendingLeaf, false);
+            } else {
+                // distribute the keys evenly over the last two leaves
+                LeafNode left = new LeafNode(null, 0, null);
+                LeafNode right = new LeafNode(null, 0, null);
+                int total = pendingLeaf.keys.size() + currentLeaf.keys.size();
+                for (int i = 0; i < total; i++) {
+                    LeafNode source = i < pendingLeaf.keys.size() ? pendingLeaf : currentLeaf;
+                    int index = i < pendingLeaf.keys.size() ? i : i - pendingLeaf.keys.size();
+                    LeafNode target = i < total / 2 ? left : right;
+                    target.addRaw(source.pointers.get(index), source.keys.get(index));
+                }
+                writeLeaf(left, true);
+                writeLeaf(right, false);
+            }
+        }
+
+        /**
+         * Number of nodes for n children such that all nodes are between half full and full.
+         */
+        private int nNodes(int nChildren, int targetChildren, int minChildren, int maxChildren) {
+            int nodes = (nChildren + targetChildren - 1) / targetChildren;
+            nodes = Math.min(nodes, Math.max(1, nChildren / minChildren));
+            return Math.max(nodes, (nChildren + maxChildren - 1) / maxChildren);
+        }
+
+        /**
+         * @return the root tile
+         */
+        private long writeInnerLevels() throws IOException {
+            int maxChildren = nKeysPerTile() + 1;
+            int minChildren = nKeysPerTile() / 2 + 1;
+            int targetChildren = Math.max(minChildren, Math.min(maxChildren,
+                    Math.round(nKeysPerTile() * fillFactor) + 1));
+            List<byte[]> keys = new ArrayList<>(levelKeys);
+            List<Long> tiles = new ArrayList<>(levelTiles);
+            while (tiles.size() > 1) {
+                int nNodes = nNodes(tiles.size(), targetChildren, minChildren, maxChildren);
+                List<byte[]> parentKeys = new ArrayList<>(nNodes);
+                List<Long> parentTiles = new ArrayList<>(nNodes);
+                int child = 0;
+                for (int n = 0; n < nNodes; n++) {
+                    int nChildren = tiles.size() / nNodes + (n < tiles.size() % nNodes ? 1 : 0);
+                    Node node = new Node(null, 0, tileAllocator.alloc());
+                    for (int i = 0; i < nChildren; i++, child++) {
+                        if (i > 0)
+                            node.keys.add(keys.get(child));
+                        node.pointers.add(indexType.fromLong(tiles.get(child)));
+                    }
+                    node.write();
+                    parentKeys.add(keys.get(child - nChildren));
+                    parentTiles.add(node.tile.index);
+                }
+                keys = parentKeys;
+                tiles = parentTiles;
+                depth++;
+            }
+            return tiles.get(0);
+        }
+
+        /**
+         * Writes the remaining nodes and the tree header.
+         */
+        public void finish() throws IOException {
+            if (!sortedInput) {
+                if (runs.size() == 0) {
+                    sortBuffer();
+                    for (Entry<DataType> entry : buffer)
+                        addSorted(entry.key, entry.data);
+                    buffer.clear();
+                } else
+                    mergeRuns();
+            }
+            finishLeaves();
+            if (levelTiles.size() == 0)
+                return;
+            depth = 1;
+            long root = writeInnerLevels();
+            numberOfEntries = nEntries;
+            commit(root);
+        }
+    }
+
+    public BulkLoader createBulkLoader(float fillFactor, long memoryBudget, boolean sortedInput) throws IOException {
+        return new BulkLoader(fillFactor, memoryBudget, sortedInput);
+    }
 }
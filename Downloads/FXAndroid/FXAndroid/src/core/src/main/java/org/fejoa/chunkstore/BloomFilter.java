@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Memory-mapped Bloom filter for hash keys.
+ *
+ * Layout: [version int][number of hash functions int][number of bits long][number of entries long][capacity long]
+ * [state int][bits]
+ *
+ * The mapping is only forced when the filter is closed. While the filter is open the state on disk is DIRTY, thus a
+ * filter that may have lost bits in a crash is not opened again and has to be rebuilt.
+ *
+ * The keys are expected to be cryptographic hashes so the bit positions are derived directly from the key bytes
+ * (double hashing with two 64 bit words of the key).
+ */
+public class BloomFilter {
+    final static private int VERSION = 2;
+    final static private int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+    final static private int N_BITS_OFFSET = 8;
+    final static private int N_ENTRIES_OFFSET = 16;
+    final static private int CAPACITY_OFFSET = 24;
+    final static private int STATE_OFFSET = 32;
+    final static private int STATE_CLEAN = 1;
+    final static private int STATE_DIRTY = 2;
+    // ~1% false positive rate
+    final static public int BITS_PER_ENTRY = 10;
+    final static public int N_HASH_FUNCTIONS = 7;
+
+    final private File file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int nHashFunctions;
+    private long nBits;
+    private long nEntries;
+    private long capacity;
+
+    public BloomFilter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates an empty filter that can hold the given number of entries at the target false positive rate.
+     */
+    public void create(long capacity) throws IOException {
+        close();
+        this.capacity = Math.max(1, capacity);
+        this.nHashFunctions = N_HASH_FUNCTIONS;
+        // multiple of 64 bits
+        this.nBits = ((this.capacity * BITS_PER_ENTRY + 63) / 64) * 64;
+        this.nEntries = 0;
+        if (HEADER_SIZE + nBits / 8 > Integer.MAX_VALUE)
+            throw new IOException("Bloom filter too large");
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + nBits / 8);
+        buffer.putInt(0, VERSION);
+        buffer.putInt(4, nHashFunctions);
+        buffer.putLong(N_BITS_OFFSET, nBits);
+        buffer.putLong(N_ENTRIES_OFFSET, nEntries);
+        buffer.putLong(CAPACITY_OFFSET, this.capacity);
+        setState(STATE_DIRTY);
+    }
+
+    private void setState(int state) {
+        buffer.putInt(STATE_OFFSET, state);
+        buffer.force();
+    }
+
+    /**
+     * @return false if there is no valid filter file or if the filter has not been closed cleanly
+     */
+    public boolean open() throws IOException {
+        close();
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return false;
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        nHashFunctions = buffer.getInt(4);
+        nBits = buffer.getLong(N_BITS_OFFSET);
+        nEntries = buffer.getLong(N_ENTRIES_OFFSET);
+        capacity = buffer.getLong(CAPACITY_OFFSET);
+        if (buffer.getInt(0) != VERSION || nBits <= 0 || nBits % 64 != 0 || HEADER_SIZE + nBits / 8 != channel.size()
+                || buffer.getInt(STATE_OFFSET) != STATE_CLEAN) {
+            buffer = null;
+            channel.close();
+            channel = null;
+            return false;
+        }
+        setState(STATE_DIRTY);
+        return true;
+    }
+
+    public boolean isOpen() {
+        return buffer != null;
+    }
+
+    public long getEntryCount() {
+        return nEntries;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    static private long readLong(byte[] key, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (key[(offset + i) % key.length] & 0xFF);
+        return value;
+    }
+
+    private long bitIndex(long h1, long h2, int i) {
+        long index = (h1 + i * h2) % nBits;
+        return index < 0 ? index + nBits : index;
+    }
+
+    public void add(byte[] key) {
+        long h1 = readLong(key, 0);
+        long h2 = readLong(key, 8) | 1;
+        for (int i = 0; i < nHashFunctions; i++) {
+            long bit = bitIndex(h1, h2, i);
+            int offset = HEADER_SIZE + (int)(bit >>> 6) * 8;
+            buffer.putLong(offset, buffer.getLong(offset) | (1L << (bit & 63)));
+        }
+        nEntries++;
+        buffer.putLong(N_ENTRIES_OFFSET, nEntries);
+    }
+
+    /**
+     * @return false if the key is definitely not in the set
+     */
+    public boolean mightContain(byte[] key) {
+        long h1 = readLong(key, 0);
+        long h2 = readLong(key, 8) | 1;
+        for (int i = 0; i < nHashFunctions; i++) {
+            long bit = bitIndex(h1, h2, i);
+            int offset = HEADER_SIZE + (int)(bit >>> 6) * 8;
+            if ((buffer.getLong(offset) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (buffer == null)
+            return;
+        buffer.force();
+        setState(STATE_CLEAN);
+        buffer = null;
+        channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Process-wide cache for chunk data that is shared by all chunk stores.
+ *
+ * Chunks are addressed by the hash of their content, i.e. a cached chunk never becomes stale. Stores only consult the
+ * cache after they found the chunk in their own index.
+ *
+ * The data is kept off-heap in direct byte buffers. The memory is allocated in pages that are assigned on demand to a
+ * size class (powers of two from 256 bytes to 64KiB); a page is divided into equal slots of its class. Larger chunks
+ * are not cached. When no page is left, a page of a size class that hasn't been written for a while is reassigned;
+ * otherwise a slot of the same size class is reused and its chunk is evicted using the CLOCK algorithm, i.e. chunks
+ * that have been read since the clock hand passed them the last time get a second chance.
+ *
+ * Reads only take the read lock and can run in parallel; puts and evictions take the write lock.
+ */
+public class ChunkCache {
+    final static public long DEFAULT_CAPACITY = 32 * 1024 * 1024;
+    final static private int PAGE_SIZE = 1024 * 1024;
+    final static private int MIN_SLOT_SIZE_BITS = 8;
+    final static private int MAX_SLOT_SIZE_BITS = 16;
+    // a size class that had no put for this many puts gives its pages to other classes
+    final static private int IDLE_PUTS = 1024;
+
+    private class SlabClass {
+        final int slotSize;
+        final int slotsPerPage;
+        final List<ByteBuffer> pages = new ArrayList<>();
+        HashValue[] keys = new HashValue[0];
+        int[] lengths = new int[0];
+        boolean[] referenced = new boolean[0];
+        // slots that have been handed out at least once
+        int usedSlots = 0;
+        int hand = 0;
+        long lastPut = 0;
+
+        SlabClass(int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerPage = PAGE_SIZE / slotSize;
+        }
+
+        private void resize() {
+            int nSlots = pages.size() * slotsPerPage;
+            keys = Arrays.copyOf(keys, nSlots);
+            lengths = Arrays.copyOf(lengths, nSlots);
+            referenced = Arrays.copyOf(referenced, nSlots);
+        }
+
+        private boolean allocatePage() {
+            ByteBuffer page;
+            if ((long)(allocatedPages + 1) * PAGE_SIZE <= capacity) {
+                page = ByteBuffer.allocateDirect(PAGE_SIZE);
+                allocatedPages++;
+            } else {
+                page = reassignPage(this);
+                if (page == null)
+                    return false;
+            }
+            pages.add(page);
+            resize();
+            return true;
+        }
+
+        /**
+         * Evicts the chunks of the last page and removes the page from this class.
+         */
+        ByteBuffer releasePage() {
+            int first = (pages.size() - 1) * slotsPerPage;
+            for (int slot = first; slot < keys.length; slot++) {
+                if (keys[slot] == null)
+                    continue;
+                entries.remove(keys[slot]);
+                size -= lengths[slot];
+                evictions++;
+            }
+            ByteBuffer page = pages.remove(pages.size() - 1);
+            resize();
+            usedSlots = Math.min(usedSlots, keys.length);
+            hand = usedSlots == 0 ? 0 : hand % usedSlots;
+            return page;
+        }
+
+        /**
+         * @return a free slot or -1 if no memory is available for this class
+         */
+        int allocate() {
+            lastPut = puts;
+            if (usedSlots < keys.length || allocatePage())
+                return usedSlots++;
+            if (usedSlots == 0)
+                return -1;
+            while (true) {
+                int slot = hand;
+                hand = (hand + 1) % usedSlots;
+                if (keys[slot] == null)
+                    return slot;
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                    continue;
+                }
+                entries.remove(keys[slot]);
+                size -= lengths[slot];
+                keys[slot] = null;
+                evictions++;
+                return slot;
+            }
+        }
+
+        ByteBuffer getBuffer(int slot) {
+            ByteBuffer buffer = pages.get(slot / slotsPerPage).duplicate();
+            buffer.position((slot % slotsPerPage) * slotSize);
+            return buffer;
+        }
+
+        void clear() {
+            Arrays.fill(keys, null);
+            usedSlots = 0;
+            hand = 0;
+        }
+    }
+
+    static private ChunkCache instance;
+
+    synchronized static public ChunkCache getInstance() {
+        if (instance == null)
+            instance = new ChunkCache(DEFAULT_CAPACITY);
+        return instance;
+    }
+
+    final private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long capacity;
+    private SlabClass[] slabClasses;
+    private int allocatedPages;
+    // slab class index in the upper and slot in the lower 32 bits
+    final private Map<HashValue, Long> entries = new HashMap<>();
+    private long size;
+    private long puts;
+    final private AtomicLong hits = new AtomicLong();
+    final private AtomicLong misses = new AtomicLong();
+    private long evictions;
+
+    public ChunkCache(long capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Drops all cached chunks and frees the memory. A capacity of 0 disables the cache.
+     */
+    public void setCapacity(long capacity) {
+        try {
+            lock.writeLock().lock();
+            this.capacity = capacity;
+            slabClasses = new SlabClass[MAX_SLOT_SIZE_BITS - MIN_SLOT_SIZE_BITS + 1];
+            for (int i = 0; i < slabClasses.length; i++)
+                slabClasses[i] = new SlabClass(1 << (MIN_SLOT_SIZE_BITS + i));
+            allocatedPages = 0;
+            entries.clear();
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getCapacity() {
+        try {
+            lock.readLock().lock();
+            return capacity;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes a page from the size class that has been idle for the longest time.
+     *
+     * @return null if no class has been idle long enough
+     */
+    private ByteBuffer reassignPage(SlabClass target) {
+        SlabClass idle = null;
+        for (SlabClass slabClass : slabClasses) {
+            if (slabClass == target || slabClass.pages.size() == 0)
+                continue;
+            if (idle == null || slabClass.lastPut < idle.lastPut)
+                idle = slabClass;
+        }
+        if (idle == null || puts - idle.lastPut < IDLE_PUTS)
+            return null;
+        return idle.releasePage();
+    }
+
+    static private int getSlabClass(int length) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(bits, MIN_SLOT_SIZE_BITS) - MIN_SLOT_SIZE_BITS;
+    }
+
+    /**
+     * @return a copy of the cached chunk or null
+     */
+    public byte[] get(HashValue hash) {
+        try {
+            lock.readLock().lock();
+            Long location = entries.get(hash);
+            if (location == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            SlabClass slabClass = slabClasses[(int)(location >>> 32)];
+            int slot = (int)location.longValue();
+            // concurrent readers may set the flag at the same time; it is only a hint for the eviction
+            slabClass.referenced[slot] = true;
+            byte[] data = new byte[slabClass.lengths[slot]];
+            slabClass.getBuffer(slot).get(data);
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(HashValue hash, byte[] data) {
+        if (data.length > 1 << MAX_SLOT_SIZE_BITS)
+            return;
+        try {
+            lock.writeLock().lock();
+            if (entries.containsKey(hash))
+                return;
+            puts++;
+            int classIndex = getSlabClass(data.length);
+            SlabClass slabClass = slabClasses[classIndex];
+            int slot = slabClass.allocate();
+            if (slot < 0)
+                return;
+            slabClass.getBuffer(slot).put(data);
+            // the hash bytes may be reused by the caller
+            HashValue key = new HashValue(hash);
+            slabClass.keys[slot] = key;
+            slabClass.lengths[slot] = data.length;
+            slabClass.referenced[slot] = false;
+            entries.put(key, (long)classIndex << 32 | slot);
+            size += data.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(HashValue hash) {
+        try {
+            lock.readLock().lock();
+            return entries.containsKey(hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops all cached chunks but keeps the allocated memory.
+     */
+    public void clear() {
+        try {
+            lock.writeLock().lock();
+            for (SlabClass slabClass : slabClasses)
+                slabClass.clear();
+            entries.clear();
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getEntryCount() {
+        try {
+            lock.readLock().lock();
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of cached bytes
+     */
+    public long getSize() {
+        try {
+            lock.readLock().lock();
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        try {
+            lock.readLock().lock();
+            return evictions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void resetStatistics() {
+        try {
+            lock.writeLock().lock();
+            hits.set(0);
+            misses.set(0);
+            evictions = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
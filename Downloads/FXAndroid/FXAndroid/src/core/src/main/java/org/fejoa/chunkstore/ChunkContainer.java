@@ -11,6 +11,8 @@ import org.fejoa.library.crypto.CryptoException;
 import org.fejoa.library.support.DoubleLinkedList;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -100,7 +102,10 @@ class ChunkPointerImpl implements IChunkPointer {
 }
 
 
-class CacheManager {
+/**
+ * Default cache policy; each container keeps a small number of recently used data chunks and their nodes.
+ */
+class CacheManager implements IChunkContainerCache {
     static private class PointerEntry extends DoubleLinkedList.Entry {
         final public IChunkPointer dataChunkPointer;
         final public ChunkContainerNode parent;
@@ -113,14 +118,25 @@ class CacheManager {
     final DoubleLinkedList<PointerEntry> queue = new DoubleLinkedList<>();
     final Map<IChunkPointer, PointerEntry> pointerMap = new HashMap<>();
 
-    final private int targetCapacity = 10;
-    final private int triggerCapacity = 15;
-    final private int keptMetadataLevels = 2;
+    final private int targetCapacity;
+    final private int triggerCapacity;
+    final private int keptMetadataLevels;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
 
     final private ChunkContainer chunkContainer;
 
     public CacheManager(ChunkContainer chunkContainer) {
+        this(chunkContainer, 10, 15, 2);
+    }
+
+    public CacheManager(ChunkContainer chunkContainer, int targetCapacity, int triggerCapacity,
+                        int keptMetadataLevels) {
         this.chunkContainer = chunkContainer;
+        this.targetCapacity = targetCapacity;
+        this.triggerCapacity = triggerCapacity;
+        this.keptMetadataLevels = keptMetadataLevels;
     }
 
     private void bringToFront(PointerEntry entry) {
@@ -128,8 +144,14 @@ class CacheManager {
         queue.addFirst(entry);
     }
 
-    public void update(IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
+    @Override
+    public void update(ChunkContainer container, IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
         assert ChunkContainer.isDataPointer(dataChunkPointer);
+        assert container == chunkContainer;
+        if (dataChunkPointer.getCachedChunk() != null)
+            hits++;
+        else
+            misses++;
         PointerEntry entry = pointerMap.get(dataChunkPointer);
         if (entry != null) {
             bringToFront(entry);
@@ -142,7 +164,8 @@ class CacheManager {
             clean(triggerCapacity - targetCapacity);
     }
 
-    public void remove(IChunkPointer dataChunkPointer) {
+    @Override
+    public void remove(ChunkContainer container, IChunkPointer dataChunkPointer) {
         DoubleLinkedList.Entry entry = pointerMap.get(dataChunkPointer);
         if (entry == null)
             return;
@@ -151,6 +174,11 @@ class CacheManager {
         // don't clean parents yet, they are most likely being edited right now
     }
 
+    @Override
+    public void removeContainer(ChunkContainer container) {
+        // the entries belong to the container and are discarded with it
+    }
+
     private void clean(int numberOfEntries) {
         for (int i = 0; i < numberOfEntries; i++) {
             PointerEntry entry = queue.removeTail();
@@ -162,11 +190,15 @@ class CacheManager {
 
     private void clean(PointerEntry entry) {
         // always clean the data cache
+        if (entry.dataChunkPointer.getCachedChunk() != null)
+            evictions++;
         entry.dataChunkPointer.setCachedChunk(null);
 
         IChunkPointer currentPointer = entry.dataChunkPointer;
         ChunkContainerNode currentParent = entry.parent;
         while (chunkContainer.getNLevels() - currentParent.getLevel() >= keptMetadataLevels) {
+            if (currentPointer.getCachedChunk() != null)
+                evictions++;
             currentPointer.setCachedChunk(null);
             if (hasCachedPointers(currentParent))
                 break;
@@ -183,6 +215,21 @@ class CacheManager {
         }
         return false;
     }
+
+    @Override
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
 }
 
 
@@ -193,7 +240,7 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     final private ChunkContainerRef ref;
-    final private CacheManager cacheManager;
+    private IChunkContainerCache cacheManager;
 
     /**
      * Create a new chunk container.
@@ -239,6 +286,17 @@ public class ChunkContainer extends ChunkContainerNode {
         return  (float)Config.DATA_HASH_SIZE / ChunkPointerImpl.getPointerLengthStatic();
     }
 
+    /**
+     * Replaces the cache policy, e.g. by a cache that is shared with other containers.
+     */
+    public void setCache(IChunkContainerCache cache) {
+        this.cacheManager = cache;
+    }
+
+    public IChunkContainerCache getCache() {
+        return cacheManager;
+    }
+
     public ChunkContainerRef getRef() {
         return ref;
     }
@@ -294,6 +352,23 @@ public class ChunkContainer extends ChunkContainerNode {
             return cachedChunk;
         }
 
+        /**
+         * @return the data chunk if it is already in memory or null
+         */
+        DataChunk getCachedDataChunk() {
+            if (cachedChunk == null && pointer.getCachedChunk() != null)
+                cachedChunk = (DataChunk)pointer.getCachedChunk();
+            return cachedChunk;
+        }
+
+        /**
+         * Loads the data chunk without caching it, i.e. it can be called concurrently if the blob accessor is thread
+         * safe.
+         */
+        DataChunk loadDataChunk() throws IOException, CryptoException {
+            return readDataChunk(pointer);
+        }
+
         public long getDataLength() {
             return chunkDataLength;
         }
@@ -333,7 +408,7 @@ public class ChunkContainer extends ChunkContainerNode {
         SearchResult searchResult = findLevel0Node(position);
         if (searchResult.pointer == null)
             throw new IOException("Invalid position");
-        cacheManager.update(searchResult.pointer, searchResult.node);
+        cacheManager.update(this, searchResult.pointer, searchResult.node);
         return new DataChunkPointer(searchResult.pointer, searchResult.pointerDataPosition);
     }
 
@@ -369,6 +444,14 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     private IChunkPointer putDataChunk(DataChunk blob) throws IOException, CryptoException {
+        return putDataChunk(blob, messageDigest);
+    }
+
+    /**
+     * Hashes and stores a data chunk without touching the container structure, i.e. it can be called concurrently if
+     * the blob accessor is thread safe and each caller uses its own message digest.
+     */
+    IChunkPointer putDataChunk(DataChunk blob, MessageDigest messageDigest) throws IOException, CryptoException {
         byte[] rawBlob = blob.getData();
         HashValue hash = blob.hash(messageDigest);
         HashValue boxedHash = blobAccessor.putChunk(rawBlob, hash).key;
@@ -391,17 +474,17 @@ public class ChunkContainer extends ChunkContainerNode {
         ChunkContainerNode node = this;
         int index = 0;
         for (int i = 0; i < that.getLevel(); i++) {
-            long nodePosition = 0;
             long inNodeInsertPosition = position - currentPosition;
-            index = 0;
+            index = node.findSlot(inNodeInsertPosition);
+            long nodePosition = node.getSlotPosition(index);
             IChunkPointer pointer = null;
-            for (; index < node.size(); index++) {
+            if (index < node.size())
                 pointer = node.get(index);
-                long dataLength = pointer.getDataLength();
-                if (nodePosition + dataLength > inNodeInsertPosition)
-                    break;
-                nodePosition += dataLength;
-            }
+            else if (index > 0)
+                pointer = node.get(index - 1);
+            // appending at the end of an inner node; continue at the start of its last child
+            if (index == node.size() && pointer != null && i < that.getLevel() - 1)
+                nodePosition -= pointer.getDataLength();
             currentPosition += nodePosition;
             if (nodePosition > inNodeInsertPosition
                     || (i == that.getLevel() - 1 && nodePosition != inNodeInsertPosition)) {
@@ -416,12 +499,18 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     public void insert(final DataChunk blob, final long position) throws IOException, CryptoException {
+        insert(putDataChunk(blob), position);
+    }
+
+    /**
+     * Inserts a data chunk that has already been stored using putDataChunk(DataChunk, MessageDigest).
+     */
+    void insert(final IChunkPointer blobChunkPointer, final long position) throws IOException, CryptoException {
         InsertSearchResult searchResult = findInsertPosition(position);
         ChunkContainerNode containerNode = searchResult.containerNode;
-        IChunkPointer blobChunkPointer = putDataChunk(blob);
         containerNode.addBlobPointer(searchResult.index, blobChunkPointer);
 
-        cacheManager.update(blobChunkPointer, containerNode);
+        cacheManager.update(this, blobChunkPointer, containerNode);
     }
 
     public void append(final DataChunk blob) throws IOException, CryptoException {
@@ -443,7 +532,72 @@ public class ChunkContainer extends ChunkContainerNode {
         int indexInParent = containerNode.indexOf(searchResult.pointer);
         containerNode.removeBlobPointer(indexInParent, true);
 
-        cacheManager.remove(searchResult.pointer);
+        cacheManager.remove(this, searchResult.pointer);
+    }
+
+    /**
+     * Removes the data behind the given size.
+     *
+     * Chunks behind the new end are dropped without loading them and the chunk that contains the new end is replaced
+     * by its head. The head is a valid last chunk since the splitter didn't trigger inside the original chunk, i.e.
+     * only the nodes on the right most path change.
+     */
+    public void truncate(long size) throws IOException, CryptoException {
+        long dataLength = getDataLength();
+        if (size < 0 || size > dataLength)
+            throw new IOException("Invalid truncate size: " + size + " (Length: " + dataLength + ")");
+        if (size == dataLength)
+            return;
+
+        ChunkContainerNode node = this;
+        long position = size;
+        while (true) {
+            int index = node.findSlot(position);
+            long slotPosition = node.getSlotPosition(index);
+            // drop the slots behind the slot that contains the new end
+            int keep = slotPosition == position ? index : index + 1;
+            while (node.size() > keep)
+                removeCached(node.removeBlobPointer(node.size() - 1));
+            if (slotPosition == position)
+                break;
+
+            IChunkPointer pointer = node.get(index);
+            position -= slotPosition;
+            if (node.isLeafNode()) {
+                DataChunk dataChunk = node.getDataChunk(pointer);
+                node.removeBlobPointer(index);
+                cacheManager.remove(this, pointer);
+                IChunkPointer head = putDataChunk(new DataChunk(Arrays.copyOf(dataChunk.getData(), (int)position)));
+                node.addBlobPointer(head);
+                cacheManager.update(this, head, node);
+                break;
+            }
+            node = node.getNode(pointer);
+        }
+        if (size() == 0)
+            that.setLevel(LEAF_LEVEL);
+        // a root with a single child is redundant
+        while (getNLevels() > LEAF_LEVEL && size() == 1) {
+            IChunkPointer pointer = get(0);
+            ChunkContainerNode child = getNode(pointer);
+            removeBlobPointer(0);
+            cacheManager.remove(this, pointer);
+            while (child.size() > 0)
+                addBlobPointer(child.removeBlobPointer(0));
+            that.setLevel(child.getLevel());
+        }
+    }
+
+    /**
+     * Removes a dropped pointer and the in memory part of its sub tree from the cache.
+     */
+    private void removeCached(IChunkPointer pointer) {
+        IChunk chunk = pointer.getCachedChunk();
+        if (chunk != null && !isDataPointer(pointer)) {
+            for (IChunkPointer child : ((ChunkContainerNode)chunk).getChunkPointers())
+                removeCached(child);
+        }
+        cacheManager.remove(this, pointer);
     }
 
     @Override
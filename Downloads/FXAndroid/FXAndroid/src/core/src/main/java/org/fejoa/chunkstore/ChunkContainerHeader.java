@@ -66,19 +66,28 @@ class ChunkContainerHeaderIO {
         if (chunkingType == null)
             throw new IOException("Unknown chunking type: " + chunkingValue);
 
-        if ((chunkingValueRaw & 0x1) != 0) {
-            if (ChunkContainerHeader.ChunkingType.isRabin(chunkingType)) {
-                ChunkContainerHeader.RabinChunkingConfig config
-                        = ChunkContainerHeader.RabinChunkingConfig.getDefault(chunkingType);
+        boolean hasDetails = (chunkingValueRaw & 0x1) != 0;
+        if (ChunkContainerHeader.ChunkingType.isRabin(chunkingType)) {
+            ChunkContainerHeader.RabinChunkingConfig config
+                    = ChunkContainerHeader.RabinChunkingConfig.create(chunkingType);
+            if (hasDetails)
                 readDetails(config, inputStream);
-            } else if (ChunkContainerHeader.ChunkingType.isFixedSized(chunkingType)) {
-                ChunkContainerHeader.FixedSizeChunkingConfig config
-                        = ChunkContainerHeader.FixedSizeChunkingConfig.getDefault(chunkingType);
+            header.setChunkingConfig(config);
+        } else if (ChunkContainerHeader.ChunkingType.isFixedSized(chunkingType)) {
+            ChunkContainerHeader.FixedSizeChunkingConfig config
+                    = ChunkContainerHeader.FixedSizeChunkingConfig.create(chunkingType);
+            if (hasDetails)
                 readDetails(config, inputStream);
-            } else {
-                // just read the proto buffer
-                new ProtocolBufferLight(inputStream);
-            }
+            header.setChunkingConfig(config);
+        } else if (ChunkContainerHeader.ChunkingType.isGear(chunkingType)) {
+            ChunkContainerHeader.GearChunkingConfig config
+                    = ChunkContainerHeader.GearChunkingConfig.create(chunkingType);
+            if (hasDetails)
+                readDetails(config, inputStream);
+            header.setChunkingConfig(config);
+        } else if (hasDetails) {
+            // just read the proto buffer
+            new ProtocolBufferLight(inputStream);
         }
 
         long hashValueRaw = VarInt.read(inputStream);
@@ -103,6 +112,17 @@ class ChunkContainerHeaderIO {
         }
     }
 
+    enum GearDetailTag {
+        TARGET_CHUNK_SIZE(0),
+        MIN_CHUNK_SIZE(1),
+        MAX_CHUNK_SIZE(2);
+
+        final private int value;
+        GearDetailTag(int value) {
+            this.value = value;
+        }
+    }
+
     enum FixedSizeDetailTag {
         SIZE(0);
 
@@ -133,6 +153,17 @@ class ChunkContainerHeaderIO {
                 buffer.put(SIZE.value, config.size);
             buffer.write(outputStream);
 
+        } else if (chunkingConfig instanceof ChunkContainerHeader.GearChunkingConfig) {
+            ChunkContainerHeader.GearChunkingConfig config = (ChunkContainerHeader.GearChunkingConfig)chunkingConfig;
+            ProtocolBufferLight buffer = new ProtocolBufferLight();
+            if (config.targetSize != config.defaultConfig.targetSize)
+                buffer.put(GearDetailTag.TARGET_CHUNK_SIZE.value, config.targetSize);
+            if (config.minSize != config.defaultConfig.minSize)
+                buffer.put(GearDetailTag.MIN_CHUNK_SIZE.value, config.minSize);
+            if (config.maxSize != config.defaultConfig.maxSize)
+                buffer.put(GearDetailTag.MAX_CHUNK_SIZE.value, config.maxSize);
+
+            buffer.write(outputStream);
         } else
             throw new IOException("Unknown chunking config");
     }
@@ -152,6 +183,21 @@ class ChunkContainerHeaderIO {
             config.maxSize = value.intValue();
     }
 
+    static private void readDetails(ChunkContainerHeader.GearChunkingConfig config, InputStream inputStream)
+            throws IOException {
+        ProtocolBufferLight buffer = new ProtocolBufferLight();
+        buffer.read(inputStream);
+        Long value = buffer.getLong(GearDetailTag.TARGET_CHUNK_SIZE.value);
+        if (value != null)
+            config.targetSize = value.intValue();
+        value = buffer.getLong(GearDetailTag.MIN_CHUNK_SIZE.value);
+        if (value != null)
+            config.minSize = value.intValue();
+        value = buffer.getLong(GearDetailTag.MAX_CHUNK_SIZE.value);
+        if (value != null)
+            config.maxSize = value.intValue();
+    }
+
     static private void readDetails(ChunkContainerHeader.FixedSizeChunkingConfig config, InputStream inputStream)
             throws IOException {
         ProtocolBufferLight buffer = new ProtocolBufferLight();
@@ -187,7 +233,9 @@ public class ChunkContainerHeader {
         FIXED_BLOCK_SPLITTER_DETAILED(0),
         FIXED_BLOCK_SPLITTER_8K(1),
         RABIN_SPLITTER_DETAILED(2),
-        RABIN_SPLITTER_2K_8K(3);
+        RABIN_SPLITTER_2K_8K(3),
+        GEAR_SPLITTER_DETAILED(4),
+        GEAR_SPLITTER_2K_8K_64K(5);
 
         final public int value;
         ChunkingType(int value) {
@@ -206,7 +254,16 @@ public class ChunkContainerHeader {
         public static boolean isFixedSized(ChunkingType type) {
             switch (type) {
                 case FIXED_BLOCK_SPLITTER_DETAILED:
-                case RABIN_SPLITTER_2K_8K:
+                case FIXED_BLOCK_SPLITTER_8K:
+                    return true;
+            }
+            return false;
+        }
+
+        public static boolean isGear(ChunkingType type) {
+            switch (type) {
+                case GEAR_SPLITTER_DETAILED:
+                case GEAR_SPLITTER_2K_8K_64K:
                     return true;
             }
             return false;
@@ -285,6 +342,18 @@ public class ChunkContainerHeader {
         config.minSize = minSize;
     }
 
+    public void setGearChunking(ChunkingType type) {
+        chunkingConfig = GearChunkingConfig.create(type);
+    }
+
+    public void setGearChunking(int targetSize, int minSize, int maxSize) {
+        GearChunkingConfig config = GearChunkingConfig.create(GEAR_SPLITTER_DETAILED);
+        chunkingConfig = config;
+        config.targetSize = targetSize;
+        config.minSize = minSize;
+        config.maxSize = maxSize;
+    }
+
     public void setFixedSizeChunking(int size) {
         FixedSizeChunkingConfig config = FixedSizeChunkingConfig.create(FIXED_BLOCK_SPLITTER_DETAILED);
         chunkingConfig = config;
@@ -319,6 +388,10 @@ public class ChunkContainerHeader {
         return chunkingConfig;
     }
 
+    void setChunkingConfig(IChunkingConfig chunkingConfig) {
+        this.chunkingConfig = chunkingConfig;
+    }
+
     public ContainerType getContainerType() {
         return containerType;
     }
@@ -345,6 +418,10 @@ public class ChunkContainerHeader {
             FixedSizeChunkingConfig config = (FixedSizeChunkingConfig)chunkingConfig;
             FixedBlockSplitter splitter = new FixedBlockSplitter((int)(factor * config.size));
             return splitter;
+        } else if (chunkingConfig instanceof GearChunkingConfig) {
+            GearChunkingConfig config = (GearChunkingConfig)chunkingConfig;
+            return new GearSplitter((int)(factor * config.targetSize), (int)(factor * config.minSize),
+                    (int)(factor * config.maxSize));
         }
         return null;
     }
@@ -382,7 +459,7 @@ public class ChunkContainerHeader {
                 case FIXED_BLOCK_SPLITTER_DETAILED:
                     return getDefault(FIXED_BLOCK_SPLITTER_8K);
                 case FIXED_BLOCK_SPLITTER_8K:
-                    return new FixedSizeChunkingConfig(RABIN_SPLITTER_2K_8K, 8 * 1024);
+                    return new FixedSizeChunkingConfig(FIXED_BLOCK_SPLITTER_8K, 8 * 1024);
             }
             assert false;
             return null;
@@ -471,4 +548,83 @@ public class ChunkContainerHeader {
         }
     }
 
+    static public class GearChunkingConfig implements IChunkingConfig {
+        GearChunkingConfig defaultConfig;
+        ChunkingType type;
+        int targetSize;
+        int minSize;
+        int maxSize;
+
+        static public GearChunkingConfig create(ChunkingType type) {
+            GearChunkingConfig config = getDefault(type);
+            config.defaultConfig = getDefault(type);
+            return config;
+        }
+
+        private GearChunkingConfig(ChunkingType type, int targetSize, int minSize, int maxSize) {
+            this.type = type;
+            this.targetSize = targetSize;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+        }
+
+        private GearChunkingConfig(ChunkingType type, GearChunkingConfig defaultConfig, int targetSize,
+                                   int minSize, int maxSize) {
+            this.type = type;
+            this.defaultConfig = defaultConfig;
+            this.targetSize = targetSize;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public IChunkingConfig clone() {
+            return new GearChunkingConfig(type, defaultConfig, targetSize, minSize, maxSize);
+        }
+
+        static public GearChunkingConfig getDefault(ChunkingType type) {
+            switch (type) {
+                case GEAR_SPLITTER_DETAILED:
+                    return getDefault(GEAR_SPLITTER_2K_8K_64K);
+                case GEAR_SPLITTER_2K_8K_64K:
+                    return new GearChunkingConfig(GEAR_SPLITTER_2K_8K_64K, 8 * 1024, 2 * 1024, 64 * 1024);
+            }
+            assert false;
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GearChunkingConfig))
+                return false;
+            if (((GearChunkingConfig) o).type != type)
+                return false;
+            if (((GearChunkingConfig) o).minSize != minSize)
+                return false;
+            if (((GearChunkingConfig) o).targetSize != targetSize)
+                return false;
+            if (((GearChunkingConfig) o).maxSize != maxSize)
+                return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = type.hashCode();
+            result = 31 * result + targetSize;
+            result = 31 * result + minSize;
+            result = 31 * result + maxSize;
+            return result;
+        }
+
+        @Override
+        public ChunkingType getChunkingType() {
+            return type;
+        }
+
+        @Override
+        public boolean isDefault() {
+            return this.equals(defaultConfig);
+        }
+    }
 }
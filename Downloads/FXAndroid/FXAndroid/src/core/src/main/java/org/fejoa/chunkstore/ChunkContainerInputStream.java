@@ -11,46 +11,211 @@ import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
+/**
+ * Reads the data of a chunk container.
+ *
+ * If an executor is given, the next data chunks are loaded (e.g. decrypted) by the executor while the caller reads the
+ * current chunk. The chunk accessor must be thread safe in this case.
+ */
 public class ChunkContainerInputStream extends InputStream {
+    final static public int DEFAULT_READ_AHEAD_CHUNKS = 8;
+    // smaller containers only have a few chunks, i.e. reading ahead doesn't pay off
+    final static public long MIN_READ_AHEAD_SIZE = 256 * 1024;
+
+    static private class PendingChunk {
+        final ChunkContainer.DataChunkPointer pointer;
+        final Future<DataChunk> dataChunk;
+
+        PendingChunk(ChunkContainer.DataChunkPointer pointer, Future<DataChunk> dataChunk) {
+            this.pointer = pointer;
+            this.dataChunk = dataChunk;
+        }
+    }
+
     final private ChunkContainer container;
+    final private ExecutorService executor;
+    final private int readAheadChunks;
+    final private Queue<PendingChunk> readAhead = new ArrayDeque<>();
     private long position = 0;
     private ChunkContainer.DataChunkPointer chunkPosition;
+    private DataChunk currentChunk;
 
     public ChunkContainerInputStream(ChunkContainer container) {
+        this(container, null, 0);
+    }
+
+    /**
+     * @param executor loads the next readAheadChunks chunks, the executor is not shut down by the stream
+     */
+    public ChunkContainerInputStream(ChunkContainer container, ExecutorService executor, int readAheadChunks) {
         this.container = container;
+        this.executor = executor;
+        this.readAheadChunks = readAheadChunks;
+    }
+
+    /**
+     * Reads the chunks of large containers ahead if an executor is given.
+     *
+     * @param executor may be null
+     */
+    static public ChunkContainerInputStream create(ChunkContainer container, ExecutorService executor) {
+        if (executor == null || container.getDataLength() < MIN_READ_AHEAD_SIZE)
+            return new ChunkContainerInputStream(container);
+        return new ChunkContainerInputStream(container, executor, DEFAULT_READ_AHEAD_CHUNKS);
     }
 
     @Override
     public int read() throws IOException {
         if (position >= container.getDataLength())
             return -1;
-        DataChunk current;
-        try {
-            current = validateCurrentChunk();
-        } catch (CryptoException e) {
-            throw new IOException(e);
-        }
+        DataChunk current = validateCurrentChunk();
         int b = current.getData()[(int)(position - chunkPosition.position)] & 0xff;
         position++;
         return b;
     }
 
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        long dataLength = container.getDataLength();
+        if (position >= dataLength)
+            return -1;
+        int bytesRead = 0;
+        while (bytesRead < length && position < dataLength) {
+            DataChunk current = validateCurrentChunk();
+            int inChunkPosition = (int)(position - chunkPosition.position);
+            int toCopy = (int)Math.min(length - bytesRead, current.getDataLength() - inChunkPosition);
+            System.arraycopy(current.getData(), inChunkPosition, buffer, offset + bytesRead, toCopy);
+            bytesRead += toCopy;
+            position += toCopy;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, container.getDataLength() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (chunkPosition == null || !isInCurrentChunk(position))
+            return 0;
+        return (int)(chunkPosition.position + chunkPosition.getDataLength() - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        cancelReadAhead();
+        super.close();
+    }
+
     public void seek(long position) throws IOException, CryptoException {
         this.position = position;
-        if (chunkPosition != null && (position >= chunkPosition.position + chunkPosition.getDataChunk().getDataLength()
-                    || position < chunkPosition.position)) {
-                chunkPosition = null;
+    }
+
+    private boolean isInCurrentChunk(long position) {
+        return position >= chunkPosition.position
+                && position < chunkPosition.position + chunkPosition.getDataLength();
+    }
+
+    private DataChunk validateCurrentChunk() throws IOException {
+        if (chunkPosition != null && isInCurrentChunk(position))
+            return currentChunk;
+        try {
+            if (executor == null) {
+                chunkPosition = container.get(position);
+                currentChunk = chunkPosition.getDataChunk();
+                return currentChunk;
+            }
+
+            PendingChunk next = readAhead.peek();
+            if (next == null || position < next.pointer.position
+                    || position >= next.pointer.position + next.pointer.getDataLength()) {
+                // not reading sequentially
+                cancelReadAhead();
+                scheduleReadAhead(container.get(position));
+                next = readAhead.peek();
+            }
+            readAhead.poll();
+            chunkPosition = next.pointer;
+            currentChunk = getDataChunk(next);
+            scheduleReadAhead(null);
+            return currentChunk;
+        } catch (CryptoException e) {
+            throw new IOException(e);
         }
     }
 
-    private DataChunk validateCurrentChunk() throws IOException, CryptoException {
-        if (chunkPosition != null
-                && position < (chunkPosition.position + chunkPosition.getDataChunk().getDataLength())) {
-            return chunkPosition.getDataChunk();
+    /**
+     * Fills the read ahead queue.
+     *
+     * @param first the first chunk to load or null to continue after the last queued chunk
+     */
+    private void scheduleReadAhead(ChunkContainer.DataChunkPointer first) throws IOException, CryptoException {
+        ChunkContainer.DataChunkPointer pointer = first;
+        long nextPosition = -1;
+        if (pointer == null) {
+            PendingChunk last = null;
+            for (PendingChunk pendingChunk : readAhead)
+                last = pendingChunk;
+            ChunkContainer.DataChunkPointer previous = last != null ? last.pointer : chunkPosition;
+            nextPosition = previous.position + previous.getDataLength();
+        }
+        while (readAhead.size() < Math.max(1, readAheadChunks)) {
+            if (pointer == null) {
+                if (nextPosition >= container.getDataLength())
+                    return;
+                pointer = container.get(nextPosition);
+            }
+            readAhead.add(new PendingChunk(pointer, loadAsync(pointer)));
+            nextPosition = pointer.position + pointer.getDataLength();
+            pointer = null;
         }
-        chunkPosition = container.get(position);
-        return chunkPosition.getDataChunk();
+    }
+
+    private Future<DataChunk> loadAsync(final ChunkContainer.DataChunkPointer pointer) {
+        final DataChunk cachedChunk = pointer.getCachedDataChunk();
+        return executor.submit(new Callable<DataChunk>() {
+            @Override
+            public DataChunk call() throws Exception {
+                if (cachedChunk != null)
+                    return cachedChunk;
+                return pointer.loadDataChunk();
+            }
+        });
+    }
+
+    private DataChunk getDataChunk(PendingChunk pendingChunk) throws IOException, CryptoException {
+        try {
+            return pendingChunk.dataChunk.get();
+        } catch (InterruptedException e) {
+            cancelReadAhead();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            cancelReadAhead();
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof CryptoException)
+                throw (CryptoException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void cancelReadAhead() {
+        for (PendingChunk pendingChunk : readAhead)
+            pendingChunk.dataChunk.cancel(false);
+        readAhead.clear();
     }
 }
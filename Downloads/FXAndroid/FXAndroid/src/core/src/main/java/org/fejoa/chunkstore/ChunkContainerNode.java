@@ -16,6 +16,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -31,6 +32,9 @@ public class ChunkContainerNode implements IChunk {
     private byte[] data;
     private HashValue dataHash;
     final private List<IChunkPointer> slots = new ArrayList<>();
+    // offsets[i] is the data position of slot i and offsets[size()] the data length of the node
+    private long[] offsets = new long[1];
+    private boolean offsetsValid = true;
     protected ChunkSplitter nodeSplitter;
 
     static public ChunkContainerNode create(IChunkAccessor blobAccessor, ChunkContainerNode parent,
@@ -105,10 +109,18 @@ public class ChunkContainerNode implements IChunk {
         IChunk cachedChunk = pointer.getCachedChunk();
         if (cachedChunk != null)
             return (DataChunk)cachedChunk;
+        DataChunk dataChunk = readDataChunk(pointer);
+        pointer.setCachedChunk(dataChunk);
+        return dataChunk;
+    }
+
+    /**
+     * Reads the data chunk from the blob accessor without caching it.
+     */
+    protected DataChunk readDataChunk(IChunkPointer pointer) throws IOException, CryptoException {
         DataInputStream inputStream = blobAccessor.getChunk(pointer.getChunkPointer());
         DataChunk dataChunk = new DataChunk();
         dataChunk.read(inputStream, pointer.getDataLength());
-        pointer.setCachedChunk(dataChunk);
         return dataChunk;
     }
 
@@ -126,10 +138,51 @@ public class ChunkContainerNode implements IChunk {
     }
 
     protected long calculateDataLength() {
-        long length = 0;
-        for (IChunkPointer pointer : slots)
-            length += pointer.getDataLength();
-        return length;
+        return getOffsets()[slots.size()];
+    }
+
+    private long[] getOffsets() {
+        if (offsetsValid)
+            return offsets;
+        int size = slots.size();
+        if (offsets.length < size + 1)
+            offsets = new long[Math.max(size + 1, offsets.length * 2)];
+        long position = 0;
+        for (int i = 0; i < size; i++) {
+            offsets[i] = position;
+            position += slots.get(i).getDataLength();
+        }
+        offsets[size] = position;
+        offsetsValid = true;
+        return offsets;
+    }
+
+    /**
+     * @return the data position of the slot relative to this node
+     */
+    protected long getSlotPosition(int index) {
+        return getOffsets()[index];
+    }
+
+    /**
+     * Binary search for the slot that contains the data position.
+     *
+     * @param dataPosition relative to this node
+     * @return the slot index or size() if the position is at or behind the end of the node
+     */
+    protected int findSlot(long dataPosition) {
+        long[] offsets = getOffsets();
+        int low = 0;
+        int high = slots.size();
+        // find the first slot whose end is behind the position
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid + 1] > dataPosition)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
     }
 
     public int getBlobLength() {
@@ -165,15 +218,10 @@ public class ChunkContainerNode implements IChunk {
         if (dataPosition > node.getDataLength())
             return null;
 
-        long position = 0;
-        for (int i = 0; i < node.slots.size(); i++) {
-            IChunkPointer pointer = node.slots.get(i);
-            long dataLength = pointer.getDataLength();
-            if (position + dataLength > dataPosition)
-                return new SearchResult(position, pointer, node);
-            position += dataLength;
-        }
-        return new SearchResult(position, null, node);
+        int index = node.findSlot(dataPosition);
+        if (index == node.size())
+            return new SearchResult(node.getDataLength(), null, node);
+        return new SearchResult(node.getSlotPosition(index), node.get(index), node);
     }
 
     @Override
@@ -184,12 +232,16 @@ public class ChunkContainerNode implements IChunk {
             IChunkPointer pointer = new ChunkPointerImpl(that.getLevel() - 1);
             pointer.read(inputStream);
             dataLengthRead += pointer.getDataLength();
-            addBlobPointer(pointer);
+            slots.add(pointer);
         }
         if (dataLengthRead != dataLength) {
             throw new IOException("Chunk container node addresses " + dataLengthRead + " bytes but " + dataLength
                     + " bytes expected");
         }
+        // loading the node doesn't change the data of its parents, only invalidate this node
+        data = null;
+        dataHash = null;
+        offsetsValid = false;
         onDisk = true;
     }
 
@@ -424,7 +476,15 @@ public class ChunkContainerNode implements IChunk {
         return new HashValue(messageDigest.digest());
     }
 
+    /**
+     * Must be called when the data of a child changed, e.g. its data length.
+     */
     protected void invalidate() {
+        offsetsValid = false;
+        invalidateContent();
+    }
+
+    private void invalidateContent() {
         data = null;
         dataHash = null;
         onDisk = false;
@@ -436,7 +496,15 @@ public class ChunkContainerNode implements IChunk {
         slots.add(index, pointer);
         if (!isDataPointer(pointer) && pointer.getCachedChunk() != null)
             ((ChunkContainerNode)pointer.getCachedChunk()).setParent(this);
-        invalidate();
+        if (offsetsValid) {
+            int size = slots.size();
+            if (offsets.length < size + 1)
+                offsets = Arrays.copyOf(offsets, Math.max(size + 1, offsets.length * 2));
+            long dataLength = pointer.getDataLength();
+            for (int i = size; i > index; i--)
+                offsets[i] = offsets[i - 1] + dataLength;
+        }
+        invalidateContent();
     }
 
     protected void addBlobPointer(IChunkPointer pointer) throws IOException {
@@ -449,7 +517,12 @@ public class ChunkContainerNode implements IChunk {
 
     protected IChunkPointer removeBlobPointer(int i, boolean updateParentsIfEmpty) {
         IChunkPointer pointer = slots.remove(i);
-        invalidate();
+        if (offsetsValid) {
+            long dataLength = offsets[i + 1] - offsets[i];
+            for (int j = i; j < slots.size(); j++)
+                offsets[j + 1] = offsets[j + 2] - dataLength;
+        }
+        invalidateContent();
         if (updateParentsIfEmpty && parent != null && slots.size() == 0) {
             int inParentIndex = parent.indexOf(that);
             parent.removeBlobPointer(inParentIndex, true);
@@ -8,15 +8,46 @@
 package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.crypto.IMessageDigestFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
+/**
+ * Writes data into a chunk container.
+ *
+ * If an executor is given, appended chunks are hashed and handed to the chunk accessor (e.g. compressed and
+ * encrypted) by the executor while the caller continues splitting the data. The stored chunks are inserted in order,
+ * i.e. the container is the same as if the chunks were written sequentially. The chunk accessor must be thread safe.
+ *
+ * The data of a chunk is copied once into an array of the exact chunk size that is handed to the container; it is
+ * either collected in a reused chunk buffer or, if the chunk lies completely in the written buffer, copied directly.
+ */
 public class ChunkContainerOutputStream extends OutputStream {
+    // chunks that are processed by the executor but not yet inserted into the container
+    final static private int MAX_PENDING_CHUNKS = 64;
+
+    static private class PendingChunk {
+        final Future<IChunkPointer> pointer;
+        final long position;
+
+        PendingChunk(Future<IChunkPointer> pointer, long position) {
+            this.pointer = pointer;
+            this.position = position;
+        }
+    }
+
     private interface ITransaction {
         void write(int i) throws IOException;
+        void write(byte[] buffer, int offset, int length) throws IOException;
         void finish() throws IOException;
     }
 
@@ -28,7 +59,6 @@ public class ChunkContainerOutputStream extends OutputStream {
         private long bytesWritten;
         private boolean appending = false;
         private ChunkContainer.DataChunkPointer lastDeletedPointer;
-        private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
         public OverwriteTransaction(final long seekPosition, final long containerSize) throws IOException,
                 CryptoException {
@@ -48,11 +78,23 @@ public class ChunkContainerOutputStream extends OutputStream {
             lastDeletedPointer = container.get(start);
             DataChunk chunk = lastDeletedPointer.getDataChunk();
 
+            // the chunk start is unchanged, i.e. the splitter state can be restored from the data in front of the seek
+            // position
+            int length = (int)(seekPosition - lastDeletedPointer.position);
+            chunkSplitter.restore(chunk.data, 0, length);
+            if (chunkSplitter.isTriggered()) {
+                // appending behind a chunk that ends at a boundary; the chunk stays as it is
+                chunkSplitter.reset();
+                writeStartPosition = seekPosition;
+                lastDeletedPointer = null;
+                appending = true;
+                return;
+            }
+
             removeChunk(lastDeletedPointer.position, lastDeletedPointer.chunkDataLength);
             writeStartPosition = lastDeletedPointer.position;
-
-            for (int i = 0; i < seekPosition - writeStartPosition; i++)
-                write(chunk.data[i]);
+            appendToChunk(chunk.data, 0, length);
+            bytesWritten += length;
         }
 
         private void removeChunk(long position, long size) throws IOException, CryptoException {
@@ -63,17 +105,43 @@ public class ChunkContainerOutputStream extends OutputStream {
         // write remaining data till we reached the end or a known chunk position
         private void finalizeWrite() throws IOException, CryptoException {
             while (lastDeletedPointer != null) {
-                byte[] data = lastDeletedPointer.getDataChunk().getData();
                 long bytesToWrite = bytesDeleted - bytesWritten;
-                if (bytesToWrite <= 0)
-                    break;
-                long start = data.length - bytesToWrite;
-                for (int i = (int)start; i < data.length; i++)
-                    write(data[i]);
+                if (bytesToWrite <= 0) {
+                    // the splitter didn't trigger at the end of the deleted data, continue with the next chunk
+                    overwriteNextChunk();
+                    continue;
+                }
+                byte[] data = lastDeletedPointer.getDataChunk().getData();
+                int start = (int)(data.length - bytesToWrite);
+                int windowSize = chunkSplitter.getWindowSize();
+                if (!isSplittingDeletedChunk() || bytesToWrite <= windowSize) {
+                    write(data, start, (int)bytesToWrite);
+                    continue;
+                }
+                // After the window has passed the written data the splitter is in the same state as when the deleted
+                // chunk was split, i.e. the next boundary is the end of the deleted chunk.
+                write(data, start, windowSize);
+                if (!isSplittingDeletedChunk())
+                    continue;
+                appendToChunk(data, start + windowSize, (int)bytesToWrite - windowSize);
+                bytesWritten += bytesToWrite - windowSize;
+                chunkSplitter.reset();
+                flushChunk();
             }
+            // the rest of the data if the end of the container has been reached
             flushChunk();
         }
 
+        /**
+         * @return true if the current chunk starts where the last deleted chunk started and if the splitter state only
+         * depends on a window of the data
+         */
+        private boolean isSplittingDeletedChunk() {
+            if (lastDeletedPointer == null || chunkSplitter.getWindowSize() < 0)
+                return false;
+            return bytesFlushed == bytesDeleted - lastDeletedPointer.chunkDataLength;
+        }
+
         private void overwriteNextChunk() throws IOException, CryptoException {
             if (appending)
                 return;
@@ -96,7 +164,7 @@ public class ChunkContainerOutputStream extends OutputStream {
                     throw new IOException(e);
                 }
             }
-            outputStream.write(i);
+            appendToChunk(i);
             bytesWritten++;
             if (chunkSplitter.update((byte)i)) {
                 chunkSplitter.reset();
@@ -104,12 +172,50 @@ public class ChunkContainerOutputStream extends OutputStream {
             }
         }
 
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (lastDeletedPointer == null) {
+                    try {
+                        overwriteNextChunk();
+                    } catch (CryptoException e) {
+                        throw new IOException(e);
+                    }
+                }
+                // hand over everything till the next chunk boundary
+                int consumed = chunkSplitter.update(buffer, offset, length);
+                bytesWritten += consumed;
+                if (chunkSplitter.isTriggered() && chunkBufferSize == 0) {
+                    // the whole chunk is in the buffer
+                    chunkSplitter.reset();
+                    flushChunk(Arrays.copyOfRange(buffer, offset, offset + consumed));
+                } else {
+                    appendToChunk(buffer, offset, consumed);
+                    if (chunkSplitter.isTriggered()) {
+                        chunkSplitter.reset();
+                        flushChunk();
+                    }
+                }
+                offset += consumed;
+                length -= consumed;
+            }
+        }
+
         private void flushChunk() throws IOException {
-            byte[] data = outputStream.toByteArray();
-            if (data.length == 0)
+            if (chunkBufferSize == 0)
                 return;
+            byte[] data = Arrays.copyOf(chunkBuffer, chunkBufferSize);
+            chunkBufferSize = 0;
+            flushChunk(data);
+        }
+
+        private void flushChunk(byte[] data) throws IOException {
             try {
-                container.insert(new DataChunk(data), writeStartPosition + bytesFlushed);
+                long position = writeStartPosition + bytesFlushed;
+                if (appending && executor != null)
+                    submitChunk(new DataChunk(data), position);
+                else
+                    container.insert(new DataChunk(data), position);
                 bytesFlushed += data.length;
                 if (bytesFlushed == bytesDeleted) {
                     lastDeletedPointer = null;
@@ -119,13 +225,13 @@ public class ChunkContainerOutputStream extends OutputStream {
             } catch (CryptoException e) {
                 throw new IOException(e);
             }
-            outputStream = new ByteArrayOutputStream();
         }
 
         @Override
         public void finish() throws IOException {
             try {
                 finalizeWrite();
+                insertPendingChunks(0);
             } catch (CryptoException e) {
                 throw new IOException(e);
             }
@@ -134,12 +240,25 @@ public class ChunkContainerOutputStream extends OutputStream {
 
     final private ChunkContainer container;
     final private ChunkSplitter chunkSplitter;
+    final private ExecutorService executor;
+    final private Queue<PendingChunk> pendingChunks = new ArrayDeque<>();
     private ITransaction currentTransaction;
     private long position = 0;
+    // collects the data of the current chunk, the buffer is reused for all chunks
+    private byte[] chunkBuffer = new byte[16 * 1024];
+    private int chunkBufferSize = 0;
 
     public ChunkContainerOutputStream(ChunkContainer container) throws IOException {
+        this(container, (ExecutorService)null);
+    }
+
+    /**
+     * @param executor processes the chunks in parallel, the executor is not shut down by the stream
+     */
+    public ChunkContainerOutputStream(ChunkContainer container, ExecutorService executor) throws IOException {
         this.container = container;
         this.chunkSplitter = container.getChunkSplitter();
+        this.executor = executor;
         seek(container.getDataLength());
     }
 
@@ -147,31 +266,112 @@ public class ChunkContainerOutputStream extends OutputStream {
     protected ChunkContainerOutputStream(ChunkContainer container, ChunkSplitter chunkSplitter) throws IOException {
         this.container = container;
         this.chunkSplitter = chunkSplitter;
+        this.executor = null;
         seek(container.getDataLength());
     }
 
+    private void appendToChunk(int i) {
+        ensureChunkBufferCapacity(chunkBufferSize + 1);
+        chunkBuffer[chunkBufferSize++] = (byte)i;
+    }
+
+    private void appendToChunk(byte[] buffer, int offset, int length) {
+        ensureChunkBufferCapacity(chunkBufferSize + length);
+        System.arraycopy(buffer, offset, chunkBuffer, chunkBufferSize, length);
+        chunkBufferSize += length;
+    }
+
+    private void ensureChunkBufferCapacity(int capacity) {
+        if (chunkBuffer.length >= capacity)
+            return;
+        chunkBuffer = Arrays.copyOf(chunkBuffer, Math.max(capacity, 2 * chunkBuffer.length));
+    }
+
+    private void submitChunk(final DataChunk chunk, long position) throws IOException, CryptoException {
+        insertPendingChunks(MAX_PENDING_CHUNKS - 1);
+        final IMessageDigestFactory messageDigestFactory = container.getRef().getDataMessageDigestFactory();
+        Future<IChunkPointer> pointer = executor.submit(new Callable<IChunkPointer>() {
+            @Override
+            public IChunkPointer call() throws Exception {
+                return container.putDataChunk(chunk, messageDigestFactory.create());
+            }
+        });
+        pendingChunks.add(new PendingChunk(pointer, position));
+    }
+
+    /**
+     * Waits for pending chunks and inserts them in order till at most maxPending chunks are left.
+     */
+    private void insertPendingChunks(int maxPending) throws IOException, CryptoException {
+        while (pendingChunks.size() > maxPending) {
+            PendingChunk pendingChunk = pendingChunks.poll();
+            IChunkPointer pointer;
+            try {
+                pointer = pendingChunk.pointer.get();
+            } catch (InterruptedException e) {
+                cancelPendingChunks();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                cancelPendingChunks();
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                if (e.getCause() instanceof CryptoException)
+                    throw (CryptoException)e.getCause();
+                throw new IOException(e.getCause());
+            }
+            container.insert(pointer, pendingChunk.position);
+        }
+    }
+
+    private void cancelPendingChunks() {
+        for (PendingChunk pendingChunk : pendingChunks)
+            pendingChunk.pointer.cancel(false);
+        pendingChunks.clear();
+    }
+
     public long length() throws IOException {
         return container.getDataLength();
     }
 
+    /**
+     * The transaction for the new position is started on the next write, i.e. seeking doesn't touch the container.
+     */
     public void seek(long position) throws IOException {
-        if (currentTransaction != null)
+        if (currentTransaction != null) {
             currentTransaction.finish();
+            currentTransaction = null;
+        }
+
+        validatePosition(position);
+        this.position = position;
+    }
 
+    private void validatePosition(long position) throws IOException {
         long length = length();
         if (position > length || position < 0)
             throw new IOException("Invalid seek position: " + position + " (Length: " + length + ")");
+    }
+
+    private ITransaction getTransaction() throws IOException {
+        if (currentTransaction != null)
+            return currentTransaction;
+        validatePosition(position);
         try {
-            currentTransaction = new OverwriteTransaction(position, length);
+            currentTransaction = new OverwriteTransaction(position, length());
         } catch (CryptoException e) {
             throw new IOException(e);
         }
-        this.position = position;
+        return currentTransaction;
     }
 
     @Override
     public void write(int i) throws IOException {
-        currentTransaction.write(i);
+        getTransaction().write(i);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        getTransaction().write(buffer, offset, length);
     }
 
     @Override
@@ -32,6 +32,19 @@ public class ChunkHash {
             }
         }
 
+        public void update(byte[] data, int offset, int length) {
+            if (bufferSize + length <= buffer.length) {
+                System.arraycopy(data, offset, buffer, bufferSize, length);
+                bufferSize += length;
+                return;
+            }
+            if (bufferSize > 0) {
+                hash.update(buffer, 0, bufferSize);
+                bufferSize = 0;
+            }
+            hash.update(data, offset, length);
+        }
+
         public byte[] digest() {
             if (bufferSize > 0) {
                 hash.update(buffer, 0, bufferSize);
@@ -50,7 +63,10 @@ public class ChunkHash {
         final ChunkSplitter splitter;
         Layer upperLayer;
         Layer cachedUpperLayer;
+        // reused for all chunks of the layer
         BufferedHash hash;
+        // if data of the current chunk has been hashed
+        boolean hashing = false;
         // dataHash of the first chunk, only if there are more then one chunk an upper layer is started
         byte[] firstChunkHash;
 
@@ -65,20 +81,49 @@ public class ChunkHash {
                 this.cachedUpperLayer = this.upperLayer;
             }
             this.upperLayer = null;
-            this.hash = null;
+            if (this.hash != null)
+                this.hash.reset();
+            this.hashing = false;
             this.firstChunkHash = null;
         }
 
-        void update(byte... data) {
+        private BufferedHash startHashing() {
             if (hash == null)
                 hash = getMessageDigest();
+            hashing = true;
+            return hash;
+        }
 
-            //dataHash.update(data);
-            for (byte b : data) {
-                hash.update(b);
-                splitter.update(b);
+        void update(byte data) {
+            startHashing().update(data);
+            if (splitter.update(data)) {
+                splitter.reset();
+                finalizeChunk();
             }
+        }
 
+        /**
+         * A data chunk boundary can be after any byte.
+         */
+        void update(byte[] data, int offset, int length) {
+            while (length > 0) {
+                int consumed = splitter.update(data, offset, length);
+                startHashing().update(data, offset, consumed);
+                offset += consumed;
+                length -= consumed;
+                if (splitter.isTriggered()) {
+                    splitter.reset();
+                    finalizeChunk();
+                }
+            }
+        }
+
+        /**
+         * A node boundary can only be after a complete child hash.
+         */
+        void updateNode(byte[] childHash) {
+            startHashing().update(childHash, 0, childHash.length);
+            splitter.write(childHash, 0, childHash.length);
             if (splitter.isTriggered()) {
                 splitter.reset();
                 finalizeChunk();
@@ -86,22 +131,22 @@ public class ChunkHash {
         }
 
         private void finalizeChunk() {
-            if (hash == null)
+            if (!hashing)
                 return;
 
             byte[] chunkHash = hash.digest();
+            hashing = false;
 
             if (firstChunkHash == null && upperLayer == null)
                 firstChunkHash = chunkHash;
             else {
                 Layer upper = ensureUpperLayer();
                 if (firstChunkHash != null) {
-                    upper.update(firstChunkHash);
+                    upper.updateNode(firstChunkHash);
                     firstChunkHash = null;
                 }
-                upper.update(chunkHash);
+                upper.updateNode(chunkHash);
             }
-            hash = null;
         }
 
         public byte[] digest() {
@@ -150,8 +195,11 @@ public class ChunkHash {
     }
 
     public void update(byte[] data) {
-        for (byte b : data)
-            update(b);
+        update(data, 0, data.length);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        currentLayer.update(data, offset, length);
     }
 
     public void update(byte data) {
@@ -23,17 +23,82 @@ abstract public class ChunkSplitter extends OutputStream {
         resetInternal();
     }
 
+    /**
+     * Bulk version of updateInternal(byte) that subclasses can override with a tighter loop.
+     *
+     * @return the number of bytes up to and including the first byte that triggered or -1 if no byte triggered. Bytes
+     * after the triggering byte must not be consumed.
+     */
+    protected int updateInternal(byte[] buffer, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (updateInternal(buffer[offset + i]))
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of trailing bytes that, together with the number of consumed bytes, determine the state of
+     * the splitter or -1 if the state depends on all consumed bytes
+     */
+    public int getWindowSize() {
+        return -1;
+    }
+
+    /**
+     * Puts the splitter into the state it has after consuming the first length bytes of a chunk. No boundary must be in
+     * front of the last byte.
+     *
+     * Splitters that have a window size only need to hash the bytes in the window.
+     *
+     * @return true if the boundary is after the last byte
+     */
+    protected boolean restoreInternal(byte[] buffer, int offset, int length) {
+        return updateInternal(buffer, offset, length) == length;
+    }
+
+    public void restore(byte[] buffer, int offset, int length) {
+        reset();
+        if (length > 0 && restoreInternal(buffer, offset, length))
+            triggered = true;
+    }
+
     @Override
     public void write(int i) {
         if (updateInternal((byte)i))
             triggered = true;
     }
 
+    /**
+     * Like write(int), the splitter keeps consuming bytes after it has been triggered.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int consumed = update(buffer, offset, length);
+            offset += consumed;
+            length -= consumed;
+        }
+    }
+
     public boolean update(byte i) {
         write(i);
         return isTriggered();
     }
 
+    /**
+     * Consumes bytes till the splitter triggers, i.e. till the next chunk boundary.
+     *
+     * @return the number of consumed bytes; if the splitter is triggered the boundary is after the last consumed byte
+     */
+    public int update(byte[] buffer, int offset, int length) {
+        int consumed = updateInternal(buffer, offset, length);
+        if (consumed < 0)
+            return length;
+        triggered = true;
+        return consumed;
+    }
+
     public boolean isTriggered() {
         return triggered;
     }
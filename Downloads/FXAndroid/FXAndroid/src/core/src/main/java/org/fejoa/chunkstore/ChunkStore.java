@@ -9,48 +9,113 @@ package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoHelper;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.*;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.zip.CRC32;
 
 
 interface IChunkStoreEngine {
+    interface ITransaction {
+        PutResult<HashValue> put(byte[] data) throws IOException;
+        void commit() throws IOException;
+        void cancel();
+    }
+
     void create(File dir, String name) throws IOException;
     void open(File dir, String name) throws IOException;
 
     long size();
     ChunkStore.IChunkStoreIterator iterator() throws IOException;
     byte[] getChunk(byte[] hash) throws IOException;
-    PutResult<HashValue> put(byte[] data) throws IOException;
     boolean contains(byte[] hash) throws IOException;
-    void startNewTransaction();
-    void commit() throws IOException;
-    void cancel();
+    ITransaction startNewTransaction();
+
+    interface IGarbageCollection {
+        /**
+         * Marks a chunk as reachable.
+         */
+        void markLive(HashValue hash);
+
+        /**
+         * Removes all chunks that have not been marked.
+         *
+         * @return the number of removed chunks
+         */
+        long sweep() throws IOException;
+        void cancel() throws IOException;
+    }
+
+    /**
+     * Starts a garbage collection. Chunks that are written or accessed after this call are kept.
+     */
+    IGarbageCollection startGarbageCollection() throws IOException;
+    void close() throws IOException;
 }
 
+/**
+ * Chunks are appended to a pack file and indexed by a B+tree (name.idx), see {@link IChunkIndex}.
+ *
+ * Chunks of a transaction are buffered in memory (and spilled to the pack when the buffer gets large) and are only
+ * added to the index when the transaction is committed. On commit a commit record that lists all chunks of the
+ * transaction is appended to the pack and the pack is synced. Concurrent committers share a single sync (group commit).
+ * The pack thus acts as a write-ahead log for the index: name.ckp holds the pack position up to which all commit
+ * records are in the index on disk. The index is only forced when the checkpoint is moved, i.e. every
+ * CHECKPOINT_COMMITS commits or CHECKPOINT_BYTES pack bytes and on close. When opening the store, commit records after
+ * this position are replayed and a torn or uncommitted tail of the pack is discarded. A commit record holds a checksum
+ * of each chunk so that a commit whose chunk data didn't make it to disk is discarded as well.
+ *
+ * Uncommitted chunks are visible to all readers of the store.
+ *
+ * A Bloom filter of the indexed hashes (name.bloom) is consulted before any index lookup. It is rebuilt from the index
+ * when it is missing, out of sync with the index or full.
+ *
+ * Unreachable chunks are removed by copying the live chunks into a fresh pack, see {@link Compaction}.
+ *
+ * Lookups share a read lock; appending to the pack and updating the index take the write lock.
+ *
+ * Chunks that are read from the pack are kept in the process-wide {@link ChunkCache}.
+ */
 class SimpleChunkStoreEngine implements IChunkStoreEngine {
+    final static private int SPILL_SIZE = 4 * 1024 * 1024;
+    final static private int MIN_BLOOM_FILTER_CAPACITY = 64 * 1024;
+    // commits of at least this number of chunks into an empty index are bulk loaded
+    final static private int BULK_LOAD_THRESHOLD = 1024;
+    final static private String COMPACT_SUFFIX = ".compact";
+    final static private String SWAP_MARKER_SUFFIX = ".swap";
+    // number of pack bytes that are scanned in one go
+    final static private int COMPACTION_BATCH_SIZE = 4 * 1024 * 1024;
+    // the checkpoint is moved after this number of commits or pack bytes
+    final static private int CHECKPOINT_COMMITS = 64;
+    final static private long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Holds the read lock till it is closed.
+     */
     public class ChunkStoreIterator implements ChunkStore.IChunkStoreIterator {
         final private Iterator<BPlusTree.Entry<Long>> iterator;
+        private boolean closed = false;
 
-        ChunkStoreIterator(Iterator<BPlusTree.Entry<Long>> iterator) {
-            this.iterator = iterator;
-
-            lock();
-        }
-
-        public void unlock() {
-            SimpleChunkStoreEngine.this.unlock();
+        ChunkStoreIterator() throws IOException {
+            readLock();
+            try {
+                this.iterator = index.iterator();
+            } catch (IOException e) {
+                readUnlock();
+                throw e;
+            }
         }
 
         @Override
-        protected void finalize() throws Throwable {
-            unlock();
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            readUnlock();
         }
 
         @Override
@@ -69,7 +134,7 @@ class SimpleChunkStoreEngine implements IChunkStoreEngine {
             Long position = next.data;
             byte[] chunk;
             try {
-                chunk = packFile.get(position.intValue(), next.key);
+                chunk = packFile.get(position, next.key);
             } catch (IOException e) {
                 e.printStackTrace();
                 return null;
@@ -78,30 +143,639 @@ class SimpleChunkStoreEngine implements IChunkStoreEngine {
         }
     }
 
-    final private BPlusTree tree;
-    final private PackFile packFile;
-    final private Lock lock;
+    static class PendingChunk {
+        final HashValue hash;
+        // null once the chunk has been written to the pack
+        byte[] data;
+        long position = -1;
+        int checksum;
+
+        PendingChunk(HashValue hash) {
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Pack record that marks a transaction as committed. It is stored with a zero hash and the layout:
+     * [VERSION int][number of chunks int][[hash][position long][crc32 of the chunk data int]]...[crc32 int]
+     *
+     * Records of older stores have the layout [number of chunks int][[hash][position long]]...[crc32 int].
+     */
+    static class CommitRecord {
+        // negative so that it can't be confused with the number of chunks of an old record
+        final static private int VERSION = -2;
+
+        final List<HashValue> hashes = new ArrayList<>();
+        final List<Long> positions = new ArrayList<>();
+        // empty for old records
+        final List<Integer> checksums = new ArrayList<>();
+
+        static boolean isCommitRecord(byte[] hash) {
+            for (byte b : hash) {
+                if (b != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        static HashValue marker() {
+            return new HashValue(new byte[ChunkStore.hashSize()]);
+        }
+
+        static int checksum(byte[] data) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            return (int)crc.getValue();
+        }
+
+        void add(HashValue hash, long position, int checksum) {
+            hashes.add(hash);
+            positions.add(position);
+            checksums.add(checksum);
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(outputStream);
+            out.writeInt(VERSION);
+            out.writeInt(hashes.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                out.write(hashes.get(i).getBytes());
+                out.writeLong(positions.get(i));
+                out.writeInt(checksums.get(i));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(outputStream.toByteArray());
+            out.writeInt((int)crc.getValue());
+            return outputStream.toByteArray();
+        }
+
+        /**
+         * @return null if the record is corrupted
+         */
+        static CommitRecord read(IPackFile.Record record) throws IOException {
+            byte[] data;
+            try {
+                data = record.getData();
+            } catch (IOException e) {
+                return null;
+            }
+            return read(data);
+        }
+
+        static CommitRecord read(byte[] data) throws IOException {
+            if (data.length < 8)
+                return null;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int count = in.readInt();
+            boolean hasChecksums = count == VERSION;
+            int headerSize = 4;
+            int entrySize = ChunkStore.hashSize() + 8;
+            if (hasChecksums) {
+                if (data.length < 12)
+                    return null;
+                count = in.readInt();
+                headerSize += 4;
+                entrySize += 4;
+            }
+            if (count < 0 || data.length != headerSize + (long)count * entrySize + 4)
+                return null;
+            CommitRecord record = new CommitRecord();
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[ChunkStore.hashSize()];
+                in.readFully(hash);
+                record.hashes.add(new HashValue(hash));
+                record.positions.add(in.readLong());
+                if (hasChecksums)
+                    record.checksums.add(in.readInt());
+            }
+            if (in.readInt() != (int)crc.getValue())
+                return null;
+            return record;
+        }
+    }
+
+    class EngineTransaction implements ITransaction {
+        final private Map<HashValue, PendingChunk> chunks = new LinkedHashMap<>();
+        private long bufferedBytes = 0;
+
+        @Override
+        public PutResult<HashValue> put(byte[] data) throws IOException {
+            // make this configurable
+            HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
+            // chunks that are already stored only need the read lock
+            try {
+                readLock();
+                checkActive();
+                if (isStored(hash))
+                    return new PutResult<>(hash, true);
+            } finally {
+                readUnlock();
+            }
+            try {
+                lock();
+                checkActive();
+                if (isStored(hash))
+                    return new PutResult<>(hash, true);
+
+                // Share the entry of a chunk that is pending in another transaction so that it is only spilled
+                // once. A spilled chunk stays in the pack when the other transaction gets canceled.
+                PendingChunk chunk = findPending(hash);
+                if (chunk == null) {
+                    chunk = new PendingChunk(hash);
+                    chunk.data = data;
+                    chunk.checksum = CommitRecord.checksum(data);
+                }
+                chunks.put(hash, chunk);
+                if (chunk.data != null) {
+                    bufferedBytes += chunk.data.length;
+                    if (bufferedBytes > SPILL_SIZE)
+                        spill();
+                }
+                return new PutResult<>(hash, false);
+            } finally {
+                unlock();
+            }
+        }
+
+        private boolean isStored(HashValue hash) throws IOException {
+            if (chunks.containsKey(hash))
+                return true;
+            if (!isIndexed(hash.getBytes()))
+                return false;
+            // the chunk gets referenced again
+            if (compaction != null)
+                compaction.markLive(hash);
+            return true;
+        }
+
+        private void checkActive() throws IOException {
+            if (!activeTransactions.contains(this))
+                throw new IOException("Transaction is not active");
+        }
+
+        private void spill() throws IOException {
+            for (PendingChunk chunk : chunks.values()) {
+                if (chunk.position >= 0)
+                    continue;
+                chunk.position = append(chunk.hash, chunk.data);
+                chunk.data = null;
+            }
+            bufferedBytes = 0;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            long commitPosition;
+            long commitEnd;
+            try {
+                lock();
+                checkActive();
+                if (chunks.size() == 0) {
+                    activeTransactions.remove(this);
+                    return;
+                }
+                spill();
+                CommitRecord commitRecord = new CommitRecord();
+                for (PendingChunk chunk : chunks.values())
+                    commitRecord.add(chunk.hash, chunk.position, chunk.checksum);
+                commitPosition = append(CommitRecord.marker(), commitRecord.toBytes());
+                commitEnd = appendedPosition;
+                unappliedCommits.add(commitPosition);
+            } finally {
+                unlock();
+            }
+
+            // sync outside the lock so that other transactions can append their commit records meanwhile
+            try {
+                groupSync(commitEnd);
+            } catch (IOException e) {
+                try {
+                    lock();
+                    unappliedCommits.remove(commitPosition);
+                    unappliedCommitsChanged.signalAll();
+                } finally {
+                    unlock();
+                }
+                throw e;
+            }
+
+            try {
+                lock();
+                boolean bulkLoad = index.size() == 0 && chunks.size() >= BULK_LOAD_THRESHOLD && compaction == null;
+                index.beginBatch();
+                try {
+                    if (bulkLoad) {
+                        IChunkIndex.ILoader loader = index.createLoader(dir);
+                        for (PendingChunk chunk : chunks.values())
+                            loader.add(chunk.hash.getBytes(), chunk.position);
+                        loader.finish();
+                    } else {
+                        for (PendingChunk chunk : chunks.values())
+                            addToIndex(chunk.hash, chunk.position);
+                    }
+                } finally {
+                    index.commitBatch();
+                }
+                if (bulkLoad)
+                    rebuildBloomFilter();
+                else
+                    growBloomFilter();
+                activeTransactions.remove(this);
+                chunks.clear();
+                unappliedCommits.remove(commitPosition);
+                unappliedCommitsChanged.signalAll();
+                commitsSinceCheckpoint++;
+                if (commitsSinceCheckpoint >= CHECKPOINT_COMMITS
+                        || appendedPosition - checkpointPosition >= CHECKPOINT_BYTES)
+                    writeCheckpoint();
+            } finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            try {
+                lock();
+                // spilled chunks stay in the pack but are never referenced
+                activeTransactions.remove(this);
+                chunks.clear();
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Copies the live chunks into a fresh pack, index and Bloom filter (name.compact.*) and swaps them in at the end.
+     *
+     * The old pack is scanned in batches under the read lock; writing the new files happens outside the lock. Only
+     * the last batch and the swap take the write lock. Chunks that are appended
+     * after the garbage collection started and chunks that are deduplicated or accessed meanwhile are kept.
+     *
+     * Before the files are swapped the marker file name.swap is created. When opening a store with such a marker the
+     * interrupted swap is completed.
+     */
+    class Compaction implements IGarbageCollection {
+        final private Set<HashValue> liveChunks = Collections.synchronizedSet(new HashSet<HashValue>());
+        // chunks at or after this position are kept
+        final private long keepFrom;
+        // chunks that have been indexed after the scan passed their position
+        final private List<PendingChunk> missedChunks = new ArrayList<>();
+        final private String tempName;
+        private long scanPosition;
+        private boolean scanReachedEnd = false;
+        private IPackFile newPackFile;
+        private IChunkIndex newIndex;
+        private BloomFilter newBloomFilter;
+        private long droppedChunks = 0;
+
+        Compaction() {
+            this.keepFrom = appendedPosition;
+            this.scanPosition = packFile.getStart();
+            this.tempName = name + COMPACT_SUFFIX;
+        }
+
+        @Override
+        public void markLive(HashValue hash) {
+            liveChunks.add(hash);
+        }
+
+        void onIndexed(HashValue hash, long position) {
+            if (position >= scanPosition)
+                return;
+            PendingChunk chunk = new PendingChunk(hash);
+            chunk.position = position;
+            missedChunks.add(chunk);
+        }
+
+        private void createFiles() throws IOException {
+            newPackFile = createPackFile(tempName);
+            newPackFile.create(ChunkStore.hashSize());
+            newIndex = createIndex(tempName);
+            newIndex.create();
+            newBloomFilter = new BloomFilter(new File(dir, tempName + ".bloom"));
+            newBloomFilter.create(Math.max(MIN_BLOOM_FILTER_CAPACITY, 2 * index.size()));
+        }
+
+        private void closeFiles() throws IOException {
+            newPackFile.close();
+            newIndex.close();
+            newBloomFilter.close();
+        }
+
+        /**
+         * Reads the next batch of live chunks from the old pack. Must be called with the read or write lock held.
+         */
+        private List<PendingChunk> readBatch() throws IOException {
+            List<PendingChunk> batch = new ArrayList<>();
+            for (PendingChunk chunk : missedChunks) {
+                chunk.data = packFile.get(chunk.position, chunk.hash.getBytes());
+                batch.add(chunk);
+            }
+            missedChunks.clear();
+
+            long scanned = 0;
+            scanReachedEnd = false;
+            while (scanned < COMPACTION_BATCH_SIZE) {
+                IPackFile.Record record = packFile.read(scanPosition);
+                if (record == null) {
+                    scanReachedEnd = true;
+                    break;
+                }
+                scanPosition = record.next;
+                scanned += record.payload.length;
+                if (CommitRecord.isCommitRecord(record.hash))
+                    continue;
+                // skip uncommitted or duplicated chunks
+                Long position = index.get(record.hash);
+                if (position == null || position != record.position)
+                    continue;
+                HashValue hash = new HashValue(record.hash);
+                if (record.position < keepFrom && !liveChunks.contains(hash)) {
+                    droppedChunks++;
+                    continue;
+                }
+                PendingChunk chunk = new PendingChunk(hash);
+                chunk.data = record.getData();
+                batch.add(chunk);
+            }
+            return batch;
+        }
+
+        private void writeBatch(List<PendingChunk> batch) throws IOException {
+            if (batch.size() == 0)
+                return;
+            CommitRecord commitRecord = new CommitRecord();
+            newIndex.beginBatch();
+            try {
+                for (PendingChunk chunk : batch) {
+                    chunk.position = newPackFile.put(chunk.hash, chunk.data);
+                    commitRecord.add(chunk.hash, chunk.position, CommitRecord.checksum(chunk.data));
+                    chunk.data = null;
+                    if (newIndex.put(chunk.hash, chunk.position))
+                        newBloomFilter.add(chunk.hash.getBytes());
+                }
+            } finally {
+                newIndex.commitBatch();
+            }
+            newPackFile.put(CommitRecord.marker(), commitRecord.toBytes());
+        }
+
+        @Override
+        public long sweep() throws IOException {
+            boolean swapped = false;
+            try {
+                try {
+                    lock();
+                    checkCompaction();
+                    createFiles();
+                } finally {
+                    unlock();
+                }
+                while (true) {
+                    List<PendingChunk> batch;
+                    try {
+                        readLock();
+                        batch = readBatch();
+                    } finally {
+                        readUnlock();
+                    }
+                    if (scanReachedEnd) {
+                        try {
+                            lock();
+                            // commit records that are not in the index yet refer to positions in the old pack
+                            if (unappliedCommits.isEmpty()) {
+                                batch.addAll(readBatch());
+                                writeBatch(batch);
+                                swap();
+                                swapped = true;
+                                return droppedChunks;
+                            }
+                            // write the current batch once the next commit has been applied
+                            unappliedCommitsChanged.await();
+                            checkCompaction();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        } finally {
+                            unlock();
+                        }
+                    }
+                    writeBatch(batch);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!swapped) {
+                    try {
+                        cancel();
+                    } catch (IOException cancelException) {
+                        e.addSuppressed(cancelException);
+                    }
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Replaces the old pack. Must be called with the lock held.
+         */
+        private void swap() throws IOException {
+            // chunks of active transactions that have been spilled to the old pack
+            Map<Long, Long> relocations = new HashMap<>();
+            for (EngineTransaction transaction : activeTransactions) {
+                for (PendingChunk chunk : transaction.chunks.values()) {
+                    if (chunk.position < 0 || relocations.containsKey(chunk.position))
+                        continue;
+                    byte[] data = packFile.get(chunk.position, chunk.hash.getBytes());
+                    relocations.put(chunk.position, newPackFile.put(chunk.hash, data));
+                }
+            }
+            newPackFile.sync();
+            closeFiles();
+
+            packFile.close();
+            index.close();
+            bloomFilter.close();
+            File marker = getSwapMarker();
+            if (!marker.createNewFile() && !marker.exists())
+                throw new IOException("Failed to create " + marker.getPath());
+            installCompactedFiles();
+            reopenAfterSwap();
+
+            // pending chunks may be shared between transactions; relocate each of them only once
+            Set<PendingChunk> relocated = Collections.newSetFromMap(new IdentityHashMap<PendingChunk, Boolean>());
+            for (EngineTransaction transaction : activeTransactions) {
+                for (PendingChunk chunk : transaction.chunks.values()) {
+                    if (chunk.position >= 0 && relocated.add(chunk))
+                        chunk.position = relocations.get(chunk.position);
+                }
+            }
+            compaction = null;
+        }
+
+        private void checkCompaction() throws IOException {
+            if (compaction != this)
+                throw new IOException("Garbage collection is not running");
+        }
+
+        @Override
+        public void cancel() throws IOException {
+            try {
+                lock();
+                if (compaction != this)
+                    return;
+                compaction = null;
+                // wake up a sweep that waits for commits
+                unappliedCommitsChanged.signalAll();
+                if (newPackFile != null)
+                    closeFiles();
+            } finally {
+                deleteCompactionFiles();
+                unlock();
+            }
+        }
+    }
+
+    final private File dir;
+    final private String name;
+    private IChunkIndex index;
+    private IPackFile packFile;
+    final private RandomAccessFile checkpointFile;
+    final private BloomFilter bloomFilter;
+    final private ReadWriteLock lock;
+    final private ChunkCache chunkCache = ChunkCache.getInstance();
+    private boolean isOpen = false;
+    final private List<EngineTransaction> activeTransactions = new ArrayList<>();
+    // positions of commit records that are not in the index yet
+    final private SortedSet<Long> unappliedCommits = new TreeSet<>();
+    // end of the pack after the last append
+    private volatile long appendedPosition;
+    private long checkpointPosition;
+    private int commitsSinceCheckpoint = 0;
+
+    // group commit
+    final private Object syncMonitor = new Object();
+    private boolean syncRunning = false;
+    private long syncedPosition = 0;
+
+    // running garbage collection or null
+    private Compaction compaction;
+    // signaled when a commit has been applied to the index or has failed
+    final private Condition unappliedCommitsChanged;
 
     public SimpleChunkStoreEngine(File dir, String name) throws FileNotFoundException {
-        this.tree = new BPlusTree(new RandomAccessFile(new File(dir, name +".idx"), "rw"));
-        this.packFile = new PackFile(new RandomAccessFile(new File(dir, name + ".pack"), "rw"));
-        this.lock = LockBucket.getInstance().getLock(new File(dir, name).getPath());
+        this(dir, name, new PackFile(new RandomAccessFile(PackFile.getFile(dir, name), "rw")),
+                new BPlusTreeChunkIndex(BPlusTreeChunkIndex.getFile(dir, name)));
     }
 
+    protected SimpleChunkStoreEngine(File dir, String name, IPackFile packFile, IChunkIndex index)
+            throws FileNotFoundException {
+        this.dir = dir;
+        this.name = name;
+        this.index = index;
+        this.packFile = packFile;
+        this.checkpointFile = new RandomAccessFile(new File(dir, name + ".ckp"), "rw");
+        this.bloomFilter = new BloomFilter(new File(dir, name + ".bloom"));
+        this.lock = LockBucket.getInstance().getReadWriteLock(new File(dir, name).getPath());
+        this.unappliedCommitsChanged = lock.writeLock().newCondition();
+    }
+
+    // exclusive lock for modifications
     private void lock() {
-        lock.lock();
+        lock.writeLock().lock();
     }
 
     private void unlock() {
-        lock.unlock();
+        lock.writeLock().unlock();
+    }
+
+    private void readLock() {
+        lock.readLock().lock();
+    }
+
+    private void readUnlock() {
+        lock.readLock().unlock();
+    }
+
+    protected IPackFile createPackFile(String name) throws FileNotFoundException {
+        return new PackFile(new RandomAccessFile(PackFile.getFile(dir, name), "rw"));
+    }
+
+    protected void replacePackFile(String from, String to) throws IOException {
+        PackFile.replace(dir, from, to);
+    }
+
+    protected void deletePackFile(String name) {
+        PackFile.delete(dir, name);
+    }
+
+    protected File getIndexFile(String name) {
+        return BPlusTreeChunkIndex.getFile(dir, name);
+    }
+
+    protected IChunkIndex createIndex(String name) throws FileNotFoundException {
+        return new BPlusTreeChunkIndex(getIndexFile(name));
+    }
+
+    private File getSwapMarker() {
+        return new File(dir, name + SWAP_MARKER_SUFFIX);
+    }
+
+    static private void moveFile(File from, File to) throws IOException {
+        if (!from.exists())
+            return;
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Moves the compacted files in place. Can be called again to complete an interrupted swap.
+     */
+    private void installCompactedFiles() throws IOException {
+        String tempName = name + COMPACT_SUFFIX;
+        replacePackFile(tempName, name);
+        moveFile(getIndexFile(tempName), getIndexFile(name));
+        moveFile(new File(dir, tempName + ".bloom"), new File(dir, name + ".bloom"));
+    }
+
+    private void reopenAfterSwap() throws IOException {
+        packFile = createPackFile(name);
+        packFile.open();
+        index = createIndex(name);
+        index.open();
+        if (!bloomFilter.open() || bloomFilter.getEntryCount() != index.size())
+            rebuildBloomFilter();
+        appendedPosition = packFile.getEnd();
+        resetSyncedPosition();
+        writeCheckpoint(appendedPosition);
+        if (!getSwapMarker().delete())
+            throw new IOException("Failed to delete " + getSwapMarker().getPath());
+    }
+
+    private void deleteCompactionFiles() {
+        // the files are needed to complete the swap
+        if (getSwapMarker().exists())
+            return;
+        String tempName = name + COMPACT_SUFFIX;
+        deletePackFile(tempName);
+        getIndexFile(tempName).delete();
+        new File(dir, tempName + ".bloom").delete();
     }
 
     @Override
     public void create(File dir, String name) throws IOException {
         try {
             lock();
-            tree.create(ChunkStore.hashSize(), 1024);
+            activeTransactions.clear();
+            unappliedCommits.clear();
+            index.create();
             packFile.create(ChunkStore.hashSize());
+            bloomFilter.create(MIN_BLOOM_FILTER_CAPACITY);
+            appendedPosition = packFile.getEnd();
+            resetSyncedPosition();
+            writeCheckpoint();
+            isOpen = true;
         } finally {
             unlock();
         }
@@ -111,90 +785,450 @@ class SimpleChunkStoreEngine implements IChunkStoreEngine {
     public void open(File dir, String name) throws IOException {
         try {
             lock();
-            tree.open();
+            if (isOpen)
+                return;
+            if (getSwapMarker().exists()) {
+                // complete an interrupted garbage collection
+                packFile.close();
+                index.close();
+                installCompactedFiles();
+                reopenAfterSwap();
+            } else
+                deleteCompactionFiles();
             packFile.open();
+            bloomFilter.open();
+            if (index.getFile().length() == 0) {
+                rebuildIndex();
+            } else {
+                index.open();
+                if (index.isConsistent())
+                    recover();
+                else
+                    rebuildIndex();
+            }
+            if (!bloomFilter.isOpen() || bloomFilter.getEntryCount() != index.size())
+                rebuildBloomFilter();
+            appendedPosition = packFile.getEnd();
+            resetSyncedPosition();
+            isOpen = true;
         } finally {
             unlock();
         }
     }
 
-    @Override
-    public long size() {
+    /**
+     * Replays the commit records after the checkpoint and discards the tail of the pack that is not covered by a
+     * commit record.
+     */
+    private void recover() throws IOException {
+        long end = packFile.getEnd();
+        long checkpoint = readCheckpoint();
+        if (checkpoint < 0) {
+            // store without checkpoint; the index is complete
+            writeCheckpoint(end);
+            return;
+        }
+        long position = Math.min(checkpoint, end);
+        long validEnd = position;
+        index.beginBatch();
+        try {
+            while (true) {
+                IPackFile.Record record = packFile.read(position);
+                if (record == null)
+                    break;
+                position = record.next;
+                if (!CommitRecord.isCommitRecord(record.hash))
+                    continue;
+                CommitRecord commitRecord = CommitRecord.read(record);
+                if (commitRecord == null || !isComplete(commitRecord))
+                    break;
+                for (int i = 0; i < commitRecord.hashes.size(); i++)
+                    addToIndex(commitRecord.hashes.get(i), commitRecord.positions.get(i));
+                validEnd = record.next;
+            }
+        } finally {
+            index.commitBatch();
+        }
+        if (validEnd != end)
+            packFile.truncate(validEnd);
+        writeCheckpoint(validEnd);
+    }
+
+    private void addToIndex(HashValue hash, long position) throws IOException {
+        if (!index.put(hash, position))
+            return;
+        if (bloomFilter.isOpen())
+            bloomFilter.add(hash.getBytes());
+        if (compaction != null)
+            compaction.onIndexed(hash, position);
+    }
+
+    private boolean isIndexed(byte[] hash) throws IOException {
+        if (bloomFilter.isOpen() && !bloomFilter.mightContain(hash))
+            return false;
+        return index.get(hash) != null;
+    }
+
+    private void growBloomFilter() throws IOException {
+        if (bloomFilter.getEntryCount() > bloomFilter.getCapacity())
+            rebuildBloomFilter();
+    }
+
+    /**
+     * Recreates the Bloom filter from all hashes in the index.
+     */
+    public void rebuildBloomFilter() throws IOException {
+        try {
+            lock();
+            bloomFilter.create(Math.max(MIN_BLOOM_FILTER_CAPACITY, 2 * index.size()));
+            Iterator<BPlusTree.Entry<Long>> iterator = index.iterator();
+            while (iterator.hasNext())
+                bloomFilter.add(iterator.next().key);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Recreates the index from the pack.
+     *
+     * All chunks that are listed in commit records are indexed. Chunks in front of the first commit record have been
+     * written before commit records were introduced and are indexed as well.
+     */
+    void rebuildIndex() throws IOException {
         try {
             lock();
-            return tree.size();
+            // commit records before the checkpoint have been synced together with their chunks
+            long checkpoint = readCheckpoint();
+            index.create();
+            IChunkIndex.ILoader loader = index.createLoader(dir);
+            boolean hasCommitRecords = false;
+            long position = packFile.getStart();
+            long validEnd = position;
+            while (true) {
+                IPackFile.Record record = packFile.read(position);
+                if (record == null)
+                    break;
+                position = record.next;
+                if (!CommitRecord.isCommitRecord(record.hash)) {
+                    if (!hasCommitRecords) {
+                        loader.add(record.hash, record.position);
+                        validEnd = record.next;
+                    }
+                    continue;
+                }
+                CommitRecord commitRecord = CommitRecord.read(record);
+                if (commitRecord == null || (record.position >= checkpoint && !isComplete(commitRecord)))
+                    break;
+                hasCommitRecords = true;
+                for (int i = 0; i < commitRecord.hashes.size(); i++)
+                    loader.add(commitRecord.hashes.get(i).getBytes(), commitRecord.positions.get(i));
+                validEnd = record.next;
+            }
+            loader.finish();
+            if (validEnd != packFile.getEnd())
+                packFile.truncate(validEnd);
+            writeCheckpoint(validEnd);
+            rebuildBloomFilter();
         } finally {
             unlock();
         }
     }
 
+    /**
+     * @return false if the data of a chunk of the commit didn't make it into the pack, e.g. because of a crash while
+     * syncing the pack
+     */
+    private boolean isComplete(CommitRecord commitRecord) {
+        for (int i = 0; i < commitRecord.checksums.size(); i++) {
+            try {
+                byte[] data = packFile.get(commitRecord.positions.get(i), commitRecord.hashes.get(i).getBytes());
+                if (CommitRecord.checksum(data) != commitRecord.checksums.get(i))
+                    return false;
+            } catch (IOException | RuntimeException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the checkpoint position or -1 if the store has no checkpoint
+     */
+    private long readCheckpoint() throws IOException {
+        if (checkpointFile.length() < 8)
+            return -1;
+        checkpointFile.seek(0);
+        return checkpointFile.readLong();
+    }
+
+    private void writeCheckpoint() throws IOException {
+        writeCheckpoint(unappliedCommits.isEmpty() ? appendedPosition : unappliedCommits.first());
+    }
+
+    /**
+     * Moves the checkpoint. The commits before the position are not replayed anymore, i.e. the index has to be on disk
+     * before the checkpoint is.
+     */
+    private void writeCheckpoint(long position) throws IOException {
+        index.sync();
+        checkpointFile.seek(0);
+        checkpointFile.writeLong(position);
+        checkpointFile.getChannel().force(false);
+        checkpointPosition = position;
+        commitsSinceCheckpoint = 0;
+    }
+
+    private long append(HashValue hash, byte[] data) throws IOException {
+        long position = packFile.put(hash, data);
+        appendedPosition = packFile.getEnd();
+        return position;
+    }
+
+    private void resetSyncedPosition() {
+        synchronized (syncMonitor) {
+            syncedPosition = appendedPosition;
+        }
+    }
+
+    /**
+     * Makes sure that the pack is synced up to the given position. If another thread is syncing already wait for it;
+     * its sync might cover our position as well.
+     */
+    private void groupSync(long position) throws IOException {
+        synchronized (syncMonitor) {
+            while (syncRunning && syncedPosition < position) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (syncedPosition >= position)
+                return;
+            syncRunning = true;
+        }
+
+        // everything appended till now is covered by this sync
+        long target = appendedPosition;
+        boolean synced = false;
+        try {
+            packFile.sync();
+            synced = true;
+        } finally {
+            synchronized (syncMonitor) {
+                syncRunning = false;
+                if (synced)
+                    syncedPosition = Math.max(syncedPosition, target);
+                syncMonitor.notifyAll();
+            }
+        }
+    }
+
+    private PendingChunk findPending(HashValue hash) {
+        for (EngineTransaction transaction : activeTransactions) {
+            PendingChunk chunk = transaction.chunks.get(hash);
+            if (chunk != null)
+                return chunk;
+        }
+        return null;
+    }
+
+    @Override
+    public long size() {
+        try {
+            readLock();
+            return index.size();
+        } finally {
+            readUnlock();
+        }
+    }
+
     @Override
     public ChunkStore.IChunkStoreIterator iterator() throws IOException {
-        return new ChunkStoreIterator(tree.iterator());
+        return new ChunkStoreIterator();
     }
 
     @Override
     public byte[] getChunk(byte[] hash) throws IOException {
         try {
-            lock();
-            Long position = tree.get(hash);
+            readLock();
+            if (activeTransactions.size() > 0) {
+                PendingChunk chunk = findPending(new HashValue(hash));
+                if (chunk != null)
+                    return chunk.data != null ? chunk.data : packFile.get(chunk.position, hash);
+            }
+            if (bloomFilter.isOpen() && !bloomFilter.mightContain(hash))
+                return null;
+            Long position = index.get(hash);
             if (position == null)
                 return null;
-            return packFile.get(position.intValue(), hash);
+            HashValue hashValue = new HashValue(hash);
+            if (compaction != null)
+                compaction.markLive(hashValue);
+            // the cache may contain chunks of other stores, only use it for chunks that are in our index
+            byte[] data = chunkCache.get(hashValue);
+            if (data != null)
+                return data;
+            data = packFile.get(position, hash);
+            chunkCache.put(hashValue, data);
+            return data;
+        } finally {
+            readUnlock();
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] hash) throws IOException {
+        try {
+            readLock();
+            if (activeTransactions.size() > 0 && findPending(new HashValue(hash)) != null)
+                return true;
+            if (!isIndexed(hash))
+                return false;
+            if (compaction != null)
+                compaction.markLive(new HashValue(hash));
+            return true;
+        } finally {
+            readUnlock();
+        }
+    }
+
+    @Override
+    public ITransaction startNewTransaction() {
+        try {
+            lock();
+            EngineTransaction transaction = new EngineTransaction();
+            activeTransactions.add(transaction);
+            return transaction;
         } finally {
             unlock();
         }
     }
 
     @Override
-    public PutResult<HashValue> put(byte[] data) throws IOException {
+    public IGarbageCollection startGarbageCollection() throws IOException {
         try {
             lock();
-            // make this configurable
-            HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
-            // TODO make it more efficient by only using one lookup
-            if (tree.get(hash.getBytes()) != null)
-                return new PutResult<>(hash, true);
-            long position = packFile.put(hash, data);
-            boolean wasInDatabase = !tree.put(hash, position);
-            PutResult<HashValue> putResult = new PutResult<>(hash, wasInDatabase);
-            return putResult;
+            if (compaction != null)
+                throw new IOException("Garbage collection is already running");
+            compaction = new Compaction();
+            return compaction;
         } finally {
             unlock();
         }
     }
 
     @Override
-    public boolean contains(byte[] hash) throws IOException {
+    public void close() throws IOException {
         try {
             lock();
-            return tree.get(hash) != null;
+            try {
+                if (compaction != null)
+                    compaction.cancel();
+                // nothing has to be replayed when the store is opened again
+                if (isOpen)
+                    writeCheckpoint();
+            } finally {
+                isOpen = false;
+                activeTransactions.clear();
+                index.close();
+                packFile.close();
+                checkpointFile.close();
+                bloomFilter.close();
+            }
         } finally {
             unlock();
         }
     }
+}
+
+/**
+ * Engine that keeps the chunks in memory-mapped pack segments, see {@link MappedPackFile}.
+ */
+class MappedChunkStoreEngine extends SimpleChunkStoreEngine {
+    final private File dir;
+
+    public MappedChunkStoreEngine(File dir, String name) throws FileNotFoundException {
+        super(dir, name, new MappedPackFile(dir, name), new BPlusTreeChunkIndex(BPlusTreeChunkIndex.getFile(dir, name)));
+        this.dir = dir;
+    }
 
-    /**
-     * TODO: make the transaction actually do something, i.e. make a transaction atomic
-     */
     @Override
-    public void startNewTransaction() {
+    protected IPackFile createPackFile(String name) {
+        return new MappedPackFile(dir, name);
+    }
 
+    @Override
+    protected void replacePackFile(String from, String to) throws IOException {
+        MappedPackFile.replace(dir, from, to);
     }
 
     @Override
-    public void commit() throws IOException {
+    protected void deletePackFile(String name) {
+        MappedPackFile.delete(dir, name);
+    }
+}
+
+/**
+ * Engine that indexes the chunks with an extensible hash instead of a B+tree, see {@link ExtensibleHashChunkIndex}.
+ */
+class HashIndexChunkStoreEngine extends SimpleChunkStoreEngine {
+    final private File dir;
 
+    public HashIndexChunkStoreEngine(File dir, String name) throws FileNotFoundException {
+        super(dir, name, new PackFile(new RandomAccessFile(PackFile.getFile(dir, name), "rw")),
+                new ExtensibleHashChunkIndex(ExtensibleHashChunkIndex.getFile(dir, name)));
+        this.dir = dir;
     }
 
     @Override
-    public void cancel() {
+    protected File getIndexFile(String name) {
+        return ExtensibleHashChunkIndex.getFile(dir, name);
+    }
 
+    @Override
+    protected IChunkIndex createIndex(String name) throws FileNotFoundException {
+        return new ExtensibleHashChunkIndex(getIndexFile(name));
     }
 }
 
 public class ChunkStore {
+    public enum EngineType {
+        // name.idx + name.pack accessed through a RandomAccessFile
+        PACK_FILE,
+        // name.idx + memory-mapped name.pack.0, name.pack.1, ... segments
+        MAPPED_PACK_FILE,
+        // name.hidx + name.pack; extensible hash index for faster point lookups
+        HASH_INDEX
+    }
+
     public class Transaction {
+        // started lazily and after each commit or cancel
+        private IChunkStoreEngine.ITransaction engineTransaction;
+
+        private IChunkStoreEngine.ITransaction getEngineTransaction() {
+            synchronized (ChunkStore.this) {
+                if (engineTransaction == null)
+                    engineTransaction = db.startNewTransaction();
+                return engineTransaction;
+            }
+        }
+
+        private IChunkStoreEngine.ITransaction finish() {
+            synchronized (ChunkStore.this) {
+                IChunkStoreEngine.ITransaction transaction = engineTransaction;
+                engineTransaction = null;
+                if (currentTransaction == this)
+                    currentTransaction = null;
+                return transaction;
+            }
+        }
+
+        public ChunkStore getChunkStore() {
+            return ChunkStore.this;
+        }
+
         public long size() {
             return ChunkStore.this.size();
         }
@@ -207,8 +1241,12 @@ public class ChunkStore {
             return ChunkStore.this.getChunk(hash);
         }
 
+        /**
+         * The chunk is visible to all readers of the store but only becomes persistent when the transaction is
+         * committed. The data must not be modified after the call.
+         */
         public PutResult<HashValue> put(byte[] data) throws IOException {
-            return ChunkStore.this.put(data);
+            return getEngineTransaction().put(data);
         }
 
         public boolean contains(HashValue hash) throws IOException {
@@ -216,18 +1254,23 @@ public class ChunkStore {
         }
 
         public void commit() throws IOException {
-            ChunkStore.this.commit();
+            IChunkStoreEngine.ITransaction transaction = finish();
+            if (transaction != null)
+                transaction.commit();
         }
 
         public void cancel() {
-            ChunkStore.this.cancel();
+            IChunkStoreEngine.ITransaction transaction = finish();
+            if (transaction != null)
+                transaction.cancel();
         }
     }
 
     static class DatabaseBucket {
         private Map<String, WeakReference<IChunkStoreEngine>> map = new HashMap<>();
 
-        synchronized public IChunkStoreEngine getDB(File dir, String name) throws FileNotFoundException {
+        synchronized public IChunkStoreEngine getDB(File dir, String name, EngineType type)
+                throws FileNotFoundException {
             String id = new File(dir, name).getPath();
             WeakReference<IChunkStoreEngine> weakObject = map.get(id);
             if (weakObject != null) {
@@ -237,32 +1280,77 @@ public class ChunkStore {
             }
 
             // create new db
-            IChunkStoreEngine engine = new SimpleChunkStoreEngine(dir, name);
+            IChunkStoreEngine engine;
+            switch (type) {
+                case MAPPED_PACK_FILE:
+                    engine = new MappedChunkStoreEngine(dir, name);
+                    break;
+                case HASH_INDEX:
+                    engine = new HashIndexChunkStoreEngine(dir, name);
+                    break;
+                default:
+                    engine = new SimpleChunkStoreEngine(dir, name);
+            }
             map.put(id, new WeakReference<>(engine));
             return engine;
         }
+
+        synchronized public void close(File dir, String name) throws IOException {
+            WeakReference<IChunkStoreEngine> weakObject = map.remove(new File(dir, name).getPath());
+            if (weakObject == null)
+                return;
+            IChunkStoreEngine db = weakObject.get();
+            if (db != null)
+                db.close();
+        }
     }
 
     final static protected DatabaseBucket databaseBucket = new DatabaseBucket();
     final private IChunkStoreEngine db;
     private Transaction currentTransaction;
 
-    protected ChunkStore(File dir, String name) throws FileNotFoundException {
-        this.db = databaseBucket.getDB(dir, name);
+    protected ChunkStore(File dir, String name, EngineType type) throws FileNotFoundException {
+        this.db = databaseBucket.getDB(dir, name, type);
     }
 
     static public ChunkStore create(File dir, String name) throws IOException {
-        ChunkStore chunkStore = new ChunkStore(dir, name);
+        return create(dir, name, EngineType.PACK_FILE);
+    }
+
+    static public ChunkStore create(File dir, String name, EngineType type) throws IOException {
+        ChunkStore chunkStore = new ChunkStore(dir, name, type);
         chunkStore.db.create(dir, name);
         return chunkStore;
     }
 
+    /**
+     * Opens an existing store and detects the engine from the files on disk.
+     */
     static public ChunkStore open(File dir, String name) throws IOException {
-        ChunkStore chunkStore = new ChunkStore(dir, name);
+        return open(dir, name, getEngineType(dir, name));
+    }
+
+    static public ChunkStore open(File dir, String name, EngineType type) throws IOException {
+        ChunkStore chunkStore = new ChunkStore(dir, name, type);
         chunkStore.db.open(dir, name);
         return chunkStore;
     }
 
+    static public EngineType getEngineType(File dir, String name) {
+        if (MappedPackFile.exists(dir, name))
+            return EngineType.MAPPED_PACK_FILE;
+        if (ExtensibleHashChunkIndex.getFile(dir, name).exists())
+            return EngineType.HASH_INDEX;
+        return EngineType.PACK_FILE;
+    }
+
+    /**
+     * Closes the underlying files of a store. All ChunkStore instances of this store become invalid.
+     */
+    static public void close(File dir, String name) throws IOException {
+        databaseBucket.close(dir, name);
+    }
+
     static public boolean exists(File dir, String name) {
         File[] children = dir.listFiles();
         if (children == null)
@@ -298,8 +1386,13 @@ public class ChunkStore {
         }
     }
 
-    public interface IChunkStoreIterator extends Iterator<Entry> {
-        void unlock();
+    /**
+     * The iterator holds a read lock on the store till it is closed. It must be closed by the thread that created it
+     * and this thread must not write to the store meanwhile.
+     */
+    public interface IChunkStoreIterator extends Iterator<Entry>, Closeable {
+        @Override
+        void close();
     }
 
     public IChunkStoreIterator iterator() throws IOException {
@@ -310,35 +1403,23 @@ public class ChunkStore {
         return db.contains(hashValue.getBytes());
     }
 
+    /**
+     * @see ChunkStoreGarbageCollector
+     */
+    IChunkStoreEngine.IGarbageCollection startGarbageCollection() throws IOException {
+        return db.startGarbageCollection();
+    }
+
     // TODO rename to getCurrentTransaction?
     public Transaction openTransaction() throws IOException {
         synchronized (this) {
             if (currentTransaction != null)
                 return currentTransaction;
             currentTransaction = new Transaction();
-            db.startNewTransaction();
             return currentTransaction;
         }
     }
 
-    private void commit() throws IOException {
-        synchronized (this) {
-            db.commit();
-            currentTransaction = null;
-        }
-    }
-
-    private void cancel() {
-        synchronized (this) {
-            db.cancel();
-            currentTransaction = null;
-        }
-    }
-
-    private PutResult<HashValue> put(byte[] data) throws IOException {
-        return db.put(data);
-    }
-
     static public int hashSize() {
         return 32;
     }
@@ -14,7 +14,16 @@ import java.util.concurrent.locks.Lock;
 
 
 /**
- * TODO fix concurrency and maybe integrate it more tight into the chunk store.
+ * Append only log of the tips of a branch.
+ *
+ * The entries are stored in a binary log file. An index file next to it holds a fixed size slot per entry (revision,
+ * offset and length of the entry in the log file), so that the latest entry and the entry of a revision are found
+ * without reading the log. Opening the log and reading the latest entry takes constant time. Entries are appended
+ * through files that are kept open till the log is closed.
+ *
+ * Logs in the text format of older versions are converted when they are opened.
+ *
+ * TODO maybe integrate it more tight into the chunk store.
  */
 public class ChunkStoreBranchLog {
     static public class Entry {
@@ -63,7 +72,7 @@ public class ChunkStoreBranchLog {
             return "" + rev + " " + id.toHex() + " " + message;
         }
 
-        static private Entry read(BufferedReader reader) throws IOException {
+        static private Entry readText(BufferedReader reader) throws IOException {
             String header = reader.readLine();
             if (header == null || header.length() == 0)
                 return null;
@@ -79,24 +88,100 @@ public class ChunkStoreBranchLog {
             return entry;
         }
 
+        static private Entry read(ByteArrayInputStream inputStream) throws IOException {
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            Entry entry = new Entry();
+            entry.rev = dataInputStream.readInt();
+            entry.id = readHash(dataInputStream);
+            entry.message = new String(readBytes(dataInputStream), "UTF-8");
+            int nChanges = (int)VarInt.read(dataInputStream);
+            for (int i = 0; i < nChanges; i++)
+                entry.changes.add(readHash(dataInputStream));
+            return entry;
+        }
+
         public void write(OutputStream outputStream) throws IOException {
-            outputStream.write((getHeader() + "\n").getBytes());
-            outputStream.write(("" + changes.size() + "\n").getBytes());
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeInt(rev);
+            writeBytes(dataOutputStream, id.getBytes());
+            writeBytes(dataOutputStream, message.getBytes("UTF-8"));
+            VarInt.write(dataOutputStream, changes.size());
             for (HashValue change : changes)
-                outputStream.write((change.toHex() + "\n").getBytes());
+                writeBytes(dataOutputStream, change.getBytes());
+            dataOutputStream.flush();
+        }
+
+        static private HashValue readHash(DataInputStream inputStream) throws IOException {
+            return new HashValue(readBytes(inputStream));
+        }
+
+        static private byte[] readBytes(DataInputStream inputStream) throws IOException {
+            long length = VarInt.read(inputStream);
+            // the stream is an in memory record, don't trust the length of a damaged record
+            if (length > inputStream.available())
+                throw new EOFException("Incomplete log entry");
+            byte[] bytes = new byte[(int)length];
+            inputStream.readFully(bytes);
+            return bytes;
+        }
+
+        static private void writeBytes(DataOutputStream outputStream, byte[] bytes) throws IOException {
+            VarInt.write(outputStream, bytes.length);
+            outputStream.write(bytes);
+        }
+    }
+
+    // "\0BLG", distinguishes the binary log from the text format that always starts with a digit
+    final static private int MAGIC = 0x00424C47;
+    final static private int FORMAT_VERSION = 1;
+    final static private int HEADER_SIZE = 5;
+    // rev (int), offset (long), length (int)
+    final static private int INDEX_SLOT_SIZE = 16;
+
+    static private class Slot {
+        final int rev;
+        final long offset;
+        final int length;
+
+        Slot(int rev, long offset, int length) {
+            this.rev = rev;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long getEnd() {
+            return offset + length;
         }
     }
 
-    private int latestRev = 1;
     final private File logfile;
+    final private File indexFile;
     final private Lock fileLock;
-    final private List<Entry> entries = new ArrayList<>();
+    // opened by the first add
+    private RandomAccessFile logAppender;
+    private RandomAccessFile indexAppender;
+    // in memory tail: the latest entry and the length of the index it has been read from
+    private Entry latest;
+    private long latestIndexLength = -1;
 
     public ChunkStoreBranchLog(File logfile) throws IOException {
         this.logfile = logfile;
+        this.indexFile = new File(logfile.getPath() + ".index");
         this.fileLock = LockBucket.getInstance().getLock(logfile.getAbsolutePath());
 
-        read();
+        try {
+            lock();
+            if (isTextLog(logfile)) {
+                File converted = new File(logfile.getPath() + ".converted");
+                convertTextLog(logfile, converted);
+                if (!converted.renameTo(logfile))
+                    throw new IOException("Failed to replace text log: " + logfile.getPath());
+                indexFile.delete();
+            }
+            recover();
+        } finally {
+            unlock();
+        }
     }
 
     private void lock() {
@@ -107,73 +192,343 @@ public class ChunkStoreBranchLog {
         fileLock.unlock();
     }
 
-    public List<Entry> getEntries() {
-        return entries;
+    static private boolean isTextLog(File logfile) throws IOException {
+        if (logfile.length() == 0)
+            return false;
+        DataInputStream inputStream;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(logfile));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            // the first byte of the magic is 0; a torn binary header is handled by recover()
+            return inputStream.readByte() != (byte)(MAGIC >>> 24);
+        } finally {
+            inputStream.close();
+        }
     }
 
-    private void read() throws IOException {
+    /**
+     * Converts a log in the text format of older versions to the binary format.
+     *
+     * The index of the binary log is built when the log is opened the first time.
+     */
+    static public void convertTextLog(File textLog, File binaryLog) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textLog)));
         try {
-            lock();
+            FileOutputStream fileOutputStream = new FileOutputStream(binaryLog);
+            BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream);
+            try {
+                writeHeader(outputStream);
+                Entry entry;
+                while ((entry = Entry.readText(reader)) != null)
+                    entry.write(outputStream);
+                outputStream.flush();
+                // the converted log replaces the text log, i.e. it has to be on disk first
+                fileOutputStream.getFD().sync();
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
 
-            BufferedReader reader;
+    static private void writeHeader(OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(MAGIC);
+        dataOutputStream.writeByte(FORMAT_VERSION);
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Makes the index consistent with the log, e.g. after a crash during an add or after a conversion. Only the last
+     * index slot is read if the files are consistent.
+     */
+    private void recover() throws IOException {
+        long logLength = logfile.length();
+        if (logLength < HEADER_SIZE) {
+            // nothing or only a part of the header has been written
+            if (logLength > 0)
+                truncate(logfile, 0);
+            indexFile.delete();
+            return;
+        }
+        DataInputStream headerInputStream = new DataInputStream(new FileInputStream(logfile));
+        try {
+            if (headerInputStream.readInt() != MAGIC || headerInputStream.readByte() != FORMAT_VERSION)
+                throw new IOException("Unsupported branch log format: " + logfile.getPath());
+        } finally {
+            headerInputStream.close();
+        }
+        long nSlots = indexFile.length() / INDEX_SLOT_SIZE;
+        long indexedEnd = HEADER_SIZE;
+        if (nSlots > 0) {
+            RandomAccessFile index = new RandomAccessFile(indexFile, "r");
             try {
-                FileInputStream fileInputStream = new FileInputStream(logfile);
-                reader = new BufferedReader(new InputStreamReader(fileInputStream));
-            } catch (FileNotFoundException e) {
-                return;
+                // drop slots of entries that didn't make it into the log and garbage slots, e.g. a zero filled tail
+                for (; nSlots > 0; nSlots--) {
+                    Slot slot = readSlot(index, nSlots - 1);
+                    long expectedOffset = nSlots == 1 ? HEADER_SIZE : readSlot(index, nSlots - 2).getEnd();
+                    if (isValid(slot, expectedOffset, logLength)) {
+                        indexedEnd = slot.getEnd();
+                        break;
+                    }
+                }
+            } finally {
+                index.close();
             }
+        }
+        if (indexFile.length() != nSlots * INDEX_SLOT_SIZE)
+            truncate(indexFile, nSlots * INDEX_SLOT_SIZE);
+        if (indexedEnd == logLength)
+            return;
+
+        // index the entries that are not in the index yet
+        byte[] data = new byte[(int)(logLength - indexedEnd)];
+        RandomAccessFile log = new RandomAccessFile(logfile, "r");
+        try {
+            log.seek(indexedEnd);
+            log.readFully(data);
+        } finally {
+            log.close();
+        }
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+        ByteArrayOutputStream slots = new ByteArrayOutputStream();
+        DataOutputStream slotsOutputStream = new DataOutputStream(slots);
+        long offset = indexedEnd;
+        while (inputStream.available() > 0) {
             Entry entry;
-            while ((entry = Entry.read(reader)) != null)
-                entries.add(entry);
+            try {
+                entry = Entry.read(inputStream);
+            } catch (IOException e) {
+                // incomplete last entry
+                break;
+            }
+            int length = data.length - inputStream.available() - (int)(offset - indexedEnd);
+            writeSlot(slotsOutputStream, new Slot(entry.rev, offset, length));
+            offset += length;
+        }
+        if (offset != logLength)
+            truncate(logfile, offset);
+        FileOutputStream indexOutputStream = new FileOutputStream(indexFile, true);
+        try {
+            indexOutputStream.write(slots.toByteArray());
+        } finally {
+            indexOutputStream.close();
+        }
+    }
+
+    /**
+     * @param expectedOffset the end of the previous slot
+     */
+    static private boolean isValid(Slot slot, long expectedOffset, long logLength) {
+        if (slot.offset < HEADER_SIZE || slot.length <= 0)
+            return false;
+        return slot.offset == expectedOffset && slot.getEnd() <= logLength;
+    }
+
+    static private void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static private Slot readSlot(RandomAccessFile index, long position) throws IOException {
+        index.seek(position * INDEX_SLOT_SIZE);
+        int rev = index.readInt();
+        long offset = index.readLong();
+        int length = index.readInt();
+        return new Slot(rev, offset, length);
+    }
+
+    static private void writeSlot(DataOutputStream outputStream, Slot slot) throws IOException {
+        outputStream.writeInt(slot.rev);
+        outputStream.writeLong(slot.offset);
+        outputStream.writeInt(slot.length);
+    }
+
+    private Entry readEntry(Slot slot) throws IOException {
+        byte[] data = new byte[slot.length];
+        RandomAccessFile log = new RandomAccessFile(logfile, "r");
+        try {
+            log.seek(slot.offset);
+            log.readFully(data);
+        } finally {
+            log.close();
+        }
+        return Entry.read(new ByteArrayInputStream(data));
+    }
 
-            if (entries.size() > 0)
-                latestRev = entries.get(entries.size() - 1).rev + 1;
+    /**
+     * @return the number of entries in the log
+     */
+    public int size() {
+        return (int)(indexFile.length() / INDEX_SLOT_SIZE);
+    }
+
+    /**
+     * Reads all entries of the log; prefer getLatest() or getEntry(int) to access single entries.
+     */
+    public List<Entry> getEntries() throws IOException {
+        try {
+            lock();
+            List<Entry> entries = new ArrayList<>();
+            long nSlots = indexFile.length() / INDEX_SLOT_SIZE;
+            if (nSlots == 0)
+                return entries;
+            Slot last;
+            RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+            try {
+                last = readSlot(index, nSlots - 1);
+            } finally {
+                index.close();
+            }
+            byte[] data = new byte[(int)(last.getEnd() - HEADER_SIZE)];
+            RandomAccessFile log = new RandomAccessFile(logfile, "r");
+            try {
+                log.seek(HEADER_SIZE);
+                log.readFully(data);
+            } finally {
+                log.close();
+            }
+            ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+            for (long i = 0; i < nSlots; i++)
+                entries.add(Entry.read(inputStream));
+            return entries;
         } finally {
             unlock();
         }
     }
 
-    private int nextRevId() {
-        int currentRev = latestRev;
-        latestRev++;
-        return currentRev;
+    public Entry getLatest() throws IOException {
+        try {
+            lock();
+            // the tail is only read again if someone else has added an entry
+            long indexLength = indexFile.length();
+            if (indexLength != latestIndexLength) {
+                long nSlots = indexLength / INDEX_SLOT_SIZE;
+                latest = null;
+                if (nSlots > 0) {
+                    RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+                    try {
+                        latest = readEntry(readSlot(index, nSlots - 1));
+                    } finally {
+                        index.close();
+                    }
+                }
+                latestIndexLength = indexLength;
+            }
+            return latest;
+        } finally {
+            unlock();
+        }
     }
 
-    public Entry getLatest() {
-        if (entries.size() == 0)
-            return null;
-        return entries.get(entries.size() - 1);
+    /**
+     * @return the entry of the revision or null if there is no such entry
+     */
+    public Entry getEntry(int rev) throws IOException {
+        try {
+            lock();
+            long nSlots = indexFile.length() / INDEX_SLOT_SIZE;
+            if (nSlots == 0)
+                return null;
+            RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+            try {
+                // revisions are usually consecutive; otherwise, e.g. for entries pulled from a remote, search the index
+                long position = (long)rev - readSlot(index, 0).rev;
+                if (position >= 0 && position < nSlots) {
+                    Slot slot = readSlot(index, position);
+                    if (slot.rev == rev)
+                        return readEntry(slot);
+                }
+                for (long i = nSlots - 1; i >= 0; i--) {
+                    Slot slot = readSlot(index, i);
+                    if (slot.rev == rev)
+                        return readEntry(slot);
+                }
+                return null;
+            } finally {
+                index.close();
+            }
+        } finally {
+            unlock();
+        }
     }
 
     public void add(HashValue id, String message, List<HashValue> changes) throws IOException {
-        Entry entry = new Entry(nextRevId(), id, message);
-        entry.changes.addAll(changes);
-        add(entry);
+        try {
+            lock();
+            Entry tip = getLatest();
+            Entry entry = new Entry(tip == null ? 1 : tip.rev + 1, id, message);
+            entry.changes.addAll(changes);
+            add(entry);
+        } finally {
+            unlock();
+        }
     }
 
-    public void add(Entry entry) {
+    public void add(Entry entry) throws IOException {
         try {
             lock();
             write(entry);
-            entries.add(entry);
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
             unlock();
         }
     }
 
     private void write(Entry entry) throws IOException {
-        if(!logfile.exists()) {
+        if (logAppender == null) {
             logfile.getParentFile().mkdirs();
-            logfile.createNewFile();
+            logAppender = new RandomAccessFile(logfile, "rw");
+            indexAppender = new RandomAccessFile(indexFile, "rw");
         }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // the files may have been written by another instance of the log
+        long offset = logAppender.length();
+        if (offset == 0) {
+            writeHeader(outputStream);
+            offset = HEADER_SIZE;
+        }
+        int headerSize = outputStream.size();
+        entry.write(outputStream);
+        logAppender.seek(logAppender.length());
+        logAppender.write(outputStream.toByteArray());
+        // the entry must be on disk before its slot; recover() drops a slot whose entry is missing
+        logAppender.getChannel().force(false);
+
+        ByteArrayOutputStream slot = new ByteArrayOutputStream(INDEX_SLOT_SIZE);
+        writeSlot(new DataOutputStream(slot), new Slot(entry.rev, offset, outputStream.size() - headerSize));
+        long indexLength = indexAppender.length();
+        indexAppender.seek(indexLength);
+        indexAppender.write(slot.toByteArray());
 
-        FileOutputStream outputStream = new FileOutputStream(logfile, true);
+        latest = entry;
+        latestIndexLength = indexLength + INDEX_SLOT_SIZE;
+    }
+
+    /**
+     * Closes the files that are kept open for appending entries. The log can still be used afterwards.
+     */
+    public void close() throws IOException {
         try {
-            entry.write(outputStream);
+            lock();
+            if (logAppender == null)
+                return;
+            try {
+                logAppender.close();
+            } finally {
+                indexAppender.close();
+                logAppender = null;
+                indexAppender = null;
+            }
         } finally {
-            outputStream.close();
+            unlock();
         }
     }
 }
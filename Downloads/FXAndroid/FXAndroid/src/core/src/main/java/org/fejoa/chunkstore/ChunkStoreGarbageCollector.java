@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+
+/**
+ * Removes the chunks from a store that are not reachable from any branch.
+ *
+ * All branches that use the store have to be marked before calling sweep(). Marking walks the commits, the directory
+ * trees and the chunk containers of the files. Chunks that are written or accessed while collecting are kept.
+ *
+ * Use {@link #collect(ChunkStore, ChunkStoreBranchLog, ICommitCallback, IRepoChunkAccessors)} or
+ * {@link SyncRepository#collectGarbage()} to collect the store of a branch in one go.
+ */
+public class ChunkStoreGarbageCollector {
+    final private IChunkStoreEngine.IGarbageCollection collection;
+    final private Set<HashValue> marked = new HashSet<>();
+
+    public ChunkStoreGarbageCollector(ChunkStore chunkStore) throws IOException {
+        this.collection = chunkStore.startGarbageCollection();
+    }
+
+    /**
+     * Marks all entries of the branch log and removes the unmarked chunks from the store.
+     *
+     * A chunk store belongs to a single branch, i.e. the log of the branch references all live chunks.
+     *
+     * @return the number of removed chunks
+     */
+    static public long collect(ChunkStore chunkStore, ChunkStoreBranchLog log, ICommitCallback commitCallback,
+                               IRepoChunkAccessors accessors) throws IOException, CryptoException {
+        ChunkStoreGarbageCollector collector = new ChunkStoreGarbageCollector(chunkStore);
+        try {
+            collector.markBranch(log, commitCallback, accessors);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            try {
+                collector.cancel();
+            } catch (IOException cancelException) {
+                e.addSuppressed(cancelException);
+            }
+            throw e;
+        }
+        return collector.sweep();
+    }
+
+    /**
+     * Marks the commits of all entries in the branch log.
+     */
+    public void markBranch(ChunkStoreBranchLog log, ICommitCallback commitCallback, IRepoChunkAccessors accessors)
+            throws IOException, CryptoException {
+        // only used for reading; not canceled since it may be shared with the users of the store
+        IRepoChunkAccessors.ITransaction transaction = accessors.startTransaction();
+        for (ChunkStoreBranchLog.Entry entry : log.getEntries())
+            markCommit(transaction, commitCallback.commitPointerFromLog(entry.getMessage()));
+    }
+
+    /**
+     * Marks the commit and all its ancestors.
+     */
+    public void markCommit(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef commitPointer)
+            throws IOException, CryptoException {
+        LinkedList<ChunkContainerRef> commits = new LinkedList<>();
+        commits.add(commitPointer);
+        while (commits.size() > 0) {
+            ChunkContainerRef commit = commits.removeFirst();
+            if (isMarked(commit))
+                continue;
+            ChunkContainer chunkContainer = markContainer(transaction.getCommitAccessor(commit), commit);
+            CommitBox commitBox = CommitBox.read(chunkContainer);
+            commits.addAll(commitBox.getParents());
+            markDirectory(transaction, commitBox.getTree(), "");
+        }
+    }
+
+    private void markDirectory(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef pointer, String path)
+            throws IOException, CryptoException {
+        if (isMarked(pointer))
+            return;
+        ChunkContainer chunkContainer = markContainer(transaction.getTreeAccessor(pointer), pointer);
+        FlatDirectoryBox directoryBox = FlatDirectoryBox.read(chunkContainer);
+        if (directoryBox.isSharded()) {
+            for (ChunkContainerRef shard : directoryBox.getShardRefs())
+                markDirectory(transaction, shard, path);
+            return;
+        }
+        for (FlatDirectoryBox.Entry entry : directoryBox.getEntries()) {
+            String entryPath = path + "/" + entry.getName();
+            if (entry.isFile()) {
+                if (!isMarked(entry.getDataPointer()))
+                    markContainer(transaction.getFileAccessor(entry.getDataPointer(), entryPath),
+                            entry.getDataPointer());
+            } else
+                markDirectory(transaction, entry.getDataPointer(), entryPath);
+        }
+    }
+
+    private boolean isMarked(ChunkContainerRef pointer) {
+        return marked.contains(pointer.getBox().getBoxHash());
+    }
+
+    private ChunkContainer markContainer(IChunkAccessor accessor, ChunkContainerRef pointer)
+            throws IOException, CryptoException {
+        mark(pointer.getBox().getBoxHash());
+        ChunkContainer chunkContainer = ChunkContainer.read(accessor, pointer);
+        markNode(accessor, chunkContainer);
+        return chunkContainer;
+    }
+
+    private void markNode(IChunkAccessor accessor, ChunkContainerNode node) throws IOException, CryptoException {
+        for (IChunkPointer child : node.getChunkPointers()) {
+            // an already marked node has been walked before
+            if (!mark(child.getChunkPointer().getBoxHash()) || node.isLeafNode())
+                continue;
+            markNode(accessor, ChunkContainerNode.read(accessor, node, child));
+        }
+    }
+
+    /**
+     * @return false if the chunk has already been marked
+     */
+    public boolean mark(HashValue hash) {
+        if (!marked.add(hash))
+            return false;
+        collection.markLive(hash);
+        return true;
+    }
+
+    /**
+     * Removes all unmarked chunks from the store.
+     *
+     * @return the number of removed chunks
+     */
+    public long sweep() throws IOException {
+        return collection.sweep();
+    }
+
+    public void cancel() throws IOException {
+        collection.cancel();
+    }
+}
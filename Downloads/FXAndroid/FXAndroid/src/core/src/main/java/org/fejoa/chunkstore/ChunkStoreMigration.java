@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Converts a name.idx/name.pack chunk store into a store that uses memory-mapped pack segments.
+ *
+ * The store must not be in use while migrating.
+ */
+public class ChunkStoreMigration {
+    final static private String TEMP_SUFFIX = ".migrate";
+    final static private String OLD_SUFFIX = ".old";
+    // files that are shared by both engines
+    final static private String[] SIDECAR_FILES = {".idx", ".ckp", ".bloom"};
+    final static private String[] OLD_FILES = {".idx", ".ckp", ".bloom", ".pack"};
+
+    /**
+     * Copies all chunks from source into target and commits the target transaction.
+     *
+     * @return the number of copied chunks
+     */
+    static public long copy(ChunkStore source, ChunkStore target) throws IOException {
+        long count = 0;
+        ChunkStore.Transaction transaction = target.openTransaction();
+        ChunkStore.IChunkStoreIterator iterator = source.iterator();
+        try {
+            while (iterator.hasNext()) {
+                ChunkStore.Entry entry = iterator.next();
+                if (entry == null)
+                    throw new IOException("Failed to read chunk from source store");
+                PutResult<HashValue> result = transaction.put(entry.data);
+                if (!result.key.equals(entry.key))
+                    throw new IOException("Chunk hash mismatch: " + entry.key);
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+        transaction.commit();
+        return count;
+    }
+
+    /**
+     * Migrates the store in place. Does nothing if the store already uses mapped pack segments.
+     *
+     * @return the number of migrated chunks
+     */
+    static public long migrate(File dir, String name) throws IOException {
+        ChunkStore.EngineType engineType = ChunkStore.getEngineType(dir, name);
+        if (engineType == ChunkStore.EngineType.MAPPED_PACK_FILE)
+            return 0;
+        if (engineType != ChunkStore.EngineType.PACK_FILE)
+            throw new IOException("Can't migrate a store of type " + engineType);
+
+        String tempName = name + TEMP_SUFFIX;
+        ChunkStore source = ChunkStore.open(dir, name, ChunkStore.EngineType.PACK_FILE);
+        ChunkStore target = ChunkStore.create(dir, tempName, ChunkStore.EngineType.MAPPED_PACK_FILE);
+        long count = copy(source, target);
+        ChunkStore.close(dir, name);
+        ChunkStore.close(dir, tempName);
+
+        // keep the old files till the new store is in place
+        for (String extension : OLD_FILES) {
+            File file = new File(dir, name + extension);
+            if (file.exists())
+                rename(file, new File(dir, name + extension + OLD_SUFFIX));
+        }
+
+        for (String extension : SIDECAR_FILES)
+            rename(new File(dir, tempName + extension), new File(dir, name + extension));
+        for (int i = 0; ; i++) {
+            File segment = new File(dir, tempName + MappedPackFile.SEGMENT_EXT + i);
+            if (!segment.exists())
+                break;
+            rename(segment, new File(dir, name + MappedPackFile.SEGMENT_EXT + i));
+        }
+
+        for (String extension : OLD_FILES)
+            new File(dir, name + extension + OLD_SUFFIX).delete();
+        return count;
+    }
+
+    static private void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to))
+            throw new IOException("Failed to rename " + from.getPath() + " to " + to.getPath());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: ChunkStoreMigration <directory> <name>");
+            return;
+        }
+        long count = migrate(new File(args[0]), args[1]);
+        System.out.println("Migrated " + count + " chunks");
+    }
+}
@@ -10,73 +10,51 @@ package org.fejoa.chunkstore;
 import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 
+/**
+ * Thread safe, commits can be looked up without holding the repository lock.
+ *
+ * Commits are found through the commit graph of the repository and the recently used commits are kept in memory.
+ */
 public class CommitCache {
-    final private Map<HashValue, CommitBox> commitCache = new HashMap<>();
-    // All commits in this list as well are their parent are in the cached.
-    final private LinkedList<CommitBox> tailList = new LinkedList<>();
+    final static private int MAX_CACHED_COMMITS = 1024;
+
+    final private Map<HashValue, CommitBox> commitCache = new LinkedHashMap<HashValue, CommitBox>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<HashValue, CommitBox> eldest) {
+            return size() > MAX_CACHED_COMMITS;
+        }
+    };
     final private SyncRepository repository;
 
     public CommitCache(SyncRepository repository) {
         this.repository = repository;
     }
 
-    public CommitBox getCommit(HashValue hashValue) throws IOException, CryptoException {
+    /**
+     * @return the commit or null if the commit is not in the commit graph of the repository
+     */
+    synchronized public CommitBox getCommit(HashValue hashValue) throws IOException, CryptoException {
         CommitBox commitBox = commitCache.get(hashValue);
         if (commitBox != null)
             return commitBox;
-        return loadCommit(hashValue);
-    }
-
-    public boolean isParent(HashValue commit, HashValue isParentCommit) throws IOException, CryptoException {
-        CommitBox commitBox = getCommit(commit);
-        for (ChunkContainerRef parent : commitBox.getParents()) {
-            CommitBox parentCommit = CommitBox.read(getCommitAccessor(parent), parent);
-            HashValue parentHash = parentCommit.getPlainHash();
-            if (parentHash.equals(isParentCommit))
-                return true;
-            if (isParent(parentHash, isParentCommit))
-                return true;
-        }
-        return false;
-    }
-
-    private CommitBox loadCommit(final HashValue hashValue) throws IOException, CryptoException {
-        CommitBox head = repository.getHeadCommit();
-        if (head == null)
+        ChunkContainerRef ref = repository.getCommitGraph().getRef(hashValue);
+        if (ref == null)
             return null;
-        HashValue headHash = head.getPlainHash();
-        if (!commitCache.containsKey(headHash)) {
-            commitCache.put(headHash, head);
-            tailList.addFirst(head);
-            if (headHash.equals(hashValue))
-                return head;
-        }
-
-        while (tailList.size() > 0) {
-            CommitBox currentCommit = tailList.removeFirst();
-            CommitBox foundCommit = null;
-            for (ChunkContainerRef boxPointer : currentCommit.getParents()) {
-                CommitBox parent = CommitBox.read(getCommitAccessor(boxPointer), boxPointer);
-                HashValue parentHash = parent.getPlainHash();
-                if (parentHash.equals(hashValue))
-                    foundCommit = parent;
-                if (!commitCache.containsKey(parentHash)) {
-                    tailList.add(parent);
-                    commitCache.put(parentHash, parent);
-                }
-            }
-            if (foundCommit != null)
-                return foundCommit;
-        }
-        return null;
+        commitBox = CommitBox.read(repository.getSnapshot().getTransaction().getCommitAccessor(ref), ref);
+        commitCache.put(hashValue, commitBox);
+        return commitBox;
     }
 
-    private IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
-        return repository.getCurrentTransaction().getCommitAccessor(ref);
+    /**
+     * @return true if isParentCommit is a, not necessarily direct, parent of commit
+     */
+    public boolean isParent(HashValue commit, HashValue isParentCommit) {
+        if (commit.equals(isParentCommit))
+            return false;
+        return repository.getCommitGraph().isAncestor(isParentCommit, commit);
     }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+
+/**
+ * Persistent index of the commits of a branch.
+ *
+ * A commit is stored with its ref, the indices of its parents and its generation number, i.e. one more than the
+ * largest generation of its parents. A commit can only be an ancestor of commits with a larger generation, which lets
+ * ancestry and merge base queries stop early without reading any commit from the chunk store.
+ *
+ * Commits are appended to the graph file when they are added and are never removed. Thread safe, there is one
+ * instance per graph file.
+ *
+ * The graph is a best-effort cache of the commits in the chunk store: the file is appended without forcing it to disk
+ * and a commit may be added before the transaction that contains it has been committed. A damaged tail is dropped
+ * when the file is read and a graph of an unknown version is discarded; the missing commits are read from the chunk
+ * store again when a descendant is added, e.g. the head when the repository is opened.
+ */
+public class CommitGraph {
+    final static private int FORMAT_VERSION = 1;
+
+    static private class Node {
+        final ChunkContainerRef ref;
+        final int generation;
+        final int[] parents;
+
+        Node(ChunkContainerRef ref, int generation, int[] parents) {
+            this.ref = ref;
+            this.generation = generation;
+            this.parents = parents;
+        }
+
+        HashValue getHash() {
+            return ref.getDataHash();
+        }
+    }
+
+    final private File file;
+    final private List<Node> nodes = new ArrayList<>();
+    final private Map<HashValue, Integer> indices = new HashMap<>();
+    // length of the graph file as written by this instance
+    private long fileLength = 0;
+
+    static final private Map<String, WeakReference<CommitGraph>> graphs = new HashMap<>();
+
+    /**
+     * @return the shared graph of the file, the graph is empty if the file doesn't exist
+     */
+    static public CommitGraph open(File file) throws IOException {
+        synchronized (graphs) {
+            String path = file.getAbsolutePath();
+            WeakReference<CommitGraph> weakGraph = graphs.get(path);
+            if (weakGraph != null) {
+                CommitGraph graph = weakGraph.get();
+                // reload if the file has been changed or removed by someone else
+                if (graph != null && graph.isInSync())
+                    return graph;
+            }
+            CommitGraph graph = new CommitGraph(file);
+            graphs.put(path, new WeakReference<>(graph));
+            return graph;
+        }
+    }
+
+    private CommitGraph(File file) throws IOException {
+        this.file = file;
+        read();
+    }
+
+    synchronized private boolean isInSync() {
+        return file.length() == fileLength;
+    }
+
+    private void read() throws IOException {
+        byte[] data;
+        try {
+            data = readFile(file);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+        try {
+            if (VarInt.read(inputStream) != FORMAT_VERSION) {
+                // rebuilt when the commits are added again
+                file.delete();
+                return;
+            }
+            fileLength = data.length - inputStream.available();
+            while (inputStream.available() > 0) {
+                Node node = readNode(inputStream);
+                indices.put(node.getHash(), nodes.size());
+                nodes.add(node);
+                fileLength = data.length - inputStream.available();
+            }
+        } catch (IOException e) {
+            // incomplete or damaged last record, e.g. after a crash; VarInt doesn't throw an EOFException
+        }
+        if (fileLength != data.length) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(fileLength);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    static private byte[] readFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int)file.length()];
+            new DataInputStream(inputStream).readFully(data);
+            return data;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private Node readNode(InputStream inputStream) throws IOException {
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getData().read(inputStream);
+        ref.getBox().read(inputStream);
+        int generation = (int)VarInt.read(inputStream);
+        int nParents = (int)VarInt.read(inputStream);
+        int[] parents = new int[nParents];
+        for (int i = 0; i < nParents; i++) {
+            parents[i] = (int)VarInt.read(inputStream);
+            if (parents[i] >= nodes.size())
+                throw new IOException("Invalid parent index in commit graph");
+        }
+        return new Node(ref, generation, parents);
+    }
+
+    private void writeNode(OutputStream outputStream, Node node) throws IOException {
+        node.ref.getData().write(outputStream);
+        node.ref.getBox().write(outputStream);
+        VarInt.write(outputStream, node.generation);
+        VarInt.write(outputStream, node.parents.length);
+        for (int parent : node.parents)
+            VarInt.write(outputStream, parent);
+    }
+
+    private void append(List<Node> newNodes) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (fileLength == 0)
+            VarInt.write(outputStream, FORMAT_VERSION);
+        for (Node node : newNodes)
+            writeNode(outputStream, node);
+
+        if (!file.exists())
+            file.getParentFile().mkdirs();
+        FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+        try {
+            fileOutputStream.write(outputStream.toByteArray());
+        } finally {
+            fileOutputStream.close();
+        }
+        fileLength += outputStream.size();
+    }
+
+    synchronized public int size() {
+        return nodes.size();
+    }
+
+    synchronized public boolean contains(HashValue commit) {
+        return indices.containsKey(commit);
+    }
+
+    /**
+     * @return the ref of the commit or null if the commit is not in the graph
+     */
+    synchronized public ChunkContainerRef getRef(HashValue commit) {
+        Integer index = indices.get(commit);
+        if (index == null)
+            return null;
+        return nodes.get(index).ref;
+    }
+
+    /**
+     * @return the generation of the commit, 1 for a commit without parents, or 0 if the commit is not in the graph
+     */
+    synchronized public int getGeneration(HashValue commit) {
+        Integer index = indices.get(commit);
+        if (index == null)
+            return 0;
+        return nodes.get(index).generation;
+    }
+
+    /**
+     * Adds the commit and all its ancestors that are not in the graph yet.
+     *
+     * @param transaction to read the missing ancestors
+     */
+    synchronized public void add(CommitBox commit, IRepoChunkAccessors.ITransaction transaction)
+            throws IOException, CryptoException {
+        if (indices.containsKey(commit.getPlainHash()))
+            return;
+
+        // add parents before their children; a commit is pushed again if one of its parents is still missing
+        List<Node> newNodes = new ArrayList<>();
+        Map<HashValue, CommitBox> loaded = new HashMap<>();
+        LinkedList<CommitBox> stack = new LinkedList<>();
+        stack.push(commit);
+        try {
+            while (stack.size() > 0) {
+                CommitBox top = stack.peek();
+                if (indices.containsKey(top.getPlainHash())) {
+                    stack.pop();
+                    continue;
+                }
+                boolean parentsAdded = true;
+                for (ChunkContainerRef parent : top.getParents()) {
+                    HashValue parentHash = parent.getDataHash();
+                    if (indices.containsKey(parentHash))
+                        continue;
+                    parentsAdded = false;
+                    CommitBox parentCommit = loaded.get(parentHash);
+                    if (parentCommit == null) {
+                        parentCommit = CommitBox.read(transaction.getCommitAccessor(parent), parent);
+                        loaded.put(parentHash, parentCommit);
+                    }
+                    stack.push(parentCommit);
+                }
+                if (!parentsAdded)
+                    continue;
+                stack.pop();
+                newNodes.add(addNode(top));
+            }
+        } finally {
+            // commits added so far are valid even if an ancestor couldn't be read
+            if (newNodes.size() > 0)
+                append(newNodes);
+        }
+    }
+
+    private Node addNode(CommitBox commit) {
+        List<ChunkContainerRef> parentRefs = commit.getParents();
+        int[] parents = new int[parentRefs.size()];
+        int generation = 0;
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = indices.get(parentRefs.get(i).getDataHash());
+            generation = Math.max(generation, nodes.get(parents[i]).generation);
+        }
+        Node node = new Node(commit.getRef(), generation + 1, parents);
+        indices.put(node.getHash(), nodes.size());
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * @return true if ancestor is the commit itself or one of its ancestors
+     */
+    synchronized public boolean isAncestor(HashValue ancestor, HashValue commit) {
+        Integer target = indices.get(ancestor);
+        Integer start = indices.get(commit);
+        if (target == null || start == null)
+            return false;
+        return isAncestor(target, start);
+    }
+
+    private boolean isAncestor(int target, int start) {
+        int targetGeneration = nodes.get(target).generation;
+        BitSet visited = new BitSet();
+        LinkedList<Integer> stack = new LinkedList<>();
+        stack.push(start);
+        while (stack.size() > 0) {
+            int current = stack.pop();
+            if (current == target)
+                return true;
+            if (visited.get(current))
+                continue;
+            visited.set(current);
+            for (int parent : nodes.get(current).parents) {
+                // parents of a commit with a smaller generation can't be reached from the target
+                if (nodes.get(parent).generation >= targetGeneration && !visited.get(parent))
+                    stack.push(parent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the best common ancestors of two commits, i.e. the common ancestors that are not an ancestor of another
+     * common ancestor.
+     *
+     * @return the merge bases ordered by descending generation; empty if the commits have no common ancestor or are
+     * not in the graph
+     */
+    synchronized public List<HashValue> getMergeBases(HashValue commit1, HashValue commit2) {
+        List<HashValue> result = new ArrayList<>();
+        Integer index1 = indices.get(commit1);
+        Integer index2 = indices.get(commit2);
+        if (index1 == null || index2 == null)
+            return result;
+        if (index1.equals(index2)) {
+            result.add(commit1);
+            return result;
+        }
+
+        final int PARENT1 = 1;
+        final int PARENT2 = 2;
+        final int STALE = 4;
+        final Map<Integer, Integer> flags = new HashMap<>();
+        // highest generation first, so a commit is only visited once all its descendants have been visited
+        PriorityQueue<Integer> queue = new PriorityQueue<>(16, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return nodes.get(b).generation - nodes.get(a).generation;
+            }
+        });
+        flags.put(index1, PARENT1);
+        flags.put(index2, PARENT2);
+        queue.add(index1);
+        queue.add(index2);
+        int nNotStale = 2;
+        List<Integer> candidates = new ArrayList<>();
+        while (nNotStale > 0) {
+            int current = queue.poll();
+            int currentFlags = flags.get(current);
+            if ((currentFlags & STALE) == 0)
+                nNotStale--;
+            if ((currentFlags & (PARENT1 | PARENT2)) == (PARENT1 | PARENT2) && (currentFlags & STALE) == 0) {
+                candidates.add(current);
+                // the ancestors of a common ancestor are common ancestors as well but not the best ones
+                currentFlags |= STALE;
+                flags.put(current, currentFlags);
+            }
+            for (int parent : nodes.get(current).parents) {
+                Integer parentFlags = flags.get(parent);
+                if (parentFlags == null)
+                    parentFlags = 0;
+                if ((parentFlags & currentFlags) == currentFlags)
+                    continue;
+                boolean wasQueuedNotStale = parentFlags != 0 && (parentFlags & STALE) == 0;
+                if (parentFlags != 0)
+                    queue.remove(parent);
+                parentFlags |= currentFlags;
+                flags.put(parent, parentFlags);
+                queue.add(parent);
+                boolean isNotStale = (parentFlags & STALE) == 0;
+                if (wasQueuedNotStale && !isNotStale)
+                    nNotStale--;
+                else if (!wasQueuedNotStale && isNotStale)
+                    nNotStale++;
+            }
+        }
+
+        // a candidate can still be the ancestor of another candidate that has been reached through a longer path
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && isAncestor(candidate, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant)
+                result.add(nodes.get(candidate).getHash());
+        }
+        return result;
+    }
+}
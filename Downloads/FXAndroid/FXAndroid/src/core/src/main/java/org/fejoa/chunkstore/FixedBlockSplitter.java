@@ -29,11 +29,33 @@ public class FixedBlockSplitter extends ChunkSplitter {
         return false;
     }
 
+    @Override
+    protected int updateInternal(byte[] buffer, int offset, int length) {
+        if (nBytesInBlock + length < blockSize) {
+            nBytesInBlock += length;
+            return -1;
+        }
+        int consumed = Math.max(1, blockSize - nBytesInBlock);
+        nBytesInBlock += consumed;
+        return consumed;
+    }
+
     @Override
     public void resetInternal() {
         nBytesInBlock = 0;
     }
 
+    @Override
+    public int getWindowSize() {
+        return 0;
+    }
+
+    @Override
+    protected boolean restoreInternal(byte[] buffer, int offset, int length) {
+        nBytesInBlock = length - 1;
+        return updateInternal(buffer[offset + length - 1]);
+    }
+
     @Override
     public ChunkSplitter newInstance() {
         return new FixedBlockSplitter(blockSize);
@@ -7,10 +7,12 @@
  */
 package org.fejoa.chunkstore;
 
+import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StreamHelper;
 import org.fejoa.library.crypto.CryptoException;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 
@@ -202,6 +204,8 @@ abstract class DirectoryEntry {
 public class FlatDirectoryBox extends ChunkContainerRefBox {
     public static class Entry extends DirectoryEntry {
         boolean isFile;
+        // the entry has to be (re-)written on the next build
+        private boolean modified = false;
 
         public Entry(String name, ChunkContainerRef dataPointer, boolean isFile) {
             super(name, dataPointer);
@@ -212,8 +216,22 @@ public class FlatDirectoryBox extends ChunkContainerRefBox {
             this.isFile = isFile;
         }
 
+        /**
+         * Marks the entry for the next build. The pointer of a directory becomes invalid while the pointer of a file
+         * is the ref of its, still to be flushed, container.
+         */
         public void markModified() {
-            setDataPointer(null);
+            modified = true;
+            if (!isFile)
+                setDataPointer(null);
+        }
+
+        public boolean isModified() {
+            return modified;
+        }
+
+        void clearModified() {
+            modified = false;
         }
 
         public boolean isFile() {
@@ -230,7 +248,52 @@ public class FlatDirectoryBox extends ChunkContainerRefBox {
         }
     }
 
-    final private Map<String, Entry> entries = new HashMap<>();
+    /**
+     * Large directories are split into a hash array mapped trie of shards. A shard at depth d holds the entries whose
+     * name hash has the same first d nibbles. A shard is a flat directory if it has at most MAX_SHARD_SIZE entries and
+     * is split into sub shards otherwise, i.e. the shape only depends on the entries and not on the order in which
+     * they have been added. Shards are loaded lazily and only modified shards are rewritten.
+     */
+    final static public int MAX_SHARD_SIZE = 256;
+    final static private int SHARD_BITS = 4;
+    final static private int N_SHARDS = 1 << SHARD_BITS;
+    final static private int MAX_SHARD_DEPTH = 8;
+
+    static private class Shard {
+        ChunkContainerRef ref;
+        long nEntries;
+        // readers of a snapshot may load a shard concurrently
+        volatile FlatDirectoryBox box;
+
+        Shard(ChunkContainerRef ref, long nEntries) {
+            this.ref = ref;
+            this.nEntries = nEntries;
+        }
+
+        long size() {
+            FlatDirectoryBox loaded = box;
+            if (loaded == null)
+                return nEntries;
+            return loaded.size();
+        }
+
+        boolean hasSameContent(Shard other) {
+            FlatDirectoryBox loaded = box;
+            FlatDirectoryBox otherLoaded = other.box;
+            if ((loaded != null && loaded.isDirty()) || (otherLoaded != null && otherLoaded.isDirty()))
+                return false;
+            return ref.getDataHash().equals(other.ref.getDataHash());
+        }
+    }
+
+    private int depth = 0;
+    // entries of a flat directory, null if the directory is sharded
+    private Map<String, Entry> entries = new HashMap<>();
+    // sub shards indexed by the name hash nibble at depth, null if the directory is flat
+    private Shard[] shards;
+    private IChunkAccessor accessor;
+    // entries or shards have been added or removed since the last write
+    private boolean dirty = false;
 
     private FlatDirectoryBox() {
         super(BlobTypes.FLAT_DIRECTORY);
@@ -250,83 +313,350 @@ public class FlatDirectoryBox extends ChunkContainerRefBox {
 
     static public FlatDirectoryBox read(ChunkContainer chunkContainer)
             throws IOException, CryptoException {
-        return read(BlobTypes.FLAT_DIRECTORY, new DataInputStream(new ChunkContainerInputStream(chunkContainer)),
-                chunkContainer.getRef());
-    }
-
-    static private FlatDirectoryBox read(short type, DataInputStream inputStream, ChunkContainerRef ref)
-            throws IOException {
-        assert type == BlobTypes.FLAT_DIRECTORY;
         FlatDirectoryBox directoryBox = new FlatDirectoryBox();
-        directoryBox.read(inputStream, ref);
+        directoryBox.read(new DataInputStream(new ChunkContainerInputStream(chunkContainer)), chunkContainer.getRef());
+        directoryBox.accessor = chunkContainer.blobAccessor;
         return directoryBox;
     }
 
-    public Entry addDir(String name, ChunkContainerRef ref) {
+    static private int getShardIndex(String name, int depth) {
+        byte[] hash = CryptoHelper.sha256Hash(name.getBytes(StandardCharsets.UTF_8));
+        int value = hash[depth / 2] & 0xFF;
+        if (depth % 2 == 0)
+            return value >> SHARD_BITS;
+        return value & (N_SHARDS - 1);
+    }
+
+    private FlatDirectoryBox createShard() {
+        FlatDirectoryBox shard = create();
+        shard.depth = depth + 1;
+        shard.accessor = accessor;
+        return shard;
+    }
+
+    private FlatDirectoryBox loadShard(Shard shard) throws IOException {
+        FlatDirectoryBox box = shard.box;
+        if (box != null)
+            return box;
+        if (accessor == null)
+            throw new IOException("Can't load shard: no accessor");
+        try {
+            box = read(accessor, shard.ref);
+        } catch (CryptoException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (box.isSharded() && box.depth != depth + 1)
+            throw new IOException("Invalid shard depth: " + box.depth);
+        box.depth = depth + 1;
+        shard.box = box;
+        return box;
+    }
+
+    public boolean isSharded() {
+        return shards != null;
+    }
+
+    /**
+     * @return the refs of the direct sub shards or an empty list if the directory is flat
+     */
+    public List<ChunkContainerRef> getShardRefs() {
+        List<ChunkContainerRef> refs = new ArrayList<>();
+        if (shards == null)
+            return refs;
+        for (Shard shard : shards) {
+            if (shard != null)
+                refs.add(shard.ref);
+        }
+        return refs;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public long size() {
+        if (shards == null)
+            return entries.size();
+        long size = 0;
+        for (Shard shard : shards) {
+            if (shard != null)
+                size += shard.size();
+        }
+        return size;
+    }
+
+    public Entry addDir(String name, ChunkContainerRef ref) throws IOException {
         Entry entry = new Entry(name, ref, false);
         put(name, entry);
         return entry;
     }
 
-    public Entry addFile(String name, ChunkContainerRef ref) {
+    public Entry addFile(String name, ChunkContainerRef ref) throws IOException {
         Entry entry = new Entry(name, ref, true);
         put(name, entry);
         return entry;
     }
 
-    public void put(String name, Entry entry) {
-        entries.put(name, entry);
+    public void put(String name, Entry entry) throws IOException {
+        dirty = true;
+        if (shards == null) {
+            entries.put(name, entry);
+            return;
+        }
+        int index = getShardIndex(name, depth);
+        Shard shard = shards[index];
+        if (shard == null) {
+            FlatDirectoryBox box = createShard();
+            shard = new Shard(box.getRef(), 0);
+            shard.box = box;
+            shards[index] = shard;
+        }
+        loadShard(shard).put(name, entry);
+    }
+
+    public Entry remove(String entryName) throws IOException {
+        Entry removed;
+        if (shards == null) {
+            removed = entries.remove(entryName);
+        } else {
+            Shard shard = shards[getShardIndex(entryName, depth)];
+            if (shard == null)
+                return null;
+            removed = loadShard(shard).remove(entryName);
+        }
+        if (removed != null)
+            dirty = true;
+        return removed;
+    }
+
+    /**
+     * Loads all shards of a sharded directory.
+     */
+    public Collection<Entry> getEntries() throws IOException {
+        if (shards == null)
+            return entries.values();
+        List<Entry> list = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard != null)
+                list.addAll(loadShard(shard).getEntries());
+        }
+        return list;
     }
 
-    public Entry remove(String entryName) {
-        return entries.remove(entryName);
+    /**
+     * Returns the entries that may differ from the entries of the other directory. Shards that have the same content
+     * as the matching shard of the other directory are skipped without loading them.
+     *
+     * @param other the directory to compare with or null
+     */
+    public Collection<Entry> getEntries(FlatDirectoryBox other) throws IOException {
+        if (other == null || shards == null || other.shards == null || depth != other.depth)
+            return getEntries();
+        List<Entry> list = new ArrayList<>();
+        for (int i = 0; i < N_SHARDS; i++) {
+            Shard shard = shards[i];
+            if (shard == null)
+                continue;
+            Shard otherShard = other.shards[i];
+            if (otherShard == null)
+                list.addAll(loadShard(shard).getEntries());
+            else if (!shard.hasSameContent(otherShard))
+                list.addAll(loadShard(shard).getEntries(other.loadShard(otherShard)));
+        }
+        return list;
     }
 
-    public Collection<Entry> getEntries() {
-        return entries.values();
+    /**
+     * @return the entries of the loaded shards, i.e. all entries that could have been modified in memory
+     */
+    public Collection<Entry> getLoadedEntries() {
+        if (shards == null)
+            return entries.values();
+        List<Entry> list = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard == null)
+                continue;
+            FlatDirectoryBox box = shard.box;
+            if (box != null)
+                list.addAll(box.getLoadedEntries());
+        }
+        return list;
     }
 
-    public Entry getEntry(String name) {
-        for (Entry entry : entries.values()) {
-            if (entry.getName().equals(name))
-                return entry;
-        }
-        return null;
+    public Entry getEntry(String name) throws IOException {
+        if (shards == null)
+            return entries.get(name);
+        Shard shard = shards[getShardIndex(name, depth)];
+        if (shard == null)
+            return null;
+        return loadShard(shard).getEntry(name);
     }
 
-    public Collection<Entry> getDirs() {
+    public Collection<Entry> getDirs() throws IOException {
         List<Entry> children = new ArrayList<>();
-        for (Entry entry : entries.values()) {
+        for (Entry entry : getEntries()) {
             if (!entry.isFile)
                 children.add(entry);
         }
         return children;
     }
 
-    public Collection<Entry> getFiles() {
+    public Collection<Entry> getFiles() throws IOException {
         List<Entry> children = new ArrayList<>();
-        for (Entry entry : entries.values()) {
+        for (Entry entry : getEntries()) {
             if (entry.isFile)
                 children.add(entry);
         }
         return children;
     }
 
+    private boolean isDirty() {
+        if (dirty)
+            return true;
+        if (shards == null) {
+            for (Entry entry : entries.values()) {
+                if (entry.isModified())
+                    return true;
+            }
+            return false;
+        }
+        for (Shard shard : shards) {
+            if (shard == null)
+                continue;
+            FlatDirectoryBox box = shard.box;
+            if (box != null && box.isDirty())
+                return true;
+        }
+        return false;
+    }
+
+    private void split() {
+        shards = new Shard[N_SHARDS];
+        for (Entry entry : entries.values()) {
+            int index = getShardIndex(entry.getName(), depth);
+            if (shards[index] == null) {
+                FlatDirectoryBox box = createShard();
+                box.dirty = true;
+                shards[index] = new Shard(box.getRef(), 0);
+                shards[index].box = box;
+            }
+            shards[index].box.entries.put(entry.getName(), entry);
+        }
+        entries = null;
+        dirty = true;
+    }
+
+    private void merge() throws IOException {
+        Map<String, Entry> merged = new HashMap<>();
+        for (Entry entry : getEntries())
+            merged.put(entry.getName(), entry);
+        entries = merged;
+        shards = null;
+        dirty = true;
+    }
+
+    /**
+     * Writes the directory and its modified shards. Shards are split or merged as needed.
+     *
+     * Entries have to be written before, e.g. a modified sub directory must have a valid data pointer.
+     *
+     * @return the ref of the written directory
+     */
+    public ChunkContainerRef flush(IChunkAccessor accessor) throws IOException, CryptoException {
+        if (this.accessor == null)
+            this.accessor = accessor;
+        if (shards == null && entries.size() > MAX_SHARD_SIZE && depth < MAX_SHARD_DEPTH)
+            split();
+        else if (shards != null && size() <= MAX_SHARD_SIZE)
+            merge();
+
+        if (shards != null) {
+            for (int i = 0; i < N_SHARDS; i++) {
+                Shard shard = shards[i];
+                if (shard == null)
+                    continue;
+                if (shard.size() == 0) {
+                    shards[i] = null;
+                    continue;
+                }
+                FlatDirectoryBox box = shard.box;
+                if (box == null || !box.isDirty())
+                    continue;
+                shard.ref = box.flush(accessor);
+                shard.nEntries = box.size();
+            }
+        }
+        ChunkContainerRef ref = SyncRepository.put(this, accessor, getRef());
+        dirty = false;
+        return ref;
+    }
+
+    @Override
+    protected void readType(short type) throws IOException {
+        if (type != BlobTypes.FLAT_DIRECTORY && type != BlobTypes.SHARDED_DIRECTORY)
+            throw new IOException("Unexpected directory type: " + type);
+        this.type = type;
+    }
+
+    @Override
+    public HashValue write(DataOutputStream outputStream, ChunkContainerRef ref) throws IOException, CryptoException {
+        type = shards == null ? BlobTypes.FLAT_DIRECTORY : BlobTypes.SHARDED_DIRECTORY;
+        return super.write(outputStream, ref);
+    }
+
     @Override
     protected void writePlain(DataOutputStream outputStream, List<ChunkContainerRef> writtenRefs) throws IOException {
+        if (shards != null) {
+            writeShards(outputStream, writtenRefs);
+            return;
+        }
         Collection<Entry> dirs = getDirs();
         Collection<Entry> files = getFiles();
         VarInt.write(outputStream, dirs.size());
         VarInt.write(outputStream, files.size());
-        for (Entry entry : dirs)
+        // sorted so that the same entries always result in the same blob
+        for (Entry entry : sorted(dirs))
             entry.write(outputStream, writtenRefs);
-        for (Entry entry : files)
+        for (Entry entry : sorted(files))
             entry.write(outputStream, writtenRefs);
     }
 
+    static private List<Entry> sorted(Collection<Entry> entries) {
+        List<Entry> list = new ArrayList<>(entries);
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry, Entry entry2) {
+                return entry.getName().compareTo(entry2.getName());
+            }
+        });
+        return list;
+    }
+
+    private void writeShards(DataOutputStream outputStream, List<ChunkContainerRef> writtenRefs) throws IOException {
+        int nShards = 0;
+        for (Shard shard : shards) {
+            if (shard != null)
+                nShards++;
+        }
+        VarInt.write(outputStream, depth);
+        VarInt.write(outputStream, nShards);
+        for (int i = 0; i < N_SHARDS; i++) {
+            Shard shard = shards[i];
+            if (shard == null)
+                continue;
+            assert shard.box == null || !shard.box.isDirty();
+            outputStream.writeByte(i);
+            VarInt.write(outputStream, shard.nEntries);
+            shard.ref.getData().write(outputStream);
+            writtenRefs.add(shard.ref);
+        }
+    }
 
     @Override
     protected void readPlain(DataInputStream inputStream, List<ChunkContainerRef> readRefs) throws IOException {
+        if (type == BlobTypes.SHARDED_DIRECTORY) {
+            readShards(inputStream, readRefs);
+            return;
+        }
         long nDirs = VarInt.read(inputStream);
         long nFiles = VarInt.read(inputStream);
         for (long i = 0; i < nDirs; i++) {
@@ -341,8 +671,31 @@ public class FlatDirectoryBox extends ChunkContainerRefBox {
         }
     }
 
+    private void readShards(DataInputStream inputStream, List<ChunkContainerRef> readRefs) throws IOException {
+        depth = (int)VarInt.read(inputStream);
+        if (depth >= MAX_SHARD_DEPTH)
+            throw new IOException("Invalid shard depth: " + depth);
+        long nShards = VarInt.read(inputStream);
+        if (nShards > N_SHARDS)
+            throw new IOException("Invalid number of shards: " + nShards);
+        entries = null;
+        shards = new Shard[N_SHARDS];
+        for (long i = 0; i < nShards; i++) {
+            int index = inputStream.readUnsignedByte();
+            if (index >= N_SHARDS)
+                throw new IOException("Invalid shard index: " + index);
+            long nEntries = VarInt.read(inputStream);
+            ChunkContainerRef ref = new ChunkContainerRef();
+            ref.getData().read(inputStream);
+            readRefs.add(ref);
+            shards[index] = new Shard(ref, nEntries);
+        }
+    }
+
     @Override
     public String toString() {
+        if (shards != null)
+            return "Sharded directory: " + getShardRefs();
         String string = "Directory Entries:";
         for (Entry entry : entries.values())
             string += "\n" + entry.getName() + " (dir " + !entry.isFile + ")" + entry.getDataPointer();
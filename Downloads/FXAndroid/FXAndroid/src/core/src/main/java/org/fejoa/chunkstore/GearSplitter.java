@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+
+/**
+ * Content defined chunking using a gear hash with normalized chunking (see FastCDC).
+ *
+ * The hash is rolled with a single shift, add and table lookup per byte. Because of the shift a byte drops out of the
+ * hash after 64 bytes, i.e. no explicit window is needed. Only the upper bits of the hash, which depend on the
+ * last 64 bytes, are compared against the mask.
+ *
+ * Before the target size is reached a mask with more bits is used, afterwards a mask with less bits. This narrows the
+ * chunk size distribution around the target size.
+ */
+public class GearSplitter extends ChunkSplitter {
+    final static private int WINDOW_SIZE = 64;
+    // the gear table is part of the chunking format and must never change
+    final static private long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x6765617253706c74L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // splitmix64
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    final private int targetChunkSize;
+    final private int minChunkSize;
+    final private int maxChunkSize;
+    final private long maskSmall;
+    final private long maskLarge;
+    private long hash;
+    private long chunkSize;
+
+    public GearSplitter(int targetChunkSize, int minChunkSize, int maxChunkSize) {
+        this.targetChunkSize = targetChunkSize;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(targetChunkSize, 1));
+        this.maskSmall = mask(bits + 2);
+        this.maskLarge = mask(Math.max(bits - 2, 1));
+    }
+
+    static private long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    public int getTargetChunkSize() {
+        return targetChunkSize;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    @Override
+    protected boolean updateInternal(byte i) {
+        chunkSize++;
+        if (chunkSize < minChunkSize - WINDOW_SIZE)
+            return false;
+        hash = (hash << 1) + GEAR[i & 0xFF];
+        if (chunkSize < minChunkSize)
+            return false;
+        if (chunkSize >= maxChunkSize)
+            return true;
+        return (hash & (chunkSize < targetChunkSize ? maskSmall : maskLarge)) == 0;
+    }
+
+    @Override
+    protected int updateInternal(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        long skip = Math.min(length, minChunkSize - WINDOW_SIZE - 1 - chunkSize);
+        if (skip > 0) {
+            chunkSize += skip;
+            i += skip;
+        }
+        long hash = this.hash;
+        long chunkSize = this.chunkSize;
+        int consumed = -1;
+        while (i < end) {
+            chunkSize++;
+            hash = (hash << 1) + GEAR[buffer[i++] & 0xFF];
+            if (chunkSize < minChunkSize)
+                continue;
+            if (chunkSize >= maxChunkSize
+                    || (hash & (chunkSize < targetChunkSize ? maskSmall : maskLarge)) == 0) {
+                consumed = i - offset;
+                break;
+            }
+        }
+        this.hash = hash;
+        this.chunkSize = chunkSize;
+        return consumed;
+    }
+
+    @Override
+    protected void resetInternal() {
+        chunkSize = 0;
+        hash = 0;
+    }
+
+    @Override
+    public int getWindowSize() {
+        return WINDOW_SIZE;
+    }
+
+    @Override
+    protected boolean restoreInternal(byte[] buffer, int offset, int length) {
+        int last = length - 1;
+        int start = Math.max(0, Math.max(last - WINDOW_SIZE, minChunkSize - WINDOW_SIZE - 1));
+        for (int i = start; i < last; i++)
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xFF];
+        chunkSize = last;
+        return updateInternal(buffer[offset + last]);
+    }
+
+    @Override
+    public ChunkSplitter newInstance() {
+        return new GearSplitter(targetChunkSize, minChunkSize, maxChunkSize);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+
+/**
+ * Decides which nodes and data chunks of a chunk container stay in memory.
+ *
+ * Cached chunks are attached to their chunk pointers; a cache evicts a chunk by detaching it from its pointer.
+ */
+public interface IChunkContainerCache {
+    /**
+     * Is called when a data chunk is accessed or inserted.
+     *
+     * @param parent the leaf node that holds the data chunk pointer
+     */
+    void update(ChunkContainer container, IChunkPointer dataChunkPointer, ChunkContainerNode parent);
+
+    /**
+     * Is called when a data chunk or a dropped node is removed from the container.
+     */
+    void remove(ChunkContainer container, IChunkPointer pointer);
+
+    /**
+     * Is called when a container is not used anymore, e.g. when its last handle has been closed.
+     */
+    void removeContainer(ChunkContainer container);
+
+    /**
+     * @return the number of accessed data chunks that were in memory
+     */
+    long getHits();
+
+    /**
+     * @return the number of accessed data chunks that had to be fetched
+     */
+    long getMisses();
+
+    /**
+     * @return the number of evicted chunks
+     */
+    long getEvictions();
+}
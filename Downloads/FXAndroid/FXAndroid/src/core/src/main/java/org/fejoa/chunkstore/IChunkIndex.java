@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+
+/**
+ * Maps chunk hashes to the position of the chunk in the pack.
+ */
+interface IChunkIndex {
+    interface ILoader {
+        void add(byte[] hash, long position) throws IOException;
+        void finish() throws IOException;
+    }
+
+    File getFile();
+    void create() throws IOException;
+    void open() throws IOException;
+    /**
+     * @return false if the index has not been written completely, e.g. because of a crash, and has to be rebuilt
+     */
+    boolean isConsistent();
+    void close() throws IOException;
+    long size();
+    Long get(byte[] hash) throws IOException;
+    /**
+     * @return false if the hash is already indexed; the position is not replaced
+     */
+    boolean put(HashValue hash, long position) throws IOException;
+    Iterator<BaseBPlusTree.Entry<Long>> iterator() throws IOException;
+    void beginBatch() throws IOException;
+    void commitBatch() throws IOException;
+    /**
+     * Forces the committed state of the index to disk. Committed batches are not necessarily on disk before.
+     */
+    void sync() throws IOException;
+    /**
+     * Creates a loader for adding many entries in one go. May only be used on an empty index.
+     */
+    ILoader createLoader(File tempDir) throws IOException;
+}
+
+/**
+ * B+tree index (name.idx).
+ */
+class BPlusTreeChunkIndex implements IChunkIndex {
+    final static private int TILE_SIZE = 1024;
+    final static private float BULK_LOAD_FILL_FACTOR = 0.9f;
+    final static private long BULK_LOAD_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    final private File file;
+    final private BPlusTree tree;
+
+    static public File getFile(File dir, String name) {
+        return new File(dir, name + ".idx");
+    }
+
+    public BPlusTreeChunkIndex(File file) throws FileNotFoundException {
+        this.file = file;
+        this.tree = new BPlusTree(new RandomAccessFile(file, "rw"));
+        // the tree on disk stays at the last checkpoint; newer commits are replayed from the pack
+        this.tree.setHeaderOnSync(true);
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void create() throws IOException {
+        tree.create(ChunkStore.hashSize(), TILE_SIZE);
+    }
+
+    @Override
+    public void open() throws IOException {
+        tree.open();
+    }
+
+    @Override
+    public boolean isConsistent() {
+        // modifications are only made visible when the index is synced, i.e. only a damaged file is inconsistent
+        return tree.isConsistent();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+
+    @Override
+    public long size() {
+        return tree.size();
+    }
+
+    @Override
+    public Long get(byte[] hash) throws IOException {
+        return tree.get(hash);
+    }
+
+    @Override
+    public boolean put(HashValue hash, long position) throws IOException {
+        return tree.put(hash, position);
+    }
+
+    @Override
+    public Iterator<BaseBPlusTree.Entry<Long>> iterator() throws IOException {
+        return tree.iterator();
+    }
+
+    @Override
+    public void beginBatch() {
+        tree.beginBatch();
+    }
+
+    @Override
+    public void commitBatch() throws IOException {
+        tree.commitBatch();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        tree.sync();
+    }
+
+    @Override
+    public ILoader createLoader(File tempDir) throws IOException {
+        final BaseBPlusTree<Long, Long>.BulkLoader loader = tree.createBulkLoader(BULK_LOAD_FILL_FACTOR,
+                BULK_LOAD_MEMORY_BUDGET, false);
+        loader.setTempDir(tempDir);
+        return new ILoader() {
+            @Override
+            public void add(byte[] hash, long position) throws IOException {
+                loader.add(hash, position);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                loader.finish();
+            }
+        };
+    }
+}
+
+/**
+ * Extensible hash index (name.hidx).
+ *
+ * Chunk hashes are uniformly distributed, i.e. the buckets fill up evenly and a lookup only reads a single bucket.
+ * The index is not copy-on-write like the B+tree; if it hasn't been written completely it is rebuilt from the pack.
+ * The map on disk is marked as not consistent by the first batch after a sync and only marked consistent again by the
+ * next sync, i.e. committing a batch doesn't force the file.
+ */
+class ExtensibleHashChunkIndex implements IChunkIndex {
+    // a bucket of 32 byte hashes and 8 byte positions fits into 4KiB
+    final static private short BUCKET_CAPACITY = 100;
+
+    final private File file;
+    final private RandomAccessFile randomAccessFile;
+    final private ExtensibleHashMap hashMap = new ExtensibleHashMap();
+    private boolean isOpen = false;
+    // the map has been modified since the last sync
+    private boolean modified = false;
+
+    static public File getFile(File dir, String name) {
+        return new File(dir, name + ".hidx");
+    }
+
+    public ExtensibleHashChunkIndex(File file) throws FileNotFoundException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void create() throws IOException {
+        randomAccessFile.setLength(0);
+        hashMap.create(randomAccessFile, 0, (short)ChunkStore.hashSize(), BUCKET_CAPACITY);
+        modified = false;
+        isOpen = true;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (isOpen)
+            return;
+        hashMap.open(randomAccessFile, 0);
+        isOpen = true;
+    }
+
+    @Override
+    public boolean isConsistent() {
+        return hashMap.isConsistent();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen)
+            sync();
+        isOpen = false;
+        randomAccessFile.close();
+    }
+
+    @Override
+    public long size() {
+        return hashMap.size();
+    }
+
+    @Override
+    public Long get(byte[] hash) throws IOException {
+        return hashMap.get(hash);
+    }
+
+    @Override
+    public boolean put(HashValue hash, long position) throws IOException {
+        return hashMap.put(hash.getBytes(), position);
+    }
+
+    @Override
+    public Iterator<BaseBPlusTree.Entry<Long>> iterator() {
+        final Iterator<AbstractExtensibleHashMap.Entry<Long>> iterator = hashMap.iterator();
+        return new Iterator<BaseBPlusTree.Entry<Long>>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public BaseBPlusTree.Entry<Long> next() {
+                AbstractExtensibleHashMap.Entry<Long> next = iterator.next();
+                return new BaseBPlusTree.Entry<>(next.key, next.data);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void beginBatch() throws IOException {
+        if (modified)
+            return;
+        // the inconsistent mark has to be on disk before any bucket is modified
+        hashMap.beginBatch();
+        randomAccessFile.getChannel().force(false);
+        modified = true;
+    }
+
+    @Override
+    public void commitBatch() throws IOException {
+        // the map stays marked as not consistent till the next sync
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (!modified)
+            return;
+        randomAccessFile.getChannel().force(false);
+        hashMap.commitBatch();
+        randomAccessFile.getChannel().force(false);
+        modified = false;
+    }
+
+    @Override
+    public ILoader createLoader(File tempDir) throws IOException {
+        // nothing to gain from sorting, just put all entries in a single batch
+        beginBatch();
+        return new ILoader() {
+            @Override
+            public void add(byte[] hash, long position) throws IOException {
+                hashMap.put(hash, position);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                commitBatch();
+            }
+        };
+    }
+}
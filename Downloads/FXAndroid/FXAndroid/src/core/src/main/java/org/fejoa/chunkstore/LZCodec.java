@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Fast LZ77 codec using the LZ4 block format.
+ *
+ * A block is a list of sequences: [token][extra literal length][literals][offset short LE][extra match length]. The
+ * high nibble of the token is the literal length and the low nibble the match length - 4; 15 means that the length
+ * continues in the following bytes (255 means continue). The last sequence only contains literals.
+ */
+public class LZCodec {
+    final static private int MIN_MATCH = 4;
+    // the last match has to start at least 12 bytes before the end
+    final static private int MF_LIMIT = 12;
+    // the last 5 bytes are always literals
+    final static private int LAST_LITERALS = 5;
+    final static private int MAX_OFFSET = 65535;
+    final static private int HASH_BITS = 12;
+    // the match table is reused for all blocks compressed by a thread
+    final static private ThreadLocal<int[]> matchTable = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_BITS];
+        }
+    };
+
+    static public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    static private int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8 | (data[position + 2] & 0xFF) << 16
+                | (data[position + 3] & 0xFF) << 24;
+    }
+
+    static private int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    static private int writeLength(byte[] out, int position, int length) {
+        while (length >= 255) {
+            out[position++] = (byte)255;
+            length -= 255;
+        }
+        out[position++] = (byte)length;
+        return position;
+    }
+
+    static private int writeSequence(byte[] out, int op, byte[] src, int literalStart, int literalLength,
+                                     int offset, int matchLength) {
+        int tokenPosition = op++;
+        int token = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15)
+            op = writeLength(out, op, literalLength - 15);
+        System.arraycopy(src, literalStart, out, op, literalLength);
+        op += literalLength;
+        if (matchLength > 0) {
+            out[op++] = (byte)offset;
+            out[op++] = (byte)(offset >>> 8);
+            int length = matchLength - MIN_MATCH;
+            token |= Math.min(length, 15);
+            if (length >= 15)
+                op = writeLength(out, op, length - 15);
+        }
+        out[tokenPosition] = (byte)token;
+        return op;
+    }
+
+    static public byte[] compress(byte[] src) {
+        return compress(src, 0, src.length);
+    }
+
+    static public byte[] compress(byte[] src, int offset, int length) {
+        byte[] out = new byte[maxCompressedLength(length)];
+        int end = offset + length;
+        int op = 0;
+        int anchor = offset;
+        if (length > MF_LIMIT) {
+            int[] table = matchTable.get();
+            Arrays.fill(table, -1);
+            int limit = end - MF_LIMIT;
+            int ip = offset;
+            while (ip < limit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < end - LAST_LITERALS && src[ref + matchLength] == src[ip + matchLength])
+                    matchLength++;
+                op = writeSequence(out, op, src, anchor, ip - anchor, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        op = writeSequence(out, op, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    static private int readLength(byte[] src, int[] position) throws IOException {
+        int length = 0;
+        int value;
+        do {
+            if (position[0] >= src.length)
+                throw new IOException("Truncated LZ block");
+            value = src[position[0]++] & 0xFF;
+            length += value;
+        } while (value == 255);
+        return length;
+    }
+
+    static public byte[] decompress(byte[] src, int offset, int length, int rawLength) throws IOException {
+        byte[] out = new byte[rawLength];
+        int end = offset + length;
+        int[] ip = {offset};
+        int op = 0;
+        try {
+            while (ip[0] < end) {
+                int token = src[ip[0]++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15)
+                    literalLength += readLength(src, ip);
+                System.arraycopy(src, ip[0], out, op, literalLength);
+                ip[0] += literalLength;
+                op += literalLength;
+                if (ip[0] >= end)
+                    break;
+
+                int matchOffset = (src[ip[0]] & 0xFF) | (src[ip[0] + 1] & 0xFF) << 8;
+                ip[0] += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15)
+                    matchLength += readLength(src, ip);
+                matchLength += MIN_MATCH;
+                int ref = op - matchOffset;
+                if (matchOffset == 0 || ref < 0)
+                    throw new IOException("Invalid LZ match offset");
+                // may overlap, copy byte by byte
+                for (int i = 0; i < matchLength; i++)
+                    out[op++] = out[ref++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted LZ block", e);
+        }
+        if (op != rawLength)
+            throw new IOException("LZ block length mismatch");
+        return out;
+    }
+}
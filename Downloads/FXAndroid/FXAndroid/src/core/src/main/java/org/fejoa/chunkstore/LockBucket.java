@@ -11,10 +11,13 @@ import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class LockBucket {
     private Map<String, WeakReference<Lock>> lockMap = new HashMap<>();
+    private Map<String, WeakReference<ReadWriteLock>> readWriteLockMap = new HashMap<>();
 
     synchronized public Lock getLock(String id) {
         WeakReference<Lock> weakObject = lockMap.get(id);
@@ -30,6 +33,20 @@ public class LockBucket {
         return lock;
     }
 
+    synchronized public ReadWriteLock getReadWriteLock(String id) {
+        WeakReference<ReadWriteLock> weakObject = readWriteLockMap.get(id);
+        if (weakObject != null) {
+            ReadWriteLock lock = weakObject.get();
+            if (lock != null)
+                return lock;
+        }
+
+        // create new lock
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        readWriteLockMap.put(id, new WeakReference<>(lock));
+        return lock;
+    }
+
     static private LockBucket instance;
     synchronized static public LockBucket getInstance() {
         if (instance == null)
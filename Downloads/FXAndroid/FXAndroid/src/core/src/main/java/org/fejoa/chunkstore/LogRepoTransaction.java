@@ -64,19 +64,25 @@ public class LogRepoTransaction implements IRepoChunkAccessors.ITransaction {
             @Override
             public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
                 PutResult<HashValue> result = chunkAccessor.putChunk(data, ivHash);
-                if (!result.wasInDatabase)
-                    objectsWritten.add(result.key);
+                // chunks may be put concurrently, see ChunkContainerOutputStream
+                if (!result.wasInDatabase) {
+                    synchronized (objectsWritten) {
+                        objectsWritten.add(result.key);
+                    }
+                }
 
                 return result;
             }
 
             @Override
             public void releaseChunk(HashValue data) {
-                for (HashValue written : objectsWritten) {
-                    if (!written.equals(data))
-                        continue;
-                    objectsWritten.remove(written);
-                    break;
+                synchronized (objectsWritten) {
+                    for (HashValue written : objectsWritten) {
+                        if (!written.equals(data))
+                            continue;
+                        objectsWritten.remove(written);
+                        break;
+                    }
                 }
             }
         };
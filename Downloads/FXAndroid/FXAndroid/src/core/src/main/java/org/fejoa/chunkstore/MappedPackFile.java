@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Append-only pack file that is split into memory-mapped segments.
+ *
+ * Segments are stored in the files name.pack.0, name.pack.1, ... Each segment has the layout:
+ * [version short][hashSize short][maxSegmentSize int][tail long][hash][len int][codec byte][data]...
+ * Segments of version 1 packs have no codec byte.
+ *
+ * A position is a long that contains the segment index in the upper 32 bits and the offset within the segment in the
+ * lower 32 bits. Thus every segment is smaller than 2GB but the pack as a whole is not limited.
+ *
+ * Modifications of the segment list and the mappings are synchronized on the pack so that sync() can be called without
+ * holding the lock of the chunk store.
+ */
+public class MappedPackFile implements IPackFile {
+    final static public String SEGMENT_EXT = ".pack.";
+    final static public int DEFAULT_MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+    final static private int INITIAL_MAP_SIZE = 1024 * 1024;
+    final static private int TAIL_OFFSET = 2 + 2 + 4;
+
+    private class Segment {
+        final private File file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int tail;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        void create() throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+            map(INITIAL_MAP_SIZE);
+            buffer.putShort(0, version);
+            buffer.putShort(2, hashSize);
+            buffer.putInt(4, maxSegmentSize);
+            setTail(headerSize());
+        }
+
+        void open() throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            map((int)Math.max(channel.size(), headerSize()));
+            tail = (int)buffer.getLong(TAIL_OFFSET);
+        }
+
+        private void map(int size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void setTail(int tail) {
+            this.tail = tail;
+            buffer.putLong(TAIL_OFFSET, tail);
+        }
+
+        boolean fits(int recordSize) {
+            return (long)tail + recordSize <= maxSegmentSize;
+        }
+
+        int append(HashValue hash, PackCodec.Encoded encoded) throws IOException {
+            int position = tail;
+            int end = position + recordSize(encoded.payload);
+            if (end > buffer.capacity()) {
+                long newSize = buffer.capacity();
+                while (newSize < end)
+                    newSize *= 2;
+                map((int)Math.min(newSize, maxSegmentSize));
+            }
+            ByteBuffer out = buffer.duplicate();
+            out.position(position);
+            out.put(hash.getBytes());
+            out.putInt(encoded.payload.length);
+            if (version >= CODEC_VERSION)
+                out.put(encoded.codec);
+            out.put(encoded.payload);
+            setTail(end);
+            return position;
+        }
+
+        Record read(int index, int offset) throws IOException {
+            if ((long)offset + recordHeaderSize() > tail)
+                return null;
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            byte[] hash = new byte[hashSize];
+            in.get(hash);
+            int size = in.getInt();
+            byte codec = version >= CODEC_VERSION ? in.get() : PackCodec.NONE;
+            if (size < 0 || (long)offset + recordHeaderSize() + size > tail)
+                return null;
+            byte[] payload = new byte[size];
+            in.get(payload);
+            return new Record(toPosition(index, offset), hash, codec, payload,
+                    toPosition(index, offset + recordHeaderSize() + size));
+        }
+
+        void truncate(int end) {
+            setTail(end);
+        }
+
+        byte[] get(int offset, byte[] expectedHash) throws IOException {
+            if (offset < headerSize() || offset >= tail)
+                throw new IOException("Invalid pack position " + offset + " in " + file.getName());
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            byte[] hash = new byte[hashSize];
+            in.get(hash);
+            if (expectedHash != null && !Arrays.equals(expectedHash, hash))
+                throw new IOException("Unexpected chunk at position " + offset + " in " + file.getName());
+            byte[] payload = new byte[in.getInt()];
+            byte codec = version >= CODEC_VERSION ? in.get() : PackCodec.NONE;
+            in.get(payload);
+            return PackCodec.decode(codec, payload);
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            buffer = null;
+            channel.close();
+        }
+    }
+
+    final private File dir;
+    final private String name;
+    final private List<Segment> segments = new ArrayList<>();
+    // first segment that has not been synced since it was modified
+    private int unsyncedSegment = 0;
+    private short version;
+    private short hashSize;
+    private int maxSegmentSize;
+
+    public MappedPackFile(File dir, String name) {
+        this(dir, name, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    public MappedPackFile(File dir, String name, int maxSegmentSize) {
+        this.dir = dir;
+        this.name = name;
+        this.version = CODEC_VERSION;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    static public boolean exists(File dir, String name) {
+        return getSegmentFile(dir, name, 0).exists();
+    }
+
+    static private File getSegmentFile(File dir, String name, int index) {
+        return new File(dir, name + SEGMENT_EXT + index);
+    }
+
+    static public void delete(File dir, String name) {
+        int count = 0;
+        while (getSegmentFile(dir, name, count).exists())
+            count++;
+        // delete from the back so that an interrupted delete leaves a valid prefix of segments
+        for (int i = count - 1; i >= 0; i--)
+            getSegmentFile(dir, name, i).delete();
+    }
+
+    /**
+     * Replaces the segments of the pack "to" with the segments of the pack "from".
+     *
+     * This is not atomic but it can be called again to complete an interrupted replace: the old segments are only
+     * deleted while the first new segment has not been moved.
+     */
+    static public void replace(File dir, String from, String to) throws IOException {
+        if (getSegmentFile(dir, from, 0).exists())
+            delete(dir, to);
+        for (int i = 0; ; i++) {
+            File segment = getSegmentFile(dir, from, i);
+            if (!segment.exists()) {
+                // already moved?
+                if (getSegmentFile(dir, to, i).exists())
+                    continue;
+                break;
+            }
+            Files.move(segment.toPath(), getSegmentFile(dir, to, i).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private int headerSize() {
+        return TAIL_OFFSET + 8;
+    }
+
+    static private long toPosition(int segmentIndex, int offset) {
+        return ((long)segmentIndex << 32) | offset;
+    }
+
+    private int recordHeaderSize() {
+        // hash + length (+ codec)
+        return hashSize + 4 + (version >= CODEC_VERSION ? 1 : 0);
+    }
+
+    private int recordSize(byte[] payload) {
+        return recordHeaderSize() + payload.length;
+    }
+
+    @Override
+    synchronized public void create(int hashSize) throws IOException {
+        close();
+        delete(dir, name);
+
+        this.version = CODEC_VERSION;
+        this.hashSize = (short)hashSize;
+        this.unsyncedSegment = 0;
+        addSegment();
+    }
+
+    @Override
+    synchronized public void open() throws IOException {
+        if (segments.size() > 0)
+            return;
+        for (int i = 0; ; i++) {
+            File file = getSegmentFile(dir, name, i);
+            if (!file.exists())
+                break;
+            Segment segment = new Segment(file);
+            segment.open();
+            segments.add(segment);
+        }
+        if (segments.size() == 0)
+            throw new IOException("No pack segments found for " + name);
+        unsyncedSegment = segments.size() - 1;
+
+        ByteBuffer header = segments.get(0).buffer;
+        version = header.getShort(0);
+        hashSize = header.getShort(2);
+        maxSegmentSize = header.getInt(4);
+    }
+
+    private Segment addSegment() throws IOException {
+        Segment segment = new Segment(getSegmentFile(dir, name, segments.size()));
+        segment.create();
+        segments.add(segment);
+        return segment;
+    }
+
+    @Override
+    synchronized public long put(HashValue hash, byte[] data) throws IOException {
+        PackCodec.Encoded encoded = version >= CODEC_VERSION ? PackCodec.encode(data)
+                : new PackCodec.Encoded(PackCodec.NONE, data);
+        int recordSize = recordSize(encoded.payload);
+        if (headerSize() + recordSize > maxSegmentSize)
+            throw new IOException("Chunk too large for pack segment: " + data.length);
+        Segment segment = segments.get(segments.size() - 1);
+        if (!segment.fits(recordSize))
+            segment = addSegment();
+        int offset = segment.append(hash, encoded);
+        return toPosition(segments.size() - 1, offset);
+    }
+
+    @Override
+    public byte[] get(long position, byte[] expectedHash) throws IOException {
+        int index = (int)(position >>> 32);
+        if (index >= segments.size())
+            throw new IOException("Invalid pack segment " + index);
+        return segments.get(index).get((int)position, expectedHash);
+    }
+
+    @Override
+    public Record read(long position) throws IOException {
+        int index = (int)(position >>> 32);
+        int offset = (int)position;
+        // continue in the next segment when reaching the end of a segment
+        for (; index < segments.size(); index++, offset = headerSize()) {
+            Segment segment = segments.get(index);
+            if (offset < segment.tail)
+                return segment.read(index, offset);
+        }
+        return null;
+    }
+
+    @Override
+    public long getStart() {
+        return headerSize();
+    }
+
+    @Override
+    public long getEnd() {
+        int index = segments.size() - 1;
+        return toPosition(index, segments.get(index).tail);
+    }
+
+    @Override
+    synchronized public void truncate(long end) throws IOException {
+        int index = (int)(end >>> 32);
+        while (segments.size() > index + 1) {
+            Segment segment = segments.remove(segments.size() - 1);
+            segment.close();
+            segment.file.delete();
+        }
+        segments.get(index).truncate((int)end);
+        unsyncedSegment = Math.min(unsyncedSegment, index);
+    }
+
+    /**
+     * Flushes all mapped segments that have been modified since the last sync.
+     *
+     * The mappings are collected under the lock and flushed outside of it, i.e. appends can continue meanwhile. A
+     * mapping stays valid when its segment is remapped or closed; it still covers everything that has been appended
+     * before the call.
+     */
+    @Override
+    public void sync() throws IOException {
+        int first;
+        int last;
+        List<MappedByteBuffer> buffers = new ArrayList<>();
+        synchronized (this) {
+            first = unsyncedSegment;
+            last = segments.size() - 1;
+            for (int i = first; i <= last; i++)
+                buffers.add(segments.get(i).buffer);
+        }
+        for (MappedByteBuffer buffer : buffers)
+            buffer.force();
+        synchronized (this) {
+            // don't skip segments that have been truncated and rewritten meanwhile
+            if (unsyncedSegment == first)
+                unsyncedSegment = Math.max(first, Math.min(last, segments.size() - 1));
+        }
+    }
+
+    @Override
+    synchronized public void close() throws IOException {
+        for (Segment segment : segments)
+            segment.close();
+        segments.clear();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compression of chunk bodies inside a pack file.
+ *
+ * The codec is picked per chunk: the beginning of the chunk is compressed with the fast LZ codec and, depending on how
+ * well this probe compresses, the chunk is stored raw (e.g. encrypted chunks), LZ compressed or deflated.
+ *
+ * Compressed payloads have the layout: [raw length int][compressed data]
+ */
+public class PackCodec {
+    final static public byte NONE = 0;
+    final static public byte DEFLATE = 1;
+    final static public byte LZ = 2;
+
+    final static private int MIN_SIZE = 128;
+    final static private int PROBE_SIZE = 4 * 1024;
+    // store the chunk raw if the probe doesn't shrink below this ratio
+    final static private float INCOMPRESSIBLE_RATIO = 0.9f;
+    // use the slower deflate codec if the probe shrinks below this ratio
+    final static private float DEFLATE_RATIO = 0.5f;
+
+    static public class Encoded {
+        final public byte codec;
+        final public byte[] payload;
+
+        Encoded(byte codec, byte[] payload) {
+            this.codec = codec;
+            this.payload = payload;
+        }
+    }
+
+    static public Encoded encode(byte[] data) {
+        if (data.length < MIN_SIZE)
+            return new Encoded(NONE, data);
+        int probeSize = Math.min(data.length, PROBE_SIZE);
+        byte[] probe = LZCodec.compress(data, 0, probeSize);
+        float ratio = (float)probe.length / probeSize;
+        if (ratio > INCOMPRESSIBLE_RATIO)
+            return new Encoded(NONE, data);
+
+        byte codec;
+        byte[] compressed;
+        if (ratio < DEFLATE_RATIO) {
+            codec = DEFLATE;
+            compressed = deflate(data);
+        } else {
+            codec = LZ;
+            compressed = probeSize == data.length ? probe : LZCodec.compress(data);
+        }
+        if (compressed.length + 4 >= data.length)
+            return new Encoded(NONE, data);
+        ByteBuffer payload = ByteBuffer.allocate(4 + compressed.length);
+        payload.putInt(data.length);
+        payload.put(compressed);
+        return new Encoded(codec, payload.array());
+    }
+
+    static public byte[] decode(byte codec, byte[] payload) throws IOException {
+        if (codec == NONE)
+            return payload;
+        if (payload.length < 4)
+            throw new IOException("Invalid compressed chunk");
+        int rawLength = ByteBuffer.wrap(payload).getInt();
+        if (rawLength < 0)
+            throw new IOException("Invalid compressed chunk length");
+        switch (codec) {
+            case DEFLATE:
+                return inflate(payload, 4, payload.length - 4, rawLength);
+            case LZ:
+                return LZCodec.decompress(payload, 4, payload.length - 4, rawLength);
+            default:
+                throw new IOException("Unknown chunk codec: " + codec);
+        }
+    }
+
+    static private byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 2);
+        byte[] buffer = new byte[8 * 1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            outputStream.write(buffer, 0, length);
+        }
+        deflater.end();
+        return outputStream.toByteArray();
+    }
+
+    static private byte[] inflate(byte[] data, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, offset, length);
+        byte[] out = new byte[rawLength];
+        try {
+            int outLength = 0;
+            while (outLength < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(out, outLength, rawLength - outLength);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                outLength += read;
+            }
+            if (outLength != rawLength || !inflater.finished())
+                throw new IOException("Deflated chunk length mismatch");
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+}
@@ -7,27 +7,104 @@
  */
 package org.fejoa.chunkstore;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 
 
-public class PackFile {
+interface IPackFile {
+    // first pack version that stores a codec byte in front of each record body
+    short CODEC_VERSION = 2;
+
+    class Record {
+        final long position;
+        final byte[] hash;
+        final byte codec;
+        final byte[] payload;
+        // position of the following record
+        final long next;
+
+        Record(long position, byte[] hash, byte codec, byte[] payload, long next) {
+            this.position = position;
+            this.hash = hash;
+            this.codec = codec;
+            this.payload = payload;
+            this.next = next;
+        }
+
+        // decoding is deferred since most records are only scanned for their hash
+        byte[] getData() throws IOException {
+            return PackCodec.decode(codec, payload);
+        }
+    }
+
+    void create(int hashSize) throws IOException;
+    void open() throws IOException;
+    long put(HashValue hash, byte[] data) throws IOException;
+    byte[] get(long position, byte[] expectedHash) throws IOException;
+
+    /**
+     * Reads the record at the given position.
+     *
+     * @return null if there is no complete record at the position
+     */
+    Record read(long position) throws IOException;
+    // position of the first record
+    long getStart();
+    // position where the next record is appended
+    long getEnd() throws IOException;
+    // discards all records at and after the given position
+    void truncate(long end) throws IOException;
+    // flushes all appended records to the disk
+    void sync() throws IOException;
+    void close() throws IOException;
+}
+
+public class PackFile implements IPackFile {
     private boolean isOpen;
     private short version;
     private short hashSize;
     final private RandomAccessFile file;
+    // records are assembled in this buffer; puts are serialized by the chunk store
+    private byte[] recordBuffer = new byte[0];
+    final static private int MAX_RECORD_BUFFER_SIZE = 1024 * 1024;
 
     public PackFile(RandomAccessFile file) {
         this.file = file;
         reset();
     }
 
+    static public File getFile(File dir, String name) {
+        return new File(dir, name + ".pack");
+    }
+
+    static public void delete(File dir, String name) {
+        getFile(dir, name).delete();
+    }
+
+    /**
+     * Atomically replaces the pack "to" with the pack "from". Does nothing if "from" has already been moved.
+     */
+    static public void replace(File dir, String from, String to) throws IOException {
+        File source = getFile(dir, from);
+        if (!source.exists())
+            return;
+        Files.move(source.toPath(), getFile(dir, to).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
     private void reset() {
         isOpen = false;
-        version = 1;
+        version = CODEC_VERSION;
     }
 
+    @Override
     public void create(int hashSize) throws IOException {
         reset();
 
@@ -38,10 +115,12 @@ public class PackFile {
         writeHeader();
     }
 
+    @Override
     public void open() throws IOException {
         if (isOpen)
             return;
         readHeader();
+        isOpen = true;
     }
 
     private void readHeader() throws IOException {
@@ -57,28 +136,108 @@ public class PackFile {
     }
 
     private long headerSize() {
-        return 2 * 4;
+        // version + hash size
+        return 2 + 2;
+    }
+
+    private int recordHeaderSize() {
+        // hash + length (+ codec)
+        return hashSize + 4 + (version >= CODEC_VERSION ? 1 : 0);
     }
 
+    @Override
     public long put(HashValue hash, byte[] data) throws IOException {
+        PackCodec.Encoded encoded = version >= CODEC_VERSION ? PackCodec.encode(data)
+                : new PackCodec.Encoded(PackCodec.NONE, data);
+        // write the record in one go
+        int recordSize = recordHeaderSize() + encoded.payload.length;
+        byte[] buffer = recordBuffer;
+        if (buffer.length < recordSize) {
+            buffer = new byte[recordSize];
+            if (recordSize <= MAX_RECORD_BUFFER_SIZE)
+                recordBuffer = buffer;
+        }
+        ByteBuffer record = ByteBuffer.wrap(buffer, 0, recordSize);
+        record.put(hash.getBytes());
+        record.putInt(encoded.payload.length);
+        if (version >= CODEC_VERSION)
+            record.put(encoded.codec);
+        record.put(encoded.payload);
+
         long position = file.length();
         file.seek(position);
-        file.write(hash.getBytes());
-        file.writeInt(data.length);
-        file.write(data);
+        file.write(buffer, 0, recordSize);
         return position;
     }
 
-    public byte[] get(int position, byte[] expectedHash) throws IOException {
-        file.seek(position);
+    /**
+     * Positional read that doesn't move the file pointer so that concurrent readers don't interfere.
+     */
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public byte[] get(long position, byte[] expectedHash) throws IOException {
+        ByteBuffer in = readFully(position, recordHeaderSize());
         byte[] hash = new byte[hashSize];
-        file.readFully(hash);
+        in.get(hash);
         if (expectedHash != null && !Arrays.equals(expectedHash, hash))
             throw new IOException("Unexpected chunk at position " + position);
 
-        int length = file.readInt();
-        byte[] data = new byte[length];
-        file.readFully(data);
-        return data;
+        int length = in.getInt();
+        byte codec = version >= CODEC_VERSION ? in.get() : PackCodec.NONE;
+        byte[] payload = readFully(position + recordHeaderSize(), length).array();
+        return PackCodec.decode(codec, payload);
+    }
+
+    @Override
+    public Record read(long position) throws IOException {
+        long length = file.length();
+        if (position + recordHeaderSize() > length)
+            return null;
+        ByteBuffer in = readFully(position, recordHeaderSize());
+        byte[] hash = new byte[hashSize];
+        in.get(hash);
+        int size = in.getInt();
+        byte codec = version >= CODEC_VERSION ? in.get() : PackCodec.NONE;
+        long next = position + recordHeaderSize() + size;
+        if (size < 0 || next > length)
+            return null;
+        byte[] payload = readFully(position + recordHeaderSize(), size).array();
+        return new Record(position, hash, codec, payload, next);
+    }
+
+    @Override
+    public long getStart() {
+        return headerSize();
+    }
+
+    @Override
+    public long getEnd() throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public void truncate(long end) throws IOException {
+        file.setLength(end);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        file.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        isOpen = false;
+        file.close();
     }
 }
@@ -10,26 +10,137 @@ package org.fejoa.chunkstore;
 import org.rabinfingerprint.fingerprint.RabinFingerprintLongWindowed;
 import org.rabinfingerprint.polynomial.Polynomial;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 
 public class RabinSplitter extends ChunkSplitter {
-    // Init the window is expensive so cache it this bucket and reuse it to create a new window.
-    static private class WindowBucket {
-        final private Map<Integer, RabinFingerprintLongWindowed> bucket = new HashMap<>();
-
-        public RabinFingerprintLongWindowed get(int windowSize) {
-            RabinFingerprintLongWindowed window = bucket.get(windowSize);
-            if (window != null)
-                return new RabinFingerprintLongWindowed(window);
-            window = new RabinFingerprintLongWindowed(Polynomial.createFromLong(9256118209264353l), windowSize);
-            bucket.put(windowSize, window);
-            return window;
+    /**
+     * Computing the window tables is expensive. The tables are computed once per polynomial and window size and are
+     * shared by all splitters; each splitter gets its own window state.
+     *
+     * Tables can be bundled as a resource (rabin-[polynomial hex]-[window size].tables: 512 push and 256 pop table
+     * longs) so that the first splitter doesn't pay for the computation.
+     */
+    static class WindowCache {
+        final static private int MAX_ENTRIES = 8;
+
+        static private class Key {
+            final long polynomial;
+            final int windowSize;
+
+            Key(long polynomial, int windowSize) {
+                this.polynomial = polynomial;
+                this.windowSize = windowSize;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key))
+                    return false;
+                return ((Key) o).polynomial == polynomial && ((Key) o).windowSize == windowSize;
+            }
+
+            @Override
+            public int hashCode() {
+                return (int)(polynomial ^ (polynomial >>> 32)) * 31 + windowSize;
+            }
+        }
+
+        final private ConcurrentMap<Key, FutureTask<RabinFingerprintLongWindowed>> cache = new ConcurrentHashMap<>();
+
+        /**
+         * @return a window whose tables are shared; it must only be used to create new windows
+         */
+        public RabinFingerprintLongWindowed getTemplate(final long polynomial, final int windowSize) {
+            Key key = new Key(polynomial, windowSize);
+            FutureTask<RabinFingerprintLongWindowed> task = cache.get(key);
+            if (task == null) {
+                FutureTask<RabinFingerprintLongWindowed> newTask = new FutureTask<>(
+                        new Callable<RabinFingerprintLongWindowed>() {
+                    @Override
+                    public RabinFingerprintLongWindowed call() throws Exception {
+                        RabinFingerprintLongWindowed window = loadTemplate(polynomial, windowSize);
+                        if (window != null)
+                            return window;
+                        return new RabinFingerprintLongWindowed(Polynomial.createFromLong(polynomial), windowSize);
+                    }
+                });
+                task = cache.putIfAbsent(key, newTask);
+                if (task == null) {
+                    task = newTask;
+                    evict(key);
+                    // other threads wait for the result
+                    task.run();
+                }
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        cache.remove(key, task);
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        private void evict(Key keep) {
+            Iterator<Key> iterator = cache.keySet().iterator();
+            while (cache.size() > MAX_ENTRIES && iterator.hasNext()) {
+                Key key = iterator.next();
+                if (!key.equals(keep))
+                    iterator.remove();
+            }
+        }
+
+        static String getResourceName(long polynomial, int windowSize) {
+            return "rabin-" + Long.toHexString(polynomial) + "-" + windowSize + ".tables";
+        }
+
+        /**
+         * @return the window from the bundled tables or null if there are none
+         */
+        static RabinFingerprintLongWindowed loadTemplate(long polynomial, int windowSize) throws IOException {
+            InputStream resource = RabinSplitter.class.getResourceAsStream(getResourceName(polynomial, windowSize));
+            if (resource == null)
+                return null;
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(resource));
+            try {
+                long[] pushTable = new long[512];
+                for (int i = 0; i < pushTable.length; i++)
+                    pushTable[i] = inputStream.readLong();
+                long[] popTable = new long[256];
+                for (int i = 0; i < popTable.length; i++)
+                    popTable[i] = inputStream.readLong();
+                if (inputStream.read() != -1)
+                    throw new IOException("Invalid window table resource");
+                return new RabinFingerprintLongWindowed(Polynomial.createFromLong(polynomial), windowSize, pushTable,
+                        popTable);
+            } finally {
+                inputStream.close();
+            }
         }
     }
 
-    final static private WindowBucket bucket = new WindowBucket();
+    final static long DEFAULT_POLYNOMIAL = 9256118209264353L;
+    final static int DEFAULT_WINDOW_SIZE = 48;
+    final static WindowCache windowCache = new WindowCache();
     final private RabinFingerprintLongWindowed window;
 
     final static public int CHUNK_1KB = 1024;
@@ -41,7 +152,7 @@ public class RabinSplitter extends ChunkSplitter {
     final static private long MASK = 0xFFFFFFFFL;
 
     final private int targetChunkSize;
-    final private int windowSize = 48;
+    final private int windowSize = DEFAULT_WINDOW_SIZE;
     private long chunkSize;
     final private int minChunkSize;
     final private int maxChunkSize;
@@ -54,14 +165,14 @@ public class RabinSplitter extends ChunkSplitter {
         this.targetChunkSize = targetChunkSize;
         this.minChunkSize = minChunkSize;
         this.maxChunkSize = maxChunkSize;
-        this.window = bucket.get(windowSize);
+        this.window = new RabinFingerprintLongWindowed(windowCache.getTemplate(DEFAULT_POLYNOMIAL, windowSize));
     }
 
     private RabinSplitter(RabinSplitter splitter) {
         this.targetChunkSize = splitter.targetChunkSize;
         this.minChunkSize = splitter.minChunkSize;
         this.maxChunkSize = splitter.maxChunkSize;
-        this.window = splitter.window;
+        this.window = new RabinFingerprintLongWindowed(splitter.window);
     }
 
     public RabinSplitter() {
@@ -95,12 +206,50 @@ public class RabinSplitter extends ChunkSplitter {
         return false;
     }
 
+    @Override
+    protected int updateInternal(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        // bytes in front of the window of the first possible boundary are not fingerprinted
+        long skip = Math.min(length, minChunkSize - windowSize - 1 - chunkSize);
+        if (skip > 0) {
+            chunkSize += skip;
+            i += skip;
+        }
+        final long threshold = MASK / targetChunkSize;
+        while (i < end) {
+            chunkSize++;
+            window.pushByte(buffer[i++]);
+            if (chunkSize < minChunkSize)
+                continue;
+            if (chunkSize >= maxChunkSize || (window.getFingerprintLong() & MASK) < threshold)
+                return i - offset;
+        }
+        return -1;
+    }
+
     @Override
     protected void resetInternal() {
         chunkSize = 0;
         window.reset();
     }
 
+    @Override
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @Override
+    protected boolean restoreInternal(byte[] buffer, int offset, int length) {
+        int last = length - 1;
+        // fill the window with the bytes in front of the last byte
+        int start = Math.max(0, Math.max(last - windowSize, minChunkSize - windowSize - 1));
+        for (int i = start; i < last; i++)
+            window.pushByte(buffer[offset + i]);
+        chunkSize = last;
+        return updateInternal(buffer[offset + last]);
+    }
+
     @Override
     public ChunkSplitter newInstance() {
         return new RabinSplitter(this);
@@ -52,6 +52,13 @@ public class Repository extends AsyncDatabase {
         return getSyncRepo().getBranchLog();
     }
 
+    /**
+     * @see SyncRepository#collectGarbage()
+     */
+    public long collectGarbage() throws IOException, CryptoException {
+        return getSyncRepo().collectGarbage();
+    }
+
     public ChunkContainerRef commitInternal(String message, ICommitSignature commitSignature,
                                Collection<ChunkContainerRef> mergeParents) throws IOException, CryptoException {
         return getSyncRepo().commitInternal(message, commitSignature, mergeParents);
@@ -70,6 +77,13 @@ public class Repository extends AsyncDatabase {
         return getSyncRepo().getHeadCommit();
     }
 
+    /**
+     * @return a snapshot of the head commit that can be read while the repository is written
+     */
+    public RepositorySnapshot getSnapshot() {
+        return getSyncRepo().getSnapshot();
+    }
+
     public CommitCache getCommitCache() {
         return getSyncRepo().getCommitCache();
     }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.support.StreamHelper;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Read only view of a repository at a commit.
+ *
+ * A snapshot never changes once it has been created and can be read from any thread without taking the repository
+ * lock, i.e. readers neither wait for each other nor for an ongoing commit or merge. Uncommitted changes are not
+ * visible. Directories are loaded lazily and are shared by all readers of the snapshot.
+ *
+ * Chunks of a snapshot are only guaranteed to be available till the next garbage collection of the chunk store.
+ */
+public class RepositorySnapshot {
+    final private CommitBox commit;
+    final private IRepoChunkAccessors.ITransaction transaction;
+    // loads the chunks of large files ahead, may be null
+    final private ExecutorService executor;
+    final private FlatDirectoryBox root;
+    // directory path -> loaded directory
+    final private ConcurrentMap<String, FlatDirectoryBox> dirs = new ConcurrentHashMap<>();
+
+    RepositorySnapshot(CommitBox commit, IRepoChunkAccessors.ITransaction transaction, ExecutorService executor)
+            throws IOException, CryptoException {
+        this.commit = commit;
+        this.transaction = transaction;
+        this.executor = executor;
+        if (commit == null)
+            root = FlatDirectoryBox.create();
+        else
+            root = FlatDirectoryBox.read(transaction.getTreeAccessor(commit.getTree()), commit.getTree());
+    }
+
+    /**
+     * @return the commit of the snapshot or null if the repository was empty
+     */
+    public CommitBox getCommit() {
+        return commit;
+    }
+
+    public HashValue getTip() {
+        if (commit == null)
+            return Config.newDataHash();
+        return commit.getPlainHash();
+    }
+
+    IRepoChunkAccessors.ITransaction getTransaction() {
+        return transaction;
+    }
+
+    private String checkPath(String path) {
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        while (path.endsWith("/"))
+            path = path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    private FlatDirectoryBox getDir(String path) throws IOException, CryptoException {
+        if (path.equals(""))
+            return root;
+        FlatDirectoryBox dir = dirs.get(path);
+        if (dir != null)
+            return dir;
+
+        int separator = path.lastIndexOf('/');
+        FlatDirectoryBox parent = getDir(separator < 0 ? "" : path.substring(0, separator));
+        if (parent == null)
+            return null;
+        FlatDirectoryBox.Entry entry = parent.getEntry(path.substring(separator + 1));
+        if (entry == null || entry.isFile())
+            return null;
+        dir = FlatDirectoryBox.read(transaction.getTreeAccessor(entry.getDataPointer()), entry.getDataPointer());
+        // another reader may have been faster
+        FlatDirectoryBox existing = dirs.putIfAbsent(path, dir);
+        return existing != null ? existing : dir;
+    }
+
+    private FlatDirectoryBox.Entry getFileEntry(String path) throws IOException, CryptoException {
+        path = checkPath(path);
+        int separator = path.lastIndexOf('/');
+        FlatDirectoryBox dir = getDir(separator < 0 ? "" : path.substring(0, separator));
+        if (dir == null)
+            return null;
+        FlatDirectoryBox.Entry entry = dir.getEntry(path.substring(separator + 1));
+        if (entry == null || !entry.isFile())
+            return null;
+        return entry;
+    }
+
+    private ChunkContainer getChunkContainer(String path) throws IOException, CryptoException {
+        FlatDirectoryBox.Entry entry = getFileEntry(path);
+        if (entry == null)
+            throw new NoSuchFileException("Entry not found: " + path);
+        ChunkContainerRef ref = entry.getDataPointer();
+        return ChunkContainer.read(transaction.getFileAccessor(ref, checkPath(path)), ref);
+    }
+
+    public boolean hasFile(String path) throws IOException, CryptoException {
+        return getFileEntry(path) != null;
+    }
+
+    public List<String> listFiles(String path) throws IOException, CryptoException {
+        FlatDirectoryBox directoryBox = getDir(checkPath(path));
+        if (directoryBox == null)
+            return Collections.emptyList();
+        List<String> entries = new ArrayList<>();
+        for (FlatDirectoryBox.Entry fileEntry : directoryBox.getFiles())
+            entries.add(fileEntry.getName());
+        return entries;
+    }
+
+    public List<String> listDirectories(String path) throws IOException, CryptoException {
+        FlatDirectoryBox directoryBox = getDir(checkPath(path));
+        if (directoryBox == null)
+            return Collections.emptyList();
+        List<String> entries = new ArrayList<>();
+        for (FlatDirectoryBox.Entry dirEntry : directoryBox.getDirs())
+            entries.add(dirEntry.getName());
+        return entries;
+    }
+
+    public byte[] readBytes(String path) throws IOException, CryptoException {
+        return StreamHelper.readAll(ChunkContainerInputStream.create(getChunkContainer(path), executor));
+    }
+
+    public HashValue getHash(String path) throws IOException, CryptoException {
+        return getChunkContainer(path).hash();
+    }
+}
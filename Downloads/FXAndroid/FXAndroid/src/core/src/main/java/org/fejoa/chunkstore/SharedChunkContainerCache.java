@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.support.DoubleLinkedList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Node and data chunk cache that is shared by multiple chunk containers, e.g. by all containers of a repository.
+ *
+ * The cache holds up to capacity bytes. The upper keptMetadataLevels node levels of a container are pinned and not
+ * accounted. Each level has its own LRU list and lower levels are evicted first, i.e. data chunks are evicted before
+ * leaf nodes. A node is only evicted when it has been written and none of its children is in memory.
+ *
+ * The containers may be used by different threads, thus a container only evicts its own chunks. If that is not
+ * enough the containers that haven't been used for the longest time are forgotten, i.e. their entries are dropped
+ * from the accounting. The chunks of a forgotten container are detached the next time the container is used.
+ */
+public class SharedChunkContainerCache implements IChunkContainerCache {
+    final static public long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+    final static public int DEFAULT_KEPT_METADATA_LEVELS = 2;
+
+    static private class Entry extends DoubleLinkedList.Entry {
+        final IChunkPointer pointer;
+        final int level;
+        long size;
+
+        Entry(IChunkPointer pointer, int level, long size) {
+            this.pointer = pointer;
+            this.level = level;
+            this.size = size;
+        }
+    }
+
+    static private class ContainerEntries {
+        final List<DoubleLinkedList<Entry>> levels = new ArrayList<>();
+        final Map<IChunkPointer, Entry> entries = new HashMap<>();
+        long size = 0;
+        long lastUpdate = 0;
+    }
+
+    final private long capacity;
+    final private int keptMetadataLevels;
+    final private Map<ChunkContainer, ContainerEntries> containers = new IdentityHashMap<>();
+    final private Map<ChunkContainer, ContainerEntries> forgotten = new IdentityHashMap<>();
+    private long size = 0;
+    private long updates = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public SharedChunkContainerCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_KEPT_METADATA_LEVELS);
+    }
+
+    public SharedChunkContainerCache(long capacity, int keptMetadataLevels) {
+        this.capacity = capacity;
+        this.keptMetadataLevels = keptMetadataLevels;
+    }
+
+    @Override
+    synchronized public void update(ChunkContainer container, IChunkPointer dataChunkPointer,
+                                    ChunkContainerNode parent) {
+        assert ChunkContainer.isDataPointer(dataChunkPointer);
+        if (dataChunkPointer.getCachedChunk() != null)
+            hits++;
+        else
+            misses++;
+
+        ContainerEntries containerEntries = containers.get(container);
+        if (containerEntries == null) {
+            containerEntries = new ContainerEntries();
+            containers.put(container, containerEntries);
+            ContainerEntries staleEntries = forgotten.remove(container);
+            if (staleEntries != null)
+                detachStale(container, containerEntries, staleEntries, dataChunkPointer, parent);
+        }
+        containerEntries.lastUpdate = ++updates;
+        touch(containerEntries, dataChunkPointer, dataChunkPointer.getDataLength());
+        // the path to the data chunk is in use as well
+        ChunkContainerNode node = parent;
+        while (node.getParent() != null && !isPinned(container, node.getLevel())) {
+            touch(containerEntries, node.getChunkPointer(), node.getBlobLength());
+            node = node.getParent();
+        }
+        evict(container, containerEntries, dataChunkPointer, parent);
+        if (size > capacity)
+            forgetIdleContainers(container);
+    }
+
+    @Override
+    synchronized public void remove(ChunkContainer container, IChunkPointer pointer) {
+        ContainerEntries containerEntries = containers.get(container);
+        if (containerEntries == null)
+            return;
+        Entry entry = containerEntries.entries.get(pointer);
+        if (entry != null)
+            removeEntry(containerEntries, entry);
+    }
+
+    /**
+     * Drops the entries of a discarded container. The chunks are not detached.
+     */
+    @Override
+    synchronized public void removeContainer(ChunkContainer container) {
+        forgotten.remove(container);
+        ContainerEntries containerEntries = containers.remove(container);
+        if (containerEntries != null)
+            size -= containerEntries.size;
+    }
+
+    private boolean isPinned(ChunkContainer container, int level) {
+        if (level == ChunkContainerNode.DATA_LEVEL)
+            return false;
+        return container.getNLevels() - level <= keptMetadataLevels;
+    }
+
+    private void touch(ContainerEntries containerEntries, IChunkPointer pointer, long entrySize) {
+        Entry entry = containerEntries.entries.get(pointer);
+        if (entry != null) {
+            DoubleLinkedList<Entry> list = containerEntries.levels.get(entry.level);
+            list.remove(entry);
+            list.addFirst(entry);
+            // nodes grow and shrink while they are edited
+            containerEntries.size += entrySize - entry.size;
+            size += entrySize - entry.size;
+            entry.size = entrySize;
+            return;
+        }
+        int level = pointer.getLevel();
+        while (containerEntries.levels.size() <= level)
+            containerEntries.levels.add(new DoubleLinkedList<Entry>());
+        entry = new Entry(pointer, level, entrySize);
+        containerEntries.levels.get(level).addFirst(entry);
+        containerEntries.entries.put(pointer, entry);
+        containerEntries.size += entrySize;
+        size += entrySize;
+    }
+
+    private void removeEntry(ContainerEntries containerEntries, Entry entry) {
+        containerEntries.entries.remove(entry.pointer);
+        containerEntries.levels.get(entry.level).remove(entry);
+        containerEntries.size -= entry.size;
+        size -= entry.size;
+    }
+
+    /**
+     * Evicts chunks of the container that is used by the calling thread. The data chunk that is currently used and its
+     * path are kept.
+     */
+    private void evict(ChunkContainer container, ContainerEntries containerEntries, IChunkPointer current,
+                       ChunkContainerNode parent) {
+        List<DoubleLinkedList<Entry>> levels = containerEntries.levels;
+        for (int level = 0; level < levels.size() && size > capacity; level++) {
+            DoubleLinkedList<Entry> list = levels.get(level);
+            // entries that can't be evicted yet are moved to the front
+            int nEntries = list.size();
+            for (int i = 0; i < nEntries && size > capacity; i++) {
+                Entry entry = list.getTail();
+                if (!isAttached(container, entry)) {
+                    removeEntry(containerEntries, entry);
+                    continue;
+                }
+                if (isInUse(entry, current, parent) || !canEvict(entry)) {
+                    list.remove(entry);
+                    list.addFirst(entry);
+                    continue;
+                }
+                removeEntry(containerEntries, entry);
+                if (entry.pointer.getCachedChunk() != null) {
+                    entry.pointer.setCachedChunk(null);
+                    evictions++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of the least recently used other containers till the cache is within its capacity.
+     */
+    private void forgetIdleContainers(ChunkContainer current) {
+        while (size > capacity) {
+            ChunkContainer idle = null;
+            long lastUpdate = Long.MAX_VALUE;
+            for (Map.Entry<ChunkContainer, ContainerEntries> entry : containers.entrySet()) {
+                if (entry.getKey() == current || entry.getValue().lastUpdate >= lastUpdate)
+                    continue;
+                idle = entry.getKey();
+                lastUpdate = entry.getValue().lastUpdate;
+            }
+            if (idle == null)
+                return;
+            ContainerEntries idleEntries = containers.remove(idle);
+            size -= idleEntries.size;
+            forgotten.put(idle, idleEntries);
+        }
+    }
+
+    /**
+     * Detaches the chunks that a forgotten container still holds. Lower levels are handled first so that the nodes
+     * above are evictable when their children are gone. Chunks that are in use or can't be detached, e.g. nodes that
+     * haven't been written yet, are accounted again.
+     */
+    private void detachStale(ChunkContainer container, ContainerEntries containerEntries,
+                             ContainerEntries staleEntries, IChunkPointer current, ChunkContainerNode parent) {
+        for (DoubleLinkedList<Entry> list : staleEntries.levels) {
+            while (list.size() > 0) {
+                Entry entry = list.removeTail();
+                if (!isAttached(container, entry) || entry.pointer.getCachedChunk() == null)
+                    continue;
+                if (isInUse(entry, current, parent) || !canEvict(entry)) {
+                    touch(containerEntries, entry.pointer, entry.size);
+                    continue;
+                }
+                entry.pointer.setCachedChunk(null);
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * @return false if the node has been dropped from the container, e.g. because it became empty
+     */
+    private boolean isAttached(ChunkContainer container, Entry entry) {
+        IChunk chunk = entry.pointer.getCachedChunk();
+        if (chunk == null || entry.level == ChunkContainerNode.DATA_LEVEL)
+            return true;
+        ChunkContainerNode node = (ChunkContainerNode)chunk;
+        while (node.getParent() != null) {
+            if (node.getParent().indexOf(node.getChunkPointer()) < 0)
+                return false;
+            node = node.getParent();
+        }
+        return node == container;
+    }
+
+    /**
+     * @return true if the entry is the current data chunk or a node on its path
+     */
+    private boolean isInUse(Entry entry, IChunkPointer current, ChunkContainerNode parent) {
+        if (entry.pointer == current)
+            return true;
+        for (ChunkContainerNode node = parent; node != null; node = node.getParent()) {
+            if (node.getChunkPointer() == entry.pointer)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean canEvict(Entry entry) {
+        IChunk chunk = entry.pointer.getCachedChunk();
+        // data chunks are always stored when they are inserted
+        if (chunk == null || entry.level == ChunkContainerNode.DATA_LEVEL)
+            return true;
+        ChunkContainerNode node = (ChunkContainerNode)chunk;
+        if (!node.onDisk)
+            return false;
+        for (IChunkPointer child : node.getChunkPointers()) {
+            if (child.getCachedChunk() != null)
+                return false;
+        }
+        return true;
+    }
+
+    synchronized public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes of the cached entries
+     */
+    synchronized public long getSize() {
+        return size;
+    }
+
+    synchronized public int getEntryCount() {
+        int count = 0;
+        for (ContainerEntries containerEntries : containers.values())
+            count += containerEntries.entries.size();
+        return count;
+    }
+
+    @Override
+    synchronized public long getHits() {
+        return hits;
+    }
+
+    @Override
+    synchronized public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    synchronized public long getEvictions() {
+        return evictions;
+    }
+
+    synchronized public void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+}
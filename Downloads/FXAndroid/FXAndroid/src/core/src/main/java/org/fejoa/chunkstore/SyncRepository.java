@@ -16,6 +16,9 @@ import java.io.*;
 import java.lang.ref.WeakReference;
 import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import static org.fejoa.library.database.IIOSyncDatabase.Mode.READ;
 import static org.fejoa.library.database.IIOSyncDatabase.Mode.TRUNCATE;
@@ -23,6 +26,18 @@ import static org.fejoa.library.database.IIOSyncDatabase.Mode.WRITE;
 
 
 class SyncRepository implements ISyncDatabase {
+    // stores the chunks of written files and loads the chunks of read files ahead; shared by all repositories and
+    // doesn't keep the VM alive
+    final static private ExecutorService chunkExecutor = Executors.newFixedThreadPool(
+            Math.min(4, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ChunkIO");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     final private File dir;
     final private String branch;
     final private ChunkStoreBranchLog log;
@@ -32,7 +47,14 @@ class SyncRepository implements ISyncDatabase {
     private LogRepoTransaction transaction;
     private TreeAccessor treeAccessor;
     final private CommitCache commitCache;
+    final private CommitGraph commitGraph;
     final private ChunkSplitter chunkSplitter = new RabinSplitter();
+    // node and data chunk cache of the open files
+    final private SharedChunkContainerCache containerCache = new SharedChunkContainerCache();
+    // replaced, never modified, when the head commit changes
+    private volatile RepositorySnapshot snapshot;
+    // true if there are no uncommitted changes, i.e. reads can use the snapshot and don't need the lock
+    private volatile boolean snapshotIsCurrent = false;
 
     public SyncRepository(File dir, String branch, HashValue commit, IRepoChunkAccessors chunkAccessors,
                           ICommitCallback commitCallback) throws IOException, CryptoException {
@@ -41,6 +63,7 @@ class SyncRepository implements ISyncDatabase {
         this.accessors = chunkAccessors;
         this.transaction = new LogRepoTransaction(accessors.startTransaction());
         this.log = getLog(dir, branch);
+        this.commitGraph = CommitGraph.open(getCommitGraphFile(dir, branch));
         this.commitCallback = commitCallback;
 
         ChunkContainerRef headCommitPointer = null;
@@ -52,8 +75,11 @@ class SyncRepository implements ISyncDatabase {
         } else {
             headCommit = CommitBox.read(transaction.getCommitAccessor(headCommitPointer), headCommitPointer);
             root = FlatDirectoryBox.read(transaction.getTreeAccessor(headCommit.getTree()), headCommit.getTree());
+            // only reads the whole history if the graph doesn't exist yet
+            commitGraph.add(headCommit, transaction);
         }
         this.treeAccessor = new TreeAccessor(root, transaction);
+        publishSnapshot();
         commitCache = new CommitCache(this);
 
         if (commit != null && !commit.isZero())
@@ -80,10 +106,26 @@ class SyncRepository implements ISyncDatabase {
     }
 
     private void setHeadCommit(CommitBox headCommit) throws IOException, CryptoException {
+        commitGraph.add(headCommit, transaction);
         this.headCommit = headCommit;
         FlatDirectoryBox root = FlatDirectoryBox.read(transaction.getTreeAccessor(headCommit.getTree()),
                 headCommit.getTree());
         this.treeAccessor = new TreeAccessor(root, transaction);
+        publishSnapshot();
+    }
+
+    private void publishSnapshot() throws IOException, CryptoException {
+        snapshot = new RepositorySnapshot(headCommit, transaction, chunkExecutor);
+        snapshotIsCurrent = !treeAccessor.isModified() && !hasOpenWriteHandles();
+    }
+
+    /**
+     * Returns the snapshot of the head commit without taking the repository lock.
+     *
+     * The snapshot can be read concurrently to commits and merges, which publish a new snapshot when they are done.
+     */
+    public RepositorySnapshot getSnapshot() {
+        return snapshot;
     }
 
     public String getBranch() {
@@ -124,8 +166,14 @@ class SyncRepository implements ISyncDatabase {
         return commitCache;
     }
 
+    public SharedChunkContainerCache getContainerCache() {
+        return containerCache;
+    }
+
     @Override
     public HashValue getHash(String path) throws IOException, CryptoException {
+        if (snapshotIsCurrent)
+            return snapshot.getHash(path);
         synchronized (this) {
             FlatDirectoryBox.Entry entry = treeAccessor.get(path);
             if (!entry.isFile())
@@ -143,6 +191,14 @@ class SyncRepository implements ISyncDatabase {
         return new File(dir, "branches");
     }
 
+    static private File getCommitGraphFile(File dir, String branch) {
+        return new File(new File(dir, "commitgraphs"), branch);
+    }
+
+    public CommitGraph getCommitGraph() {
+        return commitGraph;
+    }
+
     public File getDir() {
         return dir;
     }
@@ -171,6 +227,13 @@ class SyncRepository implements ISyncDatabase {
 
     @Override
     public List<String> listFiles(String path) throws IOException {
+        if (snapshotIsCurrent) {
+            try {
+                return snapshot.listFiles(path);
+            } catch (CryptoException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
         synchronized (this) {
             FlatDirectoryBox directoryBox = getDirBox(path);
             if (directoryBox == null)
@@ -184,6 +247,13 @@ class SyncRepository implements ISyncDatabase {
 
     @Override
     public List<String> listDirectories(String path) throws IOException {
+        if (snapshotIsCurrent) {
+            try {
+                return snapshot.listDirectories(path);
+            } catch (CryptoException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
         synchronized (this) {
             FlatDirectoryBox directoryBox = getDirBox(path);
             if (directoryBox == null)
@@ -197,6 +267,8 @@ class SyncRepository implements ISyncDatabase {
 
     @Override
     public boolean hasFile(String path) throws IOException, CryptoException {
+        if (snapshotIsCurrent)
+            return snapshot.hasFile(path);
         synchronized (this) {
             return treeAccessor.hasFile(path);
         }
@@ -204,6 +276,8 @@ class SyncRepository implements ISyncDatabase {
 
     @Override
     public byte[] readBytes(String path) throws IOException, CryptoException {
+        if (snapshotIsCurrent)
+            return snapshot.readBytes(path);
         ISyncRandomDataAccess randomDataAccess = open(path, READ);
         byte[] date = StreamHelper.readAll(randomDataAccess);
         randomDataAccess.close();
@@ -221,10 +295,12 @@ class SyncRepository implements ISyncDatabase {
         List<String> paths = new ArrayList<>(openHandles.keySet());
         for (String path : paths) {
             for (ChunkContainerRandomDataAccess randomDataAccess : getOpenHandles(path)) {
-                if (!randomDataAccess.getMode().has(WRITE))
+                // only handles that changed the data since the last put have to be written
+                if (!randomDataAccess.isModified())
                     continue;
                 randomDataAccess.flush();
                 treeAccessor.put(path, FileBox.create(randomDataAccess.getChunkContainer()));
+                randomDataAccess.clearModified();
             }
         }
         return treeAccessor.build();
@@ -277,6 +353,16 @@ class SyncRepository implements ISyncDatabase {
         return refs;
     }
 
+    private boolean hasOpenWriteHandles() {
+        for (String path : new ArrayList<>(openHandles.keySet())) {
+            for (ChunkContainerRandomDataAccess randomDataAccess : getOpenHandles(path)) {
+                if (randomDataAccess.getMode().has(WRITE))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     private ChunkContainer findOpenChunkContainer(String path) {
         List<ChunkContainerRandomDataAccess> refs = getOpenHandles(path);
         if (refs.size() == 0)
@@ -309,9 +395,15 @@ class SyncRepository implements ISyncDatabase {
 
             @Override
             public void onClosed(ChunkContainerRandomDataAccess caller) throws IOException, CryptoException {
-                FileBox file = FileBox.create(caller.getChunkContainer());
-                treeAccessor.put(path, file);
-                unregisterHandel(path, caller);
+                synchronized (SyncRepository.this) {
+                    if (caller.isModified()) {
+                        treeAccessor.put(path, FileBox.create(caller.getChunkContainer()));
+                        caller.clearModified();
+                    }
+                    unregisterHandel(path, caller);
+                    if (getOpenHandles(path).isEmpty())
+                        containerCache.removeContainer(caller.getChunkContainer());
+                }
             }
         };
     }
@@ -319,55 +411,57 @@ class SyncRepository implements ISyncDatabase {
     private ChunkContainerRandomDataAccess createNewHandle(String path, Mode openFlags) throws IOException {
         ChunkContainerRef ref = new ChunkContainerRef();
         ChunkContainer chunkContainer = new ChunkContainer(transaction.getFileAccessor(ref, path), ref);
+        chunkContainer.setCache(containerCache);
         ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
-                openFlags, createIOCallback(path));
+                openFlags, createIOCallback(path), chunkExecutor);
+        // the new file has to be added even if nothing is written
+        randomDataAccess.markModified();
         registerHandle(path, randomDataAccess);
         return randomDataAccess;
     }
 
-    // TODO: remove when ChunkContainer supports truncate
-    private void swapChunkContainer(String path, ChunkContainer chunkContainer) {
-        for (ChunkContainerRandomDataAccess randomDataAccess : getOpenHandles(path))
-            randomDataAccess.setChunkContainer(chunkContainer);
-    }
-
     @Override
     public ISyncRandomDataAccess open(String path, Mode openFlags) throws IOException, CryptoException {
         synchronized (this) {
-            // hacky way to do truncate, when ChunkContainer supports truncate this should be done on the chunk
-            // container
-            if (openFlags.has(TRUNCATE)) {
-                ChunkContainerRandomDataAccess randomDataAccess = createNewHandle(path, openFlags);
-                swapChunkContainer(path, randomDataAccess.getChunkContainer());
-                return randomDataAccess;
-            }
+            // the handle may write at any time
+            if (openFlags.has(WRITE))
+                snapshotIsCurrent = false;
+            ChunkContainerRandomDataAccess randomDataAccess = openHandle(path, openFlags);
+            if (openFlags.has(TRUNCATE))
+                randomDataAccess.truncate(0);
+            return randomDataAccess;
+        }
+    }
 
-            ChunkContainer chunkContainer = findOpenChunkContainer(path);
-            if (chunkContainer != null) {
-                ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
-                        openFlags, createIOCallback(path));
-                registerHandle(path, randomDataAccess);
-                return randomDataAccess;
-            }
+    private ChunkContainerRandomDataAccess openHandle(String path, Mode openFlags) throws IOException,
+            CryptoException {
+        ChunkContainer chunkContainer = findOpenChunkContainer(path);
+        if (chunkContainer != null) {
+            ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
+                    openFlags, createIOCallback(path), chunkExecutor);
+            registerHandle(path, randomDataAccess);
+            return randomDataAccess;
+        }
 
-            try {
-                FileBox fileBox = treeAccessor.getFileBox(path);
-                chunkContainer = fileBox.getDataContainer();
-                ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
-                        openFlags, createIOCallback(path));
-                registerHandle(path, randomDataAccess);
-                return randomDataAccess;
-            } catch (NoSuchFileException e) {
-                if (!openFlags.has(WRITE))
-                    throw e;
-                return createNewHandle(path, openFlags);
-            }
+        try {
+            FileBox fileBox = treeAccessor.getFileBox(path);
+            chunkContainer = fileBox.getDataContainer();
+            chunkContainer.setCache(containerCache);
+            ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
+                    openFlags, createIOCallback(path), chunkExecutor);
+            registerHandle(path, randomDataAccess);
+            return randomDataAccess;
+        } catch (NoSuchFileException e) {
+            if (!openFlags.has(WRITE))
+                throw e;
+            return createNewHandle(path, openFlags);
         }
     }
 
     @Override
     public void remove(String path) throws IOException, CryptoException {
         synchronized (this) {
+            snapshotIsCurrent = false;
             treeAccessor.remove(path);
         }
     }
@@ -449,26 +543,32 @@ class SyncRepository implements ISyncDatabase {
 
                 transaction.finishTransaction();
                 transaction = new LogRepoTransaction(accessors.startTransaction());
+                commitGraph.add(headCommit, transaction);
                 log.add(commitCallback.logHash(headCommit.getRef()),
                         commitCallback.commitPointerToLog(headCommit.getRef()), transaction.getObjectsWritten());
                 treeAccessor = new TreeAccessor(FlatDirectoryBox.read(
                         transaction.getTreeAccessor(otherBranch.getTree()),
                         otherBranch.getTree()), transaction);
+                publishSnapshot();
                 return MergeResult.FAST_FORWARD;
             }
             if (headCommit.getPlainHash().equals(otherBranch.getPlainHash()))
                 return MergeResult.FAST_FORWARD;
+            // the ancestors of the head are in the graph, i.e. this doesn't need the commits of the other branch
             if (commitCache.isParent(headCommit.getPlainHash(), otherBranch.getPlainHash()))
                 return MergeResult.FAST_FORWARD;
 
-            CommonAncestorsFinder.Chains chains = CommonAncestorsFinder.find(transaction, headCommit, otherTransaction,
-                    otherBranch);
             copyMissingCommits(headCommit, transaction, otherTransaction);
-
-            CommonAncestorsFinder.SingleCommitChain shortestChain = chains.getShortestChain();
-            if (shortestChain == null)
+            // the commits of the other branch are needed to find the merge base in the graph; only add them once all
+            // commits are in the other transaction
+            commitGraph.add(otherBranch, otherTransaction);
+            List<HashValue> mergeBases = commitGraph.getMergeBases(headCommit.getPlainHash(),
+                    otherBranch.getPlainHash());
+            if (mergeBases.size() == 0)
                 throw new IOException("Branches don't have common ancestor.");
-            if (shortestChain.getOldest().getPlainHash().equals(headCommit.getPlainHash())) {
+
+            HashValue mergeBase = mergeBases.get(0);
+            if (mergeBase.equals(headCommit.getPlainHash())) {
                 // no local commits: just use the remote head
                 otherTransaction.finishTransaction();
                 headCommit = otherBranch;
@@ -480,12 +580,16 @@ class SyncRepository implements ISyncDatabase {
                 treeAccessor = new TreeAccessor(FlatDirectoryBox.read(
                         transaction.getTreeAccessor(otherBranch.getTree()),
                         otherBranch.getTree()), transaction);
+                publishSnapshot();
                 return MergeResult.FAST_FORWARD;
             }
 
             // merge branches
+            ChunkContainerRef mergeBaseRef = commitGraph.getRef(mergeBase);
+            CommitBox mergeBaseCommit = CommitBox.read(transaction.getCommitAccessor(mergeBaseRef), mergeBaseRef);
             treeAccessor = ThreeWayMerge.merge(transaction, transaction, headCommit, otherTransaction,
-                    otherBranch, shortestChain.getOldest(), ThreeWayMerge.ourSolver());
+                    otherBranch, mergeBaseCommit, ThreeWayMerge.ourSolver());
+            snapshotIsCurrent = false;
             return MergeResult.MERGED;
         }
     }
@@ -533,6 +637,7 @@ class SyncRepository implements ISyncDatabase {
             commitBox.setCommitMessage(message.getBytes());
             ChunkContainerRef ref = new ChunkContainerRef();
             ChunkContainerRef commitPointer = put(commitBox, transaction.getCommitAccessor(ref), ref);
+            commitGraph.add(commitBox, transaction);
             headCommit = commitBox;
 
             transaction.finishTransaction();
@@ -542,6 +647,7 @@ class SyncRepository implements ISyncDatabase {
 
             transaction = new LogRepoTransaction(accessors.startTransaction());
             this.treeAccessor.setTransaction(transaction);
+            publishSnapshot();
 
             return commitPointer;
         }
@@ -551,33 +657,48 @@ class SyncRepository implements ISyncDatabase {
         return log;
     }
 
+    /**
+     * Removes the chunks that are not reachable from the branch log from the chunk store of the branch.
+     *
+     * Chunks of the current transaction that haven't been committed yet are kept.
+     *
+     * @return the number of removed chunks
+     */
+    public long collectGarbage() throws IOException, CryptoException {
+        ChunkStore chunkStore;
+        synchronized (this) {
+            chunkStore = transaction.getRawAccessor().getChunkStore();
+        }
+        return ChunkStoreGarbageCollector.collect(chunkStore, log, commitCallback, accessors);
+    }
+
     @Override
     public DatabaseDiff getDiff(HashValue baseCommitHash, HashValue endCommitHash) throws IOException, CryptoException {
-        synchronized (this) {
-            CommitBox baseCommit = commitCache.getCommit(baseCommitHash);
-            CommitBox endCommit = commitCache.getCommit(endCommitHash);
-
-            DatabaseDiff databaseDiff = new DatabaseDiff(baseCommitHash, endCommitHash);
-
-            TreeIterator diffIterator = new TreeIterator(transaction, baseCommit, transaction, endCommit);
-            while (diffIterator.hasNext()) {
-                DiffIterator.Change<FlatDirectoryBox.Entry> change = diffIterator.next();
-                switch (change.type) {
-                    case MODIFIED:
-                        databaseDiff.modified.addPath(change.path);
-                        break;
-
-                    case ADDED:
-                        databaseDiff.added.addPath(change.path);
-                        break;
-
-                    case REMOVED:
-                        databaseDiff.removed.addPath(change.path);
-                        break;
-                }
+        // commits are immutable, reading them doesn't need to block writers
+        IRepoChunkAccessors.ITransaction readTransaction = getSnapshot().getTransaction();
+        CommitBox baseCommit = commitCache.getCommit(baseCommitHash);
+        CommitBox endCommit = commitCache.getCommit(endCommitHash);
+
+        DatabaseDiff databaseDiff = new DatabaseDiff(baseCommitHash, endCommitHash);
+
+        TreeIterator diffIterator = new TreeIterator(readTransaction, baseCommit, readTransaction, endCommit);
+        while (diffIterator.hasNext()) {
+            DiffIterator.Change<FlatDirectoryBox.Entry> change = diffIterator.next();
+            switch (change.type) {
+                case MODIFIED:
+                    databaseDiff.modified.addPath(change.path);
+                    break;
+
+                case ADDED:
+                    databaseDiff.added.addPath(change.path);
+                    break;
+
+                case REMOVED:
+                    databaseDiff.removed.addPath(change.path);
+                    break;
             }
-
-            return databaseDiff;
         }
+
+        return databaseDiff;
     }
 }
@@ -121,6 +121,7 @@ public class TreeAccessor {
         FlatDirectoryBox.Entry entry = new FlatDirectoryBox.Entry(true);
         entry.setObject(file);
         entry.setDataPointer(file.getRef());
+        entry.markModified();
         put(path, entry);
     }
 
@@ -162,9 +163,11 @@ public class TreeAccessor {
 
         FlatDirectoryBox.Entry existingEntry = currentDir.getEntry(fileName);
         if (existingEntry != null) {
-            // check if something has changed
-            if (entry.getDataPointer() != null
-                    && currentDir.getEntry(fileName).getDataPointer().equals(entry.getDataPointer())) {
+            // check if something has changed; the same ref instance may have been changed in place, e.g. by a write
+            // to an open container
+            ChunkContainerRef existingPointer = existingEntry.getDataPointer();
+            if (entry.getDataPointer() != null && existingPointer != entry.getDataPointer()
+                    && existingPointer.equals(entry.getDataPointer())) {
                 return;
             }
         }
@@ -196,21 +199,24 @@ public class TreeAccessor {
     }
 
     private ChunkContainerRef build(FlatDirectoryBox dir, String path) throws IOException, CryptoException {
-        for (FlatDirectoryBox.Entry child : dir.getDirs()) {
-            if (child.getDataPointer() != null)
+        // only the modified entries, i.e. the paths to the modified files, are written; entries of shards that have
+        // not been loaded can't be modified
+        List<FlatDirectoryBox.Entry> written = new ArrayList<>();
+        for (FlatDirectoryBox.Entry child : dir.getLoadedEntries()) {
+            if (!child.isModified())
                 continue;
             assert child.getObject() != null;
-            child.setDataPointer(build((FlatDirectoryBox)child.getObject(), path + "/" + child.getName()));
+            if (child.isFile())
+                child.setDataPointer(write((FileBox)child.getObject()));
+            else
+                child.setDataPointer(build((FlatDirectoryBox)child.getObject(), path + "/" + child.getName()));
+            written.add(child);
         }
-        for (FlatDirectoryBox.Entry child : dir.getFiles()) {
-            if (!child.getDataPointer().getDataHash().isZero())
-                continue;
-            assert child.getObject() != null;
-            FileBox fileBox = (FileBox)child.getObject();
-            ChunkContainerRef dataPointer = write(fileBox);
-            child.setDataPointer(dataPointer);
-        }
-        return SyncRepository.put(dir, transaction.getTreeAccessor(dir.getRef()), dir.getRef());
+        // the directory uses the modified flags to find the shards that have to be rewritten
+        ChunkContainerRef ref = dir.flush(transaction.getTreeAccessor(dir.getRef()));
+        for (FlatDirectoryBox.Entry child : written)
+            child.clearModified();
+        return ref;
     }
 
     public FlatDirectoryBox getRoot() {
@@ -17,7 +17,7 @@ import java.security.MessageDigest;
  * Blob to be written to a ChunkContainer.
  */
 abstract public class TypedBlob {
-    final protected short type;
+    protected short type;
     private ChunkContainerRef ref;
 
     protected TypedBlob(short type) {
@@ -32,6 +32,13 @@ abstract public class TypedBlob {
         this.ref = ref;
     }
 
+    /**
+     * Checks the type read from the stream. A blob that has more than one format can override it to select the format.
+     */
+    protected void readType(short type) throws IOException {
+        assert type == this.type;
+    }
+
     abstract protected void readInternal(DataInputStream inputStream, MessageDigest messageDigest) throws IOException;
 
     /**
@@ -47,8 +54,7 @@ abstract public class TypedBlob {
 
     public void read(DataInputStream inputStream, ChunkContainerRef ref) throws IOException {
         this.ref = ref;
-        short t = inputStream.readShort();
-        assert t == type;
+        readType(inputStream.readShort());
         MessageDigest messageDigest = ref.getDataMessageDigest();
         readInternal(inputStream, messageDigest);
     }
@@ -75,12 +75,14 @@ public class VarInt {
                 continue;
             }
 
-            if (nextByte != 0)
+            // continue while there are bits left, a 7 bit group can be zero, e.g. for 2^18
+            boolean hasMore = (number >>> i) != 0;
+            if (hasMore)
                 byteToWrite |= (0x1 << prevStepSize);
             outputStream.write(byteToWrite);
 
             byteToWrite = nextByte;
-            if (nextByte == 0)
+            if (!hasMore)
                 break;
         }
         if (byteToWrite != 0)
@@ -167,6 +167,14 @@ class GetDirJob extends GetChunkContainerJob {
         FlatDirectoryBox directoryBox = FlatDirectoryBox.read(chunkContainer);
 
         ChunkStore.Transaction rawTransaction = transaction.getRawAccessor();
+        if (directoryBox.isSharded()) {
+            for (ChunkContainerRef shard : directoryBox.getShardRefs()) {
+                if (rawTransaction.contains(shard.getBox().getBoxHash()))
+                    continue;
+                chunkFetcher.enqueueJob(new GetDirJob(this, transaction, shard, path));
+            }
+            return;
+        }
         for (FlatDirectoryBox.Entry entry : directoryBox.getEntries()) {
             if (rawTransaction.contains(entry.getDataPointer().getBox().getBoxHash()))
                 continue;
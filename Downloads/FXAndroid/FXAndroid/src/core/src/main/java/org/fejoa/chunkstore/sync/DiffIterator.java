@@ -12,7 +12,7 @@ import org.fejoa.library.support.StorageLib;
 import java.util.*;
 
 
-public class DiffIterator<T> implements Iterator<DiffIterator.Change> {
+public class DiffIterator<T> implements Iterator<DiffIterator.Change<T>> {
     public interface NameGetter<T> {
         String getName(T entry);
     }
@@ -34,20 +34,20 @@ public class DiffIterator<T> implements Iterator<DiffIterator.Change> {
             this.path = path;
         }
 
-        static public <T>Change added(String path, T theirs) {
-            Change change = new Change(Type.ADDED, path);
+        static public <T>Change<T> added(String path, T theirs) {
+            Change<T> change = new Change<>(Type.ADDED, path);
             change.theirs = theirs;
             return change;
         }
 
-        static public <T>Change removed(String path, T ours) {
-            Change change = new Change(Type.REMOVED, path);
+        static public <T>Change<T> removed(String path, T ours) {
+            Change<T> change = new Change<>(Type.REMOVED, path);
             change.ours = ours;
             return change;
         }
 
-        static public <T>Change modified(String path, T ours, T theirs) {
-            Change change = new Change(Type.MODIFIED, path);
+        static public <T>Change<T> modified(String path, T ours, T theirs) {
+            Change<T> change = new Change<>(Type.MODIFIED, path);
             change.ours = ours;
             change.theirs = theirs;
             return change;
@@ -83,7 +83,7 @@ public class DiffIterator<T> implements Iterator<DiffIterator.Change> {
     final List<T> theirsEntries;
     int ourIndex = 0;
     int theirIndex = 0;
-    Change next = null;
+    Change<T> next = null;
 
 
     private void gotoNext() {
@@ -135,8 +135,8 @@ public class DiffIterator<T> implements Iterator<DiffIterator.Change> {
     }
 
     @Override
-    public Change next() {
-        Change current = next;
+    public Change<T> next() {
+        Change<T> current = next;
         gotoNext();
         return current;
     }
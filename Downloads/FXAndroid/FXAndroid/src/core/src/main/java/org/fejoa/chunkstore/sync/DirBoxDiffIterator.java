@@ -9,10 +9,15 @@ package org.fejoa.chunkstore.sync;
 
 import org.fejoa.chunkstore.FlatDirectoryBox;
 
+import java.io.IOException;
+
 
 public class DirBoxDiffIterator extends DiffIterator<FlatDirectoryBox.Entry> {
-    public DirBoxDiffIterator(String basePath, FlatDirectoryBox ours, FlatDirectoryBox theirs) {
-        super(basePath, ours == null ? null : ours.getEntries(), theirs.getEntries(),
+    /**
+     * Shards of large directories that are the same in ours and theirs are skipped.
+     */
+    public DirBoxDiffIterator(String basePath, FlatDirectoryBox ours, FlatDirectoryBox theirs) throws IOException {
+        super(basePath, ours == null ? null : ours.getEntries(theirs), theirs.getEntries(ours),
                 new NameGetter<FlatDirectoryBox.Entry>() {
             @Override
             public String getName(FlatDirectoryBox.Entry entry) {
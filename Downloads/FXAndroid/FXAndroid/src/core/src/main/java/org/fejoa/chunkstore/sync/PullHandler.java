@@ -53,12 +53,15 @@ public class PullHandler {
 
         outputStream.writeLong(chunkStore.size());
         ChunkStore.IChunkStoreIterator iterator = chunkStore.iterator();
-        while (iterator.hasNext()) {
-            ChunkStore.Entry entry = iterator.next();
-            outputStream.write(entry.key.getBytes());
-            outputStream.writeInt(entry.data.length);
-            outputStream.write(entry.data);
+        try {
+            while (iterator.hasNext()) {
+                ChunkStore.Entry entry = iterator.next();
+                outputStream.write(entry.key.getBytes());
+                outputStream.writeInt(entry.data.length);
+                outputStream.write(entry.data);
+            }
+        } finally {
+            iterator.close();
         }
-        iterator.unlock();
     }
 }
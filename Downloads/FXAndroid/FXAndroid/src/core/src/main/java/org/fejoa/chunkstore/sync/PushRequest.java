@@ -59,7 +59,7 @@ public class PushRequest {
         FlatDirectoryBox nextDir = FlatDirectoryBox.read(transaction.getTreeAccessor(child.getTree()), child.getTree());
 
         // add root dir
-        collectChunkContainer(child.getTree(), transaction.getTreeAccessor(child.getTree()), list);
+        collectDirContainers(child.getTree(), transaction, list);
 
         DirBoxDiffIterator diffIterator = new DirBoxDiffIterator("", parentDir, nextDir);
         while (diffIterator.hasNext()) {
@@ -94,13 +94,25 @@ public class PushRequest {
         getChunkContainerNodeChildChunks(chunkContainer, accessor, list);
     }
 
-    private void collectWholeDir(String path, ChunkContainerRef dirPointer,
-                                 IRepoChunkAccessors.ITransaction transaction, final List<HashValue> list)
-            throws IOException, CryptoException {
+    /**
+     * Collects the containers of a directory, i.e. the directory container and the containers of its shards.
+     */
+    private FlatDirectoryBox collectDirContainers(ChunkContainerRef dirPointer,
+                                                  IRepoChunkAccessors.ITransaction transaction,
+                                                  final List<HashValue> list) throws IOException, CryptoException {
         IChunkAccessor dirAccessor = transaction.getTreeAccessor(dirPointer);
         collectChunkContainer(dirPointer, dirAccessor, list);
 
         FlatDirectoryBox dir = FlatDirectoryBox.read(dirAccessor, dirPointer);
+        for (ChunkContainerRef shard : dir.getShardRefs())
+            collectDirContainers(shard, transaction, list);
+        return dir;
+    }
+
+    private void collectWholeDir(String path, ChunkContainerRef dirPointer,
+                                 IRepoChunkAccessors.ITransaction transaction, final List<HashValue> list)
+            throws IOException, CryptoException {
+        FlatDirectoryBox dir = collectDirContainers(dirPointer, transaction, list);
         for (FlatDirectoryBox.Entry entry : dir.getEntries()) {
             String childPath = StorageLib.appendDir(path, entry.getName());
             if (entry.isFile())
@@ -33,7 +33,8 @@ public class TreeIterator implements Iterator<DiffIterator.Change<FlatDirectoryB
     }
 
     public TreeIterator(IRepoChunkAccessors.ITransaction ourTransaction, FlatDirectoryBox ours,
-                        IRepoChunkAccessors.ITransaction theirTransaction, FlatDirectoryBox theirs) {
+                        IRepoChunkAccessors.ITransaction theirTransaction, FlatDirectoryBox theirs)
+            throws IOException {
         this.ourTransaction = ourTransaction;
         this.theirTransaction = theirTransaction;
         current = new DirBoxDiffIterator("", ours, theirs);
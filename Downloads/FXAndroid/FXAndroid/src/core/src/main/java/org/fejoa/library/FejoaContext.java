@@ -153,9 +153,13 @@ public class FejoaContext {
     public HashValue getStorageLogTip(File repoDir, String branch) throws IOException {
         File logDir = new File(repoDir, "branches");
         ChunkStoreBranchLog log = new ChunkStoreBranchLog(new File(logDir, branch));
-        if (log.getLatest() == null)
-            return Config.newBoxHash();
-        return log.getLatest().getEntryId();
+        try {
+            if (log.getLatest() == null)
+                return Config.newBoxHash();
+            return log.getLatest().getEntryId();
+        } finally {
+            log.close();
+        }
     }
 
     private File getChunkStoreDir() {
@@ -212,7 +212,8 @@ public class CSRepositoryBuilder {
 
             @Override
             public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
-                ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+                // the encrypted chunk is about as large as the plain chunk; avoid growing the buffer
+                ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream(data.length + 64);
                 OutputStream outputStream = byteOutputStream;
                 outputStream = cryptoInterface.encryptSymmetric(outputStream, keyData.key,
                         getIv(ivHash.getBytes()), keyData.settings);
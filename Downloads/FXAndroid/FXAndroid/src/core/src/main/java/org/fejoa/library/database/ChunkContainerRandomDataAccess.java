@@ -13,6 +13,7 @@ import org.fejoa.chunkstore.ChunkContainerOutputStream;
 import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import static org.fejoa.library.database.IIOSyncDatabase.Mode.READ;
 import static org.fejoa.library.database.IIOSyncDatabase.Mode.WRITE;
@@ -28,31 +29,39 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
     private ChunkContainer chunkContainer;
     final private IIOSyncDatabase.Mode mode;
     final private IIOCallback callback;
+    // stores the written chunks and loads the chunks of large containers ahead, may be null
+    final private ExecutorService executor;
 
     private long position = 0;
     private ChunkContainerInputStream inputStream = null;
     private ChunkContainerOutputStream outputStream = null;
+    // data has been written or truncated since the last clearModified()
+    private boolean modified = false;
 
     public ChunkContainerRandomDataAccess(ChunkContainer chunkContainer, IIOSyncDatabase.Mode mode,
                                           IIOCallback callback) {
+        this(chunkContainer, mode, callback, null);
+    }
+
+    /**
+     * @param executor stores the written chunks while the next chunks are split. Read only handles use it to load the
+     *                 next chunks of large containers, e.g. when a file is checked out.
+     */
+    public ChunkContainerRandomDataAccess(ChunkContainer chunkContainer, IIOSyncDatabase.Mode mode,
+                                          IIOCallback callback, ExecutorService executor) {
         this.chunkContainer = chunkContainer;
         this.mode = mode;
         this.callback = callback;
+        this.executor = executor;
     }
 
     public ChunkContainer getChunkContainer() {
         return chunkContainer;
     }
 
-    // Discard all ongoing write action and set a new chunk container.
-    // TODO: This is temporary as long ChunkContainer does not support truncate.
-    public void setChunkContainer(ChunkContainer chunkContainer) {
-        inputStream = null;
-        outputStream = null;
-        this.chunkContainer = chunkContainer;
-    }
-
     public void cancel() {
+        if (chunkContainer != null)
+            chunkContainer.getCache().removeContainer(chunkContainer);
         chunkContainer = null;
         position = -1;
         inputStream = null;
@@ -63,6 +72,18 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
         return mode;
     }
 
+    public boolean isModified() {
+        return modified;
+    }
+
+    public void markModified() {
+        modified = true;
+    }
+
+    public void clearModified() {
+        modified = false;
+    }
+
     private void checkNotCanceled() throws IOException {
         if (chunkContainer == null)
             throw new IOException("Access has been canceled");
@@ -76,7 +97,7 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
             inputStream = null;
         }
         if (outputStream == null) {
-            outputStream = new ChunkContainerOutputStream(chunkContainer);
+            outputStream = new ChunkContainerOutputStream(chunkContainer, executor);
             outputStream.seek(position);
         }
 
@@ -91,7 +112,11 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
             outputStream = null;
         }
         if (inputStream == null) {
-            inputStream = new ChunkContainerInputStream(chunkContainer);
+            // chunks that are loaded ahead would miss the writes of this handle
+            if (mode.has(WRITE))
+                inputStream = new ChunkContainerInputStream(chunkContainer);
+            else
+                inputStream = ChunkContainerInputStream.create(chunkContainer, executor);
             inputStream.seek(position);
         }
 
@@ -132,6 +157,7 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
         prepareForWrite();
         outputStream.write(data, offset, length);
         position += length;
+        modified = true;
     }
 
     @Override
@@ -142,12 +168,37 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
         return read;
     }
 
+    /**
+     * Truncates the data to the given size. Ongoing writes of other handles are flushed first.
+     */
+    public void truncate(long size) throws IOException, CryptoException {
+        if (!mode.has(WRITE))
+            throw new IOException("Can't truncate in read only mode.");
+        checkNotCanceled();
+
+        if (inputStream != null) {
+            inputStream.close();
+            inputStream = null;
+        }
+        if (outputStream != null) {
+            outputStream.close();
+            outputStream = null;
+        }
+        callback.requestWrite(this);
+        chunkContainer.truncate(size);
+        position = Math.min(position, size);
+        modified = true;
+    }
+
     @Override
     public void flush() throws IOException {
         if (!mode.has(WRITE))
             throw new IOException("Can't flush in read only mode.");
-        if (outputStream != null)
-            outputStream.flush();
+        // the container may be changed by other handles, e.g. truncated; the next write starts a new transaction
+        if (outputStream != null) {
+            outputStream.close();
+            outputStream = null;
+        }
     }
 
     @Override
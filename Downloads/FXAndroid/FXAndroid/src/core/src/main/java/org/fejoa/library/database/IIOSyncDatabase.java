@@ -33,8 +33,11 @@ public interface IIOSyncDatabase {
             this.mode |= otherMode.getValue();
         }
 
+        /**
+         * @return true if all flags of the other mode are set, e.g. WRITE doesn't have TRUNCATE
+         */
         public boolean has(Mode otherMode) {
-            return (this.mode & otherMode.getValue()) != 0;
+            return (this.mode & otherMode.getValue()) == otherMode.getValue();
         }
     }
 
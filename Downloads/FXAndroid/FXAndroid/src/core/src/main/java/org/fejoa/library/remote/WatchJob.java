@@ -30,6 +30,7 @@ public class WatchJob extends SimpleJsonRemoteJob<WatchJob.Result> {
     static final public String STATUS_KEY = "tip";
     static final public String STATUS_ACCESS_DENIED = "denied";
     static final public String STATUS_UPDATE = "update";
+    static final public String STATUS_ERROR = "error";
     static final public String BRANCH_LOG_TIP = "logTip";
     static final public String BRANCH_LOG_MESSAGE = "logMessage";
     static final public String WATCH_RESULT_KEY = "watchResults";
@@ -17,6 +17,7 @@ import org.fejoa.library.support.StorageLib;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.util.*;
 
 
@@ -96,6 +97,44 @@ public class BPlusTreeTest extends TestCase {
         tree.validate();
     }
 
+    public void testHeaderOnSync() throws Exception {
+        String fileName = "test.idx";
+        String copyName = "copy.idx";
+        cleanUpFiles.add(fileName);
+        cleanUpFiles.add(copyName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.setHeaderOnSync(true);
+        bTree.create(32, 1024);
+        TestTree tree = new TestTree(bTree);
+        // 0 is not a valid value
+        for (long i = 1; i <= 2000; i++)
+            tree.put(CryptoHelper.sha256HashHex("synced" + i), i);
+        bTree.sync();
+        Map<String, Long> synced = new HashMap<>(tree.entries);
+
+        // the tiles of the synced tree are not overwritten by the following commits
+        for (long i = 1; i <= 2000; i++)
+            tree.put(CryptoHelper.sha256HashHex("unsynced" + i), i);
+        tree.validate();
+        java.nio.file.Files.copy(new File(fileName).toPath(), new File(copyName).toPath());
+        BPlusTree copy = new BPlusTree(new RandomAccessFile(copyName, "rw"));
+        copy.open();
+        assertEquals(synced.size(), copy.size());
+        for (Map.Entry<String, Long> entry : synced.entrySet())
+            assertEquals(entry.getValue(), copy.get(entry.getKey()));
+        copy.close();
+
+        bTree.close();
+        bTree = new BPlusTree(new RandomAccessFile(fileName, "rw"));
+        bTree.open();
+        assertEquals(4000, bTree.size());
+        for (Map.Entry<String, Long> entry : tree.entries.entrySet())
+            assertEquals(entry.getValue(), bTree.get(entry.getKey()));
+        bTree.close();
+    }
+
     public void testRemove() throws Exception {
         String fileName = "remove.idx";
         cleanUpFiles.add(fileName);
@@ -363,4 +402,145 @@ public class BPlusTreeTest extends TestCase {
         add(tree, generator, 50, added);
         validateIterator(bTree, added);
     }
+
+    public void testKeyComparison() {
+        Random generator = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            byte[] a = new byte[4];
+            byte[] b = new byte[4];
+            generator.nextBytes(a);
+            generator.nextBytes(b);
+            if (i % 3 == 0)
+                b[0] = a[0];
+            int expected = Integer.signum(new BigInteger(a).compareTo(new BigInteger(b)));
+            assertEquals(expected, Integer.signum(BaseBPlusTree.compareKeys(a, b)));
+        }
+    }
+
+    private long lookup(BPlusTree tree, List<String> keys, int rounds) throws IOException {
+        long start = System.currentTimeMillis();
+        for (int round = 0; round < rounds; round++) {
+            for (String key : keys)
+                assertNotNull(tree.get(key));
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    public void testLookupThroughput() throws IOException {
+        String fileName = "testThroughput.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create(32, 1024);
+        TestTree tree = new TestTree(bTree);
+        Random generator = new Random(1);
+        List<String> added = new ArrayList<>();
+        int nKeys = 5000;
+        //int nKeys = 100000;
+        add(tree, generator, nKeys, added);
+        Collections.shuffle(added, generator);
+
+        int rounds = 5;
+        bTree.setNodeCacheSize(0);
+        long uncachedTime = lookup(bTree, added, rounds);
+        bTree.setNodeCacheSize(BaseBPlusTree.DEFAULT_NODE_CACHE_SIZE);
+        lookup(bTree, added, 1);
+        long cachedTime = lookup(bTree, added, rounds);
+
+        long nLookups = (long)rounds * nKeys;
+        System.out.println("Lookups: " + nLookups + ", uncached: " + uncachedTime + "ms ("
+                + nLookups * 1000 / Math.max(1, uncachedTime) + "/s), cached: " + cachedTime + "ms ("
+                + nLookups * 1000 / Math.max(1, cachedTime) + "/s)");
+
+        tree.validate();
+    }
+
+    private BPlusTree bulkLoad(String fileName, Map<String, Long> entries, float fillFactor, long memoryBudget,
+                               boolean sorted) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create(32, 1024);
+        BaseBPlusTree<Long, Long>.BulkLoader loader = bTree.createBulkLoader(fillFactor, memoryBudget, sorted);
+        List<String> keys = new ArrayList<>(entries.keySet());
+        if (sorted) {
+            Collections.sort(keys, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return BaseBPlusTree.compareKeys(CryptoHelper.fromHex(a), CryptoHelper.fromHex(b));
+                }
+            });
+        }
+        for (String key : keys)
+            loader.add(CryptoHelper.fromHex(key), entries.get(key));
+        loader.finish();
+        return bTree;
+    }
+
+    public void testBulkLoad() throws IOException {
+        String fileName = "testBulkLoad.idx";
+        cleanUpFiles.add(fileName);
+
+        int[] sizes = {0, 1, 24, 25, 26, 37, 1000, 3000};
+        float[] fillFactors = {1f, 0.5f};
+        for (int size : sizes) {
+            for (float fillFactor : fillFactors) {
+                for (int variant = 0; variant < 3; variant++) {
+                    Random generator = new Random(size);
+                    Map<String, Long> entries = new HashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        Long value = (long) (Long.MAX_VALUE * generator.nextDouble());
+                        entries.put(CryptoHelper.sha256HashHex(value.toString()), value);
+                    }
+                    // variant 0: sorted, 1: in memory sort, 2: external sort
+                    long memoryBudget = variant == 2 ? 100 * 96 : 1024 * 1024;
+                    BPlusTree bTree = bulkLoad(fileName, entries, fillFactor, memoryBudget, variant == 0);
+                    TestTree tree = new TestTree(bTree);
+                    tree.entries.putAll(entries);
+                    tree.validate();
+                    validateIterator(bTree, new ArrayList<>(entries.keySet()));
+
+                    // the tree is still editable
+                    List<String> added = new ArrayList<>();
+                    add(tree, generator, 50, added);
+                    List<String> toRemove = new ArrayList<>(entries.keySet());
+                    toRemove.addAll(added);
+                    remove(tree, generator, Math.min(40, toRemove.size()), toRemove);
+                    tree.validate();
+                }
+            }
+        }
+    }
+
+    public void testBulkLoadThroughput() throws IOException {
+        String fileName = "testBulkLoadThroughput.idx";
+        cleanUpFiles.add(fileName);
+
+        int nKeys = 20000;
+        //int nKeys = 1000000;
+        Random generator = new Random(1);
+        Map<String, Long> entries = new HashMap<>();
+        for (int i = 0; i < nKeys; i++) {
+            Long value = (long) (Long.MAX_VALUE * generator.nextDouble());
+            entries.put(CryptoHelper.sha256HashHex(value.toString()), value);
+        }
+
+        long start = System.currentTimeMillis();
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create(32, 1024);
+        for (Map.Entry<String, Long> entry : entries.entrySet())
+            bTree.put(HashValue.fromHex(entry.getKey()), entry.getValue());
+        long putTime = System.currentTimeMillis() - start;
+        long putFileSize = file.length();
+        file.close();
+
+        start = System.currentTimeMillis();
+        bTree = bulkLoad(fileName, entries, 1f, 64 * 1024 * 1024, false);
+        long bulkTime = System.currentTimeMillis() - start;
+
+        System.out.println("Keys: " + nKeys + ", put: " + putTime + "ms (" + putFileSize / 1024 + "KiB), bulk load: "
+                + bulkTime + "ms (" + new File(fileName).length() / 1024 + "KiB)");
+        assertEquals(nKeys, bTree.size());
+    }
 }
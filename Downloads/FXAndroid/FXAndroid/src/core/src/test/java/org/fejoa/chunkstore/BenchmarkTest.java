@@ -13,6 +13,7 @@ import org.fejoa.library.support.StorageLib;
 
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -278,7 +279,9 @@ public class BenchmarkTest extends TestCase {
         }
         outputStream.close();
         chunkContainer.flush(false);
-        System.out.println("Time to fill the chunk container: " + (System.currentTimeMillis() - startTime));
+        long fillTime = System.currentTimeMillis() - startTime;
+        System.out.println("Time to fill the chunk container: " + fillTime + " ("
+                + (double)data.length / (1024 * 1024) * 1000 / Math.max(1, fillTime) + "MB/s)");
         assert chunkContainer.getDataLength() == data.length;
         ChunkContainerRef pointer = chunkContainer.getRef();
 
@@ -376,4 +379,49 @@ public class BenchmarkTest extends TestCase {
         for (TestRun run : results)
             System.out.println(run);
     }
+
+    /**
+     * @return the number of bytes allocated by the current thread or -1 if not supported by the VM
+     */
+    static private long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public void testWriteAllocation() throws Exception {
+        int nBytes = 1024 * 1024 * 32;
+        byte[] data = new byte[nBytes];
+        fillRandom(data, 1);
+        final int writeSize = 64 * 1024;
+
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = prepareContainer("testWriteAllocation", "test", ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        long allocated = getAllocatedBytes();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < data.length; i += writeSize)
+            outputStream.write(data, i, Math.min(writeSize, data.length - i));
+        outputStream.close();
+        chunkContainer.flush(false);
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+        allocated = getAllocatedBytes() - allocated;
+        System.out.println("Write: " + time + "ms (" + (double)nBytes / (1024 * 1024) * 1000 / time + "MB/s), "
+                + "allocated " + (allocated / (1024 * 1024)) + "MB for " + (nBytes / (1024 * 1024)) + "MB");
+
+        ChunkHash chunkHash = new ChunkHash(chunkContainer.getChunkSplitter(), chunkContainer.getNodeSplitter(),
+                ref.getDataMessageDigestFactory());
+        allocated = getAllocatedBytes();
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < data.length; i += writeSize)
+            chunkHash.update(data, i, Math.min(writeSize, data.length - i));
+        byte[] hash = chunkHash.digest();
+        time = Math.max(1, System.currentTimeMillis() - startTime);
+        allocated = getAllocatedBytes() - allocated;
+        System.out.println("ChunkHash: " + time + "ms (" + (double)nBytes / (1024 * 1024) * 1000 / time + "MB/s), "
+                + "allocated " + (allocated / 1024) + "KB for " + (nBytes / (1024 * 1024)) + "MB");
+        assertTrue(Arrays.equals(chunkContainer.hash().getBytes(), hash));
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+public class BloomFilterTest extends TestCase {
+    final List<String> cleanUpFiles = new ArrayList<String>();
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        for (String dir : cleanUpFiles)
+            StorageLib.recursiveDeleteFile(new File(dir));
+    }
+
+    private byte[] randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    public void testFalsePositiveRate() throws Exception {
+        String fileName = "testFalsePositive.bloom";
+        cleanUpFiles.add(fileName);
+
+        int nEntries = 200000;
+        int nQueries = 1000000;
+        //int nEntries = 4000000;
+        //int nQueries = 4000000;
+        Random random = new Random(1);
+        BloomFilter filter = new BloomFilter(new File(fileName));
+        filter.create(nEntries);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nEntries; i++)
+            filter.add(randomHash(random));
+        long insertTime = System.currentTimeMillis() - start;
+
+        // no false negatives
+        random = new Random(1);
+        for (int i = 0; i < nEntries; i++)
+            assertTrue(filter.mightContain(randomHash(random)));
+
+        start = System.currentTimeMillis();
+        int falsePositives = 0;
+        for (int i = 0; i < nQueries; i++) {
+            if (filter.mightContain(randomHash(random)))
+                falsePositives++;
+        }
+        long queryTime = System.currentTimeMillis() - start;
+        double rate = (double)falsePositives / nQueries;
+        System.out.println("Entries: " + nEntries + " (" + insertTime + "ms), queries: " + nQueries + " ("
+                + queryTime + "ms), false positive rate: " + rate);
+        assertTrue(rate < 0.02);
+        filter.close();
+    }
+
+    public void testReopen() throws Exception {
+        String fileName = "testReopen.bloom";
+        cleanUpFiles.add(fileName);
+
+        Random random = new Random(2);
+        BloomFilter filter = new BloomFilter(new File(fileName));
+        assertFalse(filter.open());
+        filter.create(1000);
+        List<byte[]> added = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] hash = randomHash(random);
+            filter.add(hash);
+            added.add(hash);
+        }
+        filter.close();
+
+        filter = new BloomFilter(new File(fileName));
+        assertTrue(filter.open());
+        assertEquals(500, filter.getEntryCount());
+        assertEquals(1000, filter.getCapacity());
+        for (byte[] hash : added)
+            assertTrue(filter.mightContain(hash));
+        filter.close();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+public class ChunkCacheTest extends TestCase {
+    private HashValue hash(int i) {
+        return new HashValue(ByteBuffer.allocate(32).putInt(i).array());
+    }
+
+    private byte[] data(int i, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte)i);
+        return data;
+    }
+
+    public void testSimple() throws Exception {
+        ChunkCache cache = new ChunkCache(ChunkCache.DEFAULT_CAPACITY);
+        assertNull(cache.get(hash(0)));
+        int[] lengths = {0, 1, 255, 256, 257, 4000, 64 * 1024};
+        for (int i = 0; i < lengths.length; i++)
+            cache.put(hash(i), data(i, lengths[i]));
+        // too large
+        cache.put(hash(100), data(100, 64 * 1024 + 1));
+        assertFalse(cache.contains(hash(100)));
+
+        for (int i = 0; i < lengths.length; i++)
+            assertTrue(Arrays.equals(data(i, lengths[i]), cache.get(hash(i))));
+        assertEquals(lengths.length, cache.getEntryCount());
+        assertEquals(lengths.length, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.clear();
+        assertNull(cache.get(hash(1)));
+        cache.put(hash(1), data(1, 10));
+        assertTrue(Arrays.equals(data(1, 10), cache.get(hash(1))));
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final ChunkCache cache = new ChunkCache(ChunkCache.DEFAULT_CAPACITY);
+        final int nChunks = 1000;
+        for (int i = 0; i < nChunks; i++)
+            cache.put(hash(i), data(i, 1000));
+
+        final int nThreads = 8;
+        final int nReads = 200000;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int t = 0; t < nThreads; t++) {
+            final int threadId = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < nReads; i++) {
+                            int index = (i * 31 + threadId) % nChunks;
+                            if (!Arrays.equals(data(index, 1000), cache.get(hash(index))))
+                                throw new Exception("Unexpected data for chunk " + index);
+                            // concurrent writers
+                            if (i % 1000 == 0)
+                                cache.put(hash(nChunks + threadId * nReads + i), data(i, 1000));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        System.out.println("Concurrent cache reads: " + nThreads * nReads + " reads in "
+                + (System.currentTimeMillis() - start) + "ms");
+        assertEquals(0, errors.size());
+        assertEquals((long)nThreads * nReads, cache.getHits());
+    }
+
+    public void testEviction() throws Exception {
+        // a single page of 256 slots of 4KiB
+        ChunkCache cache = new ChunkCache(1024 * 1024);
+        for (int i = 0; i < 256; i++)
+            cache.put(hash(i), data(i, 4000));
+        assertEquals(256, cache.getEntryCount());
+        assertEquals(0, cache.getEvictions());
+
+        // the referenced chunk gets a second chance
+        assertNotNull(cache.get(hash(0)));
+        cache.put(hash(256), data(256, 4000));
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.contains(hash(0)));
+        assertFalse(cache.contains(hash(1)));
+        assertTrue(Arrays.equals(data(256, 4000), cache.get(hash(256))));
+
+        // no page left for other size classes
+        cache.put(hash(1000), data(1, 100));
+        assertFalse(cache.contains(hash(1000)));
+
+        // the page of the idle size class is reassigned
+        for (int i = 0; i < 1024; i++)
+            cache.put(hash(2000 + i), data(i, 100));
+        assertTrue(cache.contains(hash(2000 + 1023)));
+        assertFalse(cache.contains(hash(256)));
+        assertEquals(1 + 256, cache.getEvictions());
+
+        cache.setCapacity(0);
+        cache.put(hash(1), data(1, 100));
+        assertEquals(0, cache.getEntryCount());
+    }
+}
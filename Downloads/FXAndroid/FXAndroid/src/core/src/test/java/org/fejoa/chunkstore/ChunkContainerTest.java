@@ -21,6 +21,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class ChunkContainerTest extends TestCase {
@@ -453,4 +456,503 @@ public class ChunkContainerTest extends TestCase {
 
         assertTrue(Arrays.equals(dataHash.getBytes(), chunkHash.digest()));
     }
+
+    private ChunkContainerHeader writeRead(ChunkContainerRef ref) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ref.getData().write(outputStream);
+        ChunkContainerRef.Data data = new ChunkContainerRef.Data();
+        data.read(new ByteArrayInputStream(outputStream.toByteArray()));
+        return data.getContainerHeader();
+    }
+
+    public void testChunkingConfigHeader() throws Exception {
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setGearChunking(ChunkContainerHeader.ChunkingType.GEAR_SPLITTER_2K_8K_64K);
+        ChunkContainerHeader header = writeRead(ref);
+        assertTrue(header.getChunkingConfig().isDefault());
+        assertTrue(header.getSplitter(1f) instanceof GearSplitter);
+
+        ref.getContainerHeader().setGearChunking(4000, 1000, 16000);
+        header = writeRead(ref);
+        GearSplitter gearSplitter = (GearSplitter)header.getSplitter(1f);
+        assertEquals(4000, gearSplitter.getTargetChunkSize());
+        assertEquals(1000, gearSplitter.getMinChunkSize());
+        assertEquals(16000, gearSplitter.getMaxChunkSize());
+
+        ref.getContainerHeader().setRabinChunking(256, 180);
+        header = writeRead(ref);
+        RabinSplitter rabinSplitter = (RabinSplitter)header.getSplitter(1f);
+        assertEquals(256, rabinSplitter.getTargetChunkSize());
+        assertEquals(180, rabinSplitter.getMinChunkSize());
+
+        ref.getContainerHeader().setFixedSizeChunking(180);
+        header = writeRead(ref);
+        assertEquals(180, ((FixedBlockSplitter)header.getSplitter(1f)).getBlockSize());
+    }
+
+    private ChunkContainer prepareEncContainer(String dirName, String name, ChunkContainerRef ref)
+            throws IOException, CryptoException {
+        cleanUpFiles.add(dirName);
+        File dir = new File(dirName);
+        dir.mkdirs();
+        return new ChunkContainer(getEncAccessor(ChunkStore.create(dir, name)), ref);
+    }
+
+    private ChunkContainerRef writePipelined(String dirName, byte[] data, byte[] appendData, ExecutorService executor)
+            throws Exception {
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = prepareEncContainer(dirName, "test", ref);
+        long start = System.currentTimeMillis();
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer, executor);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        System.out.println((executor == null ? "Sequential: " : "Pipelined: ")
+                + (System.currentTimeMillis() - start) + "ms");
+
+        // append and overwrite across the end
+        outputStream = new ChunkContainerOutputStream(chunkContainer, executor);
+        outputStream.write(appendData);
+        outputStream.seek(data.length / 2);
+        outputStream.write(appendData);
+        outputStream.seek(data.length - 1000);
+        outputStream.write(appendData);
+        outputStream.close();
+        chunkContainer.flush(false);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data);
+        expected.write(appendData);
+        byte[] expectedData = expected.toByteArray();
+        System.arraycopy(appendData, 0, expectedData, data.length / 2, appendData.length);
+        System.arraycopy(appendData, 0, expectedData, data.length - 1000, appendData.length);
+        ByteArrayOutputStream outData = new ByteArrayOutputStream();
+        StreamHelper.copy(new ChunkContainerInputStream(chunkContainer), outData);
+        assertTrue(Arrays.equals(expectedData, outData.toByteArray()));
+        return ref;
+    }
+
+    public void testPipelinedOutputStream() throws Exception {
+        byte[] data = new byte[1024 * 1024 * 8];
+        byte[] appendData = new byte[1024 * 100];
+        Random random = new Random(1);
+        random.nextBytes(data);
+        random.nextBytes(appendData);
+
+        ChunkContainerRef sequentialRef = writePipelined("testPipelinedOutputStreamDir1", data, appendData, null);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ChunkContainerRef pipelinedRef = writePipelined("testPipelinedOutputStreamDir2", data, appendData,
+                    executor);
+            assertEquals(sequentialRef.getDataHash(), pipelinedRef.getDataHash());
+            assertEquals(sequentialRef.getBoxHash(), pipelinedRef.getBoxHash());
+            assertEquals(sequentialRef.getContainerHeader().getDataLength(),
+                    pipelinedRef.getContainerHeader().getDataLength());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private byte[] readAll(ChunkContainerInputStream inputStream, int dataLength, Random random) throws Exception {
+        byte[] data = new byte[dataLength];
+        int position = 0;
+        while (true) {
+            int read = inputStream.read(data, position, Math.min(dataLength - position, 1 + random.nextInt(20000)));
+            if (read <= 0)
+                break;
+            position += read;
+        }
+        assertEquals(dataLength, position);
+        assertEquals(-1, inputStream.read(new byte[10], 0, 10));
+        return data;
+    }
+
+    public void testInputStream() throws Exception {
+        byte[] data = new byte[1024 * 1024 * 4];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = prepareEncContainer("testInputStreamDir", "test", ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+
+        ChunkContainerInputStream inputStream = new ChunkContainerInputStream(chunkContainer);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(data[i] & 0xFF, inputStream.read());
+        assertEquals(1000, inputStream.skip(1000));
+        byte[] buffer = new byte[100000];
+        assertEquals(buffer.length, inputStream.read(buffer));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 2000, 2000 + buffer.length), buffer));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ChunkContainerInputStream[] inputStreams = {
+                    new ChunkContainerInputStream(chunkContainer),
+                    new ChunkContainerInputStream(chunkContainer, executor,
+                            ChunkContainerInputStream.DEFAULT_READ_AHEAD_CHUNKS)
+            };
+            for (ChunkContainerInputStream stream : inputStreams) {
+                long start = System.currentTimeMillis();
+                assertTrue(Arrays.equals(data, readAll(stream, data.length, random)));
+                System.out.println("Read time: " + (System.currentTimeMillis() - start) + "ms");
+
+                // jump around
+                stream.seek(data.length / 3);
+                assertEquals(buffer.length, stream.read(buffer));
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length / 3, data.length / 3 + buffer.length),
+                        buffer));
+                stream.seek(100);
+                assertEquals(data[100] & 0xFF, stream.read());
+                stream.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testRandomAccessSeek() throws Exception {
+        // large chunks result in wide nodes
+        int[] sizes = {1024 * 1024 * 16, 1024 * 1024 * 64};
+        Random random = new Random(1);
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            ChunkContainerRef ref = new ChunkContainerRef();
+            ref.getContainerHeader().setFixedSizeChunking(64 * 1024);
+            ChunkContainer chunkContainer = prepareContainer("testRandomAccessSeekDir", "test" + size, ref);
+            ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+            outputStream.write(data);
+            outputStream.close();
+            chunkContainer.flush(false);
+
+            chunkContainer = openContainer("testRandomAccessSeekDir", "test" + size, chunkContainer.getRef());
+            ChunkContainerInputStream inputStream = new ChunkContainerInputStream(chunkContainer);
+            for (int i = 0; i < 100; i++) {
+                int position = random.nextInt(size);
+                inputStream.seek(position);
+                assertEquals(data[position] & 0xFF, inputStream.read());
+            }
+
+            int nSeeks = 100000;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < nSeeks; i++) {
+                long position = random.nextInt(size);
+                ChunkContainer.DataChunkPointer pointer = chunkContainer.get(position);
+                assertTrue(pointer.position <= position && position < pointer.position + pointer.getDataLength());
+            }
+            long time = System.currentTimeMillis() - start;
+            System.out.println(size / (64 * 1024) + " chunks, " + chunkContainer.getNLevels() + " levels: " + nSeeks
+                    + " random seeks in " + time + "ms");
+        }
+    }
+
+    public void testSharedContainerCache() throws Exception {
+        int size = 1024 * 1024 * 16;
+        byte[] data = new byte[size];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        final String dirName = "testSharedContainerCacheDir";
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = prepareContainer(dirName, "test", ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+
+        // count the chunk fetches
+        final ChunkStore chunkStore = ChunkStore.open(new File(dirName), "test");
+        final IChunkAccessor simpleAccessor = getSimpleAccessor(chunkStore);
+        final int[] fetches = {0};
+        IChunkAccessor accessor = new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
+                fetches[0]++;
+                return simpleAccessor.getChunk(hash);
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
+                return simpleAccessor.putChunk(data, ivHash);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+
+        SharedChunkContainerCache sharedCache = new SharedChunkContainerCache(8 * 1024 * 1024,
+                SharedChunkContainerCache.DEFAULT_KEPT_METADATA_LEVELS);
+        IChunkContainerCache[] caches = {null, sharedCache};
+        int[] nFetches = new int[caches.length];
+        for (int i = 0; i < caches.length; i++) {
+            chunkContainer = ChunkContainer.read(accessor, chunkContainer.getRef());
+            if (caches[i] != null)
+                chunkContainer.setCache(caches[i]);
+            IChunkContainerCache cache = chunkContainer.getCache();
+            fetches[0] = 0;
+            Random readRandom = new Random(2);
+            for (int read = 0; read < 20000; read++) {
+                long position = readRandom.nextInt(size);
+                ChunkContainer.DataChunkPointer pointer = chunkContainer.get(position);
+                assertEquals(data[(int)position], pointer.getDataChunk().getData()[(int)(position - pointer.position)]);
+            }
+            nFetches[i] = fetches[0];
+            System.out.println(cache.getClass().getSimpleName() + ": " + fetches[0] + " chunk fetches, hits "
+                    + cache.getHits() + ", misses " + cache.getMisses() + ", evictions " + cache.getEvictions());
+        }
+        assertTrue(nFetches[1] < nFetches[0]);
+        assertTrue(sharedCache.getSize() <= sharedCache.getCapacity());
+        assertTrue(sharedCache.getEvictions() > 0);
+
+        // a container only evicts its own chunks
+        ChunkContainer other = ChunkContainer.read(accessor, chunkContainer.getRef());
+        other.setCache(sharedCache);
+        assertEquals(data[0], other.get(0l).getDataChunk().getData()[0]);
+        Random readRandom = new Random(3);
+        for (int read = 0; read < 20000; read++) {
+            long position = readRandom.nextInt(size);
+            ChunkContainer.DataChunkPointer pointer = chunkContainer.get(position);
+            assertEquals(data[(int)position], pointer.getDataChunk().getData()[(int)(position - pointer.position)]);
+        }
+        assertTrue(sharedCache.getSize() <= sharedCache.getCapacity());
+        fetches[0] = 0;
+        assertEquals(data[0], other.get(0l).getDataChunk().getData()[0]);
+        assertEquals(0, fetches[0]);
+
+        sharedCache.removeContainer(chunkContainer);
+        sharedCache.removeContainer(other);
+        assertEquals(0, sharedCache.getEntryCount());
+        assertEquals(0, sharedCache.getSize());
+    }
+
+    /**
+     * @return the bytes of the chunks that are attached to the node, not counting the pinned levels
+     */
+    private long getAttachedSize(ChunkContainer container, ChunkContainerNode node, int keptMetadataLevels) {
+        long attached = 0;
+        for (IChunkPointer pointer : node.getChunkPointers()) {
+            IChunk chunk = pointer.getCachedChunk();
+            if (chunk == null)
+                continue;
+            if (pointer.getLevel() == ChunkContainerNode.DATA_LEVEL) {
+                attached += pointer.getDataLength();
+                continue;
+            }
+            ChunkContainerNode child = (ChunkContainerNode)chunk;
+            if (container.getNLevels() - child.getLevel() > keptMetadataLevels)
+                attached += child.getBlobLength();
+            attached += getAttachedSize(container, child, keptMetadataLevels);
+        }
+        return attached;
+    }
+
+    public void testSharedContainerCacheBound() throws Exception {
+        int size = 1024 * 1024 * 16;
+        byte[] data = new byte[size];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        final String dirName = "testSharedContainerCacheBoundDir";
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = prepareContainer(dirName, "test", ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+
+        IChunkAccessor accessor = getSimpleAccessor(ChunkStore.open(new File(dirName), "test"));
+        int keptMetadataLevels = SharedChunkContainerCache.DEFAULT_KEPT_METADATA_LEVELS;
+        SharedChunkContainerCache sharedCache = new SharedChunkContainerCache(4 * 1024 * 1024, keptMetadataLevels);
+        ChunkContainer[] containers = new ChunkContainer[2];
+        for (int i = 0; i < containers.length; i++) {
+            containers[i] = ChunkContainer.read(accessor, chunkContainer.getRef());
+            containers[i].setCache(sharedCache);
+        }
+
+        // the second container fills the cache while the first one holds its chunks
+        Random readRandom = new Random(2);
+        for (ChunkContainer container : containers) {
+            for (int read = 0; read < 20000; read++) {
+                long position = readRandom.nextInt(size);
+                ChunkContainer.DataChunkPointer pointer = container.get(position);
+                assertEquals(data[(int)position], pointer.getDataChunk().getData()[(int)(position - pointer.position)]);
+            }
+        }
+        assertTrue(sharedCache.getSize() <= sharedCache.getCapacity());
+
+        // the first container has been forgotten and drops its chunks when it is used again
+        assertEquals(data[0], containers[0].get(0l).getDataChunk().getData()[0]);
+        long attached = 0;
+        for (ChunkContainer container : containers)
+            attached += getAttachedSize(container, container, keptMetadataLevels);
+        assertTrue(attached <= sharedCache.getCapacity());
+        assertTrue(sharedCache.getSize() <= sharedCache.getCapacity());
+    }
+
+    /**
+     * @param written is increased by the size of each new chunk
+     */
+    private IChunkAccessor getCountingAccessor(final IChunkAccessor accessor, final long[] written) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
+                return accessor.getChunk(hash);
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
+                PutResult<HashValue> result = accessor.putChunk(data, ivHash);
+                if (!result.wasInDatabase)
+                    written[0] += data.length;
+                return result;
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    /**
+     * Checks the data and that the container is the same as a container that has been written in one go.
+     */
+    private void assertContainerData(ChunkContainer chunkContainer, byte[] data) throws Exception {
+        assertEquals(data.length, chunkContainer.getDataLength());
+        assertTrue(Arrays.equals(data, StreamHelper.readAll(new ChunkContainerInputStream(chunkContainer))));
+        ChunkContainer expected = new ChunkContainer(chunkContainer.blobAccessor, chunkContainer.getRef().clone());
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(expected);
+        outputStream.write(data);
+        outputStream.close();
+        expected.flush(false);
+        assertEquals(expected.getNLevels(), chunkContainer.getNLevels());
+        assertEquals(expected.hash(), chunkContainer.hash());
+    }
+
+    public void testOverwriteWriteAmplification() throws Exception {
+        int size = 1024 * 1024 * 8;
+        ChunkContainerRef[] refs = new ChunkContainerRef[3];
+        for (int i = 0; i < refs.length; i++)
+            refs[i] = new ChunkContainerRef();
+        refs[0].getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        refs[1].getContainerHeader().setGearChunking(ChunkContainerHeader.ChunkingType.GEAR_SPLITTER_2K_8K_64K);
+        refs[2].getContainerHeader().setFixedSizeChunking(8 * 1024);
+        int[] editSizes = {1, 100, 4096, 64 * 1024};
+        for (int i = 0; i < refs.length; i++) {
+            ChunkContainerRef ref = refs[i];
+            Random random = new Random(1);
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            final String dirName = "testOverwriteWriteAmplificationDir";
+            cleanUpFiles.add(dirName);
+            File dir = new File(dirName);
+            StorageLib.recursiveDeleteFile(dir);
+            dir.mkdirs();
+            final long[] written = {0};
+            ChunkContainer chunkContainer = new ChunkContainer(
+                    getCountingAccessor(getSimpleAccessor(ChunkStore.create(dir, "test")), written), ref);
+            ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+            outputStream.write(data);
+            outputStream.flush();
+            chunkContainer.flush(false);
+
+            for (int editSize : editSizes) {
+                int nEdits = 20;
+                written[0] = 0;
+                long start = System.currentTimeMillis();
+                for (int edit = 0; edit < nEdits; edit++) {
+                    byte[] editData = new byte[editSize];
+                    random.nextBytes(editData);
+                    int position = random.nextInt(size - editSize);
+                    System.arraycopy(editData, 0, data, position, editSize);
+                    outputStream.seek(position);
+                    outputStream.write(editData);
+                    outputStream.flush();
+                    chunkContainer.flush(false);
+                }
+                System.out.println(chunkContainer.getChunkSplitter().getClass().getSimpleName() + " "
+                        + editSize + " byte edits: " + written[0] / nEdits + " bytes written per edit, "
+                        + (System.currentTimeMillis() - start) + "ms");
+                // one data chunk or the chunks of the edit plus the node path
+                assertTrue(written[0] / nEdits < editSize + 64 * 1024);
+            }
+            outputStream.close();
+            assertContainerData(chunkContainer, data);
+        }
+    }
+
+    public void testTruncateAndAppend() throws Exception {
+        int size = 1024 * 1024 * 8;
+        byte[] data = new byte[size];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        final String dirName = "testTruncateAndAppendDir";
+        cleanUpFiles.add(dirName);
+        File dir = new File(dirName);
+        dir.mkdirs();
+        final long[] written = {0};
+        IChunkAccessor accessor = getCountingAccessor(getSimpleAccessor(ChunkStore.create(dir, "test")), written);
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = new ChunkContainer(accessor, ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        int nLevels = chunkContainer.getNLevels();
+
+        // truncate inside a chunk, at a chunk boundary and inside the first chunk
+        ChunkContainer.DataChunkPointer pointer = chunkContainer.get((long)size / 2);
+        long[] sizes = {size - 1, size - 100000, pointer.position + pointer.getDataLength(), size / 3, 1000};
+        for (long newSize : sizes) {
+            written[0] = 0;
+            chunkContainer.truncate(newSize);
+            chunkContainer.flush(false);
+            System.out.println("Truncate to " + newSize + ": " + written[0] + " bytes written");
+            data = Arrays.copyOf(data, (int)newSize);
+            assertContainerData(chunkContainer, data);
+            // the head of the last chunk and the right most nodes
+            if (newSize > size / 4)
+                assertTrue(written[0] < 64 * 1024);
+            chunkContainer = ChunkContainer.read(accessor, chunkContainer.getRef());
+            assertContainerData(chunkContainer, data);
+        }
+        chunkContainer.truncate(0);
+        chunkContainer.flush(false);
+        assertEquals(0, chunkContainer.getDataLength());
+        assertEquals(1, chunkContainer.getNLevels());
+
+        // grow the container by appending small records
+        data = new byte[0];
+        for (int i = 0; data.length < size; i++) {
+            byte[] record = new byte[1 + random.nextInt(64 * 1024)];
+            random.nextBytes(record);
+            written[0] = 0;
+            chunkContainer = ChunkContainer.read(accessor, chunkContainer.getRef());
+            outputStream = new ChunkContainerOutputStream(chunkContainer);
+            outputStream.write(record);
+            outputStream.close();
+            chunkContainer.flush(false);
+            // the last chunk, the new chunks and the right most nodes
+            assertTrue(written[0] < record.length + 64 * 1024);
+
+            int oldLength = data.length;
+            data = Arrays.copyOf(data, oldLength + record.length);
+            System.arraycopy(record, 0, data, oldLength, record.length);
+        }
+        assertContainerData(chunkContainer, data);
+        assertEquals(nLevels, chunkContainer.getNLevels());
+    }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class ChunkStoreBranchLogTest extends RepositoryTestBase {
+    final static private String DIR = "ChunkStoreBranchLogTest";
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        cleanUpFiles.add(DIR);
+    }
+
+    private HashValue hash(int i) {
+        HashValue hashValue = Config.newBoxHash();
+        hashValue.getBytes()[0] = (byte)i;
+        hashValue.getBytes()[1] = (byte)(i >> 8);
+        hashValue.getBytes()[2] = (byte)(i >> 16);
+        return hashValue;
+    }
+
+    private void add(ChunkStoreBranchLog log, int i) throws IOException {
+        List<HashValue> changes = new ArrayList<>();
+        for (int c = 0; c < i % 3; c++)
+            changes.add(hash(c));
+        log.add(hash(i), "message" + i, changes);
+    }
+
+    private void assertEntry(int i, ChunkStoreBranchLog.Entry entry) {
+        assertNotNull(entry);
+        assertEquals(hash(i), entry.getEntryId());
+        assertEquals("message" + i, entry.getMessage());
+        assertEquals(i % 3, entry.changes.size());
+    }
+
+    public void testAddAndRead() throws Exception {
+        File file = new File(DIR, "branch");
+        ChunkStoreBranchLog log = new ChunkStoreBranchLog(file);
+        assertNull(log.getLatest());
+        assertNull(log.getEntry(1));
+        assertEquals(0, log.getEntries().size());
+
+        for (int i = 0; i < 10; i++)
+            add(log, i);
+        assertEntry(9, log.getLatest());
+        log.close();
+
+        log = new ChunkStoreBranchLog(file);
+        assertEquals(10, log.size());
+        assertEquals(10, log.getLatest().getRev());
+        assertEntry(9, log.getLatest());
+        assertEntry(4, log.getEntry(5));
+        assertNull(log.getEntry(11));
+        List<ChunkStoreBranchLog.Entry> entries = log.getEntries();
+        assertEquals(10, entries.size());
+        for (int i = 0; i < entries.size(); i++)
+            assertEntry(i, entries.get(i));
+
+        // another instance of the same log sees the new entry
+        ChunkStoreBranchLog other = new ChunkStoreBranchLog(file);
+        add(other, 10);
+        other.close();
+        assertEntry(10, log.getLatest());
+        assertEquals(11, log.getLatest().getRev());
+
+        // revisions that are not consecutive, e.g. entries pulled from a remote
+        ChunkStoreBranchLog.Entry pulled = new ChunkStoreBranchLog.Entry(100, hash(100), "message100");
+        pulled.changes.add(hash(0));
+        log.add(pulled);
+        assertEntry(100, log.getEntry(100));
+        assertEntry(3, log.getEntry(4));
+        log.close();
+    }
+
+    public void testConvertTextLog() throws Exception {
+        File file = new File(DIR, "branch");
+        file.getParentFile().mkdirs();
+        OutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(("1 " + hash(1).toHex() + " message1\n0\n").getBytes());
+        outputStream.write(("2 " + hash(2).toHex() + " message2\n2\n" + hash(0).toHex() + "\n" + hash(1).toHex()
+                + "\n").getBytes());
+        outputStream.close();
+
+        ChunkStoreBranchLog log = new ChunkStoreBranchLog(file);
+        assertEquals(2, log.size());
+        assertEntry(2, log.getLatest());
+        assertEquals(Collections.<HashValue>emptyList(), log.getEntry(1).changes);
+        assertEquals(hash(1), log.getEntry(2).changes.get(1));
+
+        add(log, 3);
+        log.close();
+        log = new ChunkStoreBranchLog(file);
+        assertEquals(3, log.getEntries().size());
+        assertEntry(3, log.getLatest());
+        assertEquals(3, log.getLatest().getRev());
+    }
+
+    public void testRecovery() throws Exception {
+        File file = new File(DIR, "branch");
+        File indexFile = new File(file.getPath() + ".index");
+        ChunkStoreBranchLog log = new ChunkStoreBranchLog(file);
+        for (int i = 0; i < 5; i++)
+            add(log, i);
+        log.close();
+        long logLength = file.length();
+        long indexLength = indexFile.length();
+
+        // the slots of the last entries are missing and the log has an incomplete entry
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        index.setLength(indexLength - 20);
+        index.close();
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        outputStream.write(new byte[]{0, 0, 0, 6, 32, 1});
+        outputStream.close();
+
+        log = new ChunkStoreBranchLog(file);
+        assertEquals(logLength, file.length());
+        assertEquals(indexLength, indexFile.length());
+        assertEntry(4, log.getLatest());
+        assertEntry(3, log.getEntry(4));
+
+        // a zero filled index tail, e.g. after a crash while the index was extended, doesn't truncate the log
+        index = new RandomAccessFile(indexFile, "rw");
+        index.setLength(indexLength + 2 * 16);
+        index.close();
+        log = new ChunkStoreBranchLog(file);
+        assertEquals(logLength, file.length());
+        assertEquals(indexLength, indexFile.length());
+        assertEquals(5, log.size());
+        assertEntry(4, log.getLatest());
+
+        // the slot of an entry that didn't make it into the log is dropped
+        RandomAccessFile logFile = new RandomAccessFile(file, "rw");
+        logFile.setLength(logLength - 1);
+        logFile.close();
+        log = new ChunkStoreBranchLog(file);
+        assertEquals(4, log.size());
+        assertEntry(3, log.getLatest());
+        add(log, 5);
+        log.close();
+        assertEntry(5, new ChunkStoreBranchLog(file).getLatest());
+    }
+
+    public void testOpenLargeLog() throws Exception {
+        final int nEntries = 100000;
+        File file = new File(DIR, "branch");
+        ChunkStoreBranchLog log = new ChunkStoreBranchLog(file);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nEntries; i++)
+            add(log, i);
+        log.close();
+        System.out.println("Add " + nEntries + " entries: " + (System.currentTimeMillis() - start) + "ms");
+
+        final int nOpens = 100;
+        start = System.nanoTime();
+        for (int i = 0; i < nOpens; i++)
+            assertEntry(nEntries - 1, new ChunkStoreBranchLog(file).getLatest());
+        System.out.println("Open and read latest entry: " + (System.nanoTime() - start) / nOpens / 1000 + "us");
+
+        start = System.nanoTime();
+        for (int i = 0; i < nOpens; i++)
+            assertEntry(nEntries / 2, log.getEntry(nEntries / 2 + 1));
+        System.out.println("Read entry by revision: " + (System.nanoTime() - start) / nOpens / 1000 + "us");
+
+        start = System.nanoTime();
+        assertEquals(nEntries, log.getEntries().size());
+        System.out.println("Read all entries: " + (System.nanoTime() - start) / 1000 + "us");
+    }
+}
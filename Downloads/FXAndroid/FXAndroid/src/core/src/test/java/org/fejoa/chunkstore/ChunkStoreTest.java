@@ -15,8 +15,15 @@ import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 public class ChunkStoreTest  extends TestCase {
     final List<String> cleanUpFiles = new ArrayList<String>();
@@ -46,4 +53,813 @@ public class ChunkStoreTest  extends TestCase {
         assertEquals(new String(data1), new String(chunkStore.getChunk(result1.key)));
         assertEquals(new String(data2), new String(chunkStore.getChunk(result2.key)));
     }
+
+    public void testMappedPackFile() throws Exception {
+        String dirName = "testMappedPackDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        // small segments to force a couple of segment switches
+        MappedPackFile packFile = new MappedPackFile(dir, "test", 4 * 1024);
+        packFile.create(ChunkStore.hashSize());
+        List<HashValue> hashes = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = ("Data " + i).getBytes();
+            HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
+            hashes.add(hash);
+            positions.add(packFile.put(hash, data));
+        }
+        assertTrue(new File(dir, "test.pack.1").exists());
+        assertTrue(positions.get(positions.size() - 1) > Integer.MAX_VALUE);
+        packFile.close();
+
+        packFile = new MappedPackFile(dir, "test");
+        packFile.open();
+        for (int i = 0; i < hashes.size(); i++) {
+            byte[] data = packFile.get(positions.get(i), hashes.get(i).getBytes());
+            assertEquals("Data " + i, new String(data));
+        }
+        packFile.close();
+    }
+
+    public void testPackCodec() throws Exception {
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            text.append("line ").append(random.nextInt(100)).append(" of some text\n");
+        byte[] textData = text.toString().getBytes();
+        byte[] randomData = new byte[10000];
+        random.nextBytes(randomData);
+        byte[] mixedData = new byte[10000];
+        for (int i = 0; i < mixedData.length; i++)
+            mixedData[i] = (byte)(i % 7 == 0 ? random.nextInt() : 'a' + random.nextInt(4));
+
+        PackCodec.Encoded encoded = PackCodec.encode(randomData);
+        assertEquals(PackCodec.NONE, encoded.codec);
+        encoded = PackCodec.encode("short".getBytes());
+        assertEquals(PackCodec.NONE, encoded.codec);
+        encoded = PackCodec.encode(textData);
+        assertEquals(PackCodec.DEFLATE, encoded.codec);
+        assertTrue(encoded.payload.length < textData.length / 3);
+        assertTrue(Arrays.equals(textData, PackCodec.decode(encoded.codec, encoded.payload)));
+        encoded = PackCodec.encode(mixedData);
+        assertEquals(PackCodec.LZ, encoded.codec);
+        assertTrue(encoded.payload.length < mixedData.length);
+        assertTrue(Arrays.equals(mixedData, PackCodec.decode(encoded.codec, encoded.payload)));
+
+        // LZ round trips including long literal and match runs
+        for (int size : new int[]{0, 1, 12, 13, 100, 1000, 70000}) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++)
+                data[i] = (byte)(i < size / 2 ? random.nextInt() : 'x');
+            byte[] compressed = LZCodec.compress(data);
+            assertTrue(Arrays.equals(data, LZCodec.decompress(compressed, 0, compressed.length, size)));
+        }
+    }
+
+    public void testPackCompression() throws Exception {
+        String dirName = "testPackCompressionDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)("abcdefgh".charAt(i % 8) + i / 4096);
+        HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
+
+        File file = new File(dir, "test.pack");
+        PackFile packFile = new PackFile(new RandomAccessFile(file, "rw"));
+        packFile.create(ChunkStore.hashSize());
+        long position = packFile.put(hash, data);
+        assertTrue(file.length() < data.length / 10);
+        packFile.close();
+        packFile = new PackFile(new RandomAccessFile(file, "rw"));
+        packFile.open();
+        assertTrue(Arrays.equals(data, packFile.get(position, hash.getBytes())));
+        assertTrue(Arrays.equals(data, packFile.read(position).getData()));
+        packFile.close();
+
+        MappedPackFile mappedPackFile = new MappedPackFile(dir, "mapped");
+        mappedPackFile.create(ChunkStore.hashSize());
+        position = mappedPackFile.put(hash, data);
+        assertTrue(mappedPackFile.getEnd() < data.length / 10);
+        assertTrue(Arrays.equals(data, mappedPackFile.get(position, hash.getBytes())));
+        mappedPackFile.close();
+
+        // version 1 packs have no codec byte
+        File oldFile = new File(dir, "old.pack");
+        RandomAccessFile oldPack = new RandomAccessFile(oldFile, "rw");
+        oldPack.writeShort(1);
+        oldPack.writeShort(ChunkStore.hashSize());
+        oldPack.write(hash.getBytes());
+        oldPack.writeInt(data.length);
+        oldPack.write(data);
+        oldPack.close();
+        packFile = new PackFile(new RandomAccessFile(oldFile, "rw"));
+        packFile.open();
+        assertTrue(Arrays.equals(data, packFile.get(packFile.getStart(), hash.getBytes())));
+        byte[] data2 = "More data".getBytes();
+        HashValue hash2 = new HashValue(CryptoHelper.sha3_256Hash(data2));
+        position = packFile.put(hash2, data2);
+        IPackFile.Record record = packFile.read(packFile.getStart());
+        assertEquals(position, record.next);
+        assertTrue(Arrays.equals(data2, packFile.read(position).getData()));
+        packFile.close();
+    }
+
+    public void testMappedEngine() throws Exception {
+        String dirName = "testMappedEngineDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", ChunkStore.EngineType.MAPPED_PACK_FILE);
+        byte[] data1 = "Hello".getBytes();
+        byte[] data2 = "Test Data".getBytes();
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        PutResult<HashValue> result1 = transaction.put(data1);
+        PutResult<HashValue> result2 = transaction.put(data2);
+        assertTrue(transaction.put(data1).wasInDatabase);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        assertEquals(ChunkStore.EngineType.MAPPED_PACK_FILE, ChunkStore.getEngineType(dir, "test"));
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(2, chunkStore.size());
+        assertEquals(new String(data1), new String(chunkStore.getChunk(result1.key)));
+        assertEquals(new String(data2), new String(chunkStore.getChunk(result2.key)));
+        ChunkStore.close(dir, "test");
+    }
+
+    public void testHashIndexEngine() throws Exception {
+        String dirName = "testHashIndexEngineDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", ChunkStore.EngineType.HASH_INDEX);
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = putData(transaction, "Data ", 2000);
+        assertTrue(transaction.put("Data 0".getBytes()).wasInDatabase);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        assertEquals(ChunkStore.EngineType.HASH_INDEX, ChunkStore.getEngineType(dir, "test"));
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(2000, chunkStore.size());
+        assertData(chunkStore, results, "Data ");
+        assertNull(chunkStore.getChunk(CryptoHelper.sha3_256Hash("missing".getBytes())));
+        ChunkStore.IChunkStoreIterator iterator = chunkStore.iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertNotNull(iterator.next());
+            count++;
+        }
+        iterator.close();
+        assertEquals(2000, count);
+        ChunkStore.close(dir, "test");
+
+        // an index that has not been written completely is rebuilt
+        ExtensibleHashMap hashMap = new ExtensibleHashMap();
+        RandomAccessFile indexFile = new RandomAccessFile(new File(dir, "test.hidx"), "rw");
+        hashMap.open(indexFile, 0);
+        hashMap.beginBatch();
+        indexFile.close();
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(2000, chunkStore.size());
+        assertData(chunkStore, results, "Data ");
+        ChunkStore.close(dir, "test");
+    }
+
+    public void testChunkCache() throws Exception {
+        String dirName = "testChunkCacheDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = putData(transaction, "Data ", 100);
+        transaction.commit();
+
+        ChunkCache cache = ChunkCache.getInstance();
+        long hits = cache.getHits();
+        assertData(chunkStore, results, "Data ");
+        assertData(chunkStore, results, "Data ");
+        assertTrue(cache.getHits() - hits >= results.size());
+        ChunkStore.close(dir, "test");
+
+        // a cached chunk is not visible in a store that doesn't contain it
+        chunkStore = ChunkStore.create(dir, "other");
+        assertNull(chunkStore.getChunk(results.get(0).key));
+        ChunkStore.close(dir, "other");
+    }
+
+    public void testMigration() throws Exception {
+        String dirName = "testMigrationDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            results.add(transaction.put(("Data " + i).getBytes()));
+        transaction.commit();
+
+        assertEquals(500, ChunkStoreMigration.migrate(dir, "test"));
+        assertFalse(new File(dir, "test.pack").exists());
+        assertEquals(ChunkStore.EngineType.MAPPED_PACK_FILE, ChunkStore.getEngineType(dir, "test"));
+
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(500, chunkStore.size());
+        for (int i = 0; i < results.size(); i++)
+            assertEquals("Data " + i, new String(chunkStore.getChunk(results.get(i).key)));
+        ChunkStore.close(dir, "test");
+    }
+
+    private List<PutResult<HashValue>> putData(ChunkStore.Transaction transaction, String prefix, int count)
+            throws Exception {
+        List<PutResult<HashValue>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            results.add(transaction.put((prefix + i).getBytes()));
+        return results;
+    }
+
+    private void assertData(ChunkStore chunkStore, List<PutResult<HashValue>> results, String prefix)
+            throws Exception {
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(prefix + i, new String(chunkStore.getChunk(results.get(i).key)));
+    }
+
+    private void copyFile(File dir, String from, String to) throws Exception {
+        Files.copy(new File(dir, from).toPath(), new File(dir, to).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public void testTransaction() throws Exception {
+        String dirName = "testTransactionDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> committed = putData(transaction, "Committed ", 10);
+        // uncommitted chunks are visible but not in the index
+        assertData(chunkStore, committed, "Committed ");
+        assertEquals(0, chunkStore.size());
+        transaction.commit();
+        assertEquals(10, chunkStore.size());
+
+        transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> canceled = putData(transaction, "Canceled ", 10);
+        assertTrue(chunkStore.hasChunk(canceled.get(0).key));
+        transaction.cancel();
+        assertFalse(chunkStore.hasChunk(canceled.get(0).key));
+        assertNull(chunkStore.getChunk(canceled.get(0).key));
+
+        // a chunk that is pending in two transactions is shared and only spilled once
+        ChunkStore.Transaction first = chunkStore.openTransaction();
+        ChunkStore.Transaction second = ChunkStore.open(dir, "test").openTransaction();
+        assertNotSame(first, second);
+        List<PutResult<HashValue>> shared = putData(first, "Shared ", 10);
+        putData(second, "Shared ", 10);
+        byte[] large = new byte[5 * 1024 * 1024];
+        large[0] = 1;
+        HashValue largeHash = second.put(large).key;
+        first.put(large);
+        first.cancel();
+        second.commit();
+        assertEquals(21, chunkStore.size());
+        assertData(chunkStore, shared, "Shared ");
+        assertTrue(Arrays.equals(large, chunkStore.getChunk(largeHash)));
+
+        transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> uncommitted = putData(transaction, "Uncommitted ", 10);
+        ChunkStore.close(dir, "test");
+
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(21, chunkStore.size());
+        assertData(chunkStore, committed, "Committed ");
+        assertData(chunkStore, shared, "Shared ");
+        assertFalse(chunkStore.hasChunk(uncommitted.get(0).key));
+        ChunkStore.close(dir, "test");
+    }
+
+    private void testReplayLog(ChunkStore.EngineType engineType) throws Exception {
+        String dirName = "testReplayDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", engineType);
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> first = putData(transaction, "First ", 100);
+        transaction.commit();
+        // snapshot of the index before the second commit
+        copyFile(dir, "test.idx", "snapshot.idx");
+        copyFile(dir, "test.ckp", "snapshot.ckp");
+
+        transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> second = putData(transaction, "Second ", 100);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        // crash: the index updates of the second commit got lost
+        copyFile(dir, "snapshot.idx", "test.idx");
+        copyFile(dir, "snapshot.ckp", "test.ckp");
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(200, chunkStore.size());
+        assertData(chunkStore, first, "First ");
+        assertData(chunkStore, second, "Second ");
+        ChunkStore.close(dir, "test");
+        StorageLib.recursiveDeleteFile(dir);
+    }
+
+    public void testReplayLog() throws Exception {
+        testReplayLog(ChunkStore.EngineType.PACK_FILE);
+        testReplayLog(ChunkStore.EngineType.MAPPED_PACK_FILE);
+    }
+
+    public void testTruncatedLog() throws Exception {
+        String dirName = "testTruncatedLogDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> first = putData(transaction, "First ", 100);
+        transaction.commit();
+        long firstEnd = new File(dir, "test.pack").length();
+        copyFile(dir, "test.idx", "snapshot.idx");
+        copyFile(dir, "test.ckp", "snapshot.ckp");
+
+        transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> second = putData(transaction, "Second ", 100);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        // crash while writing the commit record of the second transaction
+        copyFile(dir, "snapshot.idx", "test.idx");
+        copyFile(dir, "snapshot.ckp", "test.ckp");
+        RandomAccessFile packFile = new RandomAccessFile(new File(dir, "test.pack"), "rw");
+        packFile.setLength(packFile.length() - 3);
+        packFile.close();
+
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(100, chunkStore.size());
+        assertData(chunkStore, first, "First ");
+        for (PutResult<HashValue> result : second)
+            assertFalse(chunkStore.hasChunk(result.key));
+        // the uncommitted tail has been discarded
+        assertEquals(firstEnd, new File(dir, "test.pack").length());
+
+        // the store is still usable
+        transaction = chunkStore.openTransaction();
+        second = putData(transaction, "Second ", 100);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(200, chunkStore.size());
+        assertData(chunkStore, second, "Second ");
+        ChunkStore.close(dir, "test");
+    }
+
+    public void testMissingChunkData() throws Exception {
+        String dirName = "testMissingChunkDataDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> first = putData(transaction, "First ", 100);
+        transaction.commit();
+        long firstEnd = new File(dir, "test.pack").length();
+        copyFile(dir, "test.idx", "snapshot.idx");
+        copyFile(dir, "test.ckp", "snapshot.ckp");
+
+        transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> second = putData(transaction, "Second ", 100);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        // crash: the commit record of the second transaction made it to disk but the data of one of its chunks didn't
+        copyFile(dir, "snapshot.idx", "test.idx");
+        copyFile(dir, "snapshot.ckp", "test.ckp");
+        File file = new File(dir, "test.pack");
+        byte[] pack = Files.readAllBytes(file.toPath());
+        byte[] data = "Second 0".getBytes();
+        int offset = -1;
+        for (int i = (int)firstEnd; i < pack.length - data.length && offset < 0; i++) {
+            if (Arrays.equals(data, Arrays.copyOfRange(pack, i, i + data.length)))
+                offset = i;
+        }
+        assertTrue(offset > 0);
+        RandomAccessFile packFile = new RandomAccessFile(file, "rw");
+        packFile.seek(offset);
+        packFile.write(new byte[data.length]);
+        packFile.close();
+
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(100, chunkStore.size());
+        assertData(chunkStore, first, "First ");
+        for (PutResult<HashValue> result : second)
+            assertFalse(chunkStore.hasChunk(result.key));
+        assertEquals(firstEnd, file.length());
+        ChunkStore.close(dir, "test");
+    }
+
+    public void testGroupCommit() throws Exception {
+        String dirName = "testGroupCommitDir";
+        final File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.create(dir, "test");
+        final int nThreads = 8;
+        final int nCommits = 20;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int t = 0; t < nThreads; t++) {
+            final int threadId = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ChunkStore chunkStore = ChunkStore.open(dir, "test");
+                        for (int i = 0; i < nCommits; i++) {
+                            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+                            putData(transaction, "Thread " + threadId + " commit " + i + " ", 10);
+                            transaction.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        System.out.println("Group commit: " + nThreads * nCommits + " commits in "
+                + (System.currentTimeMillis() - start) + "ms");
+        assertEquals(0, errors.size());
+        ChunkStore.close(dir, "test");
+
+        ChunkStore chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(nThreads * nCommits * 10, chunkStore.size());
+        ChunkStore.close(dir, "test");
+    }
+
+    private long readConcurrently(final ChunkStore chunkStore, final List<PutResult<HashValue>> results,
+                                  int nThreads, final int nReads) throws Exception {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < nThreads; t++) {
+            final Random random = new Random(t);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < nReads; i++) {
+                            int index = random.nextInt(results.size());
+                            byte[] data = chunkStore.getChunk(results.get(index).key);
+                            if (!("Data " + index).equals(new String(data)))
+                                throw new Exception("Unexpected chunk " + index);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, errors.size());
+        return System.nanoTime() - start;
+    }
+
+    public void testConcurrentReads() throws Exception {
+        String dirName = "testConcurrentReadsDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        final ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = putData(transaction, "Data ", 20000);
+        transaction.commit();
+
+        final int nReads = 20000;
+        readConcurrently(chunkStore, results, 1, nReads);
+        for (int nThreads = 1; nThreads <= 8; nThreads *= 2) {
+            long time = readConcurrently(chunkStore, results, nThreads, nReads);
+            System.out.println("Concurrent reads, " + nThreads + " threads: "
+                    + (long)nThreads * nReads * 1000000000L / time + " reads/s");
+        }
+
+        // a closed iterator doesn't block writers
+        ChunkStore.IChunkStoreIterator iterator = chunkStore.iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertNotNull(iterator.next());
+            count++;
+        }
+        iterator.close();
+        assertEquals(results.size(), count);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ChunkStore.Transaction transaction = chunkStore.openTransaction();
+                    transaction.put("New data".getBytes());
+                    transaction.commit();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        writer.start();
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        assertEquals(0, errors.size());
+        assertEquals(results.size() + 1, chunkStore.size());
+        ChunkStore.close(dir, "test");
+    }
+
+    public void testBloomFilterRebuild() throws Exception {
+        String dirName = "testBloomFilterDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = putData(transaction, "Data ", 100);
+        transaction.commit();
+        assertTrue(transaction.put("Data 0".getBytes()).wasInDatabase);
+        transaction.cancel();
+        ChunkStore.close(dir, "test");
+
+        // missing filter
+        assertTrue(new File(dir, "test.bloom").delete());
+        chunkStore = ChunkStore.open(dir, "test");
+        assertTrue(new File(dir, "test.bloom").exists());
+        for (PutResult<HashValue> result : results)
+            assertTrue(chunkStore.hasChunk(result.key));
+        assertFalse(chunkStore.hasChunk(new HashValue(CryptoHelper.sha3_256Hash("missing".getBytes()))));
+        ChunkStore.close(dir, "test");
+
+        // filter out of sync with the index
+        BloomFilter filter = new BloomFilter(new File(dir, "test.bloom"));
+        filter.create(1000);
+        filter.close();
+        chunkStore = ChunkStore.open(dir, "test");
+        assertData(chunkStore, results, "Data ");
+
+        // crash: the entry count made it to disk but the bits did not
+        copyFile(dir, "test.bloom", "snapshot.bloom");
+        ChunkStore.close(dir, "test");
+        RandomAccessFile bloomFile = new RandomAccessFile(new File(dir, "snapshot.bloom"), "rw");
+        long headerSize = 36;
+        bloomFile.seek(headerSize);
+        bloomFile.write(new byte[(int)(bloomFile.length() - headerSize)]);
+        bloomFile.close();
+        copyFile(dir, "snapshot.bloom", "test.bloom");
+        chunkStore = ChunkStore.open(dir, "test");
+        for (PutResult<HashValue> result : results)
+            assertTrue(chunkStore.hasChunk(result.key));
+        ChunkStore.close(dir, "test");
+    }
+
+    public void testRebuildIndex() throws Exception {
+        String dirName = "testRebuildIndexDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        // large enough to be bulk loaded into the empty index
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> first = putData(transaction, "First ", 2000);
+        transaction.commit();
+        assertEquals(2000, chunkStore.size());
+        assertData(chunkStore, first, "First ");
+
+        transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> second = putData(transaction, "Second ", 100);
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        assertTrue(new File(dir, "test.idx").delete());
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(2100, chunkStore.size());
+        assertData(chunkStore, first, "First ");
+        assertData(chunkStore, second, "Second ");
+        ChunkStore.close(dir, "test");
+
+        // the header points to tiles that didn't make it to disk
+        RandomAccessFile indexFile = new RandomAccessFile(new File(dir, "test.idx"), "rw");
+        indexFile.setLength(36);
+        indexFile.close();
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(2100, chunkStore.size());
+        assertData(chunkStore, first, "First ");
+        assertData(chunkStore, second, "Second ");
+        ChunkStore.close(dir, "test");
+    }
+
+    private void testGarbageCollection(ChunkStore.EngineType engineType) throws Exception {
+        String dirName = "testGarbageCollectionDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test", engineType);
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = putData(transaction, "Data ", 1000);
+        transaction.commit();
+
+        ChunkStoreGarbageCollector collector = new ChunkStoreGarbageCollector(chunkStore);
+        for (int i = 0; i < results.size(); i += 2)
+            collector.mark(results.get(i).key);
+        // chunks that are written or deduplicated while collecting are kept
+        transaction = chunkStore.openTransaction();
+        PutResult<HashValue> newChunk = transaction.put("New data".getBytes());
+        assertTrue(transaction.put("Data 1".getBytes()).wasInDatabase);
+        transaction.commit();
+        // an uncommitted chunk that has been spilled to the old pack
+        byte[] large = new byte[5 * 1024 * 1024];
+        new Random(1).nextBytes(large);
+        transaction = chunkStore.openTransaction();
+        PutResult<HashValue> largeChunk = transaction.put(large);
+
+        assertEquals(499, collector.sweep());
+        assertEquals(502, chunkStore.size());
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(i % 2 == 0 || i == 1, chunkStore.hasChunk(results.get(i).key));
+        assertEquals("New data", new String(chunkStore.getChunk(newChunk.key)));
+        transaction.commit();
+        ChunkStore.close(dir, "test");
+
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(503, chunkStore.size());
+        assertTrue(Arrays.equals(large, chunkStore.getChunk(largeChunk.key)));
+        assertEquals("Data 1", new String(chunkStore.getChunk(results.get(1).key)));
+        assertEquals("Data 998", new String(chunkStore.getChunk(results.get(998).key)));
+        assertFalse(new File(dir, "test.compact.idx").exists());
+        ChunkStore.close(dir, "test");
+        StorageLib.recursiveDeleteFile(dir);
+    }
+
+    public void testGarbageCollection() throws Exception {
+        testGarbageCollection(ChunkStore.EngineType.PACK_FILE);
+        testGarbageCollection(ChunkStore.EngineType.MAPPED_PACK_FILE);
+        testGarbageCollection(ChunkStore.EngineType.HASH_INDEX);
+    }
+
+    public void testGarbageCollectionWhileCommitting() throws Exception {
+        String dirName = "testGarbageCollectionWhileCommittingDir";
+        final File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<PutResult<HashValue>> results = putData(transaction, "Data ", 1000);
+        transaction.commit();
+
+        ChunkStoreGarbageCollector collector = new ChunkStoreGarbageCollector(chunkStore);
+        for (PutResult<HashValue> result : results)
+            collector.mark(result.key);
+        final int nCommits = 50;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ChunkStore writerStore = ChunkStore.open(dir, "test");
+                    for (int i = 0; i < nCommits; i++) {
+                        ChunkStore.Transaction transaction = writerStore.openTransaction();
+                        putData(transaction, "Commit " + i + " ", 10);
+                        transaction.commit();
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        writer.start();
+        assertEquals(0, collector.sweep());
+        writer.join();
+        assertEquals(0, errors.size());
+        assertEquals(1000 + nCommits * 10, chunkStore.size());
+        ChunkStore.close(dir, "test");
+
+        chunkStore = ChunkStore.open(dir, "test");
+        assertEquals(1000 + nCommits * 10, chunkStore.size());
+        assertData(chunkStore, results, "Data ");
+        assertEquals("Commit 49 9", new String(chunkStore.getChunk(
+                new HashValue(CryptoHelper.sha3_256Hash("Commit 49 9".getBytes())))));
+        ChunkStore.close(dir, "test");
+    }
+
+    // uniformly distributed 32 byte key
+    static private byte[] indexKey(long i) {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        for (int part = 0; part < 4; part++) {
+            long value = i * 4 + part + 0x9E3779B97F4A7C15L;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            buffer.putLong(value ^ (value >>> 31));
+        }
+        return buffer.array();
+    }
+
+    public void testIndexThroughput() throws Exception {
+        String dirName = "testIndexThroughputDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        int nKeys = 100000;
+        //int nKeys = 1000000;
+        //int nKeys = 10000000;
+        int batchSize = 10000;
+        int nLookups = 100000;
+        // the B+tree can't store position 0, pack positions start after the header anyway
+        IChunkIndex[] indices = {
+                new BPlusTreeChunkIndex(BPlusTreeChunkIndex.getFile(dir, "test")),
+                new ExtensibleHashChunkIndex(ExtensibleHashChunkIndex.getFile(dir, "test"))
+        };
+        for (IChunkIndex index : indices) {
+            index.create();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < nKeys; i += batchSize) {
+                index.beginBatch();
+                for (int a = i; a < Math.min(nKeys, i + batchSize); a++)
+                    assertTrue(index.put(new HashValue(indexKey(a)), a + 1));
+                index.commitBatch();
+            }
+            long insertTime = System.currentTimeMillis() - start;
+
+            Random generator = new Random(1);
+            start = System.currentTimeMillis();
+            for (int i = 0; i < nLookups; i++) {
+                long key = generator.nextInt(nKeys);
+                assertEquals(key + 1, (long)index.get(indexKey(key)));
+            }
+            long lookupTime = System.currentTimeMillis() - start;
+            assertNull(index.get(indexKey(nKeys)));
+            assertEquals(nKeys, index.size());
+
+            System.out.println(index.getClass().getSimpleName() + ", keys: " + nKeys + ", insert: " + insertTime
+                    + "ms (" + (long)nKeys * 1000 / Math.max(1, insertTime) + "/s), lookup: " + lookupTime + "ms ("
+                    + (long)nLookups * 1000 / Math.max(1, lookupTime) + "/s), size: "
+                    + index.getFile().length() / 1024 + "KiB");
+            index.close();
+        }
+    }
+
+    public void testInterruptedSwap() throws Exception {
+        for (ChunkStore.EngineType engineType : ChunkStore.EngineType.values()) {
+            String dirName = "testInterruptedSwapDir";
+            File dir = new File(dirName);
+            dir.mkdirs();
+            cleanUpFiles.add(dirName);
+
+            ChunkStore chunkStore = ChunkStore.create(dir, "test", engineType);
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+            putData(transaction, "Old ", 100);
+            transaction.commit();
+            ChunkStore.close(dir, "test");
+
+            // state after a garbage collection has been interrupted while swapping the files
+            chunkStore = ChunkStore.create(dir, "test.compact", engineType);
+            transaction = chunkStore.openTransaction();
+            List<PutResult<HashValue>> results = putData(transaction, "New ", 10);
+            transaction.commit();
+            ChunkStore.close(dir, "test.compact");
+            assertTrue(new File(dir, "test.swap").createNewFile());
+
+            chunkStore = ChunkStore.open(dir, "test", engineType);
+            assertEquals(10, chunkStore.size());
+            assertData(chunkStore, results, "New ");
+            assertFalse(new File(dir, "test.swap").exists());
+            ChunkStore.close(dir, "test");
+            StorageLib.recursiveDeleteFile(dir);
+        }
+    }
 }
@@ -8,16 +8,24 @@
 package org.fejoa.chunkstore;
 
 import junit.framework.TestCase;
+import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 import org.rabinfingerprint.fingerprint.RabinFingerprintLongWindowed;
 import org.rabinfingerprint.polynomial.Polynomial;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 
 public class ChunkingTest extends TestCase {
@@ -115,4 +123,253 @@ public class ChunkingTest extends TestCase {
         }
         System.out.println("Average match size: " + sumMatchSizes / nMatches);
     }
+
+    private List<Integer> splitByteByByte(ChunkSplitter splitter, byte[] data) {
+        List<Integer> boundaries = new ArrayList<>();
+        splitter.reset();
+        for (int i = 0; i < data.length; i++) {
+            if (splitter.update(data[i])) {
+                boundaries.add(i + 1);
+                splitter.reset();
+            }
+        }
+        return boundaries;
+    }
+
+    private List<Integer> splitBulk(ChunkSplitter splitter, byte[] data, Random random) {
+        List<Integer> boundaries = new ArrayList<>();
+        splitter.reset();
+        int position = 0;
+        while (position < data.length) {
+            int length = Math.min(data.length - position, 1 + random.nextInt(20000));
+            int end = position + length;
+            while (position < end) {
+                position += splitter.update(data, position, end - position);
+                if (splitter.isTriggered()) {
+                    boundaries.add(position);
+                    splitter.reset();
+                }
+            }
+        }
+        return boundaries;
+    }
+
+    public void testBulkUpdate() throws Exception {
+        byte[] data = new byte[1024 * 1024 * 4];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        ChunkSplitter[] splitters = {
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, 128),
+                new RabinSplitter(4 * 1024, 2 * 1024, 8 * 1024),
+                new RabinSplitter(1024, 16, 1024 * 1024),
+                new GearSplitter(8 * 1024, 2 * 1024, 64 * 1024),
+                new GearSplitter(1000, 16, 3000),
+                new FixedBlockSplitter(1000)
+        };
+        for (ChunkSplitter splitter : splitters) {
+            long start = System.currentTimeMillis();
+            List<Integer> expected = splitByteByByte(splitter, data);
+            long byteTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            List<Integer> boundaries = splitBulk(splitter, data, random);
+            long bulkTime = System.currentTimeMillis() - start;
+            assertTrue(expected.size() > 0);
+            assertEquals(expected, boundaries);
+            System.out.println(splitter.getClass().getSimpleName() + ": byte by byte " + byteTime + "ms, bulk "
+                    + bulkTime + "ms");
+        }
+    }
+
+    private List<byte[]> chunk(ChunkSplitter splitter, byte[] data) {
+        List<byte[]> chunks = new ArrayList<>();
+        splitter.reset();
+        int start = 0;
+        int position = 0;
+        while (position < data.length) {
+            position += splitter.update(data, position, data.length - position);
+            if (splitter.isTriggered() || position == data.length) {
+                chunks.add(Arrays.copyOfRange(data, start, position));
+                start = position;
+                splitter.reset();
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Applies random inserts, deletes and overwrites of up to 100 bytes.
+     */
+    private byte[] edit(byte[] data, int nEdits, Random random) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int[] positions = new int[nEdits];
+        for (int i = 0; i < nEdits; i++)
+            positions[i] = random.nextInt(data.length);
+        Arrays.sort(positions);
+        int position = 0;
+        for (int editPosition : positions) {
+            if (editPosition < position)
+                continue;
+            outputStream.write(data, position, editPosition - position);
+            position = editPosition;
+            byte[] newData = new byte[1 + random.nextInt(100)];
+            random.nextBytes(newData);
+            switch (random.nextInt(3)) {
+                case 0: // insert
+                    outputStream.write(newData, 0, newData.length);
+                    break;
+                case 1: // delete
+                    position = Math.min(data.length, position + newData.length);
+                    break;
+                case 2: // overwrite
+                    outputStream.write(newData, 0, newData.length);
+                    position = Math.min(data.length, position + newData.length);
+                    break;
+            }
+        }
+        outputStream.write(data, position, data.length - position);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return the fraction of the edited data that is stored in chunks that already exist in the original data
+     */
+    private double dedupRatio(ChunkSplitter splitter, byte[] original, byte[] edited) {
+        Set<HashValue> existing = new HashSet<>();
+        for (byte[] chunk : chunk(splitter, original))
+            existing.add(new HashValue(CryptoHelper.sha256Hash(chunk)));
+        long duplicated = 0;
+        for (byte[] chunk : chunk(splitter, edited)) {
+            if (existing.contains(new HashValue(CryptoHelper.sha256Hash(chunk))))
+                duplicated += chunk.length;
+        }
+        return (double)duplicated / edited.length;
+    }
+
+    public void testGearVsRabin() throws Exception {
+        int nBytes = 1024 * 1024 * 16;
+        //int nBytes = 1024 * 1024 * 256;
+        byte[] data = new byte[nBytes];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        ChunkContainerHeader rabinHeader = new ChunkContainerHeader();
+        rabinHeader.setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainerHeader gearHeader = new ChunkContainerHeader();
+        gearHeader.setGearChunking(ChunkContainerHeader.ChunkingType.GEAR_SPLITTER_2K_8K_64K);
+        ChunkContainerHeader[] headers = {rabinHeader, gearHeader};
+        for (ChunkContainerHeader header : headers) {
+            ChunkSplitter splitter = header.getSplitter(1f);
+            // warm up
+            chunk(splitter, Arrays.copyOf(data, 1024 * 1024));
+            long start = System.currentTimeMillis();
+            List<byte[]> chunks = chunk(splitter, data);
+            long time = Math.max(1, System.currentTimeMillis() - start);
+
+            double mean = (double)nBytes / chunks.size();
+            double variance = 0;
+            for (byte[] chunk : chunks)
+                variance += (chunk.length - mean) * (chunk.length - mean);
+            double deviation = Math.sqrt(variance / chunks.size());
+            System.out.println(header.getChunkingConfig().getChunkingType() + ": " + time + "ms ("
+                    + (nBytes / 1024d / 1024d) / (time / 1000d) + "MB/s), " + chunks.size() + " chunks, mean size "
+                    + (int)mean + ", standard deviation " + (int)deviation);
+
+            int[] nEditsList = {10, 100, 1000};
+            for (int nEdits : nEditsList) {
+                byte[] edited = edit(data, nEdits, new Random(nEdits));
+                double ratio = dedupRatio(splitter, data, edited);
+                System.out.println("  " + nEdits + " edits, dedup ratio: " + ratio);
+                if (nEdits == 10)
+                    assertTrue(ratio > 0.95);
+            }
+        }
+    }
+
+    public void testWindowTableResource() throws Exception {
+        RabinFingerprintLongWindowed loaded = RabinSplitter.WindowCache.loadTemplate(
+                RabinSplitter.DEFAULT_POLYNOMIAL, RabinSplitter.DEFAULT_WINDOW_SIZE);
+        assertNotNull(loaded);
+        RabinFingerprintLongWindowed computed = new RabinFingerprintLongWindowed(
+                Polynomial.createFromLong(RabinSplitter.DEFAULT_POLYNOMIAL), RabinSplitter.DEFAULT_WINDOW_SIZE);
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            byte b = (byte)random.nextInt();
+            loaded.pushByte(b);
+            computed.pushByte(b);
+            assertEquals(computed.getFingerprintLong(), loaded.getFingerprintLong());
+        }
+
+        assertNull(RabinSplitter.WindowCache.loadTemplate(RabinSplitter.DEFAULT_POLYNOMIAL, 32));
+    }
+
+    public void testConcurrentWindowCache() throws Exception {
+        final byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        final List<Integer> expected = splitByteByByte(new RabinSplitter(), data);
+
+        final RabinSplitter prototype = new RabinSplitter();
+        final RabinSplitter.WindowCache cache = new RabinSplitter.WindowCache();
+        final int nThreads = 16;
+        final RabinFingerprintLongWindowed[] templates = new RabinFingerprintLongWindowed[nThreads];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++) {
+            final int threadIndex = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        // a window size without bundled tables so that the tables are computed concurrently
+                        templates[threadIndex] = cache.getTemplate(RabinSplitter.DEFAULT_POLYNOMIAL, 32);
+                        for (int j = 0; j < 5; j++) {
+                            ChunkSplitter splitter = j % 2 == 0 ? new RabinSplitter() : prototype.newInstance();
+                            if (!expected.equals(splitByteByByte(splitter, data)))
+                                throw new Exception("Boundaries differ");
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (RabinFingerprintLongWindowed template : templates)
+            assertSame(templates[0], template);
+    }
+
+    public void testRestore() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        Random random = new Random(1);
+        random.nextBytes(data);
+
+        ChunkSplitter[] splitters = {
+                new RabinSplitter(4 * 1024, 2 * 1024, 8 * 1024),
+                new RabinSplitter(1024, 16, 1024 * 1024),
+                new GearSplitter(8 * 1024, 2 * 1024, 64 * 1024),
+                new GearSplitter(1000, 16, 3000),
+                new FixedBlockSplitter(1000)
+        };
+        for (ChunkSplitter splitter : splitters) {
+            List<Integer> boundaries = splitByteByByte(splitter, data);
+            int chunkStart = 0;
+            for (int chunkEnd : boundaries) {
+                // restore the state inside the chunk and find the end of the chunk again
+                int position = chunkStart + 1 + random.nextInt(chunkEnd - chunkStart);
+                splitter.restore(data, chunkStart, position - chunkStart);
+                while (!splitter.isTriggered())
+                    splitter.update(data[position++]);
+                assertEquals(chunkEnd, position);
+                chunkStart = chunkEnd;
+            }
+        }
+    }
 }
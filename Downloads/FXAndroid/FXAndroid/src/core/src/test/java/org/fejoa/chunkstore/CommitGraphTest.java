@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.chunkstore.sync.CommonAncestorsFinder;
+import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.crypto.CryptoHelper;
+
+import java.io.*;
+import java.util.*;
+
+
+public class CommitGraphTest extends RepositoryTestBase {
+    final private Map<HashValue, byte[]> chunks = new HashMap<>();
+    private ChunkContainerRef tree;
+
+    final private IChunkAccessor accessor = new IChunkAccessor() {
+        @Override
+        public DataInputStream getChunk(ChunkPointer hash) throws IOException {
+            byte[] data = chunks.get(hash.getBoxHash());
+            if (data == null)
+                throw new IOException("Chunk not found: " + hash.getBoxHash());
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException {
+            HashValue hash = new HashValue(CryptoHelper.sha256Hash(data));
+            boolean wasInDatabase = chunks.put(hash, data) != null;
+            return new PutResult<>(hash, wasInDatabase);
+        }
+
+        @Override
+        public void releaseChunk(HashValue data) {
+
+        }
+    };
+
+    final private IRepoChunkAccessors.ITransaction transaction = new IRepoChunkAccessors.ITransaction() {
+        @Override
+        public ChunkStore.Transaction getRawAccessor() {
+            return null;
+        }
+
+        @Override
+        public IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
+            return accessor;
+        }
+
+        @Override
+        public IChunkAccessor getTreeAccessor(ChunkContainerRef ref) {
+            return accessor;
+        }
+
+        @Override
+        public IChunkAccessor getFileAccessor(ChunkContainerRef ref, String filePath) {
+            return accessor;
+        }
+
+        @Override
+        public void finishTransaction() throws IOException {
+
+        }
+
+        @Override
+        public void cancel() {
+
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        FlatDirectoryBox root = FlatDirectoryBox.create();
+        tree = root.flush(accessor);
+    }
+
+    private CommitBox commit(String message, CommitBox... parents) throws IOException, CryptoException {
+        CommitBox commitBox = CommitBox.create();
+        commitBox.setTree(tree);
+        for (CommitBox parent : parents)
+            commitBox.addParent(parent.getRef());
+        commitBox.setCommitMessage(message.getBytes());
+        SyncRepository.put(commitBox, accessor, new ChunkContainerRef());
+        return commitBox;
+    }
+
+    private CommitGraph openGraph(String name) throws IOException {
+        File directory = new File("CommitGraphTest");
+        cleanUpFiles.add(directory.getName());
+        return CommitGraph.open(new File(directory, name));
+    }
+
+    private List<HashValue> hashes(CommitBox... commits) {
+        List<HashValue> list = new ArrayList<>();
+        for (CommitBox commit : commits)
+            list.add(commit.getPlainHash());
+        return list;
+    }
+
+    public void testAncestorsAndMergeBases() throws Exception {
+        // a - b - c - d
+        //      \       \
+        //       e - f - g
+        CommitBox a = commit("a");
+        CommitBox b = commit("b", a);
+        CommitBox c = commit("c", b);
+        CommitBox d = commit("d", c);
+        CommitBox e = commit("e", b);
+        CommitBox f = commit("f", e);
+        CommitBox g = commit("g", f, d);
+
+        CommitGraph graph = openGraph("graph");
+        // the missing ancestors are read through the transaction
+        graph.add(g, transaction);
+        assertEquals(7, graph.size());
+        assertEquals(1, graph.getGeneration(a.getPlainHash()));
+        assertEquals(4, graph.getGeneration(d.getPlainHash()));
+        assertEquals(5, graph.getGeneration(g.getPlainHash()));
+
+        assertTrue(graph.isAncestor(a.getPlainHash(), d.getPlainHash()));
+        assertTrue(graph.isAncestor(d.getPlainHash(), d.getPlainHash()));
+        assertTrue(graph.isAncestor(c.getPlainHash(), g.getPlainHash()));
+        assertFalse(graph.isAncestor(d.getPlainHash(), a.getPlainHash()));
+        assertFalse(graph.isAncestor(e.getPlainHash(), d.getPlainHash()));
+
+        assertEquals(hashes(b), graph.getMergeBases(d.getPlainHash(), f.getPlainHash()));
+        assertEquals(hashes(d), graph.getMergeBases(g.getPlainHash(), d.getPlainHash()));
+        assertEquals(hashes(b), graph.getMergeBases(c.getPlainHash(), e.getPlainHash()));
+
+        // criss-cross merge: both branch heads are merge bases
+        CommitBox x = commit("x", d, f);
+        CommitBox y = commit("y", f, d);
+        graph.add(x, transaction);
+        graph.add(y, transaction);
+        List<HashValue> mergeBases = graph.getMergeBases(x.getPlainHash(), y.getPlainHash());
+        assertEquals(2, mergeBases.size());
+        assertTrue(mergeBases.containsAll(hashes(d, f)));
+
+        // unrelated histories
+        CommitBox other = commit("other");
+        graph.add(other, transaction);
+        assertEquals(0, graph.getMergeBases(other.getPlainHash(), g.getPlainHash()).size());
+        assertFalse(graph.isAncestor(other.getPlainHash(), g.getPlainHash()));
+    }
+
+    public void testPersistence() throws Exception {
+        CommitBox a = commit("a");
+        CommitBox b = commit("b", a);
+        CommitBox c = commit("c", b);
+
+        File directory = new File("CommitGraphTest");
+        File file = new File(directory, "persistent");
+        CommitGraph graph = openGraph("persistent");
+        graph.add(b, transaction);
+        graph.add(c, transaction);
+        assertSame(graph, CommitGraph.open(file));
+
+        // an incomplete record is dropped when the graph is read again
+        long length = file.length();
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        outputStream.write(new byte[]{1, 2, 3});
+        outputStream.close();
+        CommitGraph reloaded = CommitGraph.open(file);
+        assertNotSame(graph, reloaded);
+        assertEquals(length, file.length());
+        assertEquals(3, reloaded.size());
+        assertEquals(c.getRef(), reloaded.getRef(c.getPlainHash()));
+        assertTrue(reloaded.isAncestor(a.getPlainHash(), c.getPlainHash()));
+        assertEquals(3, reloaded.getGeneration(c.getPlainHash()));
+    }
+
+    public void testLargeHistory() throws Exception {
+        // a main line with a side branch that is merged back every 1000 commits
+        final int nCommits = 100000;
+        final int branchInterval = 1000;
+        CommitGraph graph = openGraph("large");
+        CommitBox root = commit("root");
+        graph.add(root, transaction);
+        CommitBox head = root;
+        CommitBox sideHead = root;
+        long start = System.currentTimeMillis();
+        for (int i = 1; i < nCommits; i++) {
+            if (i % branchInterval == 0) {
+                head = commit("merge" + i, head, sideHead);
+            } else if (i % branchInterval == branchInterval / 2) {
+                sideHead = commit("side" + i, head);
+            } else if (i % 10 == 0) {
+                sideHead = commit("side" + i, sideHead);
+            } else {
+                head = commit("main" + i, head);
+            }
+            graph.add(head, transaction);
+            graph.add(sideHead, transaction);
+        }
+        System.out.println("Adding " + graph.size() + " commits: " + (System.currentTimeMillis() - start) + "ms");
+
+        final int nQueries = 100;
+        start = System.nanoTime();
+        for (int i = 0; i < nQueries; i++)
+            assertTrue(graph.isAncestor(root.getPlainHash(), head.getPlainHash()));
+        System.out.println("Ancestor query over the whole history: " + (System.nanoTime() - start) / nQueries / 1000
+                + "us");
+
+        CommitBox branchPoint = commit("branchPoint", head);
+        CommitBox ours = commit("ours", branchPoint);
+        CommitBox theirs = commit("theirs", branchPoint);
+        graph.add(ours, transaction);
+        graph.add(theirs, transaction);
+        start = System.nanoTime();
+        for (int i = 0; i < nQueries; i++) {
+            assertEquals(hashes(branchPoint), graph.getMergeBases(ours.getPlainHash(), theirs.getPlainHash()));
+            assertFalse(graph.isAncestor(ours.getPlainHash(), theirs.getPlainHash()));
+        }
+        System.out.println("Merge base and ancestor query of two branch heads: "
+                + (System.nanoTime() - start) / nQueries / 1000 + "us");
+
+        // the previous approach that reads the commits of both chains from the chunk store
+        start = System.nanoTime();
+        CommonAncestorsFinder.Chains chains = CommonAncestorsFinder.find(transaction, ours, transaction, theirs);
+        assertEquals(branchPoint.getPlainHash(), chains.getShortestChain().getOldest().getPlainHash());
+        System.out.println("CommonAncestorsFinder: " + (System.nanoTime() - start) / 1000 + "us");
+    }
+}
@@ -10,6 +10,7 @@ package org.fejoa.chunkstore;
 
 import junit.framework.TestCase;
 import org.fejoa.chunkstore.ExtensibleHashMap;
+import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.File;
@@ -17,7 +18,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class ExtensibleHashMapTest extends TestCase {
     final List<String> cleanUpFiles = new ArrayList<String>();
@@ -169,4 +173,52 @@ public class ExtensibleHashMapTest extends TestCase {
         hashMap.put("00000000", 0l);
         hashMap.print();
     }
+
+    public void testManyEntries() throws Exception {
+        String fileName = "testManyEntries.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = openNew(fileName);
+        ExtensibleHashMap hashMap = new ExtensibleHashMap();
+        hashMap.create(file, 0, (short)32, (short)8);
+        Map<String, Long> entries = new HashMap<>();
+        hashMap.beginBatch();
+        for (long i = 0; i < 5000; i++) {
+            String key = CryptoHelper.sha256HashHex("" + i);
+            entries.put(key, i);
+            assertTrue(hashMap.put(key, i));
+        }
+        hashMap.commitBatch();
+        assertFalse(hashMap.put(CryptoHelper.sha256HashHex("0"), 1l));
+        assertEquals(5000, hashMap.size());
+        file.close();
+
+        file = new RandomAccessFile(fileName, "rw");
+        hashMap = new ExtensibleHashMap();
+        hashMap.open(file, 0);
+        assertTrue(hashMap.isConsistent());
+        assertEquals(5000, hashMap.size());
+        for (Map.Entry<String, Long> entry : entries.entrySet())
+            assertEquals(entry.getValue(), hashMap.get(entry.getKey()));
+        assertNull(hashMap.get(CryptoHelper.sha256HashHex("missing")));
+
+        int count = 0;
+        Iterator<AbstractExtensibleHashMap.Entry<Long>> iterator = hashMap.iterator();
+        while (iterator.hasNext()) {
+            AbstractExtensibleHashMap.Entry<Long> entry = iterator.next();
+            assertEquals(entries.get(CryptoHelper.toHex(entry.key)), entry.data);
+            count++;
+        }
+        assertEquals(entries.size(), count);
+
+        // an unfinished batch marks the map as inconsistent
+        hashMap.beginBatch();
+        hashMap.put(CryptoHelper.sha256HashHex("new"), 1l);
+        file.close();
+        file = new RandomAccessFile(fileName, "rw");
+        hashMap = new ExtensibleHashMap();
+        hashMap.open(file, 0);
+        assertFalse(hashMap.isConsistent());
+        file.close();
+    }
 }
@@ -158,6 +158,15 @@ public class PullPushTest extends RepositoryTestBase {
         assertTrue(pulledTip.getBoxHash().equals(boxPointer.getBoxHash()));
         assertEquals(pulledTip,
                 simpleCommitCallback.commitPointerFromLog(requestRepo.getBranchLog().getLatest().getMessage()));
+
+        // pull a sharded directory
+        for (int i = 0; i < 2 * FlatDirectoryBox.MAX_SHARD_SIZE; i++)
+            add(remoteRepo, remoteContent, new DatabaseStingEntry("large/file" + i, "file" + i));
+        boxPointer = remoteRepo.commitInternal("", null);
+
+        pulledTip = pullRequest.pull(senderPipe, branch);
+        containsContent(requestRepo, remoteContent);
+        assertTrue(pulledTip.getBoxHash().equals(boxPointer.getBoxHash()));
     }
 
     public void testPullRepo() throws Exception {
@@ -257,6 +266,18 @@ public class PullPushTest extends RepositoryTestBase {
         remoteRepo = new Repository(remoteDirectory, branch, getRepoChunkAccessors(remoteChunkStore),
                 simpleCommitCallback);
         containsContent(remoteRepo, localContent);
+
+        // push a sharded directory and a change to one of its shards
+        for (int i = 0; i < 2 * FlatDirectoryBox.MAX_SHARD_SIZE; i++)
+            add(localRepo, localContent, new DatabaseStingEntry("large/file" + i, "file" + i));
+        localRepo.commit(null);
+        pushRequest.push(senderPipe, localTransaction, branch);
+        add(localRepo, localContent, new DatabaseStingEntry("large/file1", "update"));
+        localRepo.commit(null);
+        pushRequest.push(senderPipe, localTransaction, branch);
+        remoteRepo = new Repository(remoteDirectory, branch, getRepoChunkAccessors(remoteChunkStore),
+                simpleCommitCallback);
+        containsContent(remoteRepo, localContent);
     }
 }
 
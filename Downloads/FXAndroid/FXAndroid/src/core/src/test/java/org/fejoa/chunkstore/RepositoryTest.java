@@ -275,6 +275,403 @@ public class RepositoryTest extends RepositoryTestBase {
         assertEquals(0, repository.listDirectories("dir1/file2").size());
     }
 
+    public void testGarbageCollection() throws Exception {
+        String branch = "repoBranch";
+        String name = "repoGC";
+        File directory = new File("RepoGCTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore chunkStore = createChunkStore(directory, name);
+        IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+        Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+        Map<String, DatabaseStingEntry> content = new HashMap<>();
+        add(repository, content, new DatabaseStingEntry("file1", "file1"));
+        add(repository, content, new DatabaseStingEntry("dir1/file2", "file2"));
+        add(repository, content, new DatabaseStingEntry("dir1/sub1/file3", "file3"));
+        repository.commit(null);
+        add(repository, content, new DatabaseStingEntry("dir1/file2", "file2Update"));
+        remove(repository, content, "dir1/sub1/file3");
+        repository.commit(null);
+
+        // unreachable chunks
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<HashValue> garbage = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            garbage.add(transaction.put(("garbage" + i).getBytes()).key);
+        transaction.commit();
+        long size = chunkStore.size();
+
+        assertEquals(garbage.size(), repository.collectGarbage());
+        assertEquals(size - garbage.size(), chunkStore.size());
+        for (HashValue hash : garbage)
+            assertFalse(chunkStore.hasChunk(hash));
+
+        repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+        containsContent(repository, content);
+        // the history is still reachable
+        CommitBox parent = CommitBox.read(accessors.startTransaction().getCommitAccessor(null),
+                repository.getHeadCommit().getParents().get(0));
+        assertNotNull(parent.getTree());
+    }
+
+    static private byte[] versionedContent(int version, int size, Random random) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        byte[] header = ("v" + version + "\n").getBytes();
+        System.arraycopy(header, 0, content, 0, header.length);
+        return content;
+    }
+
+    static private int readVersion(byte[] content) {
+        String string = new String(content, 0, Math.min(content.length, 16));
+        return Integer.parseInt(string.substring(1, string.indexOf('\n')));
+    }
+
+    static private class Reader extends Thread {
+        final private Repository repository;
+        final private boolean useSnapshot;
+        final private int nFiles;
+        volatile boolean stop = false;
+        long nReads = 0;
+        long maxLatency = 0;
+        Exception error;
+
+        Reader(Repository repository, boolean useSnapshot, int nFiles) {
+            this.repository = repository;
+            this.useSnapshot = useSnapshot;
+            this.nFiles = nFiles;
+        }
+
+        private byte[] read(RepositorySnapshot snapshot, String path) throws Exception {
+            long start = System.nanoTime();
+            byte[] data = useSnapshot ? snapshot.readBytes(path) : repository.readBytes(path);
+            maxLatency = Math.max(maxLatency, (System.nanoTime() - start) / 1000000);
+            nReads++;
+            return data;
+        }
+
+        private void readSnapshot(RepositorySnapshot snapshot) throws Exception {
+            // all files of a snapshot belong to the same commit
+            int version = readVersion(read(snapshot, "version"));
+            for (int i = 0; i < nFiles; i++)
+                assertEquals(version, readVersion(read(snapshot, "dir" + (i % 3) + "/file" + i)));
+            assertEquals(nFiles, snapshot.listFiles("dir0").size() + snapshot.listFiles("dir1").size()
+                    + snapshot.listFiles("dir2").size());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stop) {
+                    RepositorySnapshot snapshot = repository.getSnapshot();
+                    if (snapshot.getCommit() == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (useSnapshot)
+                        readSnapshot(snapshot);
+                    else
+                        read(snapshot, "version");
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    public void testSnapshotReaders() throws Exception {
+        String branch = "repoBranch";
+        String name = "repoSnapshot";
+        File directory = new File("RepoSnapshotTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore chunkStore = createChunkStore(directory, name);
+        IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+        Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+        RepositorySnapshot emptySnapshot = repository.getSnapshot();
+        assertNull(emptySnapshot.getCommit());
+        assertFalse(emptySnapshot.hasFile("version"));
+
+        final int nFiles = 12;
+        final int nCommits = 10;
+        List<Reader> readers = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            readers.add(new Reader(repository, true, nFiles));
+        readers.add(new Reader(repository, false, nFiles));
+        for (Reader reader : readers)
+            reader.start();
+
+        Random random = new Random(1);
+        long maxCommitTime = 0;
+        RepositorySnapshot firstSnapshot = null;
+        for (int version = 1; version <= nCommits; version++) {
+            for (int i = 0; i < nFiles; i++)
+                repository.putBytes("dir" + (i % 3) + "/file" + i, versionedContent(version, 256 * 1024, random));
+            repository.putBytes("version", versionedContent(version, 16, random));
+            // uncommitted changes are not visible
+            if (firstSnapshot != null)
+                assertEquals(version - 1, readVersion(repository.getSnapshot().readBytes("version")));
+            long start = System.nanoTime();
+            repository.commit(null);
+            maxCommitTime = Math.max(maxCommitTime, (System.nanoTime() - start) / 1000000);
+            assertEquals(repository.getTip(), repository.getSnapshot().getTip());
+            if (firstSnapshot == null)
+                firstSnapshot = repository.getSnapshot();
+        }
+        for (Reader reader : readers) {
+            reader.stop = true;
+            reader.join();
+            if (reader.error != null)
+                throw reader.error;
+            assertTrue(reader.nReads > 0);
+            System.out.println((reader.useSnapshot ? "Snapshot" : "Locked") + " reader: " + reader.nReads
+                    + " reads, max latency " + reader.maxLatency + "ms");
+        }
+        System.out.println("Max commit time: " + maxCommitTime + "ms");
+
+        // old snapshots stay valid
+        assertEquals(1, readVersion(firstSnapshot.readBytes("version")));
+        assertEquals(1, readVersion(firstSnapshot.readBytes("dir1/file1")));
+        assertEquals(nCommits, readVersion(repository.getSnapshot().readBytes("/dir1/file1")));
+        assertEquals(repository.getHash("dir2/file2"), repository.getSnapshot().getHash("dir2/file2"));
+        assertEquals(Arrays.asList("dir0", "dir1", "dir2"), sorted(repository.getSnapshot().listDirectories("")));
+        assertFalse(repository.getSnapshot().hasFile("dir1"));
+        assertEquals(0, repository.getSnapshot().listFiles("notThere").size());
+        try {
+            firstSnapshot.readBytes("notThere");
+            fail();
+        } catch (NoSuchFileException e) {
+        }
+
+        // without uncommitted changes reads don't wait for the repository lock
+        final SyncRepository syncRepository = new SyncRepository(directory, branch, accessors, simpleCommitCallback);
+        final byte[][] lockFreeRead = new byte[1][];
+        Thread lockFreeReader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    lockFreeRead[0] = syncRepository.readBytes("version");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        synchronized (syncRepository) {
+            lockFreeReader.start();
+            lockFreeReader.join(10000);
+            assertFalse(lockFreeReader.isAlive());
+        }
+        assertEquals(nCommits, readVersion(lockFreeRead[0]));
+        syncRepository.putBytes("version", versionedContent(nCommits + 1, 16, random));
+        assertEquals(nCommits + 1, readVersion(syncRepository.readBytes("version")));
+        assertTrue(syncRepository.hasFile("version"));
+        syncRepository.remove("version");
+        assertFalse(syncRepository.hasFile("version"));
+    }
+
+    static private IChunkAccessor getCountingAccessor(final IChunkAccessor accessor, final long[] puts) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
+                return accessor.getChunk(hash);
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
+                puts[0]++;
+                return accessor.putChunk(data, ivHash);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+                accessor.releaseChunk(data);
+            }
+        };
+    }
+
+    /**
+     * Counts the chunks written to the directory (treePuts) and file containers (filePuts).
+     */
+    private IRepoChunkAccessors getCountingRepoChunkAccessors(final ChunkStore chunkStore, final long[] treePuts,
+                                                              final long[] filePuts) {
+        final IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+        return new IRepoChunkAccessors() {
+            @Override
+            public ITransaction startTransaction() throws IOException {
+                final ITransaction transaction = accessors.startTransaction();
+                return new ITransaction() {
+                    @Override
+                    public ChunkStore.Transaction getRawAccessor() {
+                        return transaction.getRawAccessor();
+                    }
+
+                    @Override
+                    public IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
+                        return transaction.getCommitAccessor(ref);
+                    }
+
+                    @Override
+                    public IChunkAccessor getTreeAccessor(ChunkContainerRef ref) {
+                        return getCountingAccessor(transaction.getTreeAccessor(ref), treePuts);
+                    }
+
+                    @Override
+                    public IChunkAccessor getFileAccessor(ChunkContainerRef ref, String filePath) {
+                        return getCountingAccessor(transaction.getFileAccessor(ref, filePath), filePuts);
+                    }
+
+                    @Override
+                    public void finishTransaction() throws IOException {
+                        transaction.finishTransaction();
+                    }
+
+                    @Override
+                    public void cancel() {
+                        transaction.cancel();
+                    }
+                };
+            }
+        };
+    }
+
+    public void testSingleFileCommitsInLargeTree() throws Exception {
+        String branch = "repoBranch";
+        String name = "repoLargeTree";
+        File directory = new File("RepoLargeTreeTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore chunkStore = createChunkStore(directory, name);
+        long[] treePuts = new long[1];
+        long[] filePuts = new long[1];
+        IRepoChunkAccessors accessors = getCountingRepoChunkAccessors(chunkStore, treePuts, filePuts);
+        Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+        // fanOut^depth leaf directories with one file each
+        final int fanOut = 12;
+        final int depth = 3;
+        List<String> files = new ArrayList<>();
+        files.add("file");
+        for (int level = 0; level < depth; level++) {
+            List<String> next = new ArrayList<>();
+            for (String file : files) {
+                for (int i = 0; i < fanOut; i++)
+                    next.add("dir" + i + "/" + file);
+            }
+            files = next;
+        }
+        long start = System.currentTimeMillis();
+        for (String file : files)
+            repository.putBytes(file, file.getBytes());
+        repository.commit(null);
+        System.out.println("Initial commit of " + files.size() + " files: " + (System.currentTimeMillis() - start)
+                + "ms");
+
+        Random random = new Random(1);
+        final int nCommits = 50;
+        long totalTime = 0;
+        long maxTime = 0;
+        for (int i = 0; i < nCommits; i++) {
+            String file = files.get(random.nextInt(files.size()));
+            treePuts[0] = 0;
+            filePuts[0] = 0;
+            start = System.nanoTime();
+            repository.putBytes(file, ("update" + i).getBytes());
+            repository.commit(null);
+            long time = System.nanoTime() - start;
+            totalTime += time;
+            maxTime = Math.max(maxTime, time);
+            // a data chunk and a node for the root and each directory on the path to the file
+            assertEquals(2 * (depth + 1), treePuts[0]);
+            // the file itself
+            assertTrue(filePuts[0] <= 2);
+        }
+        System.out.println("Single file commits: average " + totalTime / nCommits / 1000 + "us, max "
+                + maxTime / 1000 + "us");
+
+        // reading doesn't modify the tree
+        treePuts[0] = 0;
+        HashValue tip = repository.getTip();
+        repository.readBytes(files.get(0));
+        repository.commit(null);
+        assertEquals(tip, repository.getTip());
+        assertEquals(0, treePuts[0]);
+
+        repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+        assertEquals(fanOut, repository.listDirectories("dir0/dir1").size());
+        assertEquals(files.get(1), new String(repository.readBytes(files.get(1))));
+    }
+
+    public void testLargeDirectory() throws Exception {
+        String branch = "repoBranch";
+        String name = "repoLargeDir";
+        File directory = new File("RepoLargeDirTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore chunkStore = createChunkStore(directory, name);
+        long[] treePuts = new long[1];
+        long[] filePuts = new long[1];
+        IRepoChunkAccessors accessors = getCountingRepoChunkAccessors(chunkStore, treePuts, filePuts);
+        Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+        final int nFiles = 3000;
+        Map<String, DatabaseStingEntry> content = new HashMap<>();
+        for (int i = 0; i < nFiles; i++)
+            add(repository, content, new DatabaseStingEntry("big/file" + i, "file" + i));
+        add(repository, content, new DatabaseStingEntry("small/file", "file"));
+        repository.commit(null);
+        RepositorySnapshot first = repository.getSnapshot();
+
+        // the root, the sharded directory and a single shard
+        final int expectedTreePuts = 2 * 3;
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            treePuts[0] = 0;
+            add(repository, content, new DatabaseStingEntry("big/file" + random.nextInt(nFiles), "update" + i));
+            repository.commit(null);
+            assertEquals(expectedTreePuts, treePuts[0]);
+        }
+        System.out.println("Single file commits in a directory with " + nFiles + " files: average "
+                + (System.nanoTime() - start) / 20 / 1000 + "us");
+        treePuts[0] = 0;
+        add(repository, content, new DatabaseStingEntry("big/new", "new"));
+        repository.commit(null);
+        assertEquals(expectedTreePuts, treePuts[0]);
+        treePuts[0] = 0;
+        remove(repository, content, "big/file0");
+        repository.commit(null);
+        assertEquals(expectedTreePuts, treePuts[0]);
+
+        assertEquals(nFiles, repository.listFiles("big").size());
+        assertEquals(nFiles, first.listFiles("big").size());
+        assertEquals("file0", new String(first.readBytes("big/file0")));
+
+        // the garbage collector has to keep the shards of the current tree
+        ChunkStoreGarbageCollector collector = new ChunkStoreGarbageCollector(chunkStore);
+        collector.markBranch(repository.getBranchLog(), simpleCommitCallback, accessors);
+        collector.sweep();
+        repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+        containsContent(repository, content);
+
+        // shrinks back to a flat directory
+        for (int i = 1; i < nFiles - 100; i++)
+            remove(repository, content, "big/file" + i);
+        repository.commit(null);
+        repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+        containsContent(repository, content);
+    }
+
+    static private List<String> sorted(Collection<String> collection) {
+        List<String> list = new ArrayList<>(collection);
+        Collections.sort(list);
+        return list;
+    }
+
     public void testRepositoryAsync() throws IOException, CryptoException, InterruptedException, ExecutionException {
         String branch = "repoBranch";
         String name = "repoTreeBuilder";
@@ -79,6 +79,12 @@ public class VarIntTest extends TestCase {
 
         assertWriteAndParsing((long)Integer.MAX_VALUE * 2L, 4);
 
+        // zero 7 bit groups in the middle
+        assertWriteAndParsing(1 << 18);
+        assertWriteAndParsing(256 * 1024 + 1);
+        assertWriteAndParsing(1L << 40);
+        assertWriteAndParsing(1 << 12, 6);
+
         assertWriteAndParsing(Long.MAX_VALUE, 4);
     }
 }
@@ -13,6 +13,7 @@ import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
@@ -26,7 +27,7 @@ public class DiffMergeTest extends RepositoryTest {
          messageDigest = CryptoHelper.sha256Hash();
     }
 
-    private ChunkContainerRef addFile(FlatDirectoryBox box, String name) {
+    private ChunkContainerRef addFile(FlatDirectoryBox box, String name) throws IOException {
         HashValue dataHash = new HashValue(CryptoHelper.sha256Hash(Crypto.get().generateSalt()));
         ChunkPointer fakeBox = new ChunkPointer(dataHash,
                 new HashValue(CryptoHelper.sha256Hash(Crypto.get().generateSalt())), dataHash);
@@ -40,14 +41,14 @@ public class DiffMergeTest extends RepositoryTest {
         return fakeFilePointer;
     }
 
-    public void testDiff() {
+    public void testDiff() throws IOException {
         FlatDirectoryBox ours = FlatDirectoryBox.create();
         FlatDirectoryBox theirs = FlatDirectoryBox.create();
 
         ChunkContainerRef file1 = addFile(ours, "test1");
         DirBoxDiffIterator iterator = new DirBoxDiffIterator("", ours, theirs);
         assertTrue(iterator.hasNext());
-        DiffIterator.Change change = iterator.next();
+        DiffIterator.Change<FlatDirectoryBox.Entry> change = iterator.next();
         assertEquals(DiffIterator.Type.REMOVED, change.type);
         assertEquals("test1", change.path);
         assertFalse(iterator.hasNext());
@@ -98,6 +99,80 @@ public class DiffMergeTest extends RepositoryTest {
         assertFalse(iterator.hasNext());
     }
 
+    public void testShardedDirectoryDiff() throws Exception {
+        String name = "shardedDirTest";
+        File directory = new File("ShardedDirTest");
+        cleanUpFiles.add(directory.getName());
+        directory.mkdirs();
+
+        ChunkStore chunkStore = createChunkStore(directory, name);
+        IRepoChunkAccessors.ITransaction transaction = getRepoChunkAccessors(chunkStore).startTransaction();
+        IChunkAccessor accessor = transaction.getTreeAccessor(null);
+
+        final int nFiles = 5000;
+        Map<String, ChunkContainerRef> files = new HashMap<>();
+        FlatDirectoryBox ours = FlatDirectoryBox.create();
+        for (int i = 0; i < nFiles; i++)
+            files.put("file" + i, addFile(ours, "file" + i));
+        ChunkContainerRef ourRef = ours.flush(accessor);
+        assertTrue(ours.isSharded());
+
+        // the shards only depend on the entries and not on the order of the changes
+        FlatDirectoryBox other = FlatDirectoryBox.create();
+        for (int i = nFiles - 1; i >= 0; i--)
+            other.addFile("file" + i, files.get("file" + i));
+        for (int i = 0; i < 1000; i++)
+            addFile(other, "extra" + i);
+        other.flush(accessor);
+        for (int i = 0; i < 1000; i++)
+            other.remove("extra" + i);
+        assertEquals(ourRef.getDataHash(), other.flush(accessor).getDataHash());
+
+        FlatDirectoryBox theirs = FlatDirectoryBox.read(accessor, ourRef);
+        assertEquals(nFiles, theirs.size());
+        assertEquals(files.get("file1"), theirs.getEntry("file1").getDataPointer());
+        addFile(theirs, "file1");
+        addFile(theirs, "added");
+        theirs.remove("file2");
+        ChunkContainerRef theirRef = theirs.flush(accessor);
+
+        // unchanged shards are skipped
+        ours = FlatDirectoryBox.read(accessor, ourRef);
+        theirs = FlatDirectoryBox.read(accessor, theirRef);
+        DirBoxDiffIterator iterator = new DirBoxDiffIterator("", ours, theirs);
+        Map<String, DiffIterator.Type> changes = new HashMap<>();
+        while (iterator.hasNext()) {
+            DiffIterator.Change<FlatDirectoryBox.Entry> change = iterator.next();
+            changes.put(change.path, change.type);
+        }
+        assertEquals(3, changes.size());
+        assertEquals(DiffIterator.Type.MODIFIED, changes.get("file1"));
+        assertEquals(DiffIterator.Type.ADDED, changes.get("added"));
+        assertEquals(DiffIterator.Type.REMOVED, changes.get("file2"));
+        assertTrue(ours.getLoadedEntries().size() < nFiles / 4);
+
+        // a directory that shrinks below the split size has the same shape as one that has been built flat
+        int i = 0;
+        for (; theirs.size() > FlatDirectoryBox.MAX_SHARD_SIZE / 2 + 50; i++)
+            theirs.remove("file" + i);
+        theirRef = theirs.flush(accessor);
+        assertFalse(theirs.isSharded());
+        FlatDirectoryBox flat = FlatDirectoryBox.create();
+        for (FlatDirectoryBox.Entry entry : theirs.getEntries())
+            flat.addFile(entry.getName(), entry.getDataPointer());
+        assertEquals(theirRef.getDataHash(), flat.flush(accessor).getDataHash());
+
+        // a small directory is flat again
+        for (; i < nFiles - 10; i++)
+            theirs.remove("file" + i);
+        theirRef = theirs.flush(accessor);
+        assertFalse(theirs.isSharded());
+        theirs = FlatDirectoryBox.read(accessor, theirRef);
+        assertFalse(theirs.isSharded());
+        assertEquals(11, theirs.getEntries().size());
+        assertNotNull(theirs.getEntry("added"));
+    }
+
     public void testMerge() throws Exception {
         String branch = "repoBranch";
         String name = "repoTreeBuilder";
@@ -35,6 +35,20 @@ public class RabinFingerprintLong extends AbstractFingerprint {
 		precomputePushTable();
 	}
 
+	/**
+	 * Uses a push table that has been precomputed for the polynomial, e.g. one
+	 * that has been loaded from disk.
+	 */
+	public RabinFingerprintLong(Polynomial poly, long[] pushTable) {
+		super(poly);
+		if (pushTable.length != 512)
+			throw new IllegalArgumentException("Push table must have 512 entries");
+		this.degree = poly.degree().intValue();
+		this.shift = degree - 8;
+		this.fingerprint = 0;
+		this.pushTable = pushTable;
+	}
+
 	public RabinFingerprintLong(RabinFingerprintLong that) {
 		super(that.poly);
 		this.degree = that.degree;
@@ -20,6 +20,19 @@ public class RabinFingerprintLongWindowed extends RabinFingerprintLong implement
 		precomputePopTable();
 	}
 
+	/**
+	 * Uses tables that have been precomputed for the polynomial and window
+	 * size, e.g. ones that have been loaded from disk.
+	 */
+	public RabinFingerprintLongWindowed(Polynomial poly, long bytesPerWindow, long[] pushTable, long[] popTable) {
+		super(poly, pushTable);
+		if (popTable.length != 256)
+			throw new IllegalArgumentException("Pop table must have 256 entries");
+		this.bytesPerWindow = bytesPerWindow;
+		this.byteWindow = new CircularByteQueue((int) bytesPerWindow + 1);
+		this.popTable = popTable;
+	}
+
 	public RabinFingerprintLongWindowed(RabinFingerprintLongWindowed that) {
 		super(that);
 		this.bytesPerWindow = that.bytesPerWindow;
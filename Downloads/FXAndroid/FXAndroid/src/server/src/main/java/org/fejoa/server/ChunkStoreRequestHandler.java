@@ -53,7 +53,13 @@ public class ChunkStoreRequestHandler extends JsonRequestHandler {
 
         ServerPipe pipe = new ServerPipe(jsonRPCHandler.makeResult(Errors.OK, "data pipe ok"),
                 responseHandler, data);
-        RequestHandler.Result result = handler.handle(pipe, branchAccessRights);
+        RequestHandler.Result result;
+        try {
+            result = handler.handle(pipe, branchAccessRights);
+        } finally {
+            if (branchLog != null)
+                branchLog.close();
+        }
         if (result != RequestHandler.Result.OK && !responseHandler.isHandled())
             responseHandler.setResponseHeader(jsonRPCHandler.makeResult(Errors.ERROR, result.getDescription()));
     }
@@ -31,7 +31,8 @@ public class WatchHandler extends JsonRequestHandler {
 
     public enum Status {
         UPDATE,
-        ACCESS_DENIED
+        ACCESS_DENIED,
+        ERROR
     }
 
     static private class WatchEntry {
@@ -82,6 +83,7 @@ public class WatchHandler extends JsonRequestHandler {
         }
 
         List<JsonRPC.ArgumentSet> deniedReturn = new ArrayList<>();
+        List<JsonRPC.ArgumentSet> errorReturn = new ArrayList<>();
         List<JsonRPC.ArgumentSet> statusReturn = new ArrayList<>();
         for (Map.Entry<WatchEntry, WatchResult> entry : statusMap.entrySet()) {
             WatchEntry watchEntry = entry.getKey();
@@ -92,6 +94,12 @@ public class WatchHandler extends JsonRequestHandler {
                         new JsonRPC.Argument(WatchJob.STATUS_KEY, WatchJob.STATUS_ACCESS_DENIED)
                 );
                 deniedReturn.add(argumentSet);
+            } else if (result.status == Status.ERROR) {
+                JsonRPC.ArgumentSet argumentSet = new JsonRPC.ArgumentSet(
+                        new JsonRPC.Argument(WatchJob.BRANCH_KEY, watchEntry.branch),
+                        new JsonRPC.Argument(WatchJob.STATUS_KEY, WatchJob.STATUS_ERROR)
+                );
+                errorReturn.add(argumentSet);
             } else if (result.status == Status.UPDATE) {
                 List<JsonRPC.Argument> arguments = new ArrayList<>();
                 arguments.add(new JsonRPC.Argument(WatchJob.BRANCH_KEY, watchEntry.branch));
@@ -108,6 +116,11 @@ public class WatchHandler extends JsonRequestHandler {
             responseHandler.setResponseHeader(jsonRPCHandler.makeResult(Errors.ACCESS_DENIED, "watch results"));
             return;
         }
+        if (errorReturn.size() != 0) {
+            responseHandler.setResponseHeader(jsonRPCHandler.makeResult(Errors.ERROR, "failed to read branch log",
+                    new JsonRPC.Argument(WatchJob.WATCH_RESULT_KEY, errorReturn)));
+            return;
+        }
         String response = jsonRPCHandler.makeResult(Errors.OK, "watch results",
                 new JsonRPC.Argument(WatchJob.WATCH_RESULT_KEY, statusReturn),
                 new JsonRPC.Argument(JsonRemoteJob.ACCESS_DENIED_KEY, deniedReturn));
@@ -132,13 +145,23 @@ public class WatchHandler extends JsonRequestHandler {
                 try {
                     branchLog = accessControl.getChunkStoreBranchLog(branch, BranchAccessRight.PULL);
                 } catch (IOException e) {
+                    // e.g. a damaged log; don't let the client wait till the timeout
+                    e.printStackTrace();
+                    status.put(entry, new WatchResult(Status.ERROR, null));
                     continue;
                 }
                 if (branchLog == null) {
                     status.put(entry, new WatchResult(Status.ACCESS_DENIED, null));
                     continue;
                 }
-                ChunkStoreBranchLog.Entry latest = branchLog.getLatest();
+                ChunkStoreBranchLog.Entry latest;
+                try {
+                    latest = branchLog.getLatest();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    status.put(entry, new WatchResult(Status.ERROR, null));
+                    continue;
+                }
                 HashValue localMessageHash = Config.newBoxHash();
                 if (latest != null)
                     localMessageHash = latest.getEntryId();